@@ -0,0 +1,98 @@
+package org.ggp.base.benchmark;
+
+import java.util.List;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.StateMachineRuleEngine;
+import org.ggp.base.util.ruleengine.forwardchaining.ForwardChainingRuleEngineFactory;
+import org.ggp.base.util.ruleengine.propnet.CompiledPropNetRuleEngineFactory;
+import org.ggp.base.util.ruleengine.prover.ProverRuleEngineFactory;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.SamplePropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.sancho.SanchoRuleEngineFactory;
+
+/**
+ * The engines that can be selected with the "engine" parameter of the
+ * benchmarks. StateMachines are wrapped with {@link StateMachineRuleEngine}
+ * so that every engine can be driven through the same RuleEngine interface.
+ */
+public enum BenchmarkEngine {
+    PROVER_STATE_MACHINE {
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules) {
+            return wrap(new ProverStateMachine(), rules);
+        }
+    },
+    PROVER_RULE_ENGINE {
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules) {
+            return ProverRuleEngineFactory.createNormal().buildEngineForRules(rules);
+        }
+    },
+    TABLED_PROVER_RULE_ENGINE {
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules) {
+            return ProverRuleEngineFactory.createTabled().buildEngineForRules(rules);
+        }
+    },
+    FORWARD_CHAINING_RULE_ENGINE {
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules) {
+            return ForwardChainingRuleEngineFactory.INSTANCE.buildEngineForRules(rules);
+        }
+    },
+    DIFFERENTIAL_FORWARD_CHAINING_RULE_ENGINE {
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules) {
+            return ForwardChainingRuleEngineFactory.DIFFERENTIAL.buildEngineForRules(rules);
+        }
+    },
+    SANCHO {
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules) {
+            return SanchoRuleEngineFactory.INSTANCE.buildEngineForRules(rules);
+        }
+
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules, int threads) {
+            return SanchoRuleEngineFactory.INSTANCE.buildEngineForRules(rules, threads);
+        }
+    },
+    PROPNET_STATE_MACHINE {
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules) {
+            return wrap(new SamplePropNetStateMachine(), rules);
+        }
+    },
+    COMPILED_PROPNET_RULE_ENGINE {
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules) {
+            return CompiledPropNetRuleEngineFactory.INSTANCE.buildEngineForRules(rules);
+        }
+    },
+    CACHED_PROVER_STATE_MACHINE {
+        @Override
+        public RuleEngine<?, ?> build(List<Gdl> rules) {
+            return wrap(new CachedStateMachine(new ProverStateMachine()), rules);
+        }
+    },
+    ;
+
+    public abstract RuleEngine<?, ?> build(List<Gdl> rules);
+
+    /**
+     * Builds an engine that can be used by the given number of threads, each
+     * with its own engine from {@link RuleEngine#getInstanceForThread()}.
+     */
+    public RuleEngine<?, ?> build(List<Gdl> rules, int threads) {
+        return build(rules);
+    }
+
+    private static RuleEngine<?, ?> wrap(StateMachine sm, List<Gdl> rules) {
+        sm.initialize(rules);
+        return StateMachineRuleEngine.wrap(sm);
+    }
+}
@@ -0,0 +1,29 @@
+package org.ggp.base.benchmark;
+
+import java.io.File;
+import java.util.List;
+
+import org.ggp.base.util.game.GameRepository;
+import org.ggp.base.util.game.SimpleLocalGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+
+/**
+ * Loads rulesheets for benchmarks from the games/games directory bundled
+ * with the project. Benchmarks are expected to be run from the project root,
+ * which is what the jmh Gradle task does.
+ */
+public class BenchmarkGames {
+    private static final File GAMES_DIR = new File("games/games");
+
+    private BenchmarkGames() {
+        // Not instantiable
+    }
+
+    public static GameRepository getRepository() {
+        return new SimpleLocalGameRepository(GAMES_DIR);
+    }
+
+    public static List<Gdl> getRules(String gameKey) {
+        return getRepository().getGame(gameKey).getRules();
+    }
+}
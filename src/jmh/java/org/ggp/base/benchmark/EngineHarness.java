@@ -0,0 +1,101 @@
+package org.ggp.base.benchmark;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.ImmutableIntArray;
+import org.ggp.base.util.ruleengine.DepthChargeBatchResult;
+import org.ggp.base.util.ruleengine.GameDescriptionException;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.RuleEngineState;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Holds a rule engine along with a fixed sample of states reachable from its
+ * initial state, so that per-operation benchmarks cycle through realistic
+ * states instead of repeatedly querying the initial state.
+ *
+ * The sample is drawn with a fixed seed, so repeated runs against the same
+ * game see the same states.
+ */
+public class EngineHarness<Move, State extends RuleEngineState<Move, State>> {
+    private static final long SAMPLE_SEED = 20170813L;
+    private static final int MAX_SAMPLED_PLAYOUTS = 64;
+    private static final int MAX_SAMPLED_STATES = 256;
+
+    private final RuleEngine<Move, State> engine;
+    private final List<State> nonTerminalStates;
+    private final List<List<Move>> jointMoves;
+    private final List<State> terminalStates;
+    private int nonTerminalIndex = 0;
+    private int terminalIndex = 0;
+
+    private EngineHarness(RuleEngine<Move, State> engine, List<State> nonTerminalStates,
+            List<List<Move>> jointMoves, List<State> terminalStates) {
+        this.engine = engine;
+        this.nonTerminalStates = nonTerminalStates;
+        this.jointMoves = jointMoves;
+        this.terminalStates = terminalStates;
+    }
+
+    public static <M, S extends RuleEngineState<M, S>> EngineHarness<M, S> create(RuleEngine<M, S> engine)
+            throws GameDescriptionException {
+        Random random = new Random(SAMPLE_SEED);
+        List<S> nonTerminalStates = Lists.newArrayList();
+        List<List<M>> jointMoves = Lists.newArrayList();
+        List<S> terminalStates = Lists.newArrayList();
+        for (int playout = 0; playout < MAX_SAMPLED_PLAYOUTS; playout++) {
+            S state = engine.getInitialState();
+            while (!engine.isTerminal(state)) {
+                List<M> jointMove = Lists.newArrayListWithCapacity(engine.getNumRoles());
+                for (int r = 0; r < engine.getNumRoles(); r++) {
+                    List<M> legalMoves = engine.getLegalMoves(state, r);
+                    jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+                }
+                if (nonTerminalStates.size() < MAX_SAMPLED_STATES) {
+                    nonTerminalStates.add(state);
+                    jointMoves.add(jointMove);
+                }
+                state = engine.getNextState(state, jointMove);
+            }
+            terminalStates.add(state);
+        }
+        return new EngineHarness<M, S>(engine, nonTerminalStates, jointMoves, terminalStates);
+    }
+
+    public RuleEngine<Move, State> getEngine() {
+        return engine;
+    }
+
+    public ImmutableIntArray depthCharge() throws GameDescriptionException {
+        return engine.doRandomPlayout(engine.getInitialState());
+    }
+
+    public DepthChargeBatchResult depthChargeBatch(int numPlayouts) throws GameDescriptionException {
+        return engine.performDepthChargeBatch(engine.getInitialState(), numPlayouts);
+    }
+
+    public boolean isTerminal() {
+        return engine.isTerminal(nextNonTerminalState());
+    }
+
+    public List<Move> getLegalMoves(int roleIndex) throws GameDescriptionException {
+        return engine.getLegalMoves(nextNonTerminalState(), roleIndex);
+    }
+
+    public State getNextState() throws GameDescriptionException {
+        State state = nextNonTerminalState();
+        return engine.getNextState(state, jointMoves.get(nonTerminalIndex));
+    }
+
+    public int getGoal(int roleIndex) throws GameDescriptionException {
+        terminalIndex = (terminalIndex + 1) % terminalStates.size();
+        return engine.getGoal(terminalStates.get(terminalIndex), roleIndex);
+    }
+
+    private State nextNonTerminalState() {
+        nonTerminalIndex = (nonTerminalIndex + 1) % nonTerminalStates.size();
+        return nonTerminalStates.get(nonTerminalIndex);
+    }
+}
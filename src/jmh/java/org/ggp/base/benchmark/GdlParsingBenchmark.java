@@ -0,0 +1,167 @@
+package org.ggp.base.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.factory.StreamingGdlParser;
+import org.ggp.base.util.gdl.factory.exceptions.GdlFormatException;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.symbol.factory.SymbolFactory;
+import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
+import org.ggp.base.util.symbol.grammar.SymbolList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares parsing GDL through SymbolFactory and GdlFactory with the
+ * StreamingGdlParser, on the rulesheets of the benchmark games (both raw .kif
+ * files and the preprocessed form sent in START requests) and on the states
+ * and moves of a recorded match.
+ *
+ * The match is a few random playouts of the game, rendered as they are
+ * stored in match JSON: each state as a list of the arguments of its true
+ * sentences, and each move as a term.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GdlParsingBenchmark {
+    private static final int NUM_PLAYOUTS = 10;
+
+    @Param({"connectFour", "maze", "ticTacToe"})
+    public String game;
+
+    private String rawRulesheet;
+    private String rulesheet;
+    private List<String> states;
+    private List<String> moves;
+
+    @Setup
+    public void setUp() throws Exception {
+        rawRulesheet = new String(Files.readAllBytes(Paths.get("games/games", game, game + ".kif")),
+                StandardCharsets.UTF_8);
+        rulesheet = BenchmarkGames.getRepository().getGame(game).getRulesheet();
+
+        StateMachine machine = new ProverStateMachine();
+        machine.initialize(BenchmarkGames.getRules(game));
+        states = new ArrayList<>();
+        moves = new ArrayList<>();
+        for (int i = 0; i < NUM_PLAYOUTS; i++) {
+            MachineState state = machine.getInitialState();
+            while (true) {
+                states.add(renderState(state));
+                if (machine.isTerminal(state)) {
+                    break;
+                }
+                List<Move> jointMove = machine.getRandomJointMove(state);
+                for (Move move : jointMove) {
+                    moves.add(move.getContents().toString());
+                }
+                state = machine.getNextState(state, jointMove);
+            }
+        }
+    }
+
+    private static String renderState(MachineState state) {
+        StringBuilder rendered = new StringBuilder("( ");
+        for (GdlSentence sentence : state.getContents()) {
+            rendered.append(sentence.get(0)).append(' ');
+        }
+        return rendered.append(')').toString();
+    }
+
+    @Benchmark
+    public List<Gdl> rulesheetSymbols() throws SymbolFormatException, GdlFormatException {
+        return parseWithSymbols(rulesheet);
+    }
+
+    @Benchmark
+    public List<Gdl> rulesheetStreaming() throws SymbolFormatException {
+        return StreamingGdlParser.parseRulesheet(rulesheet);
+    }
+
+    @Benchmark
+    public List<Gdl> rawRulesheetSymbols() throws SymbolFormatException, GdlFormatException {
+        return parseWithSymbols(Game.preprocessRulesheet(rawRulesheet));
+    }
+
+    @Benchmark
+    public List<Gdl> rawRulesheetStreaming() throws SymbolFormatException {
+        return StreamingGdlParser.parseRawRulesheet(rawRulesheet);
+    }
+
+    // As Match used to parse states and moves
+    @Benchmark
+    public int matchSymbols() throws SymbolFormatException, GdlFormatException {
+        int count = 0;
+        for (String state : states) {
+            SymbolList elements = (SymbolList) SymbolFactory.create(state);
+            for (int i = 0; i < elements.size(); i++) {
+                count += GdlFactory.create(SymbolFactory.create("( true " + elements.get(i) + " )")).hashCode();
+            }
+        }
+        for (String move : moves) {
+            count += GdlFactory.createTerm(SymbolFactory.create(move)).hashCode();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int matchStreaming() throws SymbolFormatException {
+        int count = 0;
+        for (String state : states) {
+            for (GdlTerm element : StreamingGdlParser.parseTermList(state)) {
+                count += GdlPool.getRelation(GdlPool.TRUE, new GdlTerm[] {element}).hashCode();
+            }
+        }
+        for (String move : moves) {
+            count += StreamingGdlParser.parseTerm(move).hashCode();
+        }
+        return count;
+    }
+
+    private static List<Gdl> parseWithSymbols(String rulesheet) throws SymbolFormatException, GdlFormatException {
+        List<Gdl> rules = new ArrayList<>();
+        SymbolList list = (SymbolList) SymbolFactory.create(rulesheet);
+        for (int i = 0; i < list.size(); i++) {
+            rules.add(GdlFactory.create(list.get(i)));
+        }
+        return rules;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(GdlParsingBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
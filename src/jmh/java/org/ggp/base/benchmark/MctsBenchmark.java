@@ -0,0 +1,153 @@
+package org.ggp.base.benchmark;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.player.gamer.ruleengine.MctsTree;
+import org.ggp.base.util.ruleengine.GameDescriptionException;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.RuleEngineState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Measures MCTS iterations per second from the initial state when a single
+ * {@link MctsTree} is searched by several threads at once, each with its own
+ * engine instance. Each measurement iteration starts with an empty tree.
+ *
+ * The main method runs the benchmark at 1, 2, 4, ... search threads and at
+ * the number of available processors; alternatively, run it through the jmh
+ * Gradle task with -PjmhArgs="MctsBenchmark -p threads=4".
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MctsBenchmark {
+    private static final int ITERATIONS_PER_OP = 1024;
+    private static final int NODE_CAPACITY = 1 << 18;
+
+    @Param({"connectFour", "ticTacToe"})
+    public String game;
+
+    @Param({"FORWARD_CHAINING_RULE_ENGINE", "SANCHO"})
+    public BenchmarkEngine engine;
+
+    @Param({"1"})
+    public int threads;
+
+    private ParallelSearch<?, ?> search;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        search = ParallelSearch.create(engine.build(BenchmarkGames.getRules(game), threads), threads);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetTree() throws GameDescriptionException {
+        search.resetTree();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        search.executor.shutdownNow();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(ITERATIONS_PER_OP)
+    public int search() throws InterruptedException, ExecutionException {
+        return search.run(ITERATIONS_PER_OP);
+    }
+
+    private static class ParallelSearch<M, S extends RuleEngineState<M, S>> {
+        private final RuleEngine<M, S> engine;
+        private final List<RuleEngine<M, S>> workerEngines;
+        private final ExecutorService executor;
+        private final List<MctsTree<M, S>.Worker> workers = Lists.newArrayList();
+        private MctsTree<M, S> tree;
+
+        private ParallelSearch(RuleEngine<M, S> engine, List<RuleEngine<M, S>> workerEngines) {
+            this.engine = engine;
+            this.workerEngines = workerEngines;
+            this.executor = Executors.newFixedThreadPool(workerEngines.size());
+        }
+
+        public static <M, S extends RuleEngineState<M, S>> ParallelSearch<M, S> create(RuleEngine<M, S> engine,
+                int threads) {
+            List<RuleEngine<M, S>> workerEngines = Lists.newArrayList();
+            workerEngines.add(engine);
+            for (int i = 1; i < threads; i++) {
+                workerEngines.add(engine.getInstanceForThread());
+            }
+            return new ParallelSearch<M, S>(engine, workerEngines);
+        }
+
+        public void resetTree() throws GameDescriptionException {
+            tree = new MctsTree<M, S>(engine, NODE_CAPACITY);
+            workers.clear();
+            for (RuleEngine<M, S> workerEngine : workerEngines) {
+                workers.add(tree.createWorker(workerEngine));
+            }
+            tree.setRoot(engine.getInitialState());
+        }
+
+        public int run(int iterations) throws InterruptedException, ExecutionException {
+            List<Future<?>> results = Lists.newArrayListWithCapacity(workers.size());
+            for (int w = 0; w < workers.size(); w++) {
+                MctsTree<M, S>.Worker worker = workers.get(w);
+                // Split the iterations as evenly as possible.
+                int share = iterations / workers.size() + (w < iterations % workers.size() ? 1 : 0);
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < share; i++) {
+                        worker.iterate();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            return tree.getRootVisits();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = Lists.newArrayList();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(maxThreads);
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .include(MctsBenchmark.class.getSimpleName())
+                    .param("threads", String.valueOf(threads))
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
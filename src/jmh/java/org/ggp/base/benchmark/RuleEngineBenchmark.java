@@ -0,0 +1,98 @@
+package org.ggp.base.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.ImmutableIntArray;
+import org.ggp.base.util.ruleengine.DepthChargeBatchResult;
+import org.ggp.base.util.ruleengine.GameDescriptionException;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the speed of the rule engines that players depend on, for each
+ * game in games/games. Depth charges are reported as throughput; the
+ * individual operations are reported as average latency. Run with the GC
+ * profiler (the default in the jmh Gradle task) to get allocation rates.
+ *
+ * The game list below should be kept in sync with the contents of
+ * games/games; it can be overridden from the command line with -p game=...
+ *
+ * depthChargeBatch makes the same playouts as depthCharge through the batch
+ * API, and is reported per playout, so the two can be compared directly.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RuleEngineBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"connectFour", "maze", "ticTacToe"})
+    public String game;
+
+    @Param({"PROVER_STATE_MACHINE", "PROVER_RULE_ENGINE", "TABLED_PROVER_RULE_ENGINE", "FORWARD_CHAINING_RULE_ENGINE", "DIFFERENTIAL_FORWARD_CHAINING_RULE_ENGINE", "PROPNET_STATE_MACHINE", "COMPILED_PROPNET_RULE_ENGINE", "SANCHO", "CACHED_PROVER_STATE_MACHINE"})
+    public BenchmarkEngine engine;
+
+    private EngineHarness<?, ?> harness;
+
+    @Setup
+    public void setUp() throws GameDescriptionException {
+        RuleEngine<?, ?> ruleEngine = engine.build(BenchmarkGames.getRules(game));
+        harness = EngineHarness.create(ruleEngine);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public ImmutableIntArray depthCharge() throws GameDescriptionException {
+        return harness.depthCharge();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public DepthChargeBatchResult depthChargeBatch() throws GameDescriptionException {
+        return harness.depthChargeBatch(BATCH_SIZE);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public List<?> getLegalMoves() throws GameDescriptionException {
+        return harness.getLegalMoves(0);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object getNextState() throws GameDescriptionException {
+        return harness.getNextState();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean isTerminal() {
+        return harness.isTerminal();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int getGoal() throws GameDescriptionException {
+        return harness.getGoal(0);
+    }
+}
@@ -0,0 +1,75 @@
+package org.ggp.base.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.ImmutableIntArray;
+import org.ggp.base.util.ruleengine.GameDescriptionException;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.RuleEngineState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures random playout throughput when every benchmark thread shares a
+ * single engine, which is how gamers use engines whose getSynchronizedCopy
+ * returns the same instance. Scaling should be close to linear in the number
+ * of threads, up to the number of available cores.
+ *
+ * The main method runs the benchmark at 1, 2, 4, ... threads up to the number
+ * of available processors; alternatively, run it through the jmh Gradle task
+ * with -PjmhArgs="SharedEngineBenchmark -t 4".
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SharedEngineBenchmark {
+    @Param({"connectFour", "maze", "ticTacToe"})
+    public String game;
+
+    @Param({"PROVER_STATE_MACHINE", "TABLED_PROVER_RULE_ENGINE", "PROPNET_STATE_MACHINE"})
+    public BenchmarkEngine engine;
+
+    private RuleEngine<?, ?> ruleEngine;
+
+    @Setup
+    public void setUp() throws GameDescriptionException {
+        ruleEngine = engine.build(BenchmarkGames.getRules(game));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public ImmutableIntArray depthCharge() throws GameDescriptionException {
+        return doRandomPlayout(ruleEngine);
+    }
+
+    private static <M, S extends RuleEngineState<M, S>> ImmutableIntArray doRandomPlayout(
+            RuleEngine<M, S> engine) throws GameDescriptionException {
+        return engine.doRandomPlayout(engine.getInitialState());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(SharedEngineBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.ggp.base.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.DepthChargeContext;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.SamplePropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares depth charges run directly on StateMachines with a reused
+ * {@link DepthChargeContext} against the same playout written with a new
+ * joint move list per step. Run with the GC profiler (the default in the jmh
+ * Gradle task) and compare gc.alloc.rate.norm, the bytes allocated per
+ * playout; for the propnet it should be close to zero with a context.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StateMachineDepthChargeBenchmark {
+    @Param({"connectFour", "ticTacToe"})
+    public String game;
+
+    @Param({"PROVER", "CACHED_PROVER", "PROPNET"})
+    public String machine;
+
+    private StateMachine stateMachine;
+    private MachineState initialState;
+    private DepthChargeContext context;
+
+    @Setup
+    public void setUp() {
+        List<Gdl> rules = BenchmarkGames.getRules(game);
+        switch (machine) {
+        case "PROVER":
+            stateMachine = new ProverStateMachine();
+            break;
+        case "CACHED_PROVER":
+            stateMachine = new CachedStateMachine(new ProverStateMachine());
+            break;
+        case "PROPNET":
+            stateMachine = new SamplePropNetStateMachine();
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown machine: " + machine);
+        }
+        stateMachine.initialize(rules);
+        initialState = stateMachine.getInitialState();
+        context = stateMachine.createDepthChargeContext();
+    }
+
+    @Benchmark
+    public int depthChargeWithContext() throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        stateMachine.performDepthChargeWithContext(initialState, context);
+        return context.getGoals()[0];
+    }
+
+    @Benchmark
+    public List<Integer> depthChargeWithJointMoveLists() throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        MachineState state = initialState;
+        while (!stateMachine.isTerminal(state)) {
+            state = stateMachine.getNextState(state, stateMachine.getRandomJointMove(state));
+        }
+        return stateMachine.getGoals(state);
+    }
+}
@@ -38,7 +38,6 @@ import org.ggp.base.server.event.ServerTimeoutEvent;
 import org.ggp.base.util.game.CloudGameRepository;
 import org.ggp.base.util.game.Game;
 import org.ggp.base.util.game.GameRepository;
-import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.match.Match;
 import org.ggp.base.util.observer.Event;
@@ -299,7 +298,6 @@ public final class Kiosk extends JPanel implements ActionListener, ItemListener,
             }
 
             try {
-                GdlPool.drainPool();
                 SymbolPool.drainPool();
 
                 AvailableGame theGame = selectedGame.getSelectedValue();
@@ -0,0 +1,491 @@
+package org.ggp.base.player;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.ggp.base.player.GamePlayer.BadPortBehavior;
+import org.ggp.base.player.event.PlayerDroppedPacketEvent;
+import org.ggp.base.player.event.PlayerReceivedMessageEvent;
+import org.ggp.base.player.event.PlayerSentMessageEvent;
+import org.ggp.base.player.gamer.Gamer;
+import org.ggp.base.player.gamer.statemachine.random.RandomGamer;
+import org.ggp.base.player.request.factory.RequestFactory;
+import org.ggp.base.player.request.grammar.Request;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.observer.Event;
+import org.ggp.base.util.observer.Observer;
+import org.ggp.base.util.observer.Subject;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * NioGamePlayer is a drop-in replacement for {@link GamePlayer} that handles
+ * its connections on a single selector thread instead of reading, processing
+ * and answering one request at a time on the accepting thread. A slow or
+ * stalled client no longer holds up anyone else, and requests are parsed
+ * straight out of the connection's buffer.
+ *
+ * Requests are processed on two lanes. START, PLAY, STOP and PREVIEW go to
+ * the match lane, one at a time and in the order they arrived, since Gamers
+ * aren't written to handle those concurrently. INFO and ABORT go to a
+ * separate fast lane, so they're answered promptly even while the gamer is
+ * in the middle of a long move selection.
+ */
+public final class NioGamePlayer extends Thread implements Subject
+{
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final byte[] CRLF_CRLF = {'\r', '\n', '\r', '\n'};
+    private static final byte[] LF_LF = {'\n', '\n'};
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    private final int port;
+    private final Gamer gamer;
+    private final ServerSocketChannel listener;
+    private final Selector selector;
+    private final ExecutorService matchLane;
+    private final ExecutorService fastLane;
+    private final Queue<Connection> pendingResponses = new ConcurrentLinkedQueue<Connection>();
+    private final List<Observer> observers = new CopyOnWriteArrayList<Observer>();
+    private volatile boolean running = true;
+
+    public NioGamePlayer(int port, Gamer gamer,
+            BadPortBehavior portBehavior) throws IOException
+    {
+        ServerSocketChannel channel = null;
+        while (channel == null) {
+            channel = ServerSocketChannel.open();
+            try {
+                channel.bind(new InetSocketAddress(port));
+            } catch (IOException ex) {
+                channel.close();
+                channel = null;
+                if (portBehavior == BadPortBehavior.FAIL_IF_NOT_AVAILABLE) {
+                    throw new IOException(ex);
+                }
+                port++;
+                System.err.println("Failed to start gamer on port: " + (port-1) + " trying port " + port);
+            }
+        }
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+
+        this.listener = channel;
+        this.port = port;
+        this.gamer = gamer;
+        this.matchLane = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("NioGamePlayer-match-" + port).setDaemon(true).build());
+        this.fastLane = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("NioGamePlayer-fast-" + port).setDaemon(true).build());
+    }
+
+    @Override
+    public void addObserver(Observer observer)
+    {
+        observers.add(observer);
+    }
+
+    @Override
+    public void notifyObservers(Event event)
+    {
+        for (Observer observer : observers)
+        {
+            observer.observe(event);
+        }
+    }
+
+    public final int getGamerPort() {
+        return port;
+    }
+
+    public final Gamer getGamer() {
+        return gamer;
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            ;
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            while (running) {
+                selector.select();
+                registerPendingResponses();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            GamerLogger.logStackTrace("GamePlayer", e);
+                        }
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(key, connection);
+                            } else if (key.isWritable()) {
+                                write(connection);
+                            }
+                        } catch (IOException e) {
+                            dropConnection(connection, e);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            GamerLogger.logStackTrace("GamePlayer", e);
+        } finally {
+            matchLane.shutdownNow();
+            fastLane.shutdownNow();
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                ;
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void read(SelectionKey key, Connection connection) throws IOException
+    {
+        if (!connection.in.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(connection.in.capacity() * 2);
+            connection.in.flip();
+            bigger.put(connection.in);
+            connection.in = bigger;
+        }
+        int read = connection.channel.read(connection.in);
+
+        String message;
+        try {
+            message = parseRequest(connection.in, read < 0);
+        } catch (DroppedRequestException e) {
+            // Still answer with a blank response, as GamePlayer does.
+            key.interestOps(0);
+            respond(connection, "");
+            throw e;
+        }
+        if (message != null) {
+            // Nothing more to read until we've responded.
+            key.interestOps(0);
+            dispatch(connection, message);
+        } else if (read < 0) {
+            throw new IOException("Connection closed before the request was complete.");
+        }
+    }
+
+    private void write(Connection connection) throws IOException
+    {
+        connection.channel.write(connection.out);
+        if (!connection.out.hasRemaining()) {
+            connection.channel.close();
+        }
+    }
+
+    private void registerPendingResponses()
+    {
+        Connection connection;
+        while ((connection = pendingResponses.poll()) != null) {
+            if (connection.key.isValid()) {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void respond(Connection connection, String data)
+    {
+        connection.out = ByteBuffer.wrap(getResponseBytes(data));
+        pendingResponses.add(connection);
+        selector.wakeup();
+    }
+
+    private void dropConnection(Connection connection, Exception e)
+    {
+        GamerLogger.log("GamePlayer", "[Dropped data at " + System.currentTimeMillis() + "] Due to " + e, GamerLogger.LOG_LEVEL_DATA_DUMP);
+        if (!(e instanceof DroppedRequestException)) {
+            e.printStackTrace();
+        }
+        notifyObservers(new PlayerDroppedPacketEvent());
+        if (connection.out == null) {
+            try {
+                connection.channel.close();
+            } catch (IOException ioe) {
+                ;
+            }
+        }
+    }
+
+    private void dispatch(final Connection connection, final String in)
+    {
+        final long receptionTime = System.currentTimeMillis();
+        ExecutorService lane = isFastLaneRequest(in) ? fastLane : matchLane;
+        lane.execute(() -> {
+            try {
+                notifyObservers(new PlayerReceivedMessageEvent(in));
+                GamerLogger.log("GamePlayer", "[Received at " + receptionTime + "] " + in, GamerLogger.LOG_LEVEL_DATA_DUMP);
+
+                Request request = new RequestFactory().create(gamer, in);
+                String out = request.process(receptionTime);
+
+                respond(connection, out);
+                notifyObservers(new PlayerSentMessageEvent(out));
+                GamerLogger.log("GamePlayer", "[Sent at " + System.currentTimeMillis() + "] " + out, GamerLogger.LOG_LEVEL_DATA_DUMP);
+            } catch (Exception e) {
+                dropConnection(connection, e);
+                selector.wakeup();
+            }
+        });
+    }
+
+    /*
+     * INFO and ABORT requests don't wait behind the match lane. This only
+     * looks at the first word, so it doesn't need to parse the request.
+     */
+    static boolean isFastLaneRequest(String message)
+    {
+        int i = 0;
+        while (i < message.length() && (message.charAt(i) == '(' || Character.isWhitespace(message.charAt(i)))) {
+            i++;
+        }
+        return startsWithWord(message, i, "info") || startsWithWord(message, i, "abort");
+    }
+
+    private static boolean startsWithWord(String message, int start, String word)
+    {
+        return message.regionMatches(true, start, word, 0, word.length())
+                && (start + word.length() == message.length() || !Character.isLetterOrDigit(message.charAt(start + word.length())));
+    }
+
+    /*
+     * Returns the message in the request read into the buffer so far, or null
+     * if there's more to come. This accepts the same requests as
+     * HttpReader.readAsServer, but works on the buffer in place: the only
+     * thing copied out of it is the content itself.
+     */
+    static String parseRequest(ByteBuffer buffer, boolean endOfStream) throws IOException
+    {
+        byte[] bytes = buffer.array();
+        int length = buffer.position();
+        int lineEnd = indexOf(bytes, 0, length, (byte) '\n');
+        if (lineEnd < 0) {
+            if (endOfStream) {
+                throw new IOException(length == 0 ? "The HTTP request was empty." : "The HTTP request line was never finished.");
+            }
+            return null;
+        }
+
+        if (startsWithIgnoreCase(bytes, 0, length, "GET ")) {
+            int requestLineEnd = (lineEnd > 0 && bytes[lineEnd - 1] == '\r') ? lineEnd - 1 : lineEnd;
+            int pathEnd = lastIndexOf(bytes, 0, requestLineEnd, (byte) ' ');
+            String message = new String(bytes, 5, Math.max(0, pathEnd - 5), StandardCharsets.UTF_8);
+            return URLDecoder.decode(message, "UTF-8").replace((char)13, ' ');
+        } else if (startsWithIgnoreCase(bytes, 0, length, "POST ")) {
+            int headerEnd = indexOf(bytes, 0, length, CRLF_CRLF);
+            int contentStart = headerEnd + CRLF_CRLF.length;
+            if (headerEnd < 0) {
+                headerEnd = indexOf(bytes, 0, length, LF_LF);
+                contentStart = headerEnd + LF_LF.length;
+            }
+            if (headerEnd < 0) {
+                if (endOfStream) {
+                    throw new IOException("Could not find content in POST request.");
+                }
+                return null;
+            }
+            int contentLength = getContentLength(bytes, lineEnd + 1, headerEnd);
+            int available = length - contentStart;
+            if (contentLength >= 0 && available >= contentLength) {
+                return new String(bytes, contentStart, contentLength, StandardCharsets.UTF_8).trim();
+            } else if (contentLength < 0 && endOfStream) {
+                // Without a Content-Length, the content runs until the client
+                // stops sending.
+                String content = new String(bytes, contentStart, available, StandardCharsets.UTF_8);
+                return content.replace("\r", "").replace("\n", "").trim();
+            }
+            return null;
+        } else if (startsWithIgnoreCase(bytes, 0, length, "OPTIONS ")) {
+            // Answered at the network layer, as in HttpReader.readAsServer.
+            throw new DroppedRequestException("Drop this message at the network layer.");
+        } else {
+            throw new DroppedRequestException("Unexpected request type: " + new String(bytes, 0, lineEnd, StandardCharsets.UTF_8).trim());
+        }
+    }
+
+    private static int getContentLength(byte[] bytes, int from, int to) throws IOException
+    {
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = indexOf(bytes, lineStart, to, (byte) '\n');
+            if (lineEnd < 0) {
+                lineEnd = to;
+            }
+            if (startsWithIgnoreCase(bytes, lineStart, lineEnd, "content-length:")) {
+                String value = new String(bytes, lineStart + CONTENT_LENGTH.length, lineEnd - lineStart - CONTENT_LENGTH.length, StandardCharsets.US_ASCII);
+                try {
+                    return Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Content-Length header can't be parsed: \"" + value.trim() + "\"");
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return -1;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] bytes, int from, int to, String prefix)
+    {
+        if (to - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) bytes[from + i]) != Character.toLowerCase(prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte target)
+    {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, int from, int to, byte target)
+    {
+        for (int i = to - 1; i >= from; i--) {
+            if (bytes[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte[] target)
+    {
+        for (int i = from; i + target.length <= to; i++) {
+            int j = 0;
+            while (j < target.length && bytes[i + j] == target[j]) {
+                j++;
+            }
+            if (j == target.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * The same response HttpWriter.writeAsServer writes.
+     */
+    private static byte[] getResponseBytes(String data)
+    {
+        byte[] content = data.getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.0 200 OK\r\n");
+        sb.append("Content-type: text/acl\r\n");
+        sb.append("Content-length: ").append(content.length).append("\r\n");
+        sb.append("Access-Control-Allow-Origin: *\r\n");
+        sb.append("Access-Control-Allow-Methods: POST, GET, OPTIONS\r\n");
+        sb.append("Access-Control-Allow-Headers: Content-Type\r\n");
+        sb.append("Access-Control-Allow-Age: 86400\r\n");
+        sb.append("\r\n");
+        byte[] headers = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] result = new byte[headers.length + content.length];
+        System.arraycopy(headers, 0, result, 0, headers.length);
+        System.arraycopy(content, 0, result, headers.length, content.length);
+        return result;
+    }
+
+    private static final class Connection
+    {
+        private final SocketChannel channel;
+        private SelectionKey key = null;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private volatile ByteBuffer out = null;
+
+        private Connection(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+    }
+
+    /*
+     * A request that's answered with a blank response and otherwise ignored.
+     */
+    @SuppressWarnings("serial")
+    private static final class DroppedRequestException extends IOException
+    {
+        private DroppedRequestException(String message)
+        {
+            super(message);
+        }
+    }
+
+    // Starts a RandomGamer on a specified port, as GamePlayer.main does.
+    public static void main(String[] args)
+    {
+        if (args.length != 1) {
+            System.err.println("Usage: NioGamePlayer <port>");
+            System.exit(1);
+        }
+
+        try {
+            NioGamePlayer player = new NioGamePlayer(Integer.valueOf(args[0]), new RandomGamer(), BadPortBehavior.FIND_AN_OPEN_PORT);
+            player.run();
+        } catch (NumberFormatException e) {
+            System.err.println("Illegal port number: " + args[0]);
+            e.printStackTrace();
+            System.exit(2);
+        } catch (IOException e) {
+            System.err.println("IO Exception: " + e);
+            e.printStackTrace();
+            System.exit(3);
+        }
+    }
+}
@@ -28,8 +28,10 @@ import org.ggp.base.util.observer.Subject;
  */
 public abstract class Gamer implements Subject
 {
-    private Match match;
-    private GdlConstant roleName;
+    // Read by the INFO and ABORT requests of an NioGamePlayer while another
+    // request is being processed.
+    private volatile Match match;
+    private volatile GdlConstant roleName;
 
     public Gamer()
     {
@@ -86,7 +88,14 @@ public abstract class Gamer implements Subject
         return match;
     }
 
+    /**
+     * Sets the match being played. Replacing a match, including with null
+     * once it's over, closes the {@link Match#getGdlScope() scope} of its Gdl.
+     */
     public final void setMatch(Match match) {
+        if (this.match != null && this.match != match) {
+            this.match.getGdlScope().close();
+        }
         this.match = match;
     }
 
@@ -0,0 +1,268 @@
+package org.ggp.base.player.gamer.ruleengine;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ggp.base.apps.player.detail.DetailPanel;
+import org.ggp.base.apps.player.detail.SimpleDetailPanel;
+import org.ggp.base.player.gamer.Gamer;
+import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.player.gamer.exception.AbortingException;
+import org.ggp.base.player.gamer.exception.GamePreviewException;
+import org.ggp.base.player.gamer.exception.MetaGamingException;
+import org.ggp.base.player.gamer.exception.MoveSelectionException;
+import org.ggp.base.player.gamer.exception.StoppingException;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.ruleengine.GameDescriptionException;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.RuleEngineFactory;
+import org.ggp.base.util.ruleengine.RuleEngineState;
+import org.ggp.base.util.ruleengine.Translator;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.sancho.SanchoRuleEngineFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * MctsGamer plays with Monte Carlo tree search (UCT) on top of a RuleEngine.
+ *
+ * The search tree is kept in an {@link MctsTree}, which stores its nodes in
+ * preallocated arrays, so that searching creates very little garbage beyond
+ * what the rule engine itself creates. The tree is kept from one turn to the
+ * next: each turn, the search picks up from the node for the new current
+ * state, and the nodes that can no longer be reached are recycled when the
+ * tree fills up. The search also runs during the start clock.
+ *
+ * The tree can be searched by several threads at once, each with its own
+ * engine from {@link RuleEngine#getInstanceForThread()}. By default this uses
+ * the Sancho propnet rule engine, with a thread per available processor.
+ */
+public final class MctsGamer extends Gamer {
+    public static final int DEFAULT_NODE_CAPACITY = 1 << 19;
+
+    private final RuleEngineFactory<?> ruleEngineFactory;
+    private final int nodeCapacity;
+    private final int threads;
+    private Search<?, ?> search = null;
+
+    public MctsGamer() {
+        this(SanchoRuleEngineFactory.INSTANCE, DEFAULT_NODE_CAPACITY, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a gamer that plays with rule engines from the given factory and
+     * keeps up to nodeCapacity nodes in its search tree, searching on a
+     * single thread.
+     */
+    public MctsGamer(RuleEngineFactory<?> ruleEngineFactory, int nodeCapacity) {
+        this(ruleEngineFactory, nodeCapacity, 1);
+    }
+
+    /**
+     * Creates a gamer that searches on the given number of threads. If there
+     * is more than one, the factory's engines must support
+     * {@link RuleEngine#getInstanceForThread()}.
+     */
+    public MctsGamer(RuleEngineFactory<?> ruleEngineFactory, int nodeCapacity, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one search thread, not " + threads);
+        }
+        this.ruleEngineFactory = ruleEngineFactory;
+        this.nodeCapacity = nodeCapacity;
+        this.threads = threads;
+    }
+
+    @Override
+    public String getName() {
+        return getClass().getSimpleName();
+    }
+
+    @Override
+    public DetailPanel getDetailPanel() {
+        return new SimpleDetailPanel();
+    }
+
+    @Override
+    public void metaGame(long timeout) throws MetaGamingException {
+        try {
+            endSearch();
+            RuleEngine<?, ?> engine = buildEngine(getMatch().getGame().getRules());
+            search = Search.create(engine, new Role(getRoleName()), nodeCapacity, threads);
+            getMatch().appendState(search.getGdlState());
+            search.searchUntil(timeout - PREFERRED_METAGAME_BUFFER);
+        } catch (Exception e) {
+            GamerLogger.logStackTrace("GamePlayer", e);
+            throw new MetaGamingException(e);
+        }
+    }
+
+    @Override
+    public GdlTerm selectMove(long timeout) throws MoveSelectionException {
+        try {
+            long start = System.currentTimeMillis();
+            List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
+            if (lastMoves != null) {
+                search.makeMoves(lastMoves);
+                getMatch().appendState(search.getGdlState());
+            }
+
+            search.searchUntil(timeout - PREFERRED_PLAY_BUFFER);
+            Move selection = search.getBestMove();
+
+            long stop = System.currentTimeMillis();
+            notifyObservers(new GamerSelectedMoveEvent(search.getLegalMoves(), selection, stop - start));
+            return selection.getContents();
+        } catch (Exception e) {
+            GamerLogger.logStackTrace("GamePlayer", e);
+            throw new MoveSelectionException(e);
+        }
+    }
+
+    @Override
+    public void stop() throws StoppingException {
+        try {
+            List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
+            if (lastMoves != null) {
+                search.makeMoves(lastMoves);
+                getMatch().appendState(search.getGdlState());
+                getMatch().markCompleted(search.getGoals());
+            }
+            endSearch();
+        } catch (Exception e) {
+            GamerLogger.logStackTrace("GamePlayer", e);
+            throw new StoppingException(e);
+        }
+    }
+
+    @Override
+    public void abort() throws AbortingException {
+        endSearch();
+    }
+
+    @Override
+    public void preview(Game g, long timeout) throws GamePreviewException {
+        // No previewing yet.
+    }
+
+    private RuleEngine<?, ?> buildEngine(List<Gdl> rules) {
+        if (threads > 1 && ruleEngineFactory instanceof SanchoRuleEngineFactory) {
+            // Leave room for an instance per search thread.
+            return ((SanchoRuleEngineFactory) ruleEngineFactory).buildEngineForRules(rules, threads);
+        }
+        return ruleEngineFactory.buildEngineForRules(rules);
+    }
+
+    private void endSearch() {
+        if (search != null) {
+            search.close();
+            search = null;
+        }
+    }
+
+    /*
+     * The search state for one match, with the rule engine's types.
+     */
+    private static final class Search<M, S extends RuleEngineState<M, S>> {
+        private final RuleEngine<M, S> engine;
+        private final Translator<M, S> translator;
+        private final int roleIndex;
+        private final MctsTree<M, S> tree;
+        private final List<MctsTree<M, S>.Worker> workers;
+        private final ExecutorService executor;
+        private S currentState;
+
+        private Search(RuleEngine<M, S> engine, int roleIndex, int nodeCapacity, int threads) {
+            this.engine = engine;
+            this.translator = engine.getTranslator();
+            this.roleIndex = roleIndex;
+            this.tree = new MctsTree<M, S>(engine, nodeCapacity);
+            this.workers = Lists.newArrayListWithCapacity(threads);
+            workers.add(tree.createWorker(engine));
+            for (int i = 1; i < threads; i++) {
+                workers.add(tree.createWorker(engine.getInstanceForThread()));
+            }
+            this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                    .setNameFormat("MctsGamer-search-%d")
+                    .setDaemon(true)
+                    .build());
+            this.currentState = engine.getInitialState();
+        }
+
+        private static <M, S extends RuleEngineState<M, S>> Search<M, S> create(RuleEngine<M, S> engine, Role role,
+                int nodeCapacity, int threads) {
+            int roleIndex = engine.getRoles().indexOf(role);
+            if (roleIndex < 0) {
+                throw new IllegalArgumentException("No role " + role + " in " + engine.getRoles());
+            }
+            return new Search<M, S>(engine, roleIndex, nodeCapacity, threads);
+        }
+
+        private Set<GdlSentence> getGdlState() {
+            return translator.getGdlState(currentState);
+        }
+
+        private void makeMoves(List<GdlTerm> jointMove) throws GameDescriptionException {
+            currentState = engine.getNextState(currentState, translator.getNativeMoves(currentState, jointMove));
+        }
+
+        private List<Integer> getGoals() throws GameDescriptionException {
+            return engine.getGoals(currentState).asList();
+        }
+
+        private List<Move> getLegalMoves() throws GameDescriptionException {
+            return translator.getMoveObjects(engine.getLegalMoves(currentState, roleIndex));
+        }
+
+        private void searchUntil(long finishBy) throws GameDescriptionException, InterruptedException, ExecutionException {
+            tree.setRoot(currentState);
+            int startVisits = tree.getRootVisits();
+            List<Future<Integer>> results = Lists.newArrayListWithCapacity(workers.size());
+            for (MctsTree<M, S>.Worker worker : workers) {
+                results.add(executor.submit(() -> {
+                    int iterations = 0;
+                    while (!tree.isRootTerminal() && System.currentTimeMillis() < finishBy) {
+                        worker.iterate();
+                        iterations++;
+                    }
+                    return iterations;
+                }));
+            }
+
+            // Wait for every thread before reporting a failure, so none of
+            // them are still using the tree when it's next changed.
+            int iterations = 0;
+            ExecutionException failure = null;
+            for (Future<Integer> result : results) {
+                try {
+                    iterations += result.get();
+                } catch (ExecutionException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            GamerLogger.log("MctsGamer", "Ran " + iterations + " iterations on " + workers.size() + " threads; root has "
+                    + startVisits + " + " + iterations + " visits, tree has " + tree.getNodeCount() + " nodes.");
+        }
+
+        private Move getBestMove() {
+            GamerLogger.log("MctsGamer", "Expected score: " + tree.getBestMoveScore(roleIndex));
+            return new Move(translator.getGdlMove(tree.getBestMove(roleIndex)));
+        }
+
+        private void close() {
+            executor.shutdownNow();
+        }
+    }
+}
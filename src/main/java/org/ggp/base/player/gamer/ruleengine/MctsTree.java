@@ -0,0 +1,580 @@
+package org.ggp.base.player.gamer.ruleengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.ggp.base.util.ImmutableIntArray;
+import org.ggp.base.util.ruleengine.GameDescriptionException;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.RuleEngineState;
+
+/**
+ * A UCT search tree whose nodes live in preallocated parallel arrays rather
+ * than in objects of their own, so that searching doesn't create garbage for
+ * every node and the whole tree can be reused from one turn to the next.
+ *
+ * Each node has a block of move slots in the move arrays, one per legal move
+ * of each role, holding the move and its visit count and total score for
+ * that role. Roles choose their moves independently (decoupled UCT), so
+ * simultaneous-move games work the same way as turn-taking ones. Each node
+ * also has a block of child slots, one per joint move, holding the index of
+ * the child node or {@link #UNEXPANDED}.
+ *
+ * Nodes are shared between all of the paths that reach the same state, via
+ * a table keyed by the state's hash. When a new root is set and the arrays
+ * are filling up, the nodes that can no longer be reached from the root are
+ * recycled by sliding the rest down to the start of the arrays. If the tree
+ * fills up during a search, it stops growing until the next root is set and
+ * carries on with playouts from its leaves.
+ *
+ * Several threads can search the tree at once, each with a {@link Worker}
+ * of its own. Visit counts and scores are updated atomically without
+ * locking. An iteration counts its visits on the way down and only adds its
+ * scores on the way back up, so until it finishes, the moves it chose look
+ * like losses (a "virtual loss"), which steers the other threads elsewhere.
+ * New nodes are published with compare-and-set, so when two threads expand
+ * the same state at once, one of them wins and the other uses its node.
+ * {@link #setRoot} must not be called while any worker is iterating.
+ */
+public final class MctsTree<M, S extends RuleEngineState<M, S>> {
+    public static final int UNEXPANDED = -1;
+    private static final int NOT_FOUND = -1;
+    private static final int MAX_DEPTH = 1024;
+    // Scores are divided by 100 before being compared with this.
+    private static final double EXPLORATION = 0.7;
+
+    private final RuleEngine<M, S> engine;
+    private final int numRoles;
+    private final int nodeCapacity;
+
+    // Per node
+    private final Object[] nodeStates;
+    private final AtomicIntegerArray nodeVisits;
+    private final boolean[] nodeTerminal;
+    private final int[] nodeChildrenStart;
+    // Per node and role, at node * numRoles + role
+    private final int[] nodeMovesStart;
+    private final int[] nodeMoveCounts;
+    private final int[] nodeGoals;
+
+    // Per move slot
+    private final Object[] moves;
+    private final AtomicIntegerArray moveVisits;
+    private final AtomicLongArray moveScores;
+
+    // Per child slot
+    private final AtomicIntegerArray children;
+
+    // Transposition table of node index + 1, or 0 for empty slots.
+    private final AtomicIntegerArray table;
+    private final int tableMask;
+
+    // Guards the counts below while space is allocated for a new node.
+    private final Object allocationLock = new Object();
+    private volatile int nodeCount = 0;
+    private int moveCount = 0;
+    private int childCount = 0;
+    private volatile boolean full = false;
+    private int root = NOT_FOUND;
+
+    private final Worker defaultWorker;
+    private final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+
+    // Scratch space for recycling.
+    private final int[] remap;
+    private final int[] stack;
+
+    public MctsTree(RuleEngine<M, S> engine, int nodeCapacity) {
+        this.engine = engine;
+        this.numRoles = engine.getNumRoles();
+        this.nodeCapacity = nodeCapacity;
+        int slotCapacity = nodeCapacity * 8;
+
+        nodeStates = new Object[nodeCapacity];
+        nodeVisits = new AtomicIntegerArray(nodeCapacity);
+        nodeTerminal = new boolean[nodeCapacity];
+        nodeChildrenStart = new int[nodeCapacity];
+        nodeMovesStart = new int[nodeCapacity * numRoles];
+        nodeMoveCounts = new int[nodeCapacity * numRoles];
+        nodeGoals = new int[nodeCapacity * numRoles];
+
+        moves = new Object[slotCapacity];
+        moveVisits = new AtomicIntegerArray(slotCapacity);
+        moveScores = new AtomicLongArray(slotCapacity);
+        children = new AtomicIntegerArray(slotCapacity);
+
+        int tableSize = Integer.highestOneBit(nodeCapacity) * 4;
+        table = new AtomicIntegerArray(tableSize);
+        tableMask = tableSize - 1;
+
+        remap = new int[nodeCapacity];
+        stack = new int[nodeCapacity];
+        defaultWorker = createWorker(engine);
+    }
+
+    /**
+     * Creates a worker that searches the tree with the given engine, which
+     * must be for the same game as the tree's engine and must accept its
+     * states and moves. Each thread searching the tree needs its own worker;
+     * see {@link RuleEngine#getInstanceForThread()} for getting engines for
+     * them.
+     */
+    public Worker createWorker(RuleEngine<M, S> workerEngine) {
+        Worker worker = new Worker(workerEngine);
+        workers.add(worker);
+        return worker;
+    }
+
+    /**
+     * Moves the root of the tree to the given state, keeping whatever is
+     * already known about it and the states after it.
+     *
+     * @throws IllegalStateException if the root doesn't fit in an empty tree
+     */
+    public void setRoot(S state) throws GameDescriptionException {
+        int node = find(state);
+        if (node == NOT_FOUND) {
+            node = createNode(state, engine);
+            if (node != NOT_FOUND) {
+                node = insert(node);
+            }
+        }
+        if (node == NOT_FOUND) {
+            // Out of room; start again from scratch.
+            clear();
+            node = createNode(state, engine);
+            if (node == NOT_FOUND) {
+                throw new IllegalStateException("The tree's capacity of " + nodeCapacity
+                        + " nodes is too small to hold even the root's moves and children");
+            }
+            node = insert(node);
+        }
+        root = node;
+        if (full || nodeCount > nodeCapacity / 2) {
+            recycle();
+        }
+        full = false;
+
+        engine.markAsBaseState(state);
+        for (Worker worker : workers) {
+            if (worker.engine != engine) {
+                worker.engine.markAsBaseState(state);
+            }
+        }
+    }
+
+    /**
+     * Runs one iteration of selection, expansion, playout and backpropagation
+     * from the root with the tree's own engine, on the calling thread.
+     */
+    public void iterate() throws GameDescriptionException {
+        defaultWorker.iterate();
+    }
+
+    /**
+     * Searches the tree on behalf of one thread, with that thread's engine
+     * and scratch space.
+     */
+    public final class Worker {
+        private final RuleEngine<M, S> engine;
+        private final int[] pathNodes = new int[MAX_DEPTH];
+        private final int[] pathMoves = new int[MAX_DEPTH * numRoles];
+        private final int[] goals = new int[numRoles];
+        private final List<M> jointMove;
+
+        private Worker(RuleEngine<M, S> engine) {
+            this.engine = engine;
+            jointMove = new ArrayList<M>(numRoles);
+            for (int r = 0; r < numRoles; r++) {
+                jointMove.add(null);
+            }
+        }
+
+        /**
+         * Runs one iteration of selection, expansion, playout and
+         * backpropagation from the root.
+         */
+        public void iterate() throws GameDescriptionException {
+            int node = root;
+            int depth = 0;
+            while (true) {
+                nodeVisits.incrementAndGet(node);
+                if (nodeTerminal[node]) {
+                    System.arraycopy(nodeGoals, node * numRoles, goals, 0, numRoles);
+                    break;
+                }
+                if (depth == MAX_DEPTH) {
+                    playout(getState(node));
+                    break;
+                }
+
+                pathNodes[depth] = node;
+                int childSlot = selectJointMove(node, depth);
+                depth++;
+
+                int child = children.get(childSlot);
+                if (child == UNEXPANDED) {
+                    S nextState = engine.getNextState(getState(node), getJointMove(node, depth - 1));
+                    child = findOrCreate(nextState, engine);
+                    if (child == NOT_FOUND) {
+                        // No room for it in the tree.
+                        playout(nextState);
+                        break;
+                    }
+                    if (!children.compareAndSet(childSlot, UNEXPANDED, child)) {
+                        child = children.get(childSlot);
+                    }
+                    nodeVisits.incrementAndGet(child);
+                    if (nodeTerminal[child]) {
+                        System.arraycopy(nodeGoals, child * numRoles, goals, 0, numRoles);
+                    } else {
+                        playout(nextState);
+                    }
+                    break;
+                }
+                node = child;
+            }
+            backpropagate(depth);
+        }
+
+        /*
+         * Picks each role's move and counts a visit to it straight away,
+         * which acts as a virtual loss until the scores are backpropagated.
+         */
+        private int selectJointMove(int node, int depth) {
+            int childSlot = 0;
+            double logVisits = Math.log(Math.max(1, nodeVisits.get(node)));
+            for (int r = 0; r < numRoles; r++) {
+                int start = nodeMovesStart[node * numRoles + r];
+                int count = nodeMoveCounts[node * numRoles + r];
+                int chosen = 0;
+                if (count > 1) {
+                    double bestValue = Double.NEGATIVE_INFINITY;
+                    for (int i = 0; i < count; i++) {
+                        int visits = moveVisits.get(start + i);
+                        if (visits == 0) {
+                            chosen = i;
+                            break;
+                        }
+                        double value = moveScores.get(start + i) / (100.0 * visits)
+                                + EXPLORATION * Math.sqrt(logVisits / visits);
+                        if (value > bestValue) {
+                            bestValue = value;
+                            chosen = i;
+                        }
+                    }
+                }
+                moveVisits.incrementAndGet(start + chosen);
+                pathMoves[depth * numRoles + r] = chosen;
+                childSlot = childSlot * count + chosen;
+            }
+            return nodeChildrenStart[node] + childSlot;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<M> getJointMove(int node, int depth) {
+            for (int r = 0; r < numRoles; r++) {
+                jointMove.set(r, (M) moves[nodeMovesStart[node * numRoles + r] + pathMoves[depth * numRoles + r]]);
+            }
+            return jointMove;
+        }
+
+        private void playout(S state) throws GameDescriptionException {
+            ImmutableIntArray result = engine.doRandomPlayout(state);
+            for (int r = 0; r < numRoles; r++) {
+                goals[r] = result.get(r);
+            }
+        }
+
+        private void backpropagate(int depth) {
+            for (int d = 0; d < depth; d++) {
+                int node = pathNodes[d];
+                for (int r = 0; r < numRoles; r++) {
+                    int slot = nodeMovesStart[node * numRoles + r] + pathMoves[d * numRoles + r];
+                    moveScores.addAndGet(slot, goals[r]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the most visited of the role's moves at the root.
+     */
+    @SuppressWarnings("unchecked")
+    public M getBestMove(int roleIndex) {
+        return (M) moves[getBestMoveSlot(roleIndex)];
+    }
+
+    /**
+     * Returns the average score of the role's most visited move at the root.
+     */
+    public double getBestMoveScore(int roleIndex) {
+        int slot = getBestMoveSlot(roleIndex);
+        int visits = moveVisits.get(slot);
+        return (visits == 0) ? 0 : moveScores.get(slot) / (double) visits;
+    }
+
+    private int getBestMoveSlot(int roleIndex) {
+        int start = nodeMovesStart[root * numRoles + roleIndex];
+        int count = nodeMoveCounts[root * numRoles + roleIndex];
+        int best = start;
+        for (int slot = start + 1; slot < start + count; slot++) {
+            if (moveVisits.get(slot) > moveVisits.get(best)) {
+                best = slot;
+            }
+        }
+        return best;
+    }
+
+    public boolean isRootTerminal() {
+        return nodeTerminal[root];
+    }
+
+    public int getRootVisits() {
+        return nodeVisits.get(root);
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    @SuppressWarnings("unchecked")
+    private S getState(int node) {
+        return (S) nodeStates[node];
+    }
+
+    private int findOrCreate(S state, RuleEngine<M, S> workerEngine) throws GameDescriptionException {
+        int node = find(state);
+        if (node != NOT_FOUND || full) {
+            return node;
+        }
+        node = createNode(state, workerEngine);
+        if (node == NOT_FOUND) {
+            full = true;
+            return NOT_FOUND;
+        }
+        return insert(node);
+    }
+
+    private int find(S state) {
+        int slot = hash(state) & tableMask;
+        int entry;
+        while ((entry = table.get(slot)) != 0) {
+            if (nodeStates[entry - 1].equals(state)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+        return NOT_FOUND;
+    }
+
+    /*
+     * Adds the node to the table and returns it, unless another thread has
+     * already added a node for the same state, in which case that node is
+     * returned instead and this one is left unused.
+     */
+    private int insert(int node) {
+        Object state = nodeStates[node];
+        int slot = hash(state) & tableMask;
+        while (true) {
+            int entry = table.get(slot);
+            if (entry == 0) {
+                if (table.compareAndSet(slot, 0, node + 1)) {
+                    return node;
+                }
+                entry = table.get(slot);
+            }
+            if (nodeStates[entry - 1].equals(state)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+    }
+
+    private static int hash(Object state) {
+        int h = state.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Sets up a node for the state, or returns NOT_FOUND if there's no room.
+     * The node isn't visible to other threads until it's been inserted.
+     */
+    private int createNode(S state, RuleEngine<M, S> workerEngine) throws GameDescriptionException {
+        boolean terminal = workerEngine.isTerminal(state);
+        List<List<M>> legalMoves = null;
+        int moveSlots = 0;
+        int jointMoveCount = 0;
+        if (!terminal) {
+            legalMoves = workerEngine.getLegalMovesByRole(state);
+            jointMoveCount = 1;
+            for (List<M> roleMoves : legalMoves) {
+                moveSlots += roleMoves.size();
+                jointMoveCount *= roleMoves.size();
+            }
+        }
+
+        int node;
+        int movesStart;
+        int childrenStart;
+        synchronized (allocationLock) {
+            if (nodeCount == nodeCapacity
+                    || moveCount + moveSlots > moves.length
+                    || childCount + jointMoveCount > children.length()) {
+                return NOT_FOUND;
+            }
+            node = nodeCount;
+            movesStart = moveCount;
+            childrenStart = childCount;
+            moveCount += moveSlots;
+            childCount += jointMoveCount;
+            nodeCount = node + 1;
+        }
+
+        int slot = movesStart;
+        for (int r = 0; r < numRoles; r++) {
+            nodeMovesStart[node * numRoles + r] = slot;
+            if (terminal) {
+                nodeGoals[node * numRoles + r] = workerEngine.getGoal(state, r);
+                nodeMoveCounts[node * numRoles + r] = 0;
+            } else {
+                List<M> roleMoves = legalMoves.get(r);
+                nodeMoveCounts[node * numRoles + r] = roleMoves.size();
+                for (M move : roleMoves) {
+                    moves[slot] = move;
+                    moveVisits.set(slot, 0);
+                    moveScores.set(slot, 0);
+                    slot++;
+                }
+            }
+        }
+        nodeChildrenStart[node] = childrenStart;
+        for (int i = childrenStart; i < childrenStart + jointMoveCount; i++) {
+            children.set(i, UNEXPANDED);
+        }
+
+        nodeStates[node] = state;
+        nodeVisits.set(node, 0);
+        nodeTerminal[node] = terminal;
+        return node;
+    }
+
+    private int getJointMoveCount(int node) {
+        if (nodeTerminal[node]) {
+            return 0;
+        }
+        int jointMoveCount = 1;
+        for (int r = 0; r < numRoles; r++) {
+            jointMoveCount *= nodeMoveCounts[node * numRoles + r];
+        }
+        return jointMoveCount;
+    }
+
+    private int getMoveSlotCount(int node) {
+        int count = 0;
+        for (int r = 0; r < numRoles; r++) {
+            count += nodeMoveCounts[node * numRoles + r];
+        }
+        return count;
+    }
+
+    private void clear() {
+        Arrays.fill(nodeStates, 0, nodeCount, null);
+        Arrays.fill(moves, 0, moveCount, null);
+        for (int slot = 0; slot < table.length(); slot++) {
+            table.set(slot, 0);
+        }
+        nodeCount = 0;
+        moveCount = 0;
+        childCount = 0;
+        root = NOT_FOUND;
+    }
+
+    /*
+     * Frees up the nodes that can't be reached from the root. Nodes and their
+     * slots are allocated together, in the same order, so the live ones can
+     * be slid down in place, in order, without overwriting anything still
+     * needed. This also drops nodes that lost a race to be inserted.
+     */
+    private void recycle() {
+        // Mark the live nodes, using remap as the set of nodes seen so far.
+        Arrays.fill(remap, 0, nodeCount, NOT_FOUND);
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        remap[root] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            int start = nodeChildrenStart[node];
+            int end = start + getJointMoveCount(node);
+            for (int slot = start; slot < end; slot++) {
+                int child = children.get(slot);
+                if (child != UNEXPANDED && remap[child] == NOT_FOUND) {
+                    remap[child] = 0;
+                    stack[stackSize++] = child;
+                }
+            }
+        }
+
+        int newNodeCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (remap[node] != NOT_FOUND) {
+                remap[node] = newNodeCount++;
+            }
+        }
+
+        int newMoveCount = 0;
+        int newChildCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            int newNode = remap[node];
+            if (newNode == NOT_FOUND) {
+                continue;
+            }
+            int moveSlots = getMoveSlotCount(node);
+            int oldMovesStart = nodeMovesStart[node * numRoles];
+            for (int i = 0; i < moveSlots; i++) {
+                moves[newMoveCount + i] = moves[oldMovesStart + i];
+                moveVisits.set(newMoveCount + i, moveVisits.get(oldMovesStart + i));
+                moveScores.set(newMoveCount + i, moveScores.get(oldMovesStart + i));
+            }
+            int movesStart = newMoveCount;
+            for (int r = 0; r < numRoles; r++) {
+                nodeMovesStart[newNode * numRoles + r] = movesStart;
+                nodeMoveCounts[newNode * numRoles + r] = nodeMoveCounts[node * numRoles + r];
+                nodeGoals[newNode * numRoles + r] = nodeGoals[node * numRoles + r];
+                movesStart += nodeMoveCounts[node * numRoles + r];
+            }
+            newMoveCount += moveSlots;
+
+            int childSlots = getJointMoveCount(node);
+            int oldChildrenStart = nodeChildrenStart[node];
+            for (int i = 0; i < childSlots; i++) {
+                int child = children.get(oldChildrenStart + i);
+                children.set(newChildCount + i, (child == UNEXPANDED) ? UNEXPANDED : remap[child]);
+            }
+            nodeChildrenStart[newNode] = newChildCount;
+            newChildCount += childSlots;
+
+            nodeStates[newNode] = nodeStates[node];
+            nodeVisits.set(newNode, nodeVisits.get(node));
+            nodeTerminal[newNode] = nodeTerminal[node];
+        }
+
+        Arrays.fill(nodeStates, newNodeCount, nodeCount, null);
+        Arrays.fill(moves, newMoveCount, moveCount, null);
+        root = remap[root];
+        nodeCount = newNodeCount;
+        moveCount = newMoveCount;
+        childCount = newChildCount;
+
+        for (int slot = 0; slot < table.length(); slot++) {
+            table.set(slot, 0);
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            insert(node);
+        }
+    }
+}
@@ -1,15 +1,30 @@
 package org.ggp.base.player.gamer.statemachine.sample;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * SampleMonteCarloGamer is a simple state-machine-based Gamer. It will use a
  * pure Monte Carlo approach towards picking moves, doing simulations and then
@@ -21,10 +36,82 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
  * of the default state machine (which is slow) and mostly due to the algorithm
  * assuming that the opponent plays completely randomly, which is inaccurate.
  *
+ * By default the simulations run on a single thread, but they can also be
+ * spread across several threads (see {@link Mode}), each with its own copy
+ * of the state machine from {@link StateMachine#getSynchronizedCopy()}.
+ *
  * @author Sam Schreiber
  */
 public final class SampleMonteCarloGamer extends SampleGamer
 {
+    /**
+     * How the simulations are spread across threads.
+     */
+    public enum Mode {
+        /** One thread runs simulations for each candidate move in turn. */
+        SINGLE_THREADED,
+        /**
+         * Every thread runs simulations for each candidate move in turn,
+         * keeping its own totals, and the totals are added up at the end.
+         */
+        ROOT_PARALLEL,
+        /**
+         * One thread goes through the candidate moves in turn, running a
+         * batch of simulations for each one with one simulation per thread.
+         */
+        LEAF_PARALLEL,
+    }
+
+    // How long past the deadline to wait for simulations that are still
+    // running before giving up on them.
+    private static final long LATE_SIMULATION_GRACE_MILLIS = 500;
+
+    private final Mode mode;
+    private final int threads;
+    private ExecutorService executor = null;
+    private BlockingQueue<StateMachine> machines = null;
+
+    // What happened during the last move selection, for tests.
+    private final Set<Thread> simulationThreads = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger simulationsRun = new AtomicInteger();
+    private int simulationsCounted = 0;
+
+    public SampleMonteCarloGamer()
+    {
+        this(Mode.SINGLE_THREADED, 1);
+    }
+
+    /**
+     * Creates a gamer that spreads its simulations across the given number of
+     * threads in the given way.
+     */
+    public SampleMonteCarloGamer(Mode mode, int threads)
+    {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread, not " + threads);
+        }
+        this.mode = mode;
+        this.threads = threads;
+    }
+
+    @Override
+    public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        shutDownThreads();
+        if (mode != Mode.SINGLE_THREADED) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                    .setNameFormat("SampleMonteCarloGamer-%d")
+                    .setDaemon(true)
+                    .build());
+            // Each simulation borrows a machine from here, so no two threads
+            // ever use the same one at once.
+            machines = new ArrayBlockingQueue<StateMachine>(threads);
+            for (int i = 0; i < threads; i++) {
+                machines.add(getStateMachine().getSynchronizedCopy());
+            }
+        }
+    }
+
     /**
      * Employs a simple sample "Monte Carlo" algorithm.
      */
@@ -37,25 +124,39 @@ public final class SampleMonteCarloGamer extends SampleGamer
 
         List<Move> moves = theMachine.getLegalMoves(getCurrentState(), getRole());
         Move selection = moves.get(0);
+        simulationThreads.clear();
+        simulationsRun.set(0);
+        simulationsCounted = 0;
         if (moves.size() > 1) {
             int[] moveTotalPoints = new int[moves.size()];
             int[] moveTotalAttempts = new int[moves.size()];
 
             // Perform depth charges for each candidate move, and keep track
             // of the total score and total attempts accumulated for each move.
-            for (int i = 0; true; i = (i+1) % moves.size()) {
-                if (System.currentTimeMillis() > finishBy)
+            try {
+                switch (mode) {
+                case SINGLE_THREADED:
+                    performDepthCharges(theMachine, getCurrentState(), getRole(), moves, 0, finishBy, moveTotalPoints, moveTotalAttempts);
                     break;
-
-                int theScore = performDepthChargeFromMove(getCurrentState(), moves.get(i));
-                moveTotalPoints[i] += theScore;
-                moveTotalAttempts[i] += 1;
+                case ROOT_PARALLEL:
+                    performRootParallelDepthCharges(moves, finishBy, moveTotalPoints, moveTotalAttempts);
+                    break;
+                case LEAF_PARALLEL:
+                    performLeafParallelDepthCharges(moves, finishBy, moveTotalPoints, moveTotalAttempts);
+                    break;
+                }
+            } catch (InterruptedException e) {
+                // Go with whatever we have so far.
+                Thread.currentThread().interrupt();
             }
 
             // Compute the expected score for each move.
             double[] moveExpectedPoints = new double[moves.size()];
             for (int i = 0; i < moves.size(); i++) {
-                moveExpectedPoints[i] = (double)moveTotalPoints[i] / moveTotalAttempts[i];
+                simulationsCounted += moveTotalAttempts[i];
+                if (moveTotalAttempts[i] > 0) {
+                    moveExpectedPoints[i] = (double)moveTotalPoints[i] / moveTotalAttempts[i];
+                }
             }
 
             // Find the move with the best expected score.
@@ -76,15 +177,165 @@ public final class SampleMonteCarloGamer extends SampleGamer
         return selection;
     }
 
-    private int[] depth = new int[1];
-    int performDepthChargeFromMove(MachineState theState, Move myMove) {
-        StateMachine theMachine = getStateMachine();
+    /*
+     * Runs depth charges for each move in turn, starting with the given one,
+     * until the deadline passes or the thread is interrupted.
+     */
+    private void performDepthCharges(StateMachine theMachine, MachineState theState, Role theRole, List<Move> moves,
+            int firstMove, long finishBy, int[] moveTotalPoints, int[] moveTotalAttempts)
+    {
+        for (int i = firstMove; true; i = (i+1) % moves.size()) {
+            if (System.currentTimeMillis() > finishBy || Thread.currentThread().isInterrupted())
+                break;
+
+            int theScore = performDepthChargeFromMove(theMachine, theState, theRole, moves.get(i));
+            moveTotalPoints[i] += theScore;
+            moveTotalAttempts[i] += 1;
+        }
+    }
+
+    /*
+     * Each thread keeps its own totals, starting from a different move, and
+     * the totals from every thread that finishes in time are added up.
+     */
+    private void performRootParallelDepthCharges(List<Move> moves, long finishBy, int[] moveTotalPoints,
+            int[] moveTotalAttempts) throws InterruptedException
+    {
+        MachineState theState = getCurrentState();
+        Role theRole = getRole();
+        BlockingQueue<StateMachine> machines = this.machines;
+        List<Future<int[][]>> results = new ArrayList<Future<int[][]>>(threads);
+        for (int t = 0; t < threads; t++) {
+            int firstMove = t % moves.size();
+            results.add(executor.submit(() -> {
+                int[][] totals = new int[2][moves.size()];
+                StateMachine machine = machines.take();
+                try {
+                    performDepthCharges(machine, theState, theRole, moves, firstMove, finishBy, totals[0], totals[1]);
+                } finally {
+                    machines.add(machine);
+                }
+                return totals;
+            }));
+        }
+        for (Future<int[][]> result : results) {
+            int[][] totals = awaitResult(result, finishBy);
+            if (totals != null) {
+                for (int i = 0; i < moves.size(); i++) {
+                    moveTotalPoints[i] += totals[0][i];
+                    moveTotalAttempts[i] += totals[1][i];
+                }
+            }
+        }
+    }
+
+    /*
+     * Goes through the moves in turn, running a batch of depth charges for
+     * each one across all of the threads.
+     */
+    private void performLeafParallelDepthCharges(List<Move> moves, long finishBy, int[] moveTotalPoints,
+            int[] moveTotalAttempts) throws InterruptedException
+    {
+        MachineState theState = getCurrentState();
+        Role theRole = getRole();
+        BlockingQueue<StateMachine> machines = this.machines;
+        List<Future<Integer>> batch = new ArrayList<Future<Integer>>(threads);
+        for (int i = 0; System.currentTimeMillis() <= finishBy; i = (i+1) % moves.size()) {
+            Move move = moves.get(i);
+            batch.clear();
+            for (int t = 0; t < threads; t++) {
+                batch.add(executor.submit(() -> {
+                    if (System.currentTimeMillis() > finishBy) {
+                        return null;
+                    }
+                    StateMachine machine = machines.take();
+                    try {
+                        return performDepthChargeFromMove(machine, theState, theRole, move);
+                    } finally {
+                        machines.add(machine);
+                    }
+                }));
+            }
+            for (Future<Integer> charge : batch) {
+                Integer theScore = awaitResult(charge, finishBy);
+                if (theScore != null) {
+                    moveTotalPoints[i] += theScore;
+                    moveTotalAttempts[i] += 1;
+                }
+            }
+        }
+    }
+
+    /*
+     * Waits for a task until shortly after the deadline, and cancels it if it
+     * hasn't finished by then. Returns null if the task was cancelled or
+     * failed.
+     */
+    private static <T> T awaitResult(Future<T> task, long finishBy) throws InterruptedException
+    {
+        long waitMillis = Math.max(0, finishBy + LATE_SIMULATION_GRACE_MILLIS - System.currentTimeMillis());
+        try {
+            return task.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            task.cancel(true);
+            return null;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private int performDepthChargeFromMove(StateMachine theMachine, MachineState theState, Role theRole, Move myMove) {
+        simulationThreads.add(Thread.currentThread());
+        simulationsRun.incrementAndGet();
         try {
-            List<Integer> goalValues = theMachine.performDepthCharge(theMachine.getRandomNextState(theState, getRole(), myMove), depth);
-            return goalValues.get(getStateMachine().getRoles().indexOf(getRole()));
+            List<Integer> goalValues = theMachine.performDepthCharge(theMachine.getRandomNextState(theState, theRole, myMove), null);
+            return goalValues.get(theMachine.getRoles().indexOf(theRole));
         } catch (Exception e) {
             e.printStackTrace();
             return 0;
         }
     }
-}
\ No newline at end of file
+
+    /** The number of threads that ran simulations during the last move selection. */
+    int getLastSimulationThreadCount()
+    {
+        return simulationThreads.size();
+    }
+
+    /** The number of simulations started during the last move selection. */
+    int getLastSimulationsRun()
+    {
+        return simulationsRun.get();
+    }
+
+    /**
+     * The number of simulations whose results were added to the move totals
+     * during the last move selection.
+     */
+    int getLastSimulationsCounted()
+    {
+        return simulationsCounted;
+    }
+
+    @Override
+    public void stateMachineStop()
+    {
+        shutDownThreads();
+    }
+
+    @Override
+    public void stateMachineAbort()
+    {
+        shutDownThreads();
+    }
+
+    private void shutDownThreads()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            machines = null;
+        }
+    }
+}
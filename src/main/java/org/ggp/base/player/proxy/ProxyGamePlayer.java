@@ -27,7 +27,6 @@ import org.ggp.base.player.request.grammar.Request;
 import org.ggp.base.player.request.grammar.StartRequest;
 import org.ggp.base.player.request.grammar.StopRequest;
 import org.ggp.base.util.configuration.GamerConfiguration;
-import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.http.HttpReader;
 import org.ggp.base.util.http.HttpWriter;
 import org.ggp.base.util.logging.GamerLogger;
@@ -380,7 +379,6 @@ public final class ProxyGamePlayer extends Thread implements Subject
                     theClientManager.start();
 
                     theDefaultGamer = new RandomGamer();
-                    GdlPool.drainPool();
                     SymbolPool.drainPool();
 
                     long usedMemory = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
@@ -31,6 +31,8 @@ import org.ggp.base.util.match.MatchPublisher;
 import org.ggp.base.util.observer.Event;
 import org.ggp.base.util.observer.Observer;
 import org.ggp.base.util.observer.Subject;
+import org.ggp.base.util.ruleengine.RuleEngineFactory;
+import org.ggp.base.util.statemachine.CrossCheckedStateMachine;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -61,6 +63,21 @@ public final class GameServer extends Thread implements Subject
     private boolean forceUsingEntireClock;
 
     public GameServer(Match match, List<String> hosts, List<Integer> ports) {
+        this(match, hosts, ports, new ProverStateMachine());
+    }
+
+    /**
+     * Runs the match on a rule engine built by the given factory, which is
+     * usually much cheaper than the default prover when hosting many matches.
+     * The engine is checked against the prover for the first few steps, and
+     * the server falls back to the prover if they disagree or the engine fails.
+     * See {@link CrossCheckedStateMachine}.
+     */
+    public GameServer(Match match, List<String> hosts, List<Integer> ports, RuleEngineFactory<?> ruleEngineFactory) {
+        this(match, hosts, ports, new CrossCheckedStateMachine(ruleEngineFactory));
+    }
+
+    private GameServer(Match match, List<String> hosts, List<Integer> ports, StateMachine stateMachine) {
         this.match = match;
 
         this.hosts = hosts;
@@ -69,7 +86,7 @@ public final class GameServer extends Thread implements Subject
         playerGetsUnlimitedTime = new boolean[hosts.size()];
         playerPlaysRandomly = new boolean[hosts.size()];
 
-        stateMachine = new ProverStateMachine();
+        this.stateMachine = stateMachine;
         stateMachine.initialize(match.getGame().getRules());
         currentState = stateMachine.getInitialState();
         previousMoves = null;
@@ -192,6 +209,8 @@ public final class GameServer extends Thread implements Subject
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            match.getGdlScope().close();
         }
     }
 
@@ -205,6 +224,8 @@ public final class GameServer extends Thread implements Subject
             notifyObservers(new ServerMatchUpdatedEvent(match, spectatorServerKey, saveToFilename));
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            match.getGdlScope().close();
         }
     }
 
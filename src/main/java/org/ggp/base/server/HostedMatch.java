@@ -0,0 +1,345 @@
+package org.ggp.base.server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.IntFunction;
+
+import org.ggp.base.server.event.ServerAbortedMatchEvent;
+import org.ggp.base.server.event.ServerCompletedMatchEvent;
+import org.ggp.base.server.event.ServerConnectionErrorEvent;
+import org.ggp.base.server.event.ServerIllegalMoveEvent;
+import org.ggp.base.server.event.ServerMatchUpdatedEvent;
+import org.ggp.base.server.event.ServerNewGameStateEvent;
+import org.ggp.base.server.event.ServerNewMatchEvent;
+import org.ggp.base.server.event.ServerNewMovesEvent;
+import org.ggp.base.server.event.ServerTimeEvent;
+import org.ggp.base.server.event.ServerTimeoutEvent;
+import org.ggp.base.server.request.RequestBuilder;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.factory.exceptions.GdlFormatException;
+import org.ggp.base.util.match.Match;
+import org.ggp.base.util.observer.Event;
+import org.ggp.base.util.observer.Observer;
+import org.ggp.base.util.observer.Subject;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
+
+/**
+ * HostedMatch is a match being run by a {@link MatchHost}. It sends the same
+ * requests, records the same errors and notifies its observers of the same
+ * events as a {@link GameServer}, but each step of the match runs as a short
+ * task on the host's executor once the players' responses for the previous
+ * step are in, rather than on a thread of its own.
+ *
+ * All of the match's state is only touched while holding its lock, so
+ * responses from different players can be handled on different threads.
+ */
+public final class HostedMatch implements Subject
+{
+    private final MatchHost host;
+    private final Match match;
+    private final List<String> hosts;
+    private final List<Integer> ports;
+    private final boolean[] playerGetsUnlimitedTime;
+    private final boolean[] playerPlaysRandomly;
+
+    private final List<Observer> observers = new ArrayList<Observer>();
+    private final Map<Role,String> mostRecentErrors = new HashMap<Role,String>();
+    private final CompletableFuture<Match> completion = new CompletableFuture<Match>();
+    private final Random random = new Random();
+
+    private StateMachine stateMachine = null;
+    private MachineState currentState = null;
+    private List<Move> previousMoves = null;
+    private boolean started = false;
+    private boolean released = false;
+
+    HostedMatch(MatchHost host, Match match, List<String> hosts, List<Integer> ports) {
+        this.host = host;
+        this.match = match;
+        this.hosts = hosts;
+        this.ports = ports;
+        this.playerGetsUnlimitedTime = new boolean[hosts.size()];
+        this.playerPlaysRandomly = new boolean[hosts.size()];
+    }
+
+    /**
+     * Starts running the match, and returns a future that completes with the
+     * match once it has finished or been aborted.
+     */
+    public synchronized CompletableFuture<Match> start() {
+        if (!started) {
+            started = true;
+            host.getExecutor().execute(() -> runStep(this::setUp));
+        }
+        return completion;
+    }
+
+    public CompletableFuture<Match> getCompletion() {
+        return completion;
+    }
+
+    public Match getMatch() {
+        return match;
+    }
+
+    public synchronized void givePlayerUnlimitedTime(int i) {
+        playerGetsUnlimitedTime[i] = true;
+    }
+
+    public synchronized void makePlayerPlayRandomly(int i) {
+        playerPlaysRandomly[i] = true;
+    }
+
+    @Override
+    public synchronized void addObserver(Observer observer) {
+        observers.add(observer);
+    }
+
+    @Override
+    public synchronized void notifyObservers(Event event) {
+        for (Observer observer : observers) {
+            observer.observe(event);
+        }
+
+        // Add error events to mostRecentErrors for recording.
+        if (event instanceof ServerIllegalMoveEvent) {
+            ServerIllegalMoveEvent sEvent = (ServerIllegalMoveEvent)event;
+            mostRecentErrors.put(sEvent.getRole(), "IL " + sEvent.getMove());
+        } else if (event instanceof ServerTimeoutEvent) {
+            ServerTimeoutEvent sEvent = (ServerTimeoutEvent)event;
+            mostRecentErrors.put(sEvent.getRole(), "TO");
+        } else if (event instanceof ServerConnectionErrorEvent) {
+            ServerConnectionErrorEvent sEvent = (ServerConnectionErrorEvent)event;
+            mostRecentErrors.put(sEvent.getRole(), "CE");
+        }
+    }
+
+    /**
+     * Aborts the match, if it's still running. Moves the players are still
+     * thinking about are ignored.
+     */
+    public synchronized void abort() {
+        if (completion.isDone() || match.isCompleted() || match.isAborted()) {
+            return;
+        }
+        match.markAborted();
+        notifyObservers(new ServerAbortedMatchEvent());
+        notifyObservers(new ServerMatchUpdatedEvent(match, null, null));
+        if (stateMachine == null) {
+            // The players haven't heard of the match yet.
+            finish();
+            return;
+        }
+        sendRequests(i -> RequestBuilder.getAbortRequest(match.getMatchId()), i -> 1000, null)
+            .whenCompleteAsync((v, t) -> runStep(this::finish), host.getExecutor());
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    private synchronized void runStep(Step step) {
+        try {
+            step.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            release();
+            completion.completeExceptionally(e);
+        }
+    }
+
+    private void setUp() {
+        if (match.isAborted()) {
+            return;
+        }
+        stateMachine = host.acquireStateMachine(match.getGame().getRules());
+        currentState = stateMachine.getInitialState();
+        match.appendState(currentState.getContents());
+
+        if (match.getPreviewClock() >= 0) {
+            sendRequests(i -> RequestBuilder.getPreviewRequest(match.getGame().getRules(), match.getPreviewClock(), match.getGdlScrambler()),
+                    i -> match.getPreviewClock() * 1000, null)
+                .whenCompleteAsync((v, t) -> runStep(this::sendStartRequests), host.getExecutor());
+        } else {
+            sendStartRequests();
+        }
+    }
+
+    private void sendStartRequests() {
+        if (match.isAborted()) {
+            return;
+        }
+        notifyObservers(new ServerNewMatchEvent(stateMachine.getRoles(), currentState));
+        notifyObservers(new ServerTimeEvent(match.getStartClock() * 1000));
+        sendRequests(i -> RequestBuilder.getStartRequest(match.getMatchId(), stateMachine.getRoles().get(i), match.getGame().getRules(), match.getStartClock(), match.getPlayClock(), match.getGdlScrambler()),
+                i -> match.getStartClock() * 1000, null)
+            .whenCompleteAsync((v, t) -> runStep(() -> {
+                if (!match.isAborted()) {
+                    appendErrorsToMatchDescription();
+                    sendPlayRequests();
+                }
+            }), host.getExecutor());
+    }
+
+    private void sendPlayRequests() throws Exception {
+        if (stateMachine.isTerminal(currentState)) {
+            sendStopRequests();
+            return;
+        }
+        notifyObservers(new ServerNewGameStateEvent(currentState));
+        notifyObservers(new ServerTimeEvent(match.getPlayClock() * 1000));
+        notifyObservers(new ServerMatchUpdatedEvent(match, null, null));
+
+        // Players that don't respond with a legal move in time get a random one.
+        final List<Role> roles = stateMachine.getRoles();
+        final List<List<Move>> legalMoves = new ArrayList<List<Move>>(roles.size());
+        final Move[] moves = new Move[roles.size()];
+        for (int i = 0; i < roles.size(); i++) {
+            legalMoves.add(stateMachine.getLegalMoves(currentState, roles.get(i)));
+            moves[i] = legalMoves.get(i).get(random.nextInt(legalMoves.get(i).size()));
+        }
+
+        final List<Move> movesSoFar = previousMoves;
+        sendRequests(i -> RequestBuilder.getPlayRequest(match.getMatchId(), movesSoFar, match.getGdlScrambler()),
+                i -> playerGetsUnlimitedTime[i] ? -1 : (match.getPlayClock() * 1000 + 1000),
+                (i, response) -> {
+                    Move move = parseMove(roles.get(i), response, legalMoves.get(i));
+                    if (move != null) {
+                        moves[i] = move;
+                    }
+                })
+            .whenCompleteAsync((v, t) -> runStep(() -> {
+                if (!match.isAborted()) {
+                    makeMoves(Arrays.asList(moves));
+                }
+            }), host.getExecutor());
+    }
+
+    private Move parseMove(Role role, String response, List<Move> legalMoves) {
+        try {
+            Move candidateMove = stateMachine.getMoveFromTerm(GdlFactory.createTerm(match.getGdlScrambler().unscramble(response).toString()));
+            if (new HashSet<Move>(legalMoves).contains(candidateMove)) {
+                return candidateMove;
+            }
+            notifyObservers(new ServerIllegalMoveEvent(role, candidateMove));
+        } catch (GdlFormatException | SymbolFormatException e) {
+            notifyObservers(new ServerIllegalMoveEvent(role, null));
+        }
+        return null;
+    }
+
+    private void makeMoves(List<Move> moves) throws Exception {
+        previousMoves = moves;
+        notifyObservers(new ServerNewMovesEvent(moves));
+        currentState = stateMachine.getNextState(currentState, moves);
+
+        match.appendMoves2(moves);
+        match.appendState(currentState.getContents());
+        appendErrorsToMatchDescription();
+        sendPlayRequests();
+    }
+
+    private void sendStopRequests() throws Exception {
+        List<Integer> goals = stateMachine.getGoals(currentState);
+        match.markCompleted(goals);
+        notifyObservers(new ServerNewGameStateEvent(currentState));
+        notifyObservers(new ServerCompletedMatchEvent(goals));
+        notifyObservers(new ServerMatchUpdatedEvent(match, null, null));
+        // The match is over as far as the players are concerned, so the
+        // state machine can go to the next match of this game.
+        release();
+        sendRequests(i -> RequestBuilder.getStopRequest(match.getMatchId(), previousMoves, match.getGdlScrambler()),
+                i -> match.getPlayClock() * 1000, null)
+            .whenCompleteAsync((v, t) -> runStep(this::finish), host.getExecutor());
+    }
+
+    private void finish() {
+        release();
+        completion.complete(match);
+    }
+
+    private void release() {
+        if (stateMachine != null && !released) {
+            released = true;
+            host.releaseStateMachine(match.getGame().getRules());
+        }
+        match.getGdlScope().close();
+    }
+
+    // Should be called after each move, to collect all of the errors
+    // caused by players and write them into the match description.
+    private void appendErrorsToMatchDescription() {
+        List<String> theErrors = new ArrayList<String>();
+        for (Role r : stateMachine.getRoles()) {
+            if (mostRecentErrors.containsKey(r)) {
+                theErrors.add(mostRecentErrors.get(r));
+            } else {
+                theErrors.add("");
+            }
+        }
+        match.appendErrors(theErrors);
+        mostRecentErrors.clear();
+    }
+
+    /*
+     * Sends a request to each player that doesn't play randomly, and returns
+     * a future that completes once every player has responded or failed to.
+     * Responses are handled on the host's executor; timeouts and connection
+     * errors are reported to the observers, as in RequestThread.
+     */
+    private CompletableFuture<Void> sendRequests(IntFunction<String> request, IntFunction<Integer> timeout, BiConsumer<Integer, String> onResponse) {
+        List<CompletableFuture<Void>> responses = new ArrayList<CompletableFuture<Void>>(hosts.size());
+        for (int i = 0; i < hosts.size(); i++) {
+            if (playerPlaysRandomly[i]) {
+                continue;
+            }
+            final int player = i;
+            final Role role = stateMachine.getRoles().get(i);
+            responses.add(host.getHttpClient()
+                    .issueRequest(hosts.get(i), ports.get(i), getPlayerNameFromMatchForRequest(i), request.apply(i), timeout.apply(i))
+                    .handleAsync((response, t) -> {
+                        synchronized (this) {
+                            if (t == null) {
+                                if (onResponse != null) {
+                                    onResponse.accept(player, response);
+                                }
+                            } else if (unwrap(t) instanceof SocketTimeoutException) {
+                                notifyObservers(new ServerTimeoutEvent(role));
+                            } else if (unwrap(t) instanceof IOException) {
+                                notifyObservers(new ServerConnectionErrorEvent(role));
+                            } else {
+                                unwrap(t).printStackTrace();
+                            }
+                        }
+                        return null;
+                    }, host.getExecutor()));
+        }
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[responses.size()]));
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+    }
+
+    private String getPlayerNameFromMatchForRequest(int i) {
+        if (match.getPlayerNamesFromHost() != null) {
+            return match.getPlayerNamesFromHost().get(i);
+        } else {
+            return "";
+        }
+    }
+}
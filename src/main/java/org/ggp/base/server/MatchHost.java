@@ -0,0 +1,149 @@
+package org.ggp.base.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.http.AsyncHttpClient;
+import org.ggp.base.util.match.Match;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.StateMachineFactory;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachineFactory;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * MatchHost referees many matches at once with a fixed budget of threads,
+ * as an alternative to running a {@link GameServer} thread (plus a thread
+ * per player per request) for each match.
+ *
+ * Each match is driven as a series of steps run on a shared, bounded
+ * executor. Requests to players go out through a single
+ * {@link AsyncHttpClient}, so no thread is tied up while waiting for players
+ * to respond; threads are only needed for the referee's own work.
+ *
+ * Matches of the same game share one state machine, built by the given
+ * factory when the first such match starts and released when the last one
+ * finishes. Each match uses its own synchronized copy of it, so state
+ * machines whose copies share their compiled form (or caches) only pay for
+ * that once.
+ */
+public final class MatchHost implements Closeable
+{
+    private final ExecutorService executor;
+    private final AsyncHttpClient httpClient;
+    private final StateMachineFactory<?> stateMachineFactory;
+
+    // Keyed by the game's rules. Guarded by this.
+    private final Map<List<Gdl>, SharedStateMachine> stateMachines = new HashMap<List<Gdl>, SharedStateMachine>();
+    private int activeMatches = 0;
+
+    private MatchHost(ExecutorService executor, AsyncHttpClient httpClient, StateMachineFactory<?> stateMachineFactory)
+    {
+        this.executor = executor;
+        this.httpClient = httpClient;
+        this.stateMachineFactory = stateMachineFactory;
+    }
+
+    /**
+     * Creates a MatchHost that uses at most the given number of threads for
+     * refereeing, with a regular prover for each game.
+     */
+    public static MatchHost create(int threads) throws IOException
+    {
+        return create(threads, ProverStateMachineFactory.createNormal());
+    }
+
+    public static MatchHost create(int threads, StateMachineFactory<?> stateMachineFactory) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("MatchHost-%d").setDaemon(true).build());
+        return new MatchHost(executor, AsyncHttpClient.create(), stateMachineFactory);
+    }
+
+    /**
+     * Starts running the match, with the players at the given hosts and
+     * ports. Observers should be added to the returned HostedMatch before
+     * calling {@link HostedMatch#start()}.
+     */
+    public HostedMatch hostMatch(Match match, List<String> hosts, List<Integer> ports)
+    {
+        return new HostedMatch(this, match, hosts, ports);
+    }
+
+    public synchronized int getActiveMatchCount()
+    {
+        return activeMatches;
+    }
+
+    ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    AsyncHttpClient getHttpClient()
+    {
+        return httpClient;
+    }
+
+    /*
+     * Returns a state machine for the match to use, and counts the match as
+     * a user of the game's shared state machine until it's released.
+     */
+    StateMachine acquireStateMachine(List<Gdl> rules)
+    {
+        SharedStateMachine shared;
+        synchronized (this) {
+            List<Gdl> key = ImmutableList.copyOf(rules);
+            shared = stateMachines.get(key);
+            if (shared == null) {
+                shared = new SharedStateMachine(key);
+                stateMachines.put(key, shared);
+            }
+            shared.users++;
+            activeMatches++;
+        }
+        // Built outside the lock, so matches of other games don't have to wait.
+        return shared.stateMachine.get().getSynchronizedCopy();
+    }
+
+    synchronized void releaseStateMachine(List<Gdl> rules)
+    {
+        List<Gdl> key = ImmutableList.copyOf(rules);
+        SharedStateMachine shared = stateMachines.get(key);
+        activeMatches--;
+        if (shared != null && --shared.users == 0) {
+            stateMachines.remove(key);
+        }
+    }
+
+    /**
+     * Stops accepting work. Matches still in progress are abandoned without
+     * being aborted.
+     */
+    @Override
+    public void close()
+    {
+        executor.shutdownNow();
+        httpClient.close();
+    }
+
+    private final class SharedStateMachine
+    {
+        private final Supplier<StateMachine> stateMachine;
+        private int users = 0;
+
+        private SharedStateMachine(final List<Gdl> rules)
+        {
+            this.stateMachine = Suppliers.memoize(() -> stateMachineFactory.buildInitializedForRules(rules));
+        }
+    }
+}
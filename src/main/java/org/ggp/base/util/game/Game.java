@@ -1,16 +1,12 @@
 package org.ggp.base.util.game;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.annotation.Nullable;
 
-import org.ggp.base.util.gdl.factory.GdlFactory;
-import org.ggp.base.util.gdl.factory.exceptions.GdlFormatException;
+import org.ggp.base.util.gdl.factory.StreamingGdlParser;
 import org.ggp.base.util.gdl.grammar.Gdl;
-import org.ggp.base.util.symbol.factory.SymbolFactory;
 import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
-import org.ggp.base.util.symbol.grammar.SymbolList;
 
 import external.JSON.JSONObject;
 
@@ -153,16 +149,7 @@ public final class Game {
      */
     public @Nullable List<Gdl> getRules() {
         try {
-            List<Gdl> rules = new ArrayList<Gdl>();
-            SymbolList list = (SymbolList) SymbolFactory.create(theRulesheet);
-            for (int i = 0; i < list.size(); i++)
-            {
-                rules.add(GdlFactory.create(list.get(i)));
-            }
-            return rules;
-        } catch (GdlFormatException e) {
-            e.printStackTrace();
-            return null;
+            return StreamingGdlParser.parseRulesheet(theRulesheet);
         } catch (SymbolFormatException e) {
             e.printStackTrace();
             return null;
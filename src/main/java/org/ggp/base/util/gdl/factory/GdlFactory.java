@@ -18,7 +18,6 @@ import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.gdl.grammar.GdlVariable;
-import org.ggp.base.util.symbol.factory.SymbolFactory;
 import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
 import org.ggp.base.util.symbol.grammar.Symbol;
 import org.ggp.base.util.symbol.grammar.SymbolAtom;
@@ -36,7 +35,7 @@ public final class GdlFactory
     }
     public static Gdl create(String string) throws GdlFormatException, SymbolFormatException
     {
-        return create(SymbolFactory.create(string));
+        return StreamingGdlParser.parse(string);
     }
 
     public static Gdl create(Symbol symbol) throws GdlFormatException
@@ -178,7 +177,7 @@ public final class GdlFactory
 
     public static GdlTerm createTerm(String string) throws SymbolFormatException
     {
-        return createTerm(SymbolFactory.create(string));
+        return StreamingGdlParser.parseTerm(string);
     }
 
     public static GdlTerm createTerm(Symbol symbol)
@@ -0,0 +1,744 @@
+package org.ggp.base.util.gdl.factory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
+
+/**
+ * A single-pass parser from GDL text straight to pooled Gdl objects.
+ *
+ * Unlike going through SymbolFactory and then GdlFactory, this doesn't build a
+ * preprocessed copy of the input, a list of token strings or a tree of Symbols:
+ * it tokenizes the input in chunks as it reads it, and looks each expression up
+ * in the GdlPool as soon as it is complete. Each distinct atom is only turned
+ * into a string and looked up in the pool once per parse, and the argument
+ * lists used for pool lookups are reused, so parsing allocates little beyond
+ * the Gdl objects that are new to the pool.
+ *
+ * Tokens are split the same way as by SymbolFactory: at parentheses and
+ * whitespace. The raw rulesheet methods also skip comments, from ';' to the
+ * end of the line, like {@link org.ggp.base.util.game.Game#preprocessRulesheet(String)}.
+ * Malformed input is rejected with a SymbolFormatException. This includes
+ * input left over after an expression, and extra arguments to not and
+ * distinct, which the Symbol-based path silently ignores.
+ *
+ * Instances are not thread-safe; the static methods create one per call.
+ */
+public final class StreamingGdlParser
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int LEFT = 0;
+    private static final int RIGHT = 1;
+    private static final int ATOM = 2;
+    private static final int END = 3;
+
+    private final Source source;
+    private final boolean skipComments;
+    private char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    // The number of characters read before the start of the buffer
+    private long offset = 0;
+
+    private int tokenType;
+    private Atom atom;
+
+    private final AtomTable atoms = new AtomTable();
+    private final List<List<GdlTerm>> termLists = new ArrayList<List<GdlTerm>>();
+    private final List<List<GdlLiteral>> literalLists = new ArrayList<List<GdlLiteral>>();
+    private int termListDepth = 0;
+    private int literalListDepth = 0;
+
+    private StreamingGdlParser(Source source, boolean skipComments)
+    {
+        this.source = source;
+        this.skipComments = skipComments;
+    }
+
+    /**
+     * Parses a rulesheet in the form stored in Game objects and sent in START
+     * requests: a single list of rules, with no comments.
+     */
+    public static List<Gdl> parseRulesheet(CharSequence rulesheet) throws SymbolFormatException
+    {
+        try
+        {
+            return new StreamingGdlParser(new CharSequenceSource(rulesheet), false).readRulesheet();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static List<Gdl> parseRulesheet(Reader rulesheet) throws SymbolFormatException, IOException
+    {
+        return new StreamingGdlParser(new ReaderSource(rulesheet), false).readRulesheet();
+    }
+
+    /**
+     * Parses a UTF-8 encoded rulesheet from the buffer's position to its limit.
+     */
+    public static List<Gdl> parseRulesheet(ByteBuffer rulesheet) throws SymbolFormatException
+    {
+        return parseBytes(rulesheet, false);
+    }
+
+    /**
+     * Parses a rulesheet as it is stored in a .kif file: a sequence of rules,
+     * possibly with comments.
+     */
+    public static List<Gdl> parseRawRulesheet(CharSequence rawRulesheet) throws SymbolFormatException
+    {
+        try
+        {
+            return new StreamingGdlParser(new CharSequenceSource(rawRulesheet), true).readRawRulesheet();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static List<Gdl> parseRawRulesheet(Reader rawRulesheet) throws SymbolFormatException, IOException
+    {
+        return new StreamingGdlParser(new ReaderSource(rawRulesheet), true).readRawRulesheet();
+    }
+
+    /**
+     * Parses a UTF-8 encoded raw rulesheet from the buffer's position to its
+     * limit.
+     */
+    public static List<Gdl> parseRawRulesheet(ByteBuffer rawRulesheet) throws SymbolFormatException
+    {
+        return parseBytes(rawRulesheet, true);
+    }
+
+    /**
+     * Parses a single rule or sentence.
+     */
+    public static Gdl parse(CharSequence string) throws SymbolFormatException
+    {
+        StreamingGdlParser parser = new StreamingGdlParser(new CharSequenceSource(string), false);
+        try
+        {
+            parser.nextToken();
+            Gdl gdl = parser.parseGdl();
+            parser.expectEnd();
+            return gdl;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses a single term, such as a move.
+     */
+    public static GdlTerm parseTerm(CharSequence string) throws SymbolFormatException
+    {
+        StreamingGdlParser parser = new StreamingGdlParser(new CharSequenceSource(string), false);
+        try
+        {
+            parser.nextToken();
+            GdlTerm term = parser.parseTerm();
+            parser.expectEnd();
+            return term;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses a list of terms, such as a joint move or the contents of a state
+     * as stored in a match.
+     */
+    public static List<GdlTerm> parseTermList(CharSequence string) throws SymbolFormatException
+    {
+        StreamingGdlParser parser = new StreamingGdlParser(new CharSequenceSource(string), false);
+        try
+        {
+            parser.nextToken();
+            parser.expect(LEFT, "'('");
+            List<GdlTerm> terms = new ArrayList<GdlTerm>();
+            while (parser.nextToken() != RIGHT)
+            {
+                terms.add(parser.parseTerm());
+            }
+            parser.expectEnd();
+            return terms;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Gdl> parseBytes(ByteBuffer bytes, boolean raw) throws SymbolFormatException
+    {
+        StreamingGdlParser parser = new StreamingGdlParser(new ByteBufferSource(bytes), raw);
+        try
+        {
+            return raw ? parser.readRawRulesheet() : parser.readRulesheet();
+        }
+        catch (IOException e)
+        {
+            // Only thrown for bytes that aren't valid UTF-8
+            throw new SymbolFormatException(e.getMessage() + " at character " + parser.getCharacterIndex());
+        }
+    }
+
+    private List<Gdl> readRulesheet() throws SymbolFormatException, IOException
+    {
+        nextToken();
+        expect(LEFT, "'('");
+        List<Gdl> rules = new ArrayList<Gdl>();
+        while (nextToken() != RIGHT)
+        {
+            rules.add(parseGdl());
+        }
+        expectEnd();
+        return rules;
+    }
+
+    private List<Gdl> readRawRulesheet() throws SymbolFormatException, IOException
+    {
+        List<Gdl> rules = new ArrayList<Gdl>();
+        while (nextToken() != END)
+        {
+            rules.add(parseGdl());
+        }
+        return rules;
+    }
+
+    /* Parsing; each of these starts at the current token, and ends on the last token of its expression. */
+
+    private Gdl parseGdl() throws SymbolFormatException, IOException
+    {
+        if (tokenType != LEFT)
+        {
+            return parseSentence();
+        }
+        nextToken();
+        Atom name = expectAtom();
+        if (!name.value.equals("<="))
+        {
+            return parseRelation(name);
+        }
+
+        nextToken();
+        GdlSentence head = parseSentence();
+        List<GdlLiteral> body = borrowLiteralList();
+        while (nextToken() != RIGHT)
+        {
+            body.add(parseLiteral());
+        }
+        Gdl rule = GdlPool.getRule(head, body);
+        literalListDepth--;
+        return rule;
+    }
+
+    private GdlSentence parseSentence() throws SymbolFormatException, IOException
+    {
+        if (tokenType == ATOM)
+        {
+            return GdlPool.getProposition(atom.getConstant());
+        }
+        expect(LEFT, "a sentence");
+        nextToken();
+        return parseRelation(expectAtom());
+    }
+
+    // Starts on the relation's name
+    private GdlRelation parseRelation(Atom name) throws SymbolFormatException, IOException
+    {
+        List<GdlTerm> body = borrowTermList();
+        while (nextToken() != RIGHT)
+        {
+            body.add(parseTerm());
+        }
+        GdlRelation relation = GdlPool.getRelation(name.getConstant(), body);
+        termListDepth--;
+        return relation;
+    }
+
+    private GdlLiteral parseLiteral() throws SymbolFormatException, IOException
+    {
+        if (tokenType == ATOM)
+        {
+            return GdlPool.getProposition(atom.getConstant());
+        }
+        expect(LEFT, "a literal");
+        nextToken();
+        Atom name = expectAtom();
+        if (name.value.equalsIgnoreCase("distinct"))
+        {
+            nextToken();
+            GdlTerm arg1 = parseTerm();
+            nextToken();
+            GdlTerm arg2 = parseTerm();
+            nextToken();
+            expect(RIGHT, "')' after the arguments of distinct");
+            return GdlPool.getDistinct(arg1, arg2);
+        }
+        else if (name.value.equalsIgnoreCase("not"))
+        {
+            nextToken();
+            GdlLiteral body = parseLiteral();
+            nextToken();
+            expect(RIGHT, "')' after the argument of not");
+            return GdlPool.getNot(body);
+        }
+        else if (name.value.equalsIgnoreCase("or"))
+        {
+            List<GdlLiteral> disjuncts = borrowLiteralList();
+            while (nextToken() != RIGHT)
+            {
+                disjuncts.add(parseLiteral());
+            }
+            GdlLiteral or = GdlPool.getOr(disjuncts);
+            literalListDepth--;
+            return or;
+        }
+        return parseRelation(name);
+    }
+
+    private GdlTerm parseTerm() throws SymbolFormatException, IOException
+    {
+        if (tokenType == ATOM)
+        {
+            return atom.getTerm();
+        }
+        expect(LEFT, "a term");
+        nextToken();
+        GdlConstant name = expectAtom().getConstant();
+        List<GdlTerm> body = borrowTermList();
+        while (nextToken() != RIGHT)
+        {
+            body.add(parseTerm());
+        }
+        GdlTerm function = GdlPool.getFunction(name, body);
+        termListDepth--;
+        return function;
+    }
+
+    // The pool copies the lists it keeps, so the same lists can be reused for each lookup.
+    private List<GdlTerm> borrowTermList()
+    {
+        if (termListDepth == termLists.size())
+        {
+            termLists.add(new ArrayList<GdlTerm>());
+        }
+        List<GdlTerm> list = termLists.get(termListDepth++);
+        list.clear();
+        return list;
+    }
+
+    private List<GdlLiteral> borrowLiteralList()
+    {
+        if (literalListDepth == literalLists.size())
+        {
+            literalLists.add(new ArrayList<GdlLiteral>());
+        }
+        List<GdlLiteral> list = literalLists.get(literalListDepth++);
+        list.clear();
+        return list;
+    }
+
+    private Atom expectAtom() throws SymbolFormatException
+    {
+        expect(ATOM, "a name");
+        return atom;
+    }
+
+    private void expect(int type, String expected) throws SymbolFormatException
+    {
+        if (tokenType != type)
+        {
+            throw new SymbolFormatException("Expected " + expected + " but found " + describeToken()
+                    + " at character " + getCharacterIndex());
+        }
+    }
+
+    private void expectEnd() throws SymbolFormatException, IOException
+    {
+        nextToken();
+        expect(END, "the end of the input");
+    }
+
+    private String describeToken()
+    {
+        switch (tokenType)
+        {
+        case LEFT:
+            return "'('";
+        case RIGHT:
+            return "')'";
+        case ATOM:
+            return "'" + atom.value + "'";
+        default:
+            return "the end of the input";
+        }
+    }
+
+    private long getCharacterIndex()
+    {
+        return offset + position;
+    }
+
+    /* Tokenizing */
+
+    private int nextToken() throws IOException
+    {
+        char c;
+        while (true)
+        {
+            if (position == limit && !fill(limit))
+            {
+                tokenType = END;
+                return tokenType;
+            }
+            c = buffer[position];
+            if (isWhitespace(c))
+            {
+                position++;
+            }
+            else if (c == ';' && skipComments)
+            {
+                skipComment();
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        if (c == '(')
+        {
+            position++;
+            tokenType = LEFT;
+            return tokenType;
+        }
+        if (c == ')')
+        {
+            position++;
+            tokenType = RIGHT;
+            return tokenType;
+        }
+
+        int start = position;
+        int hash = 0;
+        while (true)
+        {
+            if (position == limit)
+            {
+                int length = position - start;
+                if (!fill(start))
+                {
+                    start = position - length;
+                    break;
+                }
+                start = position - length;
+            }
+            c = buffer[position];
+            if (c == '(' || c == ')' || isWhitespace(c) || (c == ';' && skipComments))
+            {
+                break;
+            }
+            hash = 31 * hash + c;
+            position++;
+        }
+        atom = atoms.get(buffer, start, position - start, hash);
+        tokenType = ATOM;
+        return tokenType;
+    }
+
+    private void skipComment() throws IOException
+    {
+        while (true)
+        {
+            if (position == limit && !fill(limit))
+            {
+                return;
+            }
+            char c = buffer[position];
+            if (c == '\n' || c == '\r')
+            {
+                return;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Reads more of the input into the buffer, keeping the characters from
+     * keepFrom onwards (the start of the current token), which are moved to
+     * the start of the buffer. Returns false at the end of the input.
+     */
+    private boolean fill(int keepFrom) throws IOException
+    {
+        int kept = limit - keepFrom;
+        if (keepFrom > 0)
+        {
+            System.arraycopy(buffer, keepFrom, buffer, 0, kept);
+            offset += keepFrom;
+        }
+        else if (kept == buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        limit = kept;
+        position = kept;
+
+        int read;
+        while ((read = source.read(buffer, limit, buffer.length - limit)) == 0)
+        {
+            // Only happens if the space left is too small for the next character
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        if (read < 0)
+        {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    // The same characters as \s in SymbolFactory's regular expressions
+    private static boolean isWhitespace(char c)
+    {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    /**
+     * An atom seen in the input, with the constant or variable it stands for
+     * once that's been looked up in the pool.
+     */
+    private static final class Atom
+    {
+        private final String value;
+        private final int hash;
+        private GdlConstant constant;
+        private GdlVariable variable;
+
+        private Atom(String value, int hash)
+        {
+            this.value = value;
+            this.hash = hash;
+        }
+
+        private GdlConstant getConstant()
+        {
+            if (constant == null)
+            {
+                constant = GdlPool.getConstant(value);
+            }
+            return constant;
+        }
+
+        private GdlTerm getTerm()
+        {
+            if (value.charAt(0) != '?')
+            {
+                return getConstant();
+            }
+            if (variable == null)
+            {
+                variable = GdlPool.getVariable(value);
+            }
+            return variable;
+        }
+    }
+
+    /**
+     * An open-addressed hash table of atoms, looked up by their characters in
+     * the buffer so that no string is created for atoms already seen.
+     */
+    private static final class AtomTable
+    {
+        private Atom[] table = new Atom[1024];
+        private int size = 0;
+
+        private Atom get(char[] chars, int start, int length, int hash)
+        {
+            int mask = table.length - 1;
+            int index = spread(hash) & mask;
+            Atom atom;
+            while ((atom = table[index]) != null)
+            {
+                if (atom.hash == hash && matches(atom.value, chars, start, length))
+                {
+                    return atom;
+                }
+                index = (index + 1) & mask;
+            }
+
+            atom = new Atom(new String(chars, start, length), hash);
+            table[index] = atom;
+            if (++size * 2 > table.length)
+            {
+                grow();
+            }
+            return atom;
+        }
+
+        private void grow()
+        {
+            Atom[] oldTable = table;
+            table = new Atom[oldTable.length * 2];
+            int mask = table.length - 1;
+            for (Atom atom : oldTable)
+            {
+                if (atom != null)
+                {
+                    int index = spread(atom.hash) & mask;
+                    while (table[index] != null)
+                    {
+                        index = (index + 1) & mask;
+                    }
+                    table[index] = atom;
+                }
+            }
+        }
+
+        private static int spread(int hash)
+        {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean matches(String value, char[] chars, int start, int length)
+        {
+            if (value.length() != length)
+            {
+                return false;
+            }
+            for (int i = 0; i < length; i++)
+            {
+                if (value.charAt(i) != chars[start + i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /* Sources of input */
+
+    private interface Source
+    {
+        /**
+         * Reads up to length characters into the buffer, returning the number
+         * read, or -1 at the end of the input.
+         */
+        int read(char[] buffer, int offset, int length) throws IOException;
+    }
+
+    private static final class CharSequenceSource implements Source
+    {
+        private final CharSequence chars;
+        private int position = 0;
+
+        private CharSequenceSource(CharSequence chars)
+        {
+            this.chars = chars;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length)
+        {
+            int read = Math.min(length, chars.length() - position);
+            if (read <= 0)
+            {
+                return -1;
+            }
+            if (chars instanceof String)
+            {
+                ((String) chars).getChars(position, position + read, buffer, offset);
+            }
+            else
+            {
+                for (int i = 0; i < read; i++)
+                {
+                    buffer[offset + i] = chars.charAt(position + i);
+                }
+            }
+            position += read;
+            return read;
+        }
+    }
+
+    private static final class ReaderSource implements Source
+    {
+        private final Reader reader;
+
+        private ReaderSource(Reader reader)
+        {
+            this.reader = reader;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException
+        {
+            return reader.read(buffer, offset, length);
+        }
+    }
+
+    private static final class ByteBufferSource implements Source
+    {
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        private boolean decoded = false;
+        private boolean flushed = false;
+
+        private ByteBufferSource(ByteBuffer bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException
+        {
+            CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+            if (!decoded)
+            {
+                CoderResult result = decoder.decode(bytes, out, true);
+                if (result.isError())
+                {
+                    result.throwException();
+                }
+                decoded = result.isUnderflow();
+            }
+            if (decoded && !flushed)
+            {
+                flushed = decoder.flush(out).isUnderflow();
+            }
+            int read = out.position() - offset;
+            return (read == 0 && flushed) ? -1 : read;
+        }
+    }
+}
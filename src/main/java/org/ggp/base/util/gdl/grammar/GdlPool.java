@@ -4,9 +4,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.collect.ImmutableList;
@@ -20,26 +17,33 @@ import com.google.common.collect.MapMaker;
  * objects may be checked for equality with an instance-equality check (==) rather
  * than a more expensive recursive equality check.
  * <p>
- * A long-lived game player may accumulate lots of objects in its pool. To remove
- * them, it may call {@link #drainPool()} in between games. Note that if this
- * method is called while references to Gdl objects other than keyword constants
- * are held elsewhere, bad things will happen.
+ * The pool only holds weak references to the objects in it, so objects that are
+ * no longer referenced elsewhere are released by the garbage collector, while an
+ * object that is still referenced stays the canonical one. A long-lived player or
+ * server therefore doesn't need to drain the pool between matches. To keep the
+ * objects used by a match alive for its duration, and to give them int ids, use
+ * a {@link GdlScope}.
  */
 public final class GdlPool
 {
-    private static final ConcurrentMap<GdlTerm, ConcurrentMap<GdlTerm, GdlDistinct>> distinctPool = new ConcurrentHashMap<GdlTerm, ConcurrentMap<GdlTerm, GdlDistinct>>();
-    private static final ConcurrentMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlFunction>> functionPool = new ConcurrentHashMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlFunction>>();
-    private static final ConcurrentMap<GdlLiteral, GdlNot> notPool = new ConcurrentHashMap<GdlLiteral, GdlNot>();
-    private static final ConcurrentMap<List<GdlLiteral>, GdlOr> orPool = new ConcurrentHashMap<List<GdlLiteral>, GdlOr>();
-    private static final ConcurrentMap<GdlConstant, GdlProposition> propositionPool = new ConcurrentHashMap<GdlConstant, GdlProposition>();
-    private static final ConcurrentMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlRelation>> relationPool = new ConcurrentHashMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlRelation>>();
-    private static final ConcurrentMap<GdlSentence, ConcurrentMap<List<GdlLiteral>, GdlRule>> rulePool = new ConcurrentHashMap<GdlSentence, ConcurrentMap<List<GdlLiteral>, GdlRule>>();
-    private static final ConcurrentMap<String, GdlVariable> variablePool = new ConcurrentHashMap<String, GdlVariable>();
-
-    private static final ConcurrentMap<String, GdlConstant> constantPool = new ConcurrentHashMap<String, GdlConstant>();
-    //Access to constantCases and variableCases should be synchronized using their monitor locks.
-    private static final Map<String,String> constantCases = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
-    private static final Map<String,String> variableCases = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+    // Buckets are keyed weakly (and so by identity, which is safe as the keys are pooled)
+    // and pooled objects are held weakly, so that the pool releases anything that is no
+    // longer referenced elsewhere, but keeps returning the same object while it is.
+    private static final ConcurrentMap<GdlTerm, ConcurrentMap<GdlTerm, GdlDistinct>> distinctPool = new MapMaker().weakKeys().makeMap();
+    private static final ConcurrentMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlFunction>> functionPool = new MapMaker().weakKeys().makeMap();
+    private static final ConcurrentMap<GdlLiteral, GdlNot> notPool = new MapMaker().weakValues().makeMap();
+    private static final ConcurrentMap<List<GdlLiteral>, GdlOr> orPool = new MapMaker().weakValues().makeMap();
+    private static final ConcurrentMap<GdlConstant, GdlProposition> propositionPool = new MapMaker().weakValues().makeMap();
+    private static final ConcurrentMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlRelation>> relationPool = new MapMaker().weakKeys().makeMap();
+    private static final ConcurrentMap<GdlSentence, ConcurrentMap<List<GdlLiteral>, GdlRule>> rulePool = new MapMaker().weakKeys().makeMap();
+    private static final ConcurrentMap<String, GdlVariable> variablePool = new MapMaker().weakValues().makeMap();
+
+    private static final ConcurrentMap<String, GdlConstant> constantPool = new MapMaker().weakValues().makeMap();
+    // When not case-sensitive, the pooled constant or variable for each lower-cased name,
+    // whose spelling is the one used for every other spelling of that name. These are held
+    // weakly like the pools, so names no longer in use don't stay in them.
+    private static final ConcurrentMap<String, GdlConstant> constantCases = new MapMaker().weakValues().makeMap();
+    private static final ConcurrentMap<String, GdlVariable> variableCases = new MapMaker().weakValues().makeMap();
 
     // Controls whether we normalize the case of incoming constants and variables.
     public static volatile boolean caseSensitive = true;
@@ -74,45 +78,16 @@ public final class GdlPool
     }
 
     /**
-     * Drains the contents of the GdlPool. Useful to control memory usage
-     * once you have finished playing a large game.
+     * Formerly drained the contents of the GdlPool, which was only safe when
+     * there were no references to Gdl objects outside the pool. The pool now
+     * releases unreferenced objects by itself, so this does nothing.
      *
-     * WARNING: Should only be called *between games*, when there are no
-     * references to Gdl objects (other than keyword constants) outside the
-     * pool.
+     * @deprecated Not needed; use a {@link GdlScope} to control the lifetime
+     * of the Gdl used by a match.
      */
+    @Deprecated
     public static void drainPool() {
-        distinctPool.clear();
-        functionPool.clear();
-        notPool.clear();
-        orPool.clear();
-        propositionPool.clear();
-        relationPool.clear();
-        rulePool.clear();
-        variablePool.clear();
-        synchronized (variableCases) {
-            variableCases.clear();
-        }
-
-        //	    // When draining the pool between matches, we still need to preserve the keywords
-        //	    // since there are global references to them. For example, the Prover state machine
-        //	    // has a reference to the GdlConstant "true", and that reference must still point
-        //	    // to the authoritative GdlConstant "true" after the pool is drained and another
-        //	    // game has begun. As such, when draining the constant pool, these special keywords
-        //	    // are set aside and returned to the pool after all of the other constants (which
-        //	    // were game-specific) have been drained.
-        //	    Map<String, GdlConstant> keywordConstants = new HashMap<String, GdlConstant>();
-        //	    for (String keyword : KEYWORDS) {
-        //	    	keywordConstants.put(keyword, GdlPool.getConstant(keyword));
-        //	    }
-        //	    synchronized (constantCases) {
-        //	    	constantPool.clear();
-        //	    	constantCases.clear();
-        //	    	for (Map.Entry<String,GdlConstant> keywordEntry : keywordConstants.entrySet()) {
-        //	    		constantCases.put(keywordEntry.getKey(), keywordEntry.getKey());
-        //	    		constantPool.put(keywordEntry.getKey(), keywordEntry.getValue());
-        //	    	}
-        //	    }
+        // Nothing to do
     }
 
     /**
@@ -140,15 +115,17 @@ public final class GdlPool
             value = value.toLowerCase();
         }
         if (!caseSensitive) {
-            synchronized (constantCases) {
-                if (constantCases.containsKey(value)) {
-                    value = constantCases.get(value);
-                } else {
-                    constantCases.put(value, value);
-                }
-            }
+            String lowerCase = value.toLowerCase();
+            GdlConstant ret = constantCases.get(lowerCase);
+            if(ret == null)
+                ret = addToPool(lowerCase, getPooledConstant(value), constantCases);
+            return ret;
         }
+        return getPooledConstant(value);
+    }
 
+    private static GdlConstant getPooledConstant(String value)
+    {
         GdlConstant ret = constantPool.get(value);
         if(ret == null)
             ret = addToPool(value, new GdlConstant(value), constantPool);
@@ -159,15 +136,17 @@ public final class GdlPool
     public static GdlVariable getVariable(String name)
     {
         if (!caseSensitive) {
-            synchronized (variableCases) {
-                if (variableCases.containsKey(name)) {
-                    name = variableCases.get(name);
-                } else {
-                    variableCases.put(name, name);
-                }
-            }
+            String lowerCase = name.toLowerCase();
+            GdlVariable ret = variableCases.get(lowerCase);
+            if(ret == null)
+                ret = addToPool(lowerCase, getPooledVariable(name), variableCases);
+            return ret;
         }
+        return getPooledVariable(name);
+    }
 
+    private static GdlVariable getPooledVariable(String name)
+    {
         GdlVariable ret = variablePool.get(name);
         if(ret == null)
             ret = addToPool(name, new GdlVariable(name), variablePool);
@@ -177,8 +156,10 @@ public final class GdlPool
     public static GdlDistinct getDistinct(GdlTerm arg1, GdlTerm arg2)
     {
         ConcurrentMap<GdlTerm, GdlDistinct> bucket = distinctPool.get(arg1);
-        if(bucket == null)
-            bucket = addToPool(arg1, new ConcurrentHashMap<GdlTerm, GdlDistinct>(), distinctPool);
+        if(bucket == null) {
+            ConcurrentMap<GdlTerm, GdlDistinct> newMap = new MapMaker().weakValues().makeMap();
+            bucket = addToPool(arg1, newMap, distinctPool);
+        }
 
         GdlDistinct ret = bucket.get(arg2);
         if(ret == null)
@@ -0,0 +1,175 @@
+package org.ggp.base.util.gdl.grammar;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * Scopes the lifetime of the Gdl used by one match, or any other unit of work,
+ * and gives its constants and sentences int ids for engines that only need ids.
+ * <p>
+ * The {@link GdlPool} only holds weak references, so a pooled object stays the
+ * canonical one exactly as long as something references it. A scope is such a
+ * reference: everything retained by it or given an id by it is kept alive until
+ * the scope is closed, so ids stay valid and the match never sees two copies of
+ * the same sentence. Closing the scope just drops these references, so objects
+ * that are still used elsewhere, such as by another match of the same game, are
+ * unaffected; anything else is left for the garbage collector. This replaces
+ * draining the whole pool between matches, which was unsafe while any match was
+ * running.
+ * <p>
+ * Ids are assigned densely from 0, separately for constants and for sentences.
+ * Pooled objects are compared by identity, so a sentence gets the same id however
+ * it was created. Scopes are thread-safe.
+ */
+public final class GdlScope implements AutoCloseable
+{
+    private static final int NO_ID = -1;
+
+    private final Set<Gdl> retained = Collections.newSetFromMap(new IdentityHashMap<Gdl, Boolean>());
+    private final TObjectIntHashMap<GdlConstant> constantIds = new TObjectIntHashMap<GdlConstant>(16, 0.5f, NO_ID);
+    private final List<GdlConstant> constants = new ArrayList<GdlConstant>();
+    private final TObjectIntHashMap<GdlSentence> sentenceIds = new TObjectIntHashMap<GdlSentence>(16, 0.5f, NO_ID);
+    private final List<GdlSentence> sentences = new ArrayList<GdlSentence>();
+    private boolean closed = false;
+
+    /**
+     * Keeps the given object alive until the scope is closed.
+     *
+     * @return the given object, for convenience.
+     */
+    public synchronized <T extends Gdl> T retain(T gdl)
+    {
+        checkOpen();
+        retained.add(gdl);
+        return gdl;
+    }
+
+    /**
+     * Keeps the given objects, such as the rules of a game, alive until the
+     * scope is closed.
+     */
+    public synchronized void retainAll(Collection<? extends Gdl> gdl)
+    {
+        checkOpen();
+        retained.addAll(gdl);
+    }
+
+    /**
+     * Returns the id of the given constant, assigning it the next id if it
+     * doesn't have one yet.
+     */
+    public synchronized int getId(GdlConstant constant)
+    {
+        checkOpen();
+        int id = constantIds.get(constant);
+        if (id == NO_ID) {
+            id = constants.size();
+            constantIds.put(constant, id);
+            constants.add(constant);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the id of the given sentence, assigning it the next id if it
+     * doesn't have one yet.
+     */
+    public synchronized int getId(GdlSentence sentence)
+    {
+        checkOpen();
+        int id = sentenceIds.get(sentence);
+        if (id == NO_ID) {
+            id = sentences.size();
+            sentenceIds.put(sentence, id);
+            sentences.add(sentence);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the ids of the given sentences, such as the contents of a state,
+     * in iteration order, assigning ids to any that don't have one yet.
+     */
+    public synchronized int[] getIds(Collection<? extends GdlSentence> sentences)
+    {
+        int[] ids = new int[sentences.size()];
+        int i = 0;
+        for (GdlSentence sentence : sentences) {
+            ids[i++] = getId(sentence);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the id of the given constant, or -1 if it doesn't have one.
+     */
+    public synchronized int getExistingId(GdlConstant constant)
+    {
+        checkOpen();
+        return constantIds.get(constant);
+    }
+
+    /**
+     * Returns the id of the given sentence, or -1 if it doesn't have one.
+     */
+    public synchronized int getExistingId(GdlSentence sentence)
+    {
+        checkOpen();
+        return sentenceIds.get(sentence);
+    }
+
+    public synchronized GdlConstant getConstant(int id)
+    {
+        checkOpen();
+        return constants.get(id);
+    }
+
+    public synchronized GdlSentence getSentence(int id)
+    {
+        checkOpen();
+        return sentences.get(id);
+    }
+
+    public synchronized int getNumConstants()
+    {
+        return constants.size();
+    }
+
+    public synchronized int getNumSentences()
+    {
+        return sentences.size();
+    }
+
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Releases everything retained by the scope and forgets all ids. The scope
+     * can't be used afterwards. Closing a scope more than once has no effect.
+     */
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+        retained.clear();
+        constantIds.clear();
+        constants.clear();
+        sentenceIds.clear();
+        sentences.clear();
+    }
+
+    private void checkOpen()
+    {
+        if (closed) {
+            throw new IllegalStateException("GdlScope has been closed");
+        }
+    }
+}
@@ -4,7 +4,6 @@ import java.util.List;
 
 import org.ggp.base.util.game.GameRepository;
 import org.ggp.base.util.gdl.grammar.Gdl;
-import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
 import org.ggp.base.validator.StaticValidator;
@@ -25,7 +24,6 @@ public class TransformTester {
 
         GameRepository theRepository = GameRepository.getDefaultRepository();
         for(String gameKey : theRepository.getGameKeys()) {
-            GdlPool.drainPool();
             if(gameKey.equals("sudoku")) continue; //Probably unavoidable problem w/description
             if(!gameKey.equals("mummymaze1p")) continue; //Can be fixed by forward-restricting domains for variables in constants
             //We need to derive this over the entire description and then forward those restrictions to the model... hmm...
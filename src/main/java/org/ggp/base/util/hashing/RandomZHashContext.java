@@ -0,0 +1,62 @@
+package org.ggp.base.util.hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * A ZHashContext that gives each sentence a pseudo-random 64-bit hash
+ * component. The component is derived from the sentence's text and the
+ * context's seed, so it doesn't depend on the order in which sentences are
+ * first seen and is the same across runs. Components are cached per sentence.
+ *
+ * This is thread-safe.
+ */
+public final class RandomZHashContext implements ZHashContext {
+    private final long seed;
+    private final ConcurrentMap<GdlSentence, Long> components = new ConcurrentHashMap<GdlSentence, Long>();
+
+    private RandomZHashContext(long seed) {
+        this.seed = seed;
+    }
+
+    public static RandomZHashContext create() {
+        return new RandomZHashContext(0L);
+    }
+
+    public static RandomZHashContext create(long seed) {
+        return new RandomZHashContext(seed);
+    }
+
+    @Override
+    public long getHashComponent(GdlSentence sentence) {
+        Long component = components.get(sentence);
+        if (component == null) {
+            component = mix(seed ^ hashText(sentence.toString()));
+            Long existing = components.putIfAbsent(sentence, component);
+            if (existing != null) {
+                component = existing;
+            }
+        }
+        return component;
+    }
+
+    // 64-bit FNV-1a
+    private static long hashText(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // The SplitMix64 finalizer, so that similar texts get unrelated components
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
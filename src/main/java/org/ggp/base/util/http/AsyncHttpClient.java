@@ -0,0 +1,347 @@
+package org.ggp.base.util.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * AsyncHttpClient issues the same requests as {@link HttpRequest}, but
+ * without a thread per request: all of the connections are handled by a
+ * single selector thread, and each request returns a future for the
+ * response. This lets a match host wait on the players of hundreds of
+ * matches at once.
+ *
+ * The futures are completed on the selector thread, so callers should use
+ * the *Async methods of CompletableFuture to do any real work with the
+ * responses. Requests that time out fail with a SocketTimeoutException, as
+ * with HttpRequest.
+ */
+public final class AsyncHttpClient implements Closeable
+{
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // How often to check for timeouts when nothing else is happening.
+    private static final long MAX_SELECT_MILLIS = 100;
+
+    private final Selector selector;
+    private final Queue<Exchange> newExchanges = new ConcurrentLinkedQueue<Exchange>();
+    private volatile boolean closed = false;
+
+    private AsyncHttpClient(Selector selector)
+    {
+        this.selector = selector;
+    }
+
+    public static AsyncHttpClient create() throws IOException
+    {
+        AsyncHttpClient client = new AsyncHttpClient(Selector.open());
+        Thread thread = new Thread(client::runSelector, "AsyncHttpClient");
+        thread.setDaemon(true);
+        thread.start();
+        return client;
+    }
+
+    /**
+     * Sends the request to the player at the given host and port. If
+     * timeoutClock is negative, waits for the response indefinitely;
+     * otherwise the response must arrive within that many milliseconds of
+     * connecting.
+     */
+    public CompletableFuture<String> issueRequest(String targetHost, int targetPort, String forPlayerName, String requestContent, int timeoutClock)
+    {
+        CompletableFuture<String> response = new CompletableFuture<String>();
+        if (closed) {
+            response.completeExceptionally(new IOException("The client has been closed."));
+            return response;
+        }
+        try {
+            InetAddress theHost = InetAddress.getByName(targetHost);
+            ByteBuffer request = ByteBuffer.wrap(getRequestBytes(theHost.getHostName(), requestContent, forPlayerName));
+            newExchanges.add(new Exchange(new InetSocketAddress(theHost, targetPort), request, timeoutClock, response));
+            selector.wakeup();
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    /*
+     * The same request HttpWriter.writeAsClient writes.
+     */
+    private static byte[] getRequestBytes(String hostField, String data, String playerName)
+    {
+        byte[] content = data.getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder();
+        sb.append("POST / HTTP/1.0\r\n");
+        sb.append("Accept: text/delim\r\n");
+        sb.append("Host: ").append(hostField).append("\r\n");
+        sb.append("Sender: GAMESERVER\r\n");
+        sb.append("Receiver: ").append(playerName).append("\r\n");
+        sb.append("Content-Type: text/acl\r\n");
+        sb.append("Content-Length: ").append(content.length).append("\r\n");
+        sb.append("\r\n");
+        byte[] headers = sb.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[headers.length + content.length];
+        System.arraycopy(headers, 0, result, 0, headers.length);
+        System.arraycopy(content, 0, result, headers.length, content.length);
+        return result;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void runSelector()
+    {
+        try {
+            while (!closed) {
+                selector.select(MAX_SELECT_MILLIS);
+                registerNewExchanges();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (key.isValid()) {
+                        handle(key);
+                    }
+                }
+                failTimedOutExchanges();
+            }
+        } catch (IOException e) {
+            // Only happens if the selector itself breaks.
+            e.printStackTrace();
+        } finally {
+            closed = true;
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    ((Exchange) key.attachment()).fail(new IOException("The client has been closed."));
+                }
+            }
+            Exchange exchange;
+            while ((exchange = newExchanges.poll()) != null) {
+                exchange.fail(new IOException("The client has been closed."));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void registerNewExchanges()
+    {
+        Exchange exchange;
+        while ((exchange = newExchanges.poll()) != null) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                exchange.channel = channel;
+                channel.configureBlocking(false);
+                exchange.deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+                if (channel.connect(exchange.address)) {
+                    exchange.onConnected();
+                    channel.register(selector, SelectionKey.OP_WRITE, exchange);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, exchange);
+                }
+            } catch (IOException e) {
+                exchange.fail(e);
+            }
+        }
+    }
+
+    private void handle(SelectionKey key)
+    {
+        Exchange exchange = (Exchange) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    exchange.onConnected();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } else if (key.isWritable()) {
+                channel.write(exchange.request);
+                if (!exchange.request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                int read = channel.read(exchange.readBuffer);
+                if (read > 0) {
+                    exchange.readBuffer.flip();
+                    exchange.append(exchange.readBuffer.array(), exchange.readBuffer.limit());
+                    exchange.readBuffer.clear();
+                }
+                String content = exchange.getContent(read < 0);
+                if (content != null) {
+                    exchange.succeed(content);
+                }
+            }
+        } catch (IOException e) {
+            exchange.fail(e);
+        }
+    }
+
+    private void failTimedOutExchanges()
+    {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            Exchange exchange = (Exchange) key.attachment();
+            if (key.isValid() && exchange.deadline >= 0 && now > exchange.deadline) {
+                exchange.fail(new SocketTimeoutException("No response from " + exchange.address + " in time."));
+            }
+        }
+    }
+
+    private static final class Exchange
+    {
+        private final InetSocketAddress address;
+        private final ByteBuffer request;
+        private final int timeoutClock;
+        private final CompletableFuture<String> future;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        // The response so far is in the first responseSize bytes.
+        private byte[] response = new byte[4096];
+        private int responseSize = 0;
+        // How far the search for the end of the headers has got, and where
+        // the content starts once they've been found (or -1 until then).
+        private int headerScanned = 0;
+        private int contentStart = -1;
+        private int contentLength = -1;
+        private SocketChannel channel = null;
+        // When to give up, or -1 for never.
+        private long deadline = -1;
+
+        private Exchange(InetSocketAddress address, ByteBuffer request, int timeoutClock, CompletableFuture<String> future)
+        {
+            this.address = address;
+            this.request = request;
+            this.timeoutClock = timeoutClock;
+            this.future = future;
+        }
+
+        private void onConnected()
+        {
+            deadline = (timeoutClock < 0) ? -1 : System.currentTimeMillis() + timeoutClock;
+        }
+
+        private void append(byte[] bytes, int length)
+        {
+            if (responseSize + length > response.length) {
+                response = Arrays.copyOf(response, Math.max(2 * response.length, responseSize + length));
+            }
+            System.arraycopy(bytes, 0, response, responseSize, length);
+            responseSize += length;
+        }
+
+        /*
+         * Returns the content of the response once it has all arrived, or
+         * null if there's more to come. This follows HttpReader.readAsClient:
+         * headers are skipped, and the content is either as long as the
+         * Content-Length header says, or everything up to the end of the
+         * stream, with line breaks removed.
+         *
+         * Only the bytes that arrived since the last call are scanned for the
+         * end of the headers, and the headers are parsed once, so a response
+         * that arrives in many pieces costs time linear in its length.
+         */
+        private String getContent(boolean endOfStream) throws IOException
+        {
+            if (contentStart < 0) {
+                findHeaderEnd();
+                if (contentStart < 0) {
+                    if (endOfStream) {
+                        throw new IOException("Could not find content in POST request.");
+                    }
+                    return null;
+                }
+            }
+            int available = responseSize - contentStart;
+            if (contentLength >= 0 && available >= contentLength) {
+                return new String(response, contentStart, contentLength, StandardCharsets.UTF_8).trim();
+            }
+            if (endOfStream) {
+                String content = new String(response, contentStart, available, StandardCharsets.UTF_8);
+                return content.replace("\r", "").replace("\n", "").trim();
+            }
+            return null;
+        }
+
+        /*
+         * Looks for a blank line (CRLF CRLF, or just LF LF) in the bytes not
+         * yet scanned, and reads the Content-Length header once it is found.
+         */
+        private void findHeaderEnd() throws IOException
+        {
+            for (int i = Math.max(headerScanned, 1); i < responseSize; i++) {
+                if (response[i] != '\n') {
+                    continue;
+                }
+                int headerEnd = -1;
+                if (response[i - 1] == '\n') {
+                    headerEnd = i - 1;
+                } else if (i >= 3 && response[i - 1] == '\r' && response[i - 2] == '\n' && response[i - 3] == '\r') {
+                    headerEnd = i - 3;
+                }
+                if (headerEnd >= 0) {
+                    contentStart = i + 1;
+                    contentLength = getContentLength(new String(response, 0, headerEnd, StandardCharsets.UTF_8));
+                    return;
+                }
+            }
+            headerScanned = responseSize;
+        }
+
+        private static int getContentLength(String headers) throws IOException
+        {
+            for (String line : headers.split("\r?\n")) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    try {
+                        return Integer.parseInt(line.substring("content-length:".length()).trim());
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Content-Length header can't be parsed: \"" + line + "\"");
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private void succeed(String content)
+        {
+            closeChannel();
+            future.complete(content);
+        }
+
+        private void fail(IOException e)
+        {
+            closeChannel();
+            future.completeExceptionally(e);
+        }
+
+        private void closeChannel()
+        {
+            if (channel != null) {
+                try {
+                    // Also cancels its key with the selector.
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing more we can do with it.
+                }
+            }
+        }
+    }
+}
@@ -12,11 +12,14 @@ import org.ggp.base.util.crypto.SignableJSON;
 import org.ggp.base.util.game.Game;
 import org.ggp.base.util.game.RemoteGameRepository;
 import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.factory.StreamingGdlParser;
 import org.ggp.base.util.gdl.factory.exceptions.GdlFormatException;
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlScope;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.gdl.scrambler.GdlScrambler;
@@ -24,9 +27,7 @@ import org.ggp.base.util.gdl.scrambler.MappingGdlScrambler;
 import org.ggp.base.util.gdl.scrambler.NoOpGdlScrambler;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
-import org.ggp.base.util.symbol.factory.SymbolFactory;
 import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
-import org.ggp.base.util.symbol.grammar.SymbolList;
 
 import external.JSON.JSONArray;
 import external.JSON.JSONException;
@@ -75,6 +76,9 @@ public final class Match
 
     private GdlScrambler theGdlScrambler = new NoOpGdlScrambler();
 
+    // Keeps the Gdl used by this match alive until whoever plays it closes it.
+    private final GdlScope gdlScope = new GdlScope();
+
     public Match(String matchId, int previewClock, int startClock, int playClock, Game theGame, String tournamentNameFromHost)
     {
         this.matchId = matchId;
@@ -91,6 +95,7 @@ public final class Match
         this.isAborted = false;
 
         this.numRoles = Role.computeRoles(theGame.getRules()).size();
+        gdlScope.retainAll(theGame.getRules());
 
         this.moveHistory = new ArrayList<List<GdlTerm>>();
         this.stateHistory = new ArrayList<Set<GdlSentence>>();
@@ -114,6 +119,7 @@ public final class Match
         } else {
             this.theGame = theGame;
         }
+        gdlScope.retainAll(this.theGame.getRules());
 
         if (theMatchObject.has("previewClock")) {
             this.previewClock = theMatchObject.getInt("previewClock");
@@ -155,10 +161,9 @@ public final class Match
         JSONArray theStates = theMatchObject.getJSONArray("states");
         for (int i = 0; i < theStates.length(); i++) {
             Set<GdlSentence> theState = new HashSet<GdlSentence>();
-            SymbolList stateElements = (SymbolList) SymbolFactory.create(theStates.getString(i));
-            for (int j = 0; j < stateElements.size(); j++)
+            for (GdlTerm stateElement : StreamingGdlParser.parseTermList(theStates.getString(i)))
             {
-                theState.add((GdlSentence)GdlFactory.create("( true " + stateElements.get(j).toString() + " )"));
+                theState.add(GdlPool.getRelation(GdlPool.TRUE, new GdlTerm[] {stateElement}));
             }
             stateHistory.add(theState);
         }
@@ -452,6 +457,15 @@ public final class Match
         return theGdlScrambler;
     }
 
+    /**
+     * Returns the scope of the Gdl used by this match, which holds on to its
+     * rules. Whoever plays the match should close it once the match is over;
+     * the match itself can still be read afterwards.
+     */
+    public GdlScope getGdlScope() {
+        return gdlScope;
+    }
+
     /* Static methods */
 
     public static final String getRandomString(int nLength) {
@@ -0,0 +1,91 @@
+package org.ggp.base.util.propnet.compiled;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A MachineState stored as a bitset over the base propositions of an
+ * {@link IndexedPropNet}. Its contents are only built when asked for; its hash
+ * code matches that of a MachineState with the same contents, so the two kinds
+ * of states can be mixed in hash-based collections.
+ */
+public final class BitSetMachineState extends MachineState {
+    private static final long serialVersionUID = 1L;
+
+    private final transient IndexedPropNet propNet;
+    private final long[] bits;
+    private final int hashCode;
+    private volatile Set<GdlSentence> contents;
+
+    BitSetMachineState(IndexedPropNet propNet, long[] bits) {
+        this.propNet = propNet;
+        this.bits = bits;
+        int hashCode = 0;
+        for (int word = 0; word < bits.length; word++) {
+            long remaining = bits[word];
+            while (remaining != 0) {
+                hashCode += propNet.getBaseSentenceHash((word << 6) + Long.numberOfTrailingZeros(remaining));
+                remaining &= remaining - 1;
+            }
+        }
+        this.hashCode = hashCode;
+    }
+
+    public IndexedPropNet getPropNet() {
+        return propNet;
+    }
+
+    /**
+     * The bits of the state, indexed like the propnet's base components. The
+     * array must not be modified.
+     */
+    public long[] getBits() {
+        return bits;
+    }
+
+    @Override
+    public Set<GdlSentence> getContents() {
+        Set<GdlSentence> contents = this.contents;
+        if (contents == null) {
+            ImmutableSet.Builder<GdlSentence> builder = ImmutableSet.builder();
+            for (int word = 0; word < bits.length; word++) {
+                long remaining = bits[word];
+                while (remaining != 0) {
+                    builder.add(propNet.getBaseSentence((word << 6) + Long.numberOfTrailingZeros(remaining)));
+                    remaining &= remaining - 1;
+                }
+            }
+            contents = builder.build();
+            this.contents = contents;
+        }
+        return contents;
+    }
+
+    /*
+     * The bits are meaningless without the propnet that produced them, so
+     * states are serialized as plain MachineStates.
+     */
+    private Object writeReplace() {
+        return new MachineState(new HashSet<GdlSentence>(getContents()));
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof BitSetMachineState && ((BitSetMachineState) o).propNet == propNet) {
+            BitSetMachineState other = (BitSetMachineState) o;
+            return hashCode == other.hashCode && Arrays.equals(bits, other.bits);
+        }
+        return super.equals(o);
+    }
+}
@@ -0,0 +1,29 @@
+package org.ggp.base.util.propnet.compiled;
+
+/**
+ * The interface implemented by the classes that {@link PropNetCompiler}
+ * generates. Each method is straight-line code over an array holding the
+ * values of an {@link IndexedPropNet}'s components, indexed like the propnet.
+ *
+ * This has to be public so that the generated classes, which are defined in
+ * their own class loaders, can implement it.
+ */
+public interface CompiledPropNetCode {
+    /**
+     * Sets the base propositions from the state bits and computes every
+     * component that only depends on the state.
+     */
+    void evaluateState(long[] state, boolean[] values);
+
+    /**
+     * Computes every component that depends on the moves, after the input
+     * propositions for the moves have been set in the values.
+     */
+    void evaluateMoves(boolean[] values);
+
+    /**
+     * Writes the bits of the next state into nextState, which must be zeroed,
+     * after {@link #evaluateMoves(boolean[])}.
+     */
+    void writeNextState(boolean[] values, long[] nextState);
+}
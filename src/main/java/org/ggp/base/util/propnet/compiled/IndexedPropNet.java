@@ -0,0 +1,562 @@
+package org.ggp.base.util.propnet.compiled;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A PropNet flattened into arrays, for engines that evaluate propnets without
+ * walking the component object graph.
+ *
+ * Every component gets an index and a kind, and the inputs of each component
+ * are listed by index. The components that have to be computed are split into
+ * two topological orders: those that only depend on the state, which are all
+ * that legal, goal and terminal queries need; and those that depend on the
+ * input propositions, which are only needed to compute the next state. Base
+ * and input propositions are the sources of both orders; their values are set
+ * from the state and the moves.
+ *
+ * States are {@link BitSetMachineState}s over the base propositions, indexed
+ * in the order of {@link #getBaseComponents()}.
+ *
+ * An IndexedPropNet is immutable once created; the arrays returned by its
+ * getters must not be modified.
+ */
+public final class IndexedPropNet {
+    public static final int CONSTANT_TRUE = 0;
+    public static final int CONSTANT_FALSE = 1;
+    public static final int AND = 2;
+    public static final int OR = 3;
+    public static final int NOT = 4;
+    /** Propositions and transitions, which take the value of their single input */
+    public static final int COPY = 5;
+
+    /** The input component of a move that has no input proposition */
+    public static final int NO_INPUT = -1;
+    /** The input component of a move that is never legal for the role */
+    public static final int UNKNOWN_MOVE = -2;
+
+    private final PropNet propNet;
+    private final ImmutableList<Role> roles;
+    private final Map<Component, Integer> componentIndices;
+    private final int[] kinds;
+    private final int[] inputStarts;
+    private final int[] inputs;
+    private final int[] stateOrder;
+    private final int[] moveOrder;
+
+    private final GdlSentence[] baseSentences;
+    private final int[] baseSentenceHashes;
+    private final Map<GdlSentence, Integer> baseIndices;
+    private final int[] baseComponents;
+    private final int[] baseNextComponents;
+
+    private final int terminalComponent;
+    private final int[][] legalComponents;
+    private final Move[][] legalMoves;
+    private final int[][] legalInputComponents;
+    private final int[][] goalComponents;
+    private final int[][] goalValues;
+    private final List<Map<Move, Integer>> inputComponentsByMove;
+
+    private final BitSetMachineState initialState;
+
+    private IndexedPropNet(PropNet propNet) {
+        this.propNet = propNet;
+        this.roles = ImmutableList.copyOf(propNet.getRoles());
+
+        List<Component> components = new ArrayList<Component>(propNet.getComponents());
+        int numComponents = components.size();
+        componentIndices = new HashMap<Component, Integer>(numComponents * 2);
+        for (int i = 0; i < numComponents; i++) {
+            componentIndices.put(components.get(i), i);
+        }
+
+        List<Proposition> baseProps = new ArrayList<Proposition>(propNet.getBasePropositions().values());
+        int numBases = baseProps.size();
+        baseSentences = new GdlSentence[numBases];
+        baseSentenceHashes = new int[numBases];
+        baseIndices = new HashMap<GdlSentence, Integer>(numBases * 2);
+        baseComponents = new int[numBases];
+        baseNextComponents = new int[numBases];
+        for (int i = 0; i < numBases; i++) {
+            Proposition baseProp = baseProps.get(i);
+            baseSentences[i] = baseProp.getName();
+            baseSentenceHashes[i] = baseProp.getName().hashCode();
+            baseIndices.put(baseProp.getName(), i);
+            baseComponents[i] = componentIndices.get(baseProp);
+            baseNextComponents[i] = baseProp.getInputs().isEmpty() ? -1 : componentIndices.get(baseProp.getSingleInput());
+        }
+
+        // Base and input propositions (and the init proposition) are sources:
+        // their values are set from the state and moves, not computed.
+        boolean[] isSource = new boolean[numComponents];
+        for (int baseComponent : baseComponents) {
+            isSource[baseComponent] = true;
+        }
+        for (Proposition inputProp : propNet.getInputPropositions().values()) {
+            isSource[componentIndices.get(inputProp)] = true;
+        }
+        if (propNet.getInitProposition() != null) {
+            isSource[componentIndices.get(propNet.getInitProposition())] = true;
+        }
+
+        kinds = new int[numComponents];
+        inputStarts = new int[numComponents + 1];
+        List<Integer> inputList = new ArrayList<Integer>();
+        for (int i = 0; i < numComponents; i++) {
+            Component component = components.get(i);
+            inputStarts[i] = inputList.size();
+            kinds[i] = getKind(component);
+            if (!isSource[i]) {
+                for (Component input : component.getInputs()) {
+                    inputList.add(componentIndices.get(input));
+                }
+            }
+        }
+        inputStarts[numComponents] = inputList.size();
+        inputs = new int[inputList.size()];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = inputList.get(i);
+        }
+
+        boolean[] dependsOnMoves = new boolean[numComponents];
+        for (Proposition inputProp : propNet.getInputPropositions().values()) {
+            dependsOnMoves[componentIndices.get(inputProp)] = true;
+        }
+        int[] ordering = getOrdering(isSource);
+        int numMoveDependent = 0;
+        for (int c : ordering) {
+            for (int j = inputStarts[c]; j < inputStarts[c + 1]; j++) {
+                if (dependsOnMoves[inputs[j]]) {
+                    dependsOnMoves[c] = true;
+                }
+            }
+            if (dependsOnMoves[c]) {
+                numMoveDependent++;
+            }
+        }
+        stateOrder = new int[ordering.length - numMoveDependent];
+        moveOrder = new int[numMoveDependent];
+        int stateCount = 0;
+        int moveCount = 0;
+        for (int c : ordering) {
+            if (dependsOnMoves[c]) {
+                moveOrder[moveCount++] = c;
+            } else {
+                stateOrder[stateCount++] = c;
+            }
+        }
+
+        terminalComponent = componentIndices.get(propNet.getTerminalProposition());
+        legalComponents = new int[roles.size()][];
+        legalMoves = new Move[roles.size()][];
+        legalInputComponents = new int[roles.size()][];
+        goalComponents = new int[roles.size()][];
+        goalValues = new int[roles.size()][];
+        inputComponentsByMove = new ArrayList<Map<Move, Integer>>(roles.size());
+        for (int r = 0; r < roles.size(); r++) {
+            Role role = roles.get(r);
+            List<Proposition> legalProps = getPropositions(propNet.getLegalPropositions(), role);
+            legalComponents[r] = new int[legalProps.size()];
+            legalMoves[r] = new Move[legalProps.size()];
+            for (int i = 0; i < legalProps.size(); i++) {
+                legalComponents[r][i] = componentIndices.get(legalProps.get(i));
+                legalMoves[r][i] = new Move(legalProps.get(i).getName().get(1));
+            }
+
+            List<Proposition> goalProps = getPropositions(propNet.getGoalPropositions(), role);
+            goalComponents[r] = new int[goalProps.size()];
+            goalValues[r] = new int[goalProps.size()];
+            for (int i = 0; i < goalProps.size(); i++) {
+                goalComponents[r][i] = componentIndices.get(goalProps.get(i));
+                GdlRelation relation = (GdlRelation) goalProps.get(i).getName();
+                goalValues[r][i] = Integer.parseInt(((GdlConstant) relation.get(1)).getValue());
+            }
+
+            Map<Move, Integer> inputComponents = new HashMap<Move, Integer>();
+            legalInputComponents[r] = new int[legalProps.size()];
+            for (int i = 0; i < legalProps.size(); i++) {
+                Move move = legalMoves[r][i];
+                Proposition inputProp = propNet.getInputPropositions().get(ProverQueryBuilder.toDoes(role, move));
+                if (inputProp != null) {
+                    inputComponents.put(move, componentIndices.get(inputProp));
+                    legalInputComponents[r][i] = componentIndices.get(inputProp);
+                } else {
+                    inputComponents.put(move, NO_INPUT);
+                    legalInputComponents[r][i] = NO_INPUT;
+                }
+            }
+            inputComponentsByMove.add(inputComponents);
+        }
+
+        initialState = computeInitialState();
+    }
+
+    public static IndexedPropNet create(PropNet propNet) {
+        return new IndexedPropNet(propNet);
+    }
+
+    private static int getKind(Component component) {
+        if (component instanceof Constant) {
+            return component.getValue() ? CONSTANT_TRUE : CONSTANT_FALSE;
+        } else if (component instanceof And) {
+            return AND;
+        } else if (component instanceof Or) {
+            return OR;
+        } else if (component instanceof Not) {
+            return NOT;
+        } else if (component instanceof Proposition || component instanceof Transition) {
+            return COPY;
+        }
+        throw new IllegalArgumentException("Unknown component type: " + component.getClass());
+    }
+
+    private static List<Proposition> getPropositions(Map<Role, Set<Proposition>> propsByRole, Role role) {
+        Set<Proposition> props = propsByRole.get(role);
+        if (props == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Proposition>(props);
+    }
+
+    /**
+     * Computes a topological ordering of the components that aren't sources.
+     * The propnet is acyclic once the sources are cut off from their inputs,
+     * since every cycle in a propnet passes through a transition into a base
+     * proposition.
+     */
+    private int[] getOrdering(boolean[] isSource) {
+        int numComponents = kinds.length;
+        int[] remainingInputs = new int[numComponents];
+        List<List<Integer>> outputs = new ArrayList<List<Integer>>(numComponents);
+        for (int c = 0; c < numComponents; c++) {
+            outputs.add(new ArrayList<Integer>());
+        }
+        for (int c = 0; c < numComponents; c++) {
+            remainingInputs[c] = inputStarts[c + 1] - inputStarts[c];
+            for (int j = inputStarts[c]; j < inputStarts[c + 1]; j++) {
+                outputs.get(inputs[j]).add(c);
+            }
+        }
+
+        Queue<Integer> ready = new ArrayDeque<Integer>();
+        for (int c = 0; c < numComponents; c++) {
+            if (remainingInputs[c] == 0) {
+                ready.add(c);
+            }
+        }
+        int[] order = new int[numComponents];
+        int orderSize = 0;
+        int numVisited = 0;
+        while (!ready.isEmpty()) {
+            int c = ready.remove();
+            numVisited++;
+            if (!isSource[c]) {
+                order[orderSize++] = c;
+            }
+            for (int output : outputs.get(c)) {
+                remainingInputs[output]--;
+                if (remainingInputs[output] == 0) {
+                    ready.add(output);
+                }
+            }
+        }
+        if (numVisited != numComponents) {
+            throw new IllegalStateException("The propnet has a cycle that doesn't pass through a base proposition");
+        }
+        return Arrays.copyOf(order, orderSize);
+    }
+
+    private BitSetMachineState computeInitialState() {
+        Set<Proposition> initiallyTrue = propNet.getInitiallyTrueBasePropositions();
+        if (initiallyTrue != null) {
+            long[] bits = new long[getNumWords()];
+            for (Proposition baseProp : initiallyTrue) {
+                int base = baseIndices.get(baseProp.getName());
+                bits[base >>> 6] |= 1L << base;
+            }
+            return createState(bits);
+        }
+        // Older propnets mark the initial state with an init proposition instead.
+        boolean[] values = new boolean[kinds.length];
+        if (propNet.getInitProposition() != null) {
+            values[componentIndices.get(propNet.getInitProposition())] = true;
+        }
+        evaluate(stateOrder, values);
+        evaluate(moveOrder, values);
+        return readNextState(values);
+    }
+
+    /**
+     * Evaluates the given components, in order, into the values array. This is
+     * the interpreted form of the propnet; see {@link PropNetCompiler} for the
+     * compiled form.
+     */
+    public void evaluate(int[] order, boolean[] values) {
+        for (int c : order) {
+            int start = inputStarts[c];
+            int end = inputStarts[c + 1];
+            boolean value;
+            switch (kinds[c]) {
+            case CONSTANT_TRUE:
+                value = true;
+                break;
+            case CONSTANT_FALSE:
+                value = false;
+                break;
+            case AND:
+                value = true;
+                for (int j = start; j < end; j++) {
+                    if (!values[inputs[j]]) {
+                        value = false;
+                        break;
+                    }
+                }
+                break;
+            case OR:
+                value = false;
+                for (int j = start; j < end; j++) {
+                    if (values[inputs[j]]) {
+                        value = true;
+                        break;
+                    }
+                }
+                break;
+            case NOT:
+                value = !values[inputs[start]];
+                break;
+            default:
+                value = start < end && values[inputs[start]];
+                break;
+            }
+            values[c] = value;
+        }
+    }
+
+    /**
+     * Sets the values of the base propositions from the given state.
+     */
+    public void readState(BitSetMachineState state, boolean[] values) {
+        readState(state.getBits(), values);
+    }
+
+    /**
+     * Sets the values of the base propositions from the given bits, laid out
+     * as in {@link BitSetMachineState#getBits()}.
+     */
+    public void readState(long[] bits, boolean[] values) {
+        for (int base = 0; base < baseComponents.length; base++) {
+            values[baseComponents[base]] = (bits[base >>> 6] & (1L << base)) != 0;
+        }
+    }
+
+    /**
+     * Reads the next state out of values in which the move-dependent
+     * components have been evaluated.
+     */
+    public BitSetMachineState readNextState(boolean[] values) {
+        long[] bits = new long[getNumWords()];
+        readNextState(values, bits);
+        return createState(bits);
+    }
+
+    /**
+     * Like {@link #readNextState(boolean[])}, but overwrites the given bits
+     * with the next state instead of creating one.
+     */
+    public void readNextState(boolean[] values, long[] bits) {
+        Arrays.fill(bits, 0L);
+        for (int base = 0; base < baseNextComponents.length; base++) {
+            int next = baseNextComponents[base];
+            if (next != -1 && values[next]) {
+                bits[base >>> 6] |= 1L << base;
+            }
+        }
+    }
+
+    /**
+     * Wraps the given bits, which the caller must not modify afterwards, as
+     * a state of this propnet.
+     */
+    public BitSetMachineState createState(long[] bits) {
+        return new BitSetMachineState(this, bits);
+    }
+
+    /**
+     * Returns whether the state is a bitset over this propnet's base
+     * propositions, and so can be used without translation.
+     */
+    public boolean isNative(MachineState state) {
+        return state instanceof BitSetMachineState && ((BitSetMachineState) state).getPropNet() == this;
+    }
+
+    /**
+     * Converts any MachineState with contents into a state of this propnet.
+     * True sentences that aren't base propositions of the propnet are dropped.
+     */
+    public BitSetMachineState toState(MachineState state) {
+        if (isNative(state)) {
+            return (BitSetMachineState) state;
+        }
+        Set<GdlSentence> contents = state.getContents();
+        if (contents == null) {
+            throw new UnsupportedOperationException("Can't translate this MachineState type: " + state.getClass());
+        }
+        long[] bits = new long[getNumWords()];
+        for (GdlSentence sentence : contents) {
+            Integer base = baseIndices.get(sentence);
+            if (base != null) {
+                bits[base >>> 6] |= 1L << base;
+            }
+        }
+        return createState(bits);
+    }
+
+    public int getRoleIndex(Role role) {
+        int index = roles.indexOf(role);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown role: " + role);
+        }
+        return index;
+    }
+
+    public PropNet getPropNet() {
+        return propNet;
+    }
+
+    public ImmutableList<Role> getRoles() {
+        return roles;
+    }
+
+    public int getNumComponents() {
+        return kinds.length;
+    }
+
+    public int getComponentIndex(Component component) {
+        return componentIndices.get(component);
+    }
+
+    public int[] getKinds() {
+        return kinds;
+    }
+
+    /**
+     * The inputs of component c are getInputs()[getInputStarts()[c]] up to
+     * getInputs()[getInputStarts()[c + 1]]. Sources have no inputs listed.
+     */
+    public int[] getInputStarts() {
+        return inputStarts;
+    }
+
+    public int[] getInputs() {
+        return inputs;
+    }
+
+    /** The components that only depend on the state, in topological order. */
+    public int[] getStateOrder() {
+        return stateOrder;
+    }
+
+    /** The components that depend on the moves, in topological order. */
+    public int[] getMoveOrder() {
+        return moveOrder;
+    }
+
+    public int getNumBases() {
+        return baseComponents.length;
+    }
+
+    public int getNumWords() {
+        return (baseComponents.length + 63) >>> 6;
+    }
+
+    public int[] getBaseComponents() {
+        return baseComponents;
+    }
+
+    /**
+     * For each base proposition, the component whose value is its value in
+     * the next state, or -1 if it is never true in the next state.
+     */
+    public int[] getBaseNextComponents() {
+        return baseNextComponents;
+    }
+
+    GdlSentence getBaseSentence(int base) {
+        return baseSentences[base];
+    }
+
+    int getBaseSentenceHash(int base) {
+        return baseSentenceHashes[base];
+    }
+
+    public int getTerminalComponent() {
+        return terminalComponent;
+    }
+
+    public int[] getLegalComponents(int roleIndex) {
+        return legalComponents[roleIndex];
+    }
+
+    /** The moves corresponding to {@link #getLegalComponents(int)}. */
+    public Move[] getLegalMoves(int roleIndex) {
+        return legalMoves[roleIndex];
+    }
+
+    /**
+     * The input propositions corresponding to {@link #getLegalComponents(int)},
+     * with {@link #NO_INPUT} for moves that have no input proposition.
+     */
+    public int[] getLegalInputComponents(int roleIndex) {
+        return legalInputComponents[roleIndex];
+    }
+
+    public int[] getGoalComponents(int roleIndex) {
+        return goalComponents[roleIndex];
+    }
+
+    /** The goal values corresponding to {@link #getGoalComponents(int)}. */
+    public int[] getGoalValues(int roleIndex) {
+        return goalValues[roleIndex];
+    }
+
+    /**
+     * Returns the input proposition for the role making the given move. This
+     * is {@link #NO_INPUT} if the move has no input proposition, in which case
+     * it has no effect on the next state, or {@link #UNKNOWN_MOVE} if the move
+     * is never legal for the role.
+     */
+    public int getInputComponent(int roleIndex, Move move) {
+        Integer inputComponent = inputComponentsByMove.get(roleIndex).get(move);
+        return (inputComponent == null) ? UNKNOWN_MOVE : inputComponent;
+    }
+
+    public BitSetMachineState getInitialState() {
+        return initialState;
+    }
+}
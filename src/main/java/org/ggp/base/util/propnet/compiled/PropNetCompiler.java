@@ -0,0 +1,190 @@
+package org.ggp.base.util.propnet.compiled;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+
+/**
+ * Compiles an {@link IndexedPropNet} into a Java class with javassist. The
+ * generated class has one assignment per component, in topological order, so
+ * evaluating the propnet runs straight-line code over an array of values with
+ * no component objects or dispatch on component types.
+ *
+ * The JIT won't compile methods with more than 8000 bytes of bytecode, so the
+ * assignments are split into helper methods that each stay under that size.
+ *
+ * Each generated class is defined in its own class loader, so it can be
+ * unloaded once the engine using it is no longer reachable.
+ */
+public final class PropNetCompiler {
+    /** An estimate of the bytecode size at which to start a new helper method */
+    private static final int MAX_METHOD_SIZE = 6000;
+    private static final String PACKAGE_NAME = PropNetCompiler.class.getPackage().getName();
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    private PropNetCompiler() {
+    }
+
+    public static CompiledPropNetCode compile(IndexedPropNet propNet) {
+        String className = PACKAGE_NAME + ".GeneratedPropNet" + classCounter.incrementAndGet();
+        ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new ClassClassPath(CompiledPropNetCode.class));
+        try {
+            CtClass ctClass = pool.makeClass(className);
+            ctClass.addInterface(pool.get(CompiledPropNetCode.class.getName()));
+            ctClass.addConstructor(CtNewConstructor.defaultConstructor(ctClass));
+
+            List<Statement> stateStatements = new ArrayList<Statement>();
+            addReadStateStatements(propNet, stateStatements);
+            addComponentStatements(propNet, propNet.getStateOrder(), stateStatements);
+            addMethods(ctClass, "evaluateState", "(long[] s, boolean[] v)", "(s, v)", stateStatements);
+
+            List<Statement> moveStatements = new ArrayList<Statement>();
+            addComponentStatements(propNet, propNet.getMoveOrder(), moveStatements);
+            addMethods(ctClass, "evaluateMoves", "(boolean[] v)", "(v)", moveStatements);
+
+            List<Statement> nextStateStatements = new ArrayList<Statement>();
+            addWriteNextStateStatements(propNet, nextStateStatements);
+            addMethods(ctClass, "writeNextState", "(boolean[] v, long[] n)", "(v, n)", nextStateStatements);
+
+            byte[] bytecode = ctClass.toBytecode();
+            ctClass.detach();
+            Class<?> generatedClass = new GeneratedClassLoader(CompiledPropNetCode.class.getClassLoader())
+                    .define(className, bytecode);
+            return (CompiledPropNetCode) generatedClass.newInstance();
+        } catch (CannotCompileException | NotFoundException | IOException
+                | InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void addReadStateStatements(IndexedPropNet propNet, List<Statement> statements) {
+        int[] baseComponents = propNet.getBaseComponents();
+        for (int base = 0; base < baseComponents.length; base++) {
+            statements.add(new Statement("v[" + baseComponents[base] + "] = (s[" + (base >>> 6) + "] & "
+                    + toLongLiteral(1L << base) + ") != 0L;", 16));
+        }
+    }
+
+    private static void addWriteNextStateStatements(IndexedPropNet propNet, List<Statement> statements) {
+        int[] baseNextComponents = propNet.getBaseNextComponents();
+        for (int base = 0; base < baseNextComponents.length; base++) {
+            int next = baseNextComponents[base];
+            if (next != -1) {
+                int word = base >>> 6;
+                statements.add(new Statement("if (v[" + next + "]) n[" + word + "] = n[" + word + "] | "
+                        + toLongLiteral(1L << base) + ";", 20));
+            }
+        }
+    }
+
+    private static void addComponentStatements(IndexedPropNet propNet, int[] order, List<Statement> statements) {
+        int[] kinds = propNet.getKinds();
+        int[] inputStarts = propNet.getInputStarts();
+        int[] inputs = propNet.getInputs();
+        for (int c : order) {
+            int start = inputStarts[c];
+            int end = inputStarts[c + 1];
+            String value;
+            switch (kinds[c]) {
+            case IndexedPropNet.CONSTANT_TRUE:
+                value = "true";
+                break;
+            case IndexedPropNet.CONSTANT_FALSE:
+                value = "false";
+                break;
+            case IndexedPropNet.AND:
+                value = joinInputs(inputs, start, end, " && ", "true");
+                break;
+            case IndexedPropNet.OR:
+                value = joinInputs(inputs, start, end, " || ", "false");
+                break;
+            case IndexedPropNet.NOT:
+                value = "!v[" + inputs[start] + "]";
+                break;
+            default:
+                value = (start < end) ? "v[" + inputs[start] + "]" : "false";
+                break;
+            }
+            statements.add(new Statement("v[" + c + "] = " + value + ";", 12 + 8 * (end - start)));
+        }
+    }
+
+    private static String joinInputs(int[] inputs, int start, int end, String operator, String emptyValue) {
+        if (start == end) {
+            return emptyValue;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int j = start; j < end; j++) {
+            if (j > start) {
+                sb.append(operator);
+            }
+            sb.append("v[").append(inputs[j]).append("]");
+        }
+        return sb.toString();
+    }
+
+    private static String toLongLiteral(long value) {
+        return "0x" + Long.toHexString(value) + "L";
+    }
+
+    /**
+     * Adds a public method that runs the statements, by way of as many
+     * private helper methods as it takes to keep each one small enough for
+     * the JIT to compile.
+     */
+    private static void addMethods(CtClass ctClass, String name, String parameters, String arguments,
+            List<Statement> statements) throws CannotCompileException {
+        StringBuilder publicBody = new StringBuilder("public void ").append(name).append(parameters).append(" {\n");
+        StringBuilder helperBody = null;
+        int helperSize = 0;
+        int numHelpers = 0;
+        for (Statement statement : statements) {
+            if (helperBody == null || helperSize + statement.size > MAX_METHOD_SIZE) {
+                if (helperBody != null) {
+                    ctClass.addMethod(CtNewMethod.make(helperBody.append("}").toString(), ctClass));
+                }
+                String helperName = name + numHelpers++;
+                helperBody = new StringBuilder("private void ").append(helperName).append(parameters).append(" {\n");
+                helperSize = 0;
+                publicBody.append(helperName).append(arguments).append(";\n");
+            }
+            helperBody.append(statement.code).append("\n");
+            helperSize += statement.size;
+        }
+        if (helperBody != null) {
+            ctClass.addMethod(CtNewMethod.make(helperBody.append("}").toString(), ctClass));
+        }
+        ctClass.addMethod(CtNewMethod.make(publicBody.append("}").toString(), ctClass));
+    }
+
+    private static class Statement {
+        private final String code;
+        /** An estimate of the statement's bytecode size */
+        private final int size;
+
+        private Statement(String code, int size) {
+            this.code = code;
+            this.size = size;
+        }
+    }
+
+    private static class GeneratedClassLoader extends ClassLoader {
+        private GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        private Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -68,6 +69,7 @@ import org.ggp.base.util.propnet.architecture.components.Transition;
 import org.ggp.base.util.statemachine.Role;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
@@ -75,6 +77,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /*
  * A propnet factory meant to optimize the propnet before it's even built,
@@ -120,9 +123,22 @@ public class OptimizingPropNetFactory {
     }
 
     public static PropNet create(List<Gdl> description, boolean verbose) throws InterruptedException {
+        return create(description, verbose, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a PropNet for the game with the given description, adding the
+     * components of independent sentence forms on up to numThreads threads.
+     *
+     * @throws InterruptedException if the thread is interrupted during
+     * PropNet creation.
+     */
+    public static PropNet create(List<Gdl> description, boolean verbose, int numThreads) throws InterruptedException {
+        Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
         System.out.println("Building propnet...");
 
         long startTime = System.currentTimeMillis();
+        PhaseTimer timer = new PhaseTimer();
 
         description = GdlCleaner.run(description);
         description = DeORer.run(description);
@@ -130,6 +146,7 @@ public class OptimizingPropNetFactory {
         description = Relationizer.run(description);
 
         description = CondensationIsolator.run(description);
+        timer.endPhase("transforms");
 
 
         if(verbose)
@@ -143,6 +160,7 @@ public class OptimizingPropNetFactory {
         //See chinesecheckers4's "count" relation for an example of why this
         //could be useful.
         model = SentenceDomainModelOptimizer.restrictDomainsToUsefulValues(model);
+        timer.endPhase("model");
 
         if(verbose)
             System.out.println("Setting constants...");
@@ -150,6 +168,7 @@ public class OptimizingPropNetFactory {
         ConstantChecker constantChecker = ConstantCheckerFactory.createWithForwardChaining(model);
         if(verbose)
             System.out.println("Done setting constants");
+        timer.endPhase("constants");
 
         Set<String> sentenceFormNames = SentenceForms.getNames(model.getSentenceForms());
         boolean usingBase = sentenceFormNames.contains("base");
@@ -167,79 +186,24 @@ public class OptimizingPropNetFactory {
         }
         ConcurrencyUtils.checkForInterruption();
         List<SentenceForm> topologicalOrdering = getTopologicalOrdering(model.getSentenceForms(), dependencyGraph, usingBase, usingInput);
+        List<List<SentenceForm>> levels = getLevels(topologicalOrdering, dependencyGraph, usingBase, usingInput);
         if(verbose)
             System.out.println("done");
+        timer.endPhase("ordering");
 
         List<Role> roles = Role.computeRoles(description);
-        Map<GdlSentence, Component> components = new HashMap<GdlSentence, Component>();
-        Map<GdlSentence, Component> negations = new HashMap<GdlSentence, Component>();
+        //The maps are concurrent so that sentence forms can be looked up while
+        //others are being added.
+        Map<GdlSentence, Component> components = new ConcurrentHashMap<GdlSentence, Component>();
+        Map<GdlSentence, Component> negations = new ConcurrentHashMap<GdlSentence, Component>();
         Set<Component> allComponents = new HashSet<Component>(); //Currently only used in verbose mode
         Constant trueComponent = new Constant(true);
         Constant falseComponent = new Constant(false);
         Map<Set<Component>, Or> orCache = Maps.newHashMap();
         Map<Set<Component>, And> andCache = Maps.newHashMap();
-        Map<SentenceForm, FunctionInfo> functionInfoMap = new HashMap<SentenceForm, FunctionInfo>();
-        Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
-        for(SentenceForm form : topologicalOrdering) {
-            ConcurrencyUtils.checkForInterruption();
-
-            if(verbose) {
-                System.out.print("Adding sentence form " + form);
-                System.out.flush();
-            }
-            if(constantChecker.isConstantForm(form)) {
-                if(verbose)
-                    System.out.println(" (constant)");
-                //Only add it if it's important
-                if(form.getName().equals(GdlPool.LEGAL)
-                        || form.getName().equals(GdlPool.GOAL)
-                        || form.getName().equals(GdlPool.INIT)
-                        || form.getName().equals(GdlPool.NEXT)
-                        || form.getName().equals(GdlPool.TERMINAL)) {
-                    //Add it
-                    for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
-                        Proposition trueProp = new Proposition(trueSentence);
-                        trueProp.addInput(trueComponent);
-                        trueComponent.addOutput(trueProp);
-                        components.put(trueSentence, trueComponent);
-                    }
-                }
-
-                if(verbose)
-                    System.out.println("Checking whether " + form + " is a functional constant...");
-                addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
-                addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
-
-                continue;
-            }
-            if(verbose)
-                System.out.println();
-            //TODO: Adjust "recursive forms" appropriately
-            //Add a temporary sentence form thingy? ...
-            Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
-            Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-            addSentenceForm(form, model, components, negations, trueComponent, falseComponent,
-                    usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations,
-                    functionInfoMap, constantChecker, completedSentenceFormValues, orCache, andCache);
-            //TODO: Pass these over groups of multiple sentence forms
-            if(verbose && !temporaryComponents.isEmpty())
-                System.out.println("Processing temporary components...");
-            processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
-            addFormToCompletedValues(form, completedSentenceFormValues, components);
-            if(verbose) {
-                //TODO: Add this, but with the correct total number of components (not just Propositions)
-                //System.out.println("  " + (allComponents.size()-numComponents) + " components added");
-                //TODO: We'll want to replace this hack eventually... harder than it sounds!
-                int oldSize = allComponents.size();
-                for(GdlSentence sentence : completedSentenceFormValues.get(form))
-                    allComponents.add(components.get(sentence));
-                completeComponentSet(allComponents);
-                int newSize = allComponents.size();
-                System.out.println("  "+(newSize - oldSize)+" components added");
-                if(newSize - oldSize == 0)
-                    System.err.println("Possible error in GDL: No components added for form " + form);
-            }
-        }
+        addSentenceForms(levels, model, constantChecker, components, negations, allComponents,
+                trueComponent, falseComponent, orCache, andCache, usingBase, usingInput, numThreads, verbose);
+        timer.endPhase("sentence forms (" + levels.size() + " levels on up to " + numThreads + " threads)");
         //Connect "next" to "true"
         if(verbose)
             System.out.println("Adding transitions...");
@@ -249,6 +213,7 @@ public class OptimizingPropNetFactory {
             System.out.println("Setting up 'init' proposition...");
         setUpInit(components, trueComponent, falseComponent, orCache);
         Set<Proposition> trueInits = getTrueInits(components, constantChecker, trueComponent);
+        timer.endPhase("transitions and init");
         //Now we can safely...
         if(verbose)
             System.out.println("Removing useless base propositions...");
@@ -264,7 +229,9 @@ public class OptimizingPropNetFactory {
         if(verbose)
             System.out.println("Initializing propnet object...");
         PropNet propnet = new PropNet(roles, componentSet, trueInits);
+        timer.endPhase("cleanup");
         if(verbose) {
+            System.out.println("Built propnet in " + (System.currentTimeMillis() - startTime) + "ms: " + timer);
             System.out.println("Done setting up propnet; took " + (System.currentTimeMillis() - startTime) + "ms, has " + componentSet.size() + " components and " + propnet.getNumLinks() + " links");
             System.out.println("Propnet has " +propnet.getNumAnds()+" ands; "+propnet.getNumOrs()+" ors; "+propnet.getNumNots()+" nots");
         }
@@ -274,6 +241,185 @@ public class OptimizingPropNetFactory {
 
 
 
+    /**
+     * Adds the components of all the sentence forms to the propnet, level by
+     * level. The forms within a level don't depend on one another, so they are
+     * added concurrently on up to numThreads threads. Components shared between
+     * forms (and the gate caches) are only changed while holding a common lock.
+     */
+    private static void addSentenceForms(List<List<SentenceForm>> levels,
+            SentenceDomainModel model, ConstantChecker constantChecker,
+            Map<GdlSentence, Component> components, Map<GdlSentence, Component> negations,
+            Set<Component> allComponents, Constant trueComponent, Constant falseComponent,
+            Map<Set<Component>, Or> orCache, Map<Set<Component>, And> andCache,
+            boolean usingBase, boolean usingInput, int numThreads, boolean verbose) throws InterruptedException {
+        Map<SentenceForm, FunctionInfo> functionInfoMap = new ConcurrentHashMap<SentenceForm, FunctionInfo>();
+        Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new ConcurrentHashMap<SentenceForm, Collection<GdlSentence>>();
+        Object graphLock = new Object();
+        ExecutorService executor = null;
+        if(numThreads > 1) {
+            executor = Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder()
+                    .setNameFormat("propnet-factory-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+        try {
+            for(List<SentenceForm> level : levels) {
+                ConcurrencyUtils.checkForInterruption();
+
+                List<Callable<AddedSentenceForm>> tasks = new ArrayList<Callable<AddedSentenceForm>>(level.size());
+                for(SentenceForm form : level) {
+                    tasks.add(() -> addSentenceForm(form, model, components, negations, trueComponent, falseComponent,
+                            usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues,
+                            orCache, andCache, graphLock, verbose));
+                }
+                List<AddedSentenceForm> addedForms = runAll(tasks, executor);
+
+                //Merging the temporary components back in optimizes the whole
+                //propnet, so this is done one form at a time.
+                for(AddedSentenceForm added : addedForms) {
+                    ConcurrencyUtils.checkForInterruption();
+                    if(added.isConstant) {
+                        continue;
+                    }
+                    SentenceForm form = added.form;
+                    //TODO: Pass these over groups of multiple sentence forms
+                    if(verbose && !added.temporaryComponents.isEmpty())
+                        System.out.println("Processing temporary components of " + form + "...");
+                    processTemporaryComponents(added.temporaryComponents, added.temporaryNegations, components, negations, trueComponent, falseComponent);
+                    addFormToCompletedValues(form, completedSentenceFormValues, components);
+                    if(verbose) {
+                        //TODO: Add this, but with the correct total number of components (not just Propositions)
+                        //System.out.println("  " + (allComponents.size()-numComponents) + " components added");
+                        //TODO: We'll want to replace this hack eventually... harder than it sounds!
+                        int oldSize = allComponents.size();
+                        for(GdlSentence sentence : completedSentenceFormValues.get(form))
+                            allComponents.add(components.get(sentence));
+                        completeComponentSet(allComponents);
+                        int newSize = allComponents.size();
+                        System.out.println("  "+(newSize - oldSize)+" components added for " + form);
+                        if(newSize - oldSize == 0)
+                            System.err.println("Possible error in GDL: No components added for form " + form);
+                    }
+                }
+            }
+        } finally {
+            if(executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks, on the executor if there is one and more than one task,
+     * and otherwise on this thread. Returns their results in the same order.
+     */
+    private static <T> List<T> runAll(List<Callable<T>> tasks, ExecutorService executor) throws InterruptedException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if(executor == null || tasks.size() == 1) {
+            for(Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (InterruptedException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        try {
+            for(Callable<T> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for(Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            Throwables.throwIfInstanceOf(e.getCause(), InterruptedException.class);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        } finally {
+            //Stops the remaining tasks if one failed or we were interrupted
+            for(Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * The components of one sentence form, before the references the form
+     * makes to itself have been connected up.
+     */
+    private static class AddedSentenceForm {
+        private final SentenceForm form;
+        private final boolean isConstant;
+        private final Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+        private final Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+
+        private AddedSentenceForm(SentenceForm form, boolean isConstant) {
+            this.form = form;
+            this.isConstant = isConstant;
+        }
+    }
+
+    /**
+     * Adds the components of a sentence form, once the forms it depends on
+     * have been added. Its references to itself are left as temporary
+     * components, to be connected up by processTemporaryComponents.
+     */
+    private static AddedSentenceForm addSentenceForm(SentenceForm form, SentenceDomainModel model,
+            Map<GdlSentence, Component> components,
+            Map<GdlSentence, Component> negations,
+            Constant trueComponent, Constant falseComponent,
+            boolean usingBase, boolean usingInput,
+            Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
+            Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+            Map<Set<Component>, Or> orCache, Map<Set<Component>, And> andCache,
+            Object graphLock, boolean verbose) throws InterruptedException {
+        ConcurrencyUtils.checkForInterruption();
+
+        if(verbose) {
+            System.out.println("Adding sentence form " + form
+                    + (constantChecker.isConstantForm(form) ? " (constant)" : ""));
+        }
+        if(constantChecker.isConstantForm(form)) {
+            //Only add it if it's important
+            if(form.getName().equals(GdlPool.LEGAL)
+                    || form.getName().equals(GdlPool.GOAL)
+                    || form.getName().equals(GdlPool.INIT)
+                    || form.getName().equals(GdlPool.NEXT)
+                    || form.getName().equals(GdlPool.TERMINAL)) {
+                //Add it
+                synchronized(graphLock) {
+                    for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
+                        Proposition trueProp = new Proposition(trueSentence);
+                        trueProp.addInput(trueComponent);
+                        trueComponent.addOutput(trueProp);
+                        components.put(trueSentence, trueComponent);
+                    }
+                }
+            }
+
+            if(verbose)
+                System.out.println("Checking whether " + form + " is a functional constant...");
+            addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
+            addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+
+            return new AddedSentenceForm(form, true);
+        }
+        //TODO: Adjust "recursive forms" appropriately
+        //Add a temporary sentence form thingy? ...
+        AddedSentenceForm added = new AddedSentenceForm(form, false);
+        addSentenceForm(form, model, components, negations, trueComponent, falseComponent,
+                usingBase, usingInput, Collections.singleton(form), added.temporaryComponents, added.temporaryNegations,
+                functionInfoMap, constantChecker, completedSentenceFormValues, orCache, andCache, graphLock);
+        return added;
+    }
+
     private static Set<Proposition> getTrueInits(
             Map<GdlSentence, Component> components,
             ConstantChecker constantChecker,
@@ -886,6 +1032,64 @@ public class OptimizingPropNetFactory {
         }
     }
 
+    /**
+     * Splits a topological ordering of the sentence forms into levels, such
+     * that each form only depends on forms in earlier levels (or itself).
+     * The forms in a level can then be added to the propnet independently.
+     * Like the ordering, this puts true/next/init after base and does/legal
+     * after input, if those are in use.
+     */
+    private static List<List<SentenceForm>> getLevels(List<SentenceForm> topologicalOrdering,
+            Multimap<SentenceForm, SentenceForm> dependencyGraph, boolean usingBase, boolean usingInput) {
+        Map<SentenceForm, Integer> formLevels = new HashMap<SentenceForm, Integer>();
+        List<List<SentenceForm>> levels = new ArrayList<List<SentenceForm>>();
+        for(SentenceForm form : topologicalOrdering) {
+            List<SentenceForm> prerequisites = new ArrayList<SentenceForm>(dependencyGraph.get(form));
+            if(usingBase && (form.getName().equals(GdlPool.TRUE) || form.getName().equals(GdlPool.NEXT) || form.getName().equals(GdlPool.INIT))) {
+                prerequisites.add(form.withName(GdlPool.BASE));
+            }
+            if(usingInput && (form.getName().equals(GdlPool.DOES) || form.getName().equals(GdlPool.LEGAL))) {
+                prerequisites.add(form.withName(GdlPool.INPUT));
+            }
+
+            int level = 0;
+            for(SentenceForm prerequisite : prerequisites) {
+                Integer prerequisiteLevel = formLevels.get(prerequisite);
+                if(!prerequisite.equals(form) && prerequisiteLevel != null) {
+                    level = Math.max(level, prerequisiteLevel + 1);
+                }
+            }
+            formLevels.put(form, level);
+            if(level == levels.size()) {
+                levels.add(new ArrayList<SentenceForm>());
+            }
+            levels.get(level).add(form);
+        }
+        return levels;
+    }
+
+    /**
+     * Records how long each phase of propnet creation takes.
+     */
+    private static class PhaseTimer {
+        private final StringBuilder phases = new StringBuilder();
+        private long phaseStart = System.currentTimeMillis();
+
+        private void endPhase(String name) {
+            long now = System.currentTimeMillis();
+            if(phases.length() > 0) {
+                phases.append(", ");
+            }
+            phases.append(name).append(' ').append(now - phaseStart).append("ms");
+            phaseStart = now;
+        }
+
+        @Override
+        public String toString() {
+            return phases.toString();
+        }
+    }
+
     //TODO: This code is currently used by multiple classes (copy/pasted),
     //so it should be factored out into another class.
     private static List<SentenceForm> getTopologicalOrdering(
@@ -942,7 +1146,8 @@ public class OptimizingPropNetFactory {
             Set<SentenceForm> recursionForms,
             Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
             Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
-            Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues, Map<Set<Component>, Or> orCache, Map<Set<Component>, And> andCache) throws InterruptedException {
+            Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues, Map<Set<Component>, Or> orCache, Map<Set<Component>, And> andCache,
+            Object graphLock) throws InterruptedException {
         //This is the meat of it (along with the entire Assignments class).
         //We need to enumerate the possible propositions in the sentence form...
         //We also need to hook up the sentence form to the inputs that can make it true.
@@ -960,7 +1165,9 @@ public class OptimizingPropNetFactory {
                     || alwaysTrueSentence.getName().equals(GdlPool.GOAL)) {
                 Proposition prop = new Proposition(alwaysTrueSentence);
                 //Attach to true
-                trueComponent.addOutput(prop);
+                synchronized(graphLock) {
+                    trueComponent.addOutput(prop);
+                }
                 prop.addInput(trueComponent);
                 //Still want the same components;
                 //we just don't want this to be anonymized
@@ -1100,7 +1307,9 @@ public class OptimizingPropNetFactory {
                             Not not = new Not();
                             //Add positive as input
                             not.addInput(positive);
-                            positive.addOutput(not);
+                            synchronized(graphLock) {
+                                positive.addOutput(not);
+                            }
                             temporaryNegations.put(transformed, not);
                             conj = not;
                         }
@@ -1116,20 +1325,24 @@ public class OptimizingPropNetFactory {
                                 continue; //to the next conjunct
                             }
 
-                            //Check if we're sharing a component with another sentence with a negation
-                            //(i.e. look for "nots" in our outputs and use those instead)
-                            Not existingNotOutput = getNotOutput(positive);
-                            if(existingNotOutput != null) {
-                                componentsToConnect.add(existingNotOutput);
-                                negations.put(transformed, existingNotOutput);
-                                continue; //to the next conjunct
+                            synchronized(graphLock) {
+                                //Another sentence form may have added the negation since we looked
+                                conj = negations.get(transformed);
+                                if(conj == null) {
+                                    //Check if we're sharing a component with another sentence with a negation
+                                    //(i.e. look for "nots" in our outputs and use those instead)
+                                    Not existingNotOutput = getNotOutput(positive);
+                                    if(existingNotOutput != null) {
+                                        conj = existingNotOutput;
+                                    } else {
+                                        Not not = new Not();
+                                        not.addInput(positive);
+                                        positive.addOutput(not);
+                                        conj = not;
+                                    }
+                                    negations.put(transformed, conj);
+                                }
                             }
-
-                            Not not = new Not();
-                            not.addInput(positive);
-                            positive.addOutput(not);
-                            negations.put(transformed, not);
-                            conj = not;
                         }
                         componentsToConnect.add(conj);
                     } else if(literal instanceof GdlDistinct) {
@@ -1142,7 +1355,9 @@ public class OptimizingPropNetFactory {
                     //Connect all the components
                     Proposition andComponent = new Proposition(TEMP);
 
-                    andify(componentsToConnect, andComponent, trueComponent, andCache);
+                    synchronized(graphLock) {
+                        andify(componentsToConnect, andComponent, trueComponent, andCache);
+                    }
                     if(!isThisConstant(andComponent, falseComponent)) {
                         if(!inputsToOr.containsKey(sentence))
                             inputsToOr.put(sentence, new HashSet<Component>());
@@ -1164,19 +1379,21 @@ public class OptimizingPropNetFactory {
             GdlSentence sentence = entry.getKey();
             Set<Component> inputs = entry.getValue();
             Set<Component> realInputs = new HashSet<Component>();
-            for(Component input : inputs) {
-                ConcurrencyUtils.checkForInterruption();
-                if(input instanceof Constant || input.getInputs().size() == 0) {
-                    realInputs.add(input);
-                } else {
-                    realInputs.add(input.getSingleInput());
-                    input.getSingleInput().removeOutput(input);
-                    input.removeAllInputs();
+            Proposition prop = new Proposition(sentence);
+            synchronized(graphLock) {
+                for(Component input : inputs) {
+                    ConcurrencyUtils.checkForInterruption();
+                    if(input instanceof Constant || input.getInputs().size() == 0) {
+                        realInputs.add(input);
+                    } else {
+                        realInputs.add(input.getSingleInput());
+                        input.getSingleInput().removeOutput(input);
+                        input.removeAllInputs();
+                    }
                 }
-            }
 
-            Proposition prop = new Proposition(sentence);
-            orify(realInputs, prop, falseComponent, orCache);
+                orify(realInputs, prop, falseComponent, orCache);
+            }
             components.put(sentence, prop);
         }
 
@@ -0,0 +1,809 @@
+package org.ggp.base.util.propnet.sancho;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.util.OpenBitSet;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * Animator that simulates up to 64 independent states of a propnet at once.
+ *
+ * Each component's value is held as a long, with bit n being its value in lane n,
+ * and every gate is re-evaluated in topological order with word-wide AND/OR/NOT
+ * operations.  Unlike the {@link ForwardDeadReckonPropnetFastAnimator} this does not
+ * propagate changes differentially, so it does the same work whatever moves are
+ * played - which is what makes it a good fit for many simultaneous random playouts,
+ * in which almost every lane changes on every step.
+ *
+ * The tables describing the network are immutable and shared between all animators
+ * created from one another with {@link #createInstance()}; each animator holds its own
+ * lane values and may only be used by one thread at a time.
+ */
+public class ForwardDeadReckonBitParallelAnimator
+{
+  /**
+   * Number of states that can be simulated at once
+   */
+  public static final int NUM_LANES = 64;
+
+  private static final byte KIND_AND  = 0;
+  private static final byte KIND_OR   = 1;
+  private static final byte KIND_NOT  = 2;
+  private static final byte KIND_COPY = 3;
+
+  private final Tables  tables;
+  private final long[]  values;
+  private final long[]  nextBaseValues;
+  private final int[]   laneChoiceCounts = new int[NUM_LANES];
+  private final int[]   laneChoices = new int[NUM_LANES];
+  private final Random  random = new Random();
+  private long          loadedLanes;
+
+  /**
+   * Immutable flattened form of the network, shared between instances
+   */
+  private static final class Tables
+  {
+    int                                  numComponents;
+    //  Gates to evaluate (in topological order) once the base props are set, and
+    //  once the input props are set, along with their kinds and inputs (CSR form)
+    int[]                                stateOrder;
+    int[]                                moveOrder;
+    byte[]                               kinds;
+    int[]                                inputStarts;
+    int[]                                inputs;
+    //  Components which are always true
+    int[]                                trueConstants;
+    //  Base props, indexed by their offset from the first base prop index, and the
+    //  components holding their next values (-1 if always false)
+    int[]                                baseComponents;
+    int[]                                baseNextComponents;
+    int                                  firstBasePropIndex;
+    ForwardDeadReckonPropositionInfo     xSentenceInfo;
+    ForwardDeadReckonInternalMachineState stateTemplate;
+    int[]                                inputComponents;
+    int                                  terminalComponent;
+    //  Per-role goal props and their values
+    int[][]                              goalComponents;
+    int[][]                              goalValues;
+    //  Per-role legal props and their master move indexes, and the legal prop of each
+    //  master move index
+    int[][]                              legalComponents;
+    ForwardDeadReckonLegalMoveInfo[][]   legalMoves;
+    int[]                                legalComponentsByMove;
+  }
+
+  /**
+   * Construct a bit-parallel animator for a crystalized propnet
+   * @param propNet - propnet to simulate.  Its base props must carry info indexed like the
+   *                  internal states this animator will be used with
+   * @param stateTemplate - empty state of the kind this animator will be used with; the
+   *                        states returned by {@link #getState(int)} are copies of it
+   * @param xSentenceInfo - base prop whose presence marks an X-state, or null if none
+   */
+  public ForwardDeadReckonBitParallelAnimator(ForwardDeadReckonPropNet propNet,
+                                              ForwardDeadReckonInternalMachineState stateTemplate,
+                                              ForwardDeadReckonPropositionInfo xSentenceInfo)
+  {
+    this(buildTables(propNet, stateTemplate, xSentenceInfo));
+  }
+
+  private ForwardDeadReckonBitParallelAnimator(Tables tables)
+  {
+    this.tables = tables;
+    values = new long[tables.numComponents];
+    nextBaseValues = new long[tables.baseComponents.length];
+    for (int c : tables.trueConstants)
+    {
+      values[c] = -1L;
+    }
+  }
+
+  /**
+   * @return a new animator sharing this one's network tables, for use by another thread
+   */
+  public ForwardDeadReckonBitParallelAnimator createInstance()
+  {
+    return new ForwardDeadReckonBitParallelAnimator(tables);
+  }
+
+  /**
+   * @param seed - seed for the random move choices of depth charges
+   */
+  public void setRandomSeed(long seed)
+  {
+    random.setSeed(seed);
+  }
+
+  /**
+   * @return the number of components simulated per step
+   */
+  public int getNumComponents()
+  {
+    return tables.numComponents;
+  }
+
+  /**
+   * Load states into the lanes, starting from lane 0.  Lanes beyond the number of
+   * states are left empty.
+   * @param states - states to load
+   * @param numStates - number of states to load, at most {@link #NUM_LANES}
+   */
+  public void setStates(ForwardDeadReckonInternalMachineState[] states, int numStates)
+  {
+    assert(numStates <= NUM_LANES);
+    int[] baseComponents = tables.baseComponents;
+    for (int i = 0; i < baseComponents.length; i++)
+    {
+      values[baseComponents[i]] = 0;
+    }
+    for (int lane = 0; lane < numStates; lane++)
+    {
+      loadLane(lane, states[lane]);
+    }
+    loadedLanes = (numStates == NUM_LANES ? -1L : (1L << numStates) - 1);
+    evaluate(tables.stateOrder);
+  }
+
+  /**
+   * Load the same state into the first numLanes lanes
+   */
+  public void setState(ForwardDeadReckonInternalMachineState state, int numLanes)
+  {
+    assert(numLanes <= NUM_LANES);
+    long lanes = (numLanes == NUM_LANES ? -1L : (1L << numLanes) - 1);
+    int[] baseComponents = tables.baseComponents;
+    for (int i = 0; i < baseComponents.length; i++)
+    {
+      values[baseComponents[i]] = 0;
+    }
+    OpenBitSet contents = state.getContents();
+    for (int index = contents.nextSetBit(tables.firstBasePropIndex); index >= 0; index = contents.nextSetBit(index + 1))
+    {
+      values[baseComponents[index - tables.firstBasePropIndex]] = lanes;
+    }
+    loadedLanes = lanes;
+    evaluate(tables.stateOrder);
+  }
+
+  private void loadLane(int lane, ForwardDeadReckonInternalMachineState state)
+  {
+    long bit = 1L << lane;
+    int[] baseComponents = tables.baseComponents;
+    OpenBitSet contents = state.getContents();
+    for (int index = contents.nextSetBit(tables.firstBasePropIndex); index >= 0; index = contents.nextSetBit(index + 1))
+    {
+      values[baseComponents[index - tables.firstBasePropIndex]] |= bit;
+    }
+  }
+
+  /**
+   * @return the mask of loaded lanes whose state is terminal
+   */
+  public long getTerminalLanes()
+  {
+    if (tables.terminalComponent == -1)
+    {
+      return 0;
+    }
+    return values[tables.terminalComponent] & loadedLanes;
+  }
+
+  /**
+   * @return whether the state in the given lane is terminal
+   */
+  public boolean isTerminal(int lane)
+  {
+    return (getTerminalLanes() & (1L << lane)) != 0;
+  }
+
+  /**
+   * @return the goal value of a role in the state in the given lane, or 0 if it has none
+   */
+  public int getGoal(int lane, int roleIndex)
+  {
+    int[] goalComponents = tables.goalComponents[roleIndex];
+    long bit = 1L << lane;
+    for (int i = 0; i < goalComponents.length; i++)
+    {
+      if ((values[goalComponents[i]] & bit) != 0)
+      {
+        return tables.goalValues[roleIndex][i];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Read the goal values of a role in every lane
+   * @param roleIndex - role to read the goals of
+   * @param goals - array of at least {@link #NUM_LANES} entries to fill in
+   */
+  public void getGoals(int roleIndex, int[] goals)
+  {
+    Arrays.fill(goals, 0, NUM_LANES, 0);
+    int[] goalComponents = tables.goalComponents[roleIndex];
+    int[] goalValues = tables.goalValues[roleIndex];
+    long unset = loadedLanes;
+    for (int i = 0; i < goalComponents.length && unset != 0; i++)
+    {
+      long lanes = values[goalComponents[i]] & unset;
+      unset &= ~lanes;
+      while (lanes != 0)
+      {
+        goals[Long.numberOfTrailingZeros(lanes)] = goalValues[i];
+        lanes &= lanes - 1;
+      }
+    }
+  }
+
+  /**
+   * @return whether a move is legal in the state in the given lane
+   */
+  public boolean isLegal(int lane, ForwardDeadReckonLegalMoveInfo move)
+  {
+    if (move.mMasterIndex < 0 || move.mMasterIndex >= tables.legalComponentsByMove.length)
+    {
+      return false;
+    }
+    int legal = tables.legalComponentsByMove[move.mMasterIndex];
+    return legal != -1 && (values[legal] & (1L << lane)) != 0;
+  }
+
+  /**
+   * Add the moves legal for a role in the state in the given lane to a list
+   */
+  public void getLegalMoves(int lane, int roleIndex, List<ForwardDeadReckonLegalMoveInfo> moves)
+  {
+    int[] legalComponents = tables.legalComponents[roleIndex];
+    long bit = 1L << lane;
+    for (int i = 0; i < legalComponents.length; i++)
+    {
+      if ((values[legalComponents[i]] & bit) != 0)
+      {
+        moves.add(tables.legalMoves[roleIndex][i]);
+      }
+    }
+  }
+
+  /**
+   * Advance every lane to its next state, which then becomes the lane's current state
+   * @param jointMoves - joint move to play in each lane, indexed by lane then role.  Lanes
+   *                     with no joint move (or beyond the array) are unloaded.
+   * @param nextStates - if not null, the states to write the next states of the advanced
+   *                     lanes into
+   */
+  public void getNextStates(ForwardDeadReckonLegalMoveInfo[][] jointMoves,
+                            ForwardDeadReckonInternalMachineState[] nextStates)
+  {
+    clearInputs();
+    long advancedLanes = 0;
+    for (int lane = 0; lane < jointMoves.length && lane < NUM_LANES; lane++)
+    {
+      ForwardDeadReckonLegalMoveInfo[] jointMove = jointMoves[lane];
+      if (jointMove == null || (loadedLanes & (1L << lane)) == 0)
+      {
+        continue;
+      }
+      advancedLanes |= (1L << lane);
+      for (ForwardDeadReckonLegalMoveInfo move : jointMove)
+      {
+        setInput(move.mMasterIndex, 1L << lane);
+      }
+    }
+    advance(advancedLanes);
+
+    if (nextStates != null)
+    {
+      long lanes = advancedLanes;
+      while (lanes != 0)
+      {
+        int lane = Long.numberOfTrailingZeros(lanes);
+        getState(lane, nextStates[lane]);
+        lanes &= lanes - 1;
+      }
+    }
+  }
+
+  /**
+   * Write the current state in a lane into an internal state
+   */
+  public void getState(int lane, ForwardDeadReckonInternalMachineState state)
+  {
+    state.clear();
+    long bit = 1L << lane;
+    int[] baseComponents = tables.baseComponents;
+    for (int i = 0; i < baseComponents.length; i++)
+    {
+      if ((values[baseComponents[i]] & bit) != 0)
+      {
+        state.add(tables.firstBasePropIndex + i);
+      }
+    }
+    state.isXState = (tables.xSentenceInfo != null && state.contains(tables.xSentenceInfo));
+  }
+
+  /**
+   * @return a new internal state holding the current state in a lane
+   */
+  public ForwardDeadReckonInternalMachineState getState(int lane)
+  {
+    ForwardDeadReckonInternalMachineState result = new ForwardDeadReckonInternalMachineState(tables.stateTemplate);
+    getState(lane, result);
+    return result;
+  }
+
+  /**
+   * Play random games to completion from the loaded states, all lanes at once.  Every
+   * player picks uniformly among its legal moves.
+   * @param maxDepth - number of joint moves after which to stop a playout that has
+   *                   not yet ended.  Its goals are read from the state it stopped in.
+   * @param goals - per-lane arrays of goal values (indexed by role) to fill in
+   * @param lengths - array of per-lane playout lengths to fill in, or null
+   * @return the mask of lanes played out.  This is the loaded lanes, less any in which
+   *         a player had no legal move (which the game description should never
+   *         allow).  Those lanes are abandoned, and their goals and lengths are not
+   *         filled in.
+   */
+  public long performDepthCharges(int maxDepth, int[][] goals, int[] lengths)
+  {
+    long playedLanes = 0;
+    long activeLanes = loadedLanes;
+    int depth = 0;
+
+    while (true)
+    {
+      long finishedLanes = activeLanes & (depth >= maxDepth ? -1L : getTerminalLanes());
+      if (finishedLanes != 0)
+      {
+        readGoals(finishedLanes, goals);
+        activeLanes &= ~finishedLanes;
+        playedLanes |= finishedLanes;
+        if (lengths != null)
+        {
+          while (finishedLanes != 0)
+          {
+            lengths[Long.numberOfTrailingZeros(finishedLanes)] = depth;
+            finishedLanes &= finishedLanes - 1;
+          }
+        }
+      }
+      if (activeLanes == 0)
+      {
+        break;
+      }
+
+      clearInputs();
+      for (int role = 0; role < tables.legalComponents.length; role++)
+      {
+        activeLanes = chooseRandomMoves(role, activeLanes);
+      }
+      advance(activeLanes);
+      depth++;
+    }
+
+    return playedLanes;
+  }
+
+  /**
+   * Pick a random legal move for a role in every active lane, and set the input
+   * props for it.
+   * @return the active lanes which had a legal move
+   */
+  private long chooseRandomMoves(int role, long activeLanes)
+  {
+    int[] legalComponents = tables.legalComponents[role];
+    ForwardDeadReckonLegalMoveInfo[] moves = tables.legalMoves[role];
+    long lanes = activeLanes;
+
+    while (lanes != 0)
+    {
+      laneChoiceCounts[Long.numberOfTrailingZeros(lanes)] = 0;
+      lanes &= lanes - 1;
+    }
+    for (int i = 0; i < legalComponents.length; i++)
+    {
+      lanes = values[legalComponents[i]] & activeLanes;
+      while (lanes != 0)
+      {
+        laneChoiceCounts[Long.numberOfTrailingZeros(lanes)]++;
+        lanes &= lanes - 1;
+      }
+    }
+
+    long playableLanes = 0;
+    lanes = activeLanes;
+    while (lanes != 0)
+    {
+      int lane = Long.numberOfTrailingZeros(lanes);
+      int count = laneChoiceCounts[lane];
+      if (count > 0)
+      {
+        laneChoices[lane] = (count == 1 ? 0 : random.nextInt(count));
+        playableLanes |= (1L << lane);
+      }
+      lanes &= lanes - 1;
+    }
+
+    for (int i = 0; i < legalComponents.length; i++)
+    {
+      lanes = values[legalComponents[i]] & playableLanes;
+      while (lanes != 0)
+      {
+        int lane = Long.numberOfTrailingZeros(lanes);
+        if (laneChoices[lane]-- == 0)
+        {
+          setInput(moves[i].mMasterIndex, 1L << lane);
+        }
+        lanes &= lanes - 1;
+      }
+    }
+
+    return playableLanes;
+  }
+
+  private void readGoals(long lanes, int[][] goals)
+  {
+    for (int role = 0; role < tables.goalComponents.length; role++)
+    {
+      int[] goalComponents = tables.goalComponents[role];
+      int[] goalValues = tables.goalValues[role];
+      long remaining = lanes;
+      while (remaining != 0)
+      {
+        goals[Long.numberOfTrailingZeros(remaining)][role] = 0;
+        remaining &= remaining - 1;
+      }
+      remaining = lanes;
+      for (int i = 0; i < goalComponents.length && remaining != 0; i++)
+      {
+        long goalLanes = values[goalComponents[i]] & remaining;
+        remaining &= ~goalLanes;
+        while (goalLanes != 0)
+        {
+          goals[Long.numberOfTrailingZeros(goalLanes)][role] = goalValues[i];
+          goalLanes &= goalLanes - 1;
+        }
+      }
+    }
+  }
+
+  private void clearInputs()
+  {
+    for (int input : tables.inputComponents)
+    {
+      if (input != -1)
+      {
+        values[input] = 0;
+      }
+    }
+  }
+
+  private void setInput(int masterIndex, long bit)
+  {
+    if (masterIndex >= 0 && masterIndex < tables.inputComponents.length)
+    {
+      int input = tables.inputComponents[masterIndex];
+      if (input != -1)
+      {
+        values[input] |= bit;
+      }
+    }
+  }
+
+  /**
+   * Evaluate the next state from the currently set inputs and make it current for the
+   * given lanes
+   */
+  private void advance(long lanes)
+  {
+    evaluate(tables.moveOrder);
+
+    int[] baseComponents = tables.baseComponents;
+    int[] baseNextComponents = tables.baseNextComponents;
+    for (int i = 0; i < baseComponents.length; i++)
+    {
+      int next = baseNextComponents[i];
+      nextBaseValues[i] = (next == -1 ? 0 : values[next]);
+    }
+    for (int i = 0; i < baseComponents.length; i++)
+    {
+      values[baseComponents[i]] = nextBaseValues[i] & lanes;
+    }
+    loadedLanes = lanes;
+
+    evaluate(tables.stateOrder);
+  }
+
+  private void evaluate(int[] order)
+  {
+    final long[] v = values;
+    final byte[] kinds = tables.kinds;
+    final int[] inputStarts = tables.inputStarts;
+    final int[] inputs = tables.inputs;
+
+    for (int c : order)
+    {
+      int start = inputStarts[c];
+      int end = inputStarts[c + 1];
+      long value;
+
+      switch (kinds[c])
+      {
+        case KIND_AND:
+          value = -1L;
+          for (int i = start; i < end; i++)
+          {
+            value &= v[inputs[i]];
+          }
+          break;
+        case KIND_OR:
+          value = 0;
+          for (int i = start; i < end; i++)
+          {
+            value |= v[inputs[i]];
+          }
+          break;
+        case KIND_NOT:
+          value = ~v[inputs[start]];
+          break;
+        default:
+          value = v[inputs[start]];
+          break;
+      }
+
+      v[c] = value;
+    }
+  }
+
+  private static Tables buildTables(ForwardDeadReckonPropNet propNet,
+                                    ForwardDeadReckonInternalMachineState stateTemplate,
+                                    ForwardDeadReckonPropositionInfo xSentenceInfo)
+  {
+    Tables tables = new Tables();
+    int firstBasePropIndex = stateTemplate.firstBasePropIndex;
+    tables.firstBasePropIndex = firstBasePropIndex;
+    tables.xSentenceInfo = xSentenceInfo;
+    tables.stateTemplate = new ForwardDeadReckonInternalMachineState(stateTemplate);
+    tables.stateTemplate.clear();
+
+    //  Number the components
+    List<PolymorphicComponent> components = new ArrayList<>(propNet.getComponents());
+    Map<PolymorphicComponent, Integer> ids = new IdentityHashMap<>();
+    for (PolymorphicComponent c : components)
+    {
+      ids.put(c, ids.size());
+    }
+    int numComponents = components.size();
+    tables.numComponents = numComponents;
+
+    //  Sources are never evaluated: their values are set directly (base and input props)
+    //  or fixed (constants, and propositions with no input such as INIT)
+    boolean[] isSource = new boolean[numComponents];
+    List<Integer> trueConstants = new ArrayList<>();
+    for (PolymorphicProposition p : propNet.getBasePropositions().values())
+    {
+      isSource[ids.get(p)] = true;
+    }
+    for (PolymorphicProposition p : propNet.getInputPropositions().values())
+    {
+      isSource[ids.get(p)] = true;
+    }
+    for (PolymorphicComponent c : components)
+    {
+      int id = ids.get(c);
+      if (c instanceof PolymorphicConstant)
+      {
+        isSource[id] = true;
+        if (c.getValue())
+        {
+          trueConstants.add(id);
+        }
+      }
+      else if (c instanceof PolymorphicProposition && c.getInputs().isEmpty())
+      {
+        isSource[id] = true;
+      }
+    }
+    tables.trueConstants = toIntArray(trueConstants);
+
+    //  Kinds and inputs of every component (sources have none)
+    tables.kinds = new byte[numComponents];
+    tables.inputStarts = new int[numComponents + 1];
+    List<Integer> inputList = new ArrayList<>();
+    for (int id = 0; id < numComponents; id++)
+    {
+      PolymorphicComponent c = components.get(id);
+      tables.inputStarts[id] = inputList.size();
+      if (isSource[id])
+      {
+        continue;
+      }
+      if (c instanceof PolymorphicAnd)
+      {
+        tables.kinds[id] = KIND_AND;
+      }
+      else if (c instanceof PolymorphicOr)
+      {
+        tables.kinds[id] = KIND_OR;
+      }
+      else if (c instanceof PolymorphicNot)
+      {
+        tables.kinds[id] = KIND_NOT;
+      }
+      else
+      {
+        //  Transitions and derived propositions just forward their input
+        tables.kinds[id] = KIND_COPY;
+      }
+      for (PolymorphicComponent input : c.getInputs())
+      {
+        inputList.add(ids.get(input));
+      }
+    }
+    tables.inputStarts[numComponents] = inputList.size();
+    tables.inputs = toIntArray(inputList);
+
+    //  Topological order of the gates, split by whether they depend on the moves
+    int[] order = topologicalOrder(tables, isSource, numComponents);
+    boolean[] dependsOnMoves = new boolean[numComponents];
+    for (PolymorphicProposition p : propNet.getInputPropositions().values())
+    {
+      dependsOnMoves[ids.get(p)] = true;
+    }
+    List<Integer> stateOrder = new ArrayList<>();
+    List<Integer> moveOrder = new ArrayList<>();
+    for (int id : order)
+    {
+      for (int i = tables.inputStarts[id]; i < tables.inputStarts[id + 1]; i++)
+      {
+        dependsOnMoves[id] |= dependsOnMoves[tables.inputs[i]];
+      }
+      (dependsOnMoves[id] ? moveOrder : stateOrder).add(id);
+    }
+    tables.stateOrder = toIntArray(stateOrder);
+    tables.moveOrder = toIntArray(moveOrder);
+
+    //  Base props, indexed as in the internal states
+    PolymorphicProposition[] baseProps = propNet.getBasePropositionsArray();
+    tables.baseComponents = new int[baseProps.length];
+    tables.baseNextComponents = new int[baseProps.length];
+    for (PolymorphicProposition p : baseProps)
+    {
+      int offset = ((ForwardDeadReckonProposition)p).getInfo().index - firstBasePropIndex;
+      if (offset < 0 || offset >= baseProps.length)
+      {
+        throw new IllegalArgumentException("Base proposition " + p.getName() + " is not indexed like the states");
+      }
+      tables.baseComponents[offset] = ids.get(p);
+      PolymorphicComponent input = p.getSingleInput();
+      tables.baseNextComponents[offset] = (input == null ? -1 : ids.get(input));
+    }
+
+    tables.terminalComponent = (propNet.getTerminalProposition() == null ? -1 : ids.get(propNet.getTerminalProposition()));
+
+    //  Goals, legals and inputs per role
+    Role[] roles = propNet.getRoles();
+    tables.goalComponents = new int[roles.length][];
+    tables.goalValues = new int[roles.length][];
+    tables.legalComponents = new int[roles.length][];
+    tables.legalMoves = new ForwardDeadReckonLegalMoveInfo[roles.length][];
+
+    ForwardDeadReckonLegalMoveInfo[] masterMoves = propNet.getMasterMoveList();
+    int numMasterMoves = 0;
+    for (ForwardDeadReckonLegalMoveInfo move : masterMoves)
+    {
+      numMasterMoves = Math.max(numMasterMoves, move.mMasterIndex + 1);
+    }
+    tables.inputComponents = new int[numMasterMoves];
+    tables.legalComponentsByMove = new int[numMasterMoves];
+    Arrays.fill(tables.inputComponents, -1);
+    Arrays.fill(tables.legalComponentsByMove, -1);
+    ForwardDeadReckonLegalMoveInfo[] movesByIndex = new ForwardDeadReckonLegalMoveInfo[numMasterMoves];
+    for (ForwardDeadReckonLegalMoveInfo move : masterMoves)
+    {
+      movesByIndex[move.mMasterIndex] = move;
+      if (move.mInputProposition != null && !move.mIsPseudoNoOp)
+      {
+        tables.inputComponents[move.mMasterIndex] = ids.get(move.mInputProposition);
+      }
+    }
+
+    for (int r = 0; r < roles.length; r++)
+    {
+      PolymorphicProposition[] goalProps = propNet.getGoalPropositions().get(roles[r]);
+      if (goalProps == null)
+      {
+        goalProps = new PolymorphicProposition[0];
+      }
+      tables.goalComponents[r] = new int[goalProps.length];
+      tables.goalValues[r] = new int[goalProps.length];
+      for (int i = 0; i < goalProps.length; i++)
+      {
+        tables.goalComponents[r][i] = ids.get(goalProps[i]);
+        tables.goalValues[r][i] = ((ForwardDeadReckonProposition)goalProps[i]).getGoalValue();
+      }
+
+      PolymorphicProposition[] legalProps = propNet.getLegalPropositions().get(roles[r]);
+      tables.legalComponents[r] = new int[legalProps.length];
+      tables.legalMoves[r] = new ForwardDeadReckonLegalMoveInfo[legalProps.length];
+      for (int i = 0; i < legalProps.length; i++)
+      {
+        int masterIndex = ((ForwardDeadReckonProposition)legalProps[i]).getInfo().index;
+        tables.legalComponents[r][i] = ids.get(legalProps[i]);
+        tables.legalMoves[r][i] = movesByIndex[masterIndex];
+        tables.legalComponentsByMove[masterIndex] = ids.get(legalProps[i]);
+      }
+    }
+
+    return tables;
+  }
+
+  /**
+   * @return the non-source components, each after all of its inputs
+   */
+  private static int[] topologicalOrder(Tables tables, boolean[] isSource, int numComponents)
+  {
+    int[] order = new int[numComponents];
+    int orderSize = 0;
+    //  0 = unvisited, 1 = in progress, 2 = done
+    byte[] visitState = new byte[numComponents];
+    int[] stack = new int[numComponents];
+    int[] stackInput = new int[numComponents];
+
+    for (int root = 0; root < numComponents; root++)
+    {
+      if (isSource[root] || visitState[root] != 0)
+      {
+        continue;
+      }
+      int depth = 0;
+      stack[0] = root;
+      stackInput[0] = tables.inputStarts[root];
+      visitState[root] = 1;
+
+      while (depth >= 0)
+      {
+        int c = stack[depth];
+        if (stackInput[depth] < tables.inputStarts[c + 1])
+        {
+          int input = tables.inputs[stackInput[depth]++];
+          if (!isSource[input] && visitState[input] == 0)
+          {
+            visitState[input] = 1;
+            depth++;
+            stack[depth] = input;
+            stackInput[depth] = tables.inputStarts[input];
+          }
+          else if (visitState[input] == 1)
+          {
+            throw new IllegalStateException("Propnet has a cycle not broken by a transition");
+          }
+        }
+        else
+        {
+          visitState[c] = 2;
+          order[orderSize++] = c;
+          depth--;
+        }
+      }
+    }
+
+    return Arrays.copyOf(order, orderSize);
+  }
+
+  private static int[] toIntArray(List<Integer> list)
+  {
+    int[] result = new int[list.size()];
+    for (int i = 0; i < result.length; i++)
+    {
+      result[i] = list.get(i);
+    }
+    return result;
+  }
+}
@@ -1,6 +1,8 @@
 
 package org.ggp.base.util.propnet.sancho;
 
+import java.io.DataInput;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -53,6 +55,20 @@ public class ForwardDeadReckonPropNet extends PolymorphicPropNet
     assert(componentFactory instanceof ForwardDeadReckonComponentFactory);
   }
 
+  /**
+   * Reads a ForwardDeadReckonPropNet written with {@link PolymorphicPropNet#write}
+   * @param input source to read from
+   * @param componentFactory Component factory to use
+   * @throws IOException if the propnet cannot be read
+   */
+  public ForwardDeadReckonPropNet(DataInput input,
+                                  PolymorphicComponentFactory componentFactory) throws IOException
+  {
+    super(input, componentFactory);
+
+    assert(componentFactory instanceof ForwardDeadReckonComponentFactory);
+  }
+
   /**
    * Creates a new ForwardDeadReckonPropNet from a specified set of components and roles
    * @param roles Set of roles to support
@@ -2,18 +2,24 @@
 package org.ggp.base.util.propnet.sancho;
 
 import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.ggp.base.util.gdl.GdlUtils;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlProposition;
@@ -621,6 +627,295 @@ public class PolymorphicPropNet
     roles = sourcePropnet.getRoles();
   }
 
+  //  Component type tags used by write() and the DataInput constructor
+  private static final byte SERIALIZED_AND         = 0;
+  private static final byte SERIALIZED_OR          = 1;
+  private static final byte SERIALIZED_NOT         = 2;
+  private static final byte SERIALIZED_PROPOSITION = 3;
+  private static final byte SERIALIZED_TRANSITION  = 4;
+  private static final byte SERIALIZED_CONSTANT    = 5;
+
+  /**
+   * Reads a propnet previously written with {@link #write(DataOutput)}, creating
+   * its components with the provided component factory.  The indexes of base, input,
+   * legal and goal propositions are read as written rather than re-derived, so the
+   * result matches the written propnet even after optimizations that leave it
+   * inconsistent with what its proposition names would suggest.
+   * @param input source to read from
+   * @param theComponentFactory Factory to use to generate new components
+   * @throws IOException if the propnet cannot be read
+   */
+  public PolymorphicPropNet(DataInput input,
+                            PolymorphicComponentFactory theComponentFactory) throws IOException
+  {
+    componentFactory = theComponentFactory;
+
+    roles = new Role[input.readInt()];
+    for (int i = 0; i < roles.length; i++)
+    {
+      roles[i] = new Role(GdlPool.getConstant(input.readUTF()));
+    }
+
+    //  Create the components
+    PolymorphicComponent[] componentArray = new PolymorphicComponent[input.readInt()];
+    components = new HashSet<>();
+    for (int i = 0; i < componentArray.length; i++)
+    {
+      byte type = input.readByte();
+      switch (type)
+      {
+        case SERIALIZED_AND:
+          componentArray[i] = componentFactory.createAnd(-1, -1);
+          break;
+        case SERIALIZED_OR:
+          componentArray[i] = componentFactory.createOr(-1, -1);
+          break;
+        case SERIALIZED_NOT:
+          componentArray[i] = componentFactory.createNot(-1);
+          break;
+        case SERIALIZED_PROPOSITION:
+          componentArray[i] = componentFactory.createProposition(-1, readSentence(input));
+          break;
+        case SERIALIZED_TRANSITION:
+          componentArray[i] = componentFactory.createTransition(-1);
+          break;
+        case SERIALIZED_CONSTANT:
+          componentArray[i] = componentFactory.createConstant(-1, input.readBoolean());
+          break;
+        default:
+          throw new IOException("Invalid component type " + type);
+      }
+      components.add(componentArray[i]);
+    }
+
+    //  Connect them up
+    for (PolymorphicComponent c : componentArray)
+    {
+      int numInputs = input.readInt();
+      for (int i = 0; i < numInputs; i++)
+      {
+        c.addInput(readComponent(input, componentArray));
+      }
+      int numOutputs = input.readInt();
+      for (int i = 0; i < numOutputs; i++)
+      {
+        c.addOutput(readComponent(input, componentArray));
+      }
+    }
+
+    //  Read the various maps and collections
+    propositions = new HashSet<>();
+    int numPropositions = input.readInt();
+    for (int i = 0; i < numPropositions; i++)
+    {
+      propositions.add((PolymorphicProposition)readComponent(input, componentArray));
+    }
+    basePropositions = readPropositionsByName(input, componentArray);
+    inputPropositions = readPropositionsByName(input, componentArray);
+    legalPropositions = null;
+    legalPropositionsMutable = readPropositionsByRole(input, componentArray);
+    goalPropositions = null;
+    goalPropositionsMutable = readPropositionsByRole(input, componentArray);
+    initProposition = (PolymorphicProposition)readComponent(input, componentArray);
+    terminalProposition = (PolymorphicProposition)readComponent(input, componentArray);
+    legalInputMap = new HashMap<>();
+    int numLegalInputs = input.readInt();
+    for (int i = 0; i < numLegalInputs; i++)
+    {
+      PolymorphicProposition key = (PolymorphicProposition)readComponent(input, componentArray);
+      legalInputMap.put(key, (PolymorphicProposition)readComponent(input, componentArray));
+    }
+  }
+
+  /**
+   * Writes the topology of this propnet, in a form which can be read back with the
+   * {@link #PolymorphicPropNet(DataInput, PolymorphicComponentFactory)} constructor.
+   * Component state is not written.
+   * @param output destination to write to
+   * @throws IOException if the propnet cannot be written
+   */
+  public void write(DataOutput output) throws IOException
+  {
+    output.writeInt(roles.length);
+    for (Role role : roles)
+    {
+      output.writeUTF(role.getName().getValue());
+    }
+
+    List<PolymorphicComponent> componentList = new ArrayList<>(components);
+    Map<PolymorphicComponent, Integer> ids = new IdentityHashMap<>();
+    output.writeInt(componentList.size());
+    for (PolymorphicComponent c : componentList)
+    {
+      ids.put(c, ids.size());
+      if (c instanceof PolymorphicAnd)
+      {
+        output.writeByte(SERIALIZED_AND);
+      }
+      else if (c instanceof PolymorphicOr)
+      {
+        output.writeByte(SERIALIZED_OR);
+      }
+      else if (c instanceof PolymorphicNot)
+      {
+        output.writeByte(SERIALIZED_NOT);
+      }
+      else if (c instanceof PolymorphicProposition)
+      {
+        output.writeByte(SERIALIZED_PROPOSITION);
+        writeSentence(output, ((PolymorphicProposition)c).getName());
+      }
+      else if (c instanceof PolymorphicTransition)
+      {
+        output.writeByte(SERIALIZED_TRANSITION);
+      }
+      else if (c instanceof PolymorphicConstant)
+      {
+        output.writeByte(SERIALIZED_CONSTANT);
+        output.writeBoolean(c.getValue());
+      }
+      else
+      {
+        throw new RuntimeException("Invalid propnet");
+      }
+    }
+
+    for (PolymorphicComponent c : componentList)
+    {
+      output.writeInt(c.getInputs().size());
+      for (PolymorphicComponent inputComponent : c.getInputs())
+      {
+        writeComponent(output, ids, inputComponent);
+      }
+      output.writeInt(c.getOutputs().size());
+      for (PolymorphicComponent outputComponent : c.getOutputs())
+      {
+        writeComponent(output, ids, outputComponent);
+      }
+    }
+
+    output.writeInt(propositions.size());
+    for (PolymorphicProposition p : propositions)
+    {
+      writeComponent(output, ids, p);
+    }
+    writePropositions(output, ids, basePropositions.values());
+    writePropositions(output, ids, inputPropositions.values());
+    writePropositionsByRole(output, ids, getLegalPropositions());
+    writePropositionsByRole(output, ids, getGoalPropositions());
+    writeComponent(output, ids, initProposition);
+    writeComponent(output, ids, terminalProposition);
+    output.writeInt(legalInputMap.size());
+    for (Entry<PolymorphicProposition, PolymorphicProposition> e : legalInputMap.entrySet())
+    {
+      writeComponent(output, ids, e.getKey());
+      writeComponent(output, ids, e.getValue());
+    }
+  }
+
+  private static void writeSentence(DataOutput output, GdlSentence sentence) throws IOException
+  {
+    output.writeBoolean(sentence != null);
+    if (sentence != null)
+    {
+      output.writeUTF(sentence.toString());
+    }
+  }
+
+  private static GdlSentence readSentence(DataInput input) throws IOException
+  {
+    if (!input.readBoolean())
+    {
+      return null;
+    }
+    String sentence = input.readUTF();
+    try
+    {
+      return GdlUtils.toSentence(sentence);
+    }
+    catch (RuntimeException e)
+    {
+      throw new IOException("Invalid proposition name " + sentence, e);
+    }
+  }
+
+  private static void writeComponent(DataOutput output,
+                                     Map<PolymorphicComponent, Integer> ids,
+                                     PolymorphicComponent c) throws IOException
+  {
+    output.writeInt(c == null ? -1 : ids.get(c));
+  }
+
+  private static PolymorphicComponent readComponent(DataInput input,
+                                                    PolymorphicComponent[] componentArray) throws IOException
+  {
+    int id = input.readInt();
+    if (id < -1 || id >= componentArray.length)
+    {
+      throw new IOException("Invalid component id " + id);
+    }
+    return (id == -1 ? null : componentArray[id]);
+  }
+
+  private static void writePropositions(DataOutput output,
+                                        Map<PolymorphicComponent, Integer> ids,
+                                        Collection<PolymorphicProposition> props) throws IOException
+  {
+    output.writeInt(props.size());
+    for (PolymorphicProposition p : props)
+    {
+      writeComponent(output, ids, p);
+    }
+  }
+
+  private static Map<GdlSentence, PolymorphicProposition> readPropositionsByName(DataInput input,
+                                                                                 PolymorphicComponent[] componentArray) throws IOException
+  {
+    Map<GdlSentence, PolymorphicProposition> result = new HashMap<>();
+    int numProps = input.readInt();
+    for (int i = 0; i < numProps; i++)
+    {
+      PolymorphicProposition p = (PolymorphicProposition)readComponent(input, componentArray);
+      result.put(p.getName(), p);
+    }
+    return result;
+  }
+
+  private static void writePropositionsByRole(DataOutput output,
+                                              Map<PolymorphicComponent, Integer> ids,
+                                              Map<Role, PolymorphicProposition[]> propsByRole) throws IOException
+  {
+    output.writeInt(propsByRole.size());
+    for (Entry<Role, PolymorphicProposition[]> e : propsByRole.entrySet())
+    {
+      output.writeUTF(e.getKey().getName().getValue());
+      output.writeInt(e.getValue().length);
+      for (PolymorphicProposition p : e.getValue())
+      {
+        writeComponent(output, ids, p);
+      }
+    }
+  }
+
+  private static Map<Role, Set<PolymorphicProposition>> readPropositionsByRole(DataInput input,
+                                                                               PolymorphicComponent[] componentArray) throws IOException
+  {
+    Map<Role, Set<PolymorphicProposition>> result = new HashMap<>();
+    int numRoles = input.readInt();
+    for (int i = 0; i < numRoles; i++)
+    {
+      Role role = new Role(GdlPool.getConstant(input.readUTF()));
+      Set<PolymorphicProposition> props = new HashSet<>();
+      int numProps = input.readInt();
+      for (int j = 0; j < numProps; j++)
+      {
+        props.add((PolymorphicProposition)readComponent(input, componentArray));
+      }
+      result.put(role, props);
+    }
+    return result;
+  }
+
   /**
    * Get the list of roles involved in the game for which this propnet implements the statemachine.
    *
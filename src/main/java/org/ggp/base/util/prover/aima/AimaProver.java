@@ -7,6 +7,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 import org.ggp.base.util.gdl.GdlUtils;
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
@@ -21,6 +23,7 @@ import org.ggp.base.util.gdl.grammar.GdlVariable;
 import org.ggp.base.util.gdl.transforms.DistinctAndNotMover;
 import org.ggp.base.util.prover.Prover;
 import org.ggp.base.util.prover.aima.cache.ProverCache;
+import org.ggp.base.util.prover.aima.cache.TabledProverCaches;
 import org.ggp.base.util.prover.aima.knowledge.KnowledgeBase;
 import org.ggp.base.util.prover.aima.renamer.VariableRenamer;
 import org.ggp.base.util.prover.aima.substituter.Substituter;
@@ -35,13 +38,25 @@ import com.google.common.collect.Sets;
 
 public final class AimaProver implements Prover
 {
+    /**
+     * A reasonable number of contexts to table answers for: enough to cover the
+     * states a typical search touches in quick succession.
+     */
+    public static final int DEFAULT_MAX_TABLED_CONTEXTS = 16;
 
     private final KnowledgeBase knowledgeBase;
 
     private final ProverCache fixedAnswerCache = ProverCache.createMultiThreadedCache();
 
-    private AimaProver(List<Gdl> description) {
+    /*
+     * If non-null, answers that depend on the state are shared between all queries
+     * made against the same context, instead of being thrown away after each query.
+     */
+    private final @Nullable TabledProverCaches contextCaches;
+
+    private AimaProver(List<Gdl> description, @Nullable TabledProverCaches contextCaches) {
         this.knowledgeBase = new KnowledgeBase(Sets.newHashSet(description));
+        this.contextCaches = contextCaches;
     }
 
     /**
@@ -49,7 +64,19 @@ public final class AimaProver implements Prover
      */
     public static AimaProver create(List<Gdl> description) {
         description = DistinctAndNotMover.run(description);
-        return new AimaProver(description);
+        return new AimaProver(description, null);
+    }
+
+    /**
+     * Creates an AimaProver that tables its answers per context: everything derived
+     * while answering a query is remembered and reused by later queries with an
+     * equal context. This makes it much cheaper to ask about terminality, goals,
+     * and legal moves for every role in the same state. Answers are kept for the
+     * maxContexts most recently used contexts.
+     */
+    public static AimaProver createWithTabling(List<Gdl> description, int maxContexts) {
+        description = DistinctAndNotMover.run(description);
+        return new AimaProver(description, TabledProverCaches.create(maxContexts));
     }
 
     /**
@@ -58,7 +85,7 @@ public final class AimaProver implements Prover
      * yourself.
      */
     public static AimaProver createWithoutPreprocessing(List<Gdl> description) {
-        return new AimaProver(description);
+        return new AimaProver(description, null);
     }
 
     private Set<GdlSentence> ask(GdlSentence query, Set<GdlSentence> context, boolean askOne)
@@ -66,8 +93,11 @@ public final class AimaProver implements Prover
         LinkedList<GdlLiteral> goals = new LinkedList<GdlLiteral>();
         goals.add(query);
 
+        ProverCache cache = (contextCaches != null && !containsDoesSentence(context))
+                ? contextCaches.getCacheForContext(context)
+                : ProverCache.createSingleThreadedCache();
         Set<Substitution> answers = new HashSet<Substitution>();
-        ask(goals, new KnowledgeBase(context), new Substitution(), ProverCache.createSingleThreadedCache(),
+        ask(goals, new KnowledgeBase(context), new Substitution(), cache,
                 new VariableRenamer(), askOne, answers, new RecursionHandler(), new IsConstant());
 
         Set<GdlSentence> results = new HashSet<GdlSentence>();
@@ -311,6 +341,19 @@ public final class AimaProver implements Prover
         return results;
     }
 
+    /*
+     * Contexts with moves in them are only used for next-state queries, which are
+     * rarely repeated; tabling them would just push useful contexts out of the table.
+     */
+    private static boolean containsDoesSentence(Set<GdlSentence> context) {
+        for (GdlSentence sentence : context) {
+            if (sentence.getName() == GdlPool.DOES) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean isTrueOrDoesSentence(GdlSentence sentence) {
         GdlConstant name = sentence.getName();
         return name == GdlPool.TRUE || name == GdlPool.DOES;
@@ -0,0 +1,48 @@
+package org.ggp.base.util.prover.aima.cache;
+
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+
+
+/**
+ * Keeps a ProverCache for each of the most recently queried contexts, so that
+ * answers derived while handling one query (e.g. terminal) can be reused by
+ * later queries against the same context (e.g. goal and legal for each role).
+ * Only a bounded number of contexts are kept; the least recently used ones
+ * are discarded.
+ *
+ * This is thread-safe. Caches handed out by this class may be used by
+ * multiple threads at once.
+ */
+public final class TabledProverCaches
+{
+    private final Cache<Set<GdlSentence>, ProverCache> cachesByContext;
+
+    private TabledProverCaches(int maxContexts) {
+        this.cachesByContext = CacheBuilder.newBuilder()
+                .maximumSize(maxContexts)
+                .build();
+    }
+
+    public static TabledProverCaches create(int maxContexts) {
+        return new TabledProverCaches(maxContexts);
+    }
+
+    public ProverCache getCacheForContext(Set<GdlSentence> context)
+    {
+        ProverCache cache = cachesByContext.getIfPresent(context);
+        if (cache != null) {
+            return cache;
+        }
+        // The caller's context may be mutated after the query, so we don't
+        // want to use it as a key directly.
+        ProverCache newCache = ProverCache.createMultiThreadedCache();
+        ProverCache existingCache = cachesByContext.asMap().putIfAbsent(ImmutableSet.copyOf(context), newCache);
+        return (existingCache != null) ? existingCache : newCache;
+    }
+}
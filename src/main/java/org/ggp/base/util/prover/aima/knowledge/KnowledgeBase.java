@@ -1,6 +1,7 @@
 package org.ggp.base.util.prover.aima.knowledge;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,42 +9,222 @@ import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
 
-
+/*
+ * Rules are indexed by the name of their head, and then by the constants at
+ * the start of the head's first argument: for example, (true (cell 1 2 b)) is
+ * stored under true -> cell -> 1. When a query has those positions bound, only
+ * the rules under the matching branch (plus any whose heads have variables in
+ * those positions) are returned, rather than every rule with the same name.
+ *
+ * The deeper levels of the index are built lazily, the first time they would
+ * be useful. Most knowledge bases are built per query to hold the current
+ * state, and indexing relations that are never looked up that way, or that
+ * only have a few rules, costs more than it saves.
+ *
+ * The results of fetch are a superset of the rules whose heads can unify with
+ * the query; callers still need to unify each candidate, and must not modify
+ * the returned list.
+ *
+ * This is safe to share between threads without locking: the rules never
+ * change after construction, and each lazily built level of the index is
+ * published all at once through a volatile field. Two threads may race to
+ * build the same level, in which case they build equal copies and one wins.
+ */
 public final class KnowledgeBase
 {
-    private final Map<GdlConstant, List<GdlRule>> contents;
+    /*
+     * How many constants past the relation name to index on. Deeper indexing
+     * rarely narrows things further in practice.
+     */
+    private static final int MAX_INDEX_DEPTH = 2;
+    /*
+     * Sets of rules at most this large are scanned rather than indexed.
+     */
+    private static final int MIN_RULES_TO_INDEX = 8;
+
+    private final Map<GdlConstant, IndexNode> contents;
 
     public KnowledgeBase(Set<? extends Gdl> description)
     {
-        contents = new HashMap<GdlConstant, List<GdlRule>>();
+        contents = new HashMap<GdlConstant, IndexNode>();
         for (Gdl gdl : description)
         {
             GdlRule rule = (gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl);
             GdlConstant key = rule.getHead().getName();
 
-            if (!contents.containsKey(key))
+            IndexNode node = contents.get(key);
+            if (node == null)
+            {
+                node = new IndexNode(0);
+                contents.put(key, node);
+            }
+            node.allRules.add(rule);
+        }
+    }
+
+    public List<GdlRule> fetch(GdlSentence sentence)
+    {
+        IndexNode node = contents.get(sentence.getName());
+        if (node == null)
+        {
+            return Collections.emptyList();
+        }
+
+        List<GdlRule> results = null;
+        GdlTerm term = getFirstArgument(sentence);
+        while (node.depth < MAX_INDEX_DEPTH && node.allRules.size() > MIN_RULES_TO_INDEX && term != null)
+        {
+            GdlConstant indexKey = getIndexKey(term);
+            if (indexKey == null)
+            {
+                break;
+            }
+            Index index = node.getIndex();
+            results = addAll(results, index.unindexedRules);
+            IndexNode child = index.children.get(indexKey);
+            if (child == null)
             {
-                contents.put(key, new ArrayList<GdlRule>());
+                return (results == null) ? Collections.<GdlRule>emptyList() : results;
             }
-            contents.get(key).add(rule);
+            node = child;
+            term = getNextTerm(term);
         }
+        return (results == null) ? node.allRules : addAll(results, node.allRules);
     }
 
-    public synchronized List<GdlRule> fetch(GdlSentence sentence)
+    private static GdlTerm getFirstArgument(GdlSentence sentence)
     {
-        GdlConstant key = sentence.getName();
+        return (sentence.arity() > 0) ? sentence.get(0) : null;
+    }
+
+    /*
+     * Returns the term at the given depth of the index for the rule's head,
+     * or null if the head doesn't go that deep.
+     */
+    private static GdlTerm getTermAtDepth(GdlRule rule, int depth)
+    {
+        GdlTerm term = getFirstArgument(rule.getHead());
+        for (int i = 0; i < depth && term != null; i++)
+        {
+            term = getNextTerm(term);
+        }
+        return term;
+    }
+
+    /*
+     * Returns the constant to index the term under, or null if the term is
+     * a variable.
+     */
+    private static GdlConstant getIndexKey(GdlTerm term)
+    {
+        if (term instanceof GdlConstant)
+        {
+            return (GdlConstant) term;
+        }
+        else if (term instanceof GdlFunction)
+        {
+            return ((GdlFunction) term).getName();
+        }
+        return null;
+    }
 
-        if (contents.containsKey(key))
+    private static GdlTerm getNextTerm(GdlTerm term)
+    {
+        if (term instanceof GdlFunction)
         {
-            return contents.get(key);
+            GdlFunction function = (GdlFunction) term;
+            return (function.arity() > 0) ? function.get(0) : null;
         }
-        else
+        return null;
+    }
+
+    private static List<GdlRule> addAll(List<GdlRule> results, List<GdlRule> rules)
+    {
+        if (rules.isEmpty())
+        {
+            return results;
+        }
+        if (results == null)
+        {
+            results = new ArrayList<GdlRule>();
+        }
+        results.addAll(rules);
+        return results;
+    }
+
+    private static final class IndexNode
+    {
+        private final int depth;
+        // Every rule stored at or below this node. Not modified once the node is published.
+        private final List<GdlRule> allRules = new ArrayList<GdlRule>();
+        // Null until the node has been indexed.
+        private volatile Index index = null;
+
+        private IndexNode(int depth)
+        {
+            this.depth = depth;
+        }
+
+        private Index getIndex()
+        {
+            Index result = index;
+            if (result == null)
+            {
+                result = buildIndex();
+                index = result;
+            }
+            return result;
+        }
+
+        /*
+         * Rules whose heads stop before this depth can't unify with a query
+         * that has a constant here, so they don't go anywhere in the index.
+         */
+        private Index buildIndex()
+        {
+            Map<GdlConstant, IndexNode> children = new HashMap<GdlConstant, IndexNode>();
+            List<GdlRule> unindexedRules = new ArrayList<GdlRule>();
+            for (GdlRule rule : allRules)
+            {
+                GdlTerm term = getTermAtDepth(rule, depth);
+                if (term == null)
+                {
+                    continue;
+                }
+                GdlConstant key = getIndexKey(term);
+                if (key == null)
+                {
+                    unindexedRules.add(rule);
+                    continue;
+                }
+                IndexNode child = children.get(key);
+                if (child == null)
+                {
+                    child = new IndexNode(depth + 1);
+                    children.put(key, child);
+                }
+                child.allRules.add(rule);
+            }
+            return new Index(children, unindexedRules);
+        }
+    }
+
+    private static final class Index
+    {
+        private final Map<GdlConstant, IndexNode> children;
+        // Rules with a variable in the position the children are keyed on.
+        private final List<GdlRule> unindexedRules;
+
+        private Index(Map<GdlConstant, IndexNode> children, List<GdlRule> unindexedRules)
         {
-            return new ArrayList<GdlRule>();
+            this.children = children;
+            this.unindexedRules = unindexedRules;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,79 @@
+package org.ggp.base.util.prover.compact;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.transforms.DistinctAndNotMover;
+import org.ggp.base.util.prover.Prover;
+
+/**
+ * A backward-chaining prover that gives the same answers as
+ * {@link org.ggp.base.util.prover.aima.AimaProver}, but works on terms
+ * encoded as ints in flat arrays rather than on Gdl objects.
+ *
+ * Rules are compiled once into int templates. Queries are answered on a
+ * per-thread heap of int cells, with variables bound in place and undone
+ * from a trail when backtracking, instead of building Substitutions and
+ * renaming rules through the GdlPool. Gdl objects are only created for the
+ * final answers.
+ *
+ * This is safe to query from multiple threads at once. Answers that don't
+ * depend on the context are shared between all queries and threads.
+ */
+public final class CompactProver implements Prover
+{
+    private final RuleBase ruleBase;
+    private final ConcurrentMap<FlatTerm, FlatTerm[]> fixedAnswerCache = new ConcurrentHashMap<FlatTerm, FlatTerm[]>();
+    private final ThreadLocal<QueryEngine> queryEngines = new ThreadLocal<QueryEngine>() {
+        @Override
+        protected QueryEngine initialValue() {
+            return new QueryEngine(ruleBase, fixedAnswerCache);
+        }
+    };
+
+    private CompactProver(List<Gdl> description)
+    {
+        this.ruleBase = RuleBase.compile(description);
+    }
+
+    /**
+     * This is how CompactProvers should usually be constructed.
+     */
+    public static CompactProver create(List<Gdl> description)
+    {
+        return new CompactProver(DistinctAndNotMover.run(description));
+    }
+
+    /**
+     * This can be used to create a CompactProver with no automatic GDL
+     * pre-processing. You should generally only use this if you intend to do
+     * GDL pre-processing yourself.
+     */
+    public static CompactProver createWithoutPreprocessing(List<Gdl> description)
+    {
+        return new CompactProver(description);
+    }
+
+    @Override
+    public Set<GdlSentence> askAll(GdlSentence query, Set<GdlSentence> context)
+    {
+        return queryEngines.get().ask(query, context, false);
+    }
+
+    @Override
+    public GdlSentence askOne(GdlSentence query, Set<GdlSentence> context)
+    {
+        Set<GdlSentence> results = queryEngines.get().ask(query, context, true);
+        return (!results.isEmpty()) ? results.iterator().next() : null;
+    }
+
+    @Override
+    public boolean prove(GdlSentence query, Set<GdlSentence> context)
+    {
+        return askOne(query, context) != null;
+    }
+}
@@ -0,0 +1,54 @@
+package org.ggp.base.util.prover.compact;
+
+import java.util.Arrays;
+
+/*
+ * A sentence or term flattened into prefix order: each cell is a constant,
+ * a variable, or a functor followed by its arguments. Variables are numbered
+ * in order of first appearance, so two sentences that are equal up to the
+ * renaming of their variables have equal FlatTerms. This is what the prover
+ * uses as the key when caching answers, and for the answers themselves.
+ */
+final class FlatTerm
+{
+    final int[] cells;
+    final int varCount;
+    private final int hashCode;
+
+    FlatTerm(int[] cells, int varCount)
+    {
+        this.cells = cells;
+        this.varCount = varCount;
+        this.hashCode = Arrays.hashCode(cells);
+    }
+
+    /*
+     * The first cell identifies the relation (or proposition) of a sentence,
+     * including its arity, so it's used as the key for looking up rules.
+     */
+    int getPredicateKey()
+    {
+        return cells[0];
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof FlatTerm))
+        {
+            return false;
+        }
+        FlatTerm other = (FlatTerm) obj;
+        return hashCode == other.hashCode && Arrays.equals(cells, other.cells);
+    }
+}
@@ -0,0 +1,700 @@
+package org.ggp.base.util.prover.compact;
+
+import static org.ggp.base.util.prover.compact.SymbolTable.CONSTANT;
+import static org.ggp.base.util.prover.compact.SymbolTable.STRUCTURE;
+import static org.ggp.base.util.prover.compact.SymbolTable.VARIABLE;
+import static org.ggp.base.util.prover.compact.SymbolTable.cell;
+import static org.ggp.base.util.prover.compact.SymbolTable.tag;
+import static org.ggp.base.util.prover.compact.SymbolTable.value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.prover.compact.RuleBase.Literal;
+import org.ggp.base.util.prover.compact.RuleBase.Rule;
+
+/*
+ * Answers queries against a RuleBase using a heap of int cells and a trail,
+ * in the style of the WAM. Terms being proved live on the heap: a variable
+ * is a reference cell, unbound when it refers to itself, and a compound term
+ * is a structure cell pointing at a functor cell followed by its arguments.
+ * Every binding is recorded on the trail, so backtracking just unbinds the
+ * trailed cells and resets the tops of the heap and trail to a saved mark;
+ * nothing is allocated on the Java heap per unification.
+ *
+ * What remains to be proved is kept as a chain of continuations, each a body
+ * id, a position in that body, the frame the body's variables live in, and
+ * the continuation to go on with once the body is done. These are stored in
+ * parallel int arrays and freed on backtracking along with the heap.
+ *
+ * Recursion and caching work as in AimaProver: all the answers to a sentence
+ * are found before any of them are used, and cached by the sentence's shape
+ * up to variable renaming. If a sentence is asked while its answers are still
+ * being found, the answers found so far are used and the outer query is
+ * repeated until no new answers turn up.
+ *
+ * Each instance is used by one thread at a time.
+ */
+final class QueryEngine
+{
+    private static final FlatTerm[] NO_ANSWERS = new FlatTerm[0];
+
+    /*
+     * Special body ids for continuations that end a proof. STOP ends the
+     * search as soon as it's reached, and is used to check negations. COLLECT
+     * records an answer with the collector its position refers to.
+     */
+    private static final int STOP = -1;
+    private static final int COLLECT = -2;
+    private static final int STOP_CONTINUATION = 0;
+
+    private final RuleBase rules;
+    private final SymbolTable symbols;
+    private final ConcurrentMap<FlatTerm, FlatTerm[]> fixedAnswerCache;
+
+    private int[] heap = new int[1024];
+    private int heapTop = 0;
+    private int[] trail = new int[256];
+    private int trailTop = 0;
+
+    private int[] contBody = new int[256];
+    private int[] contPos = new int[256];
+    private int[] contFrame = new int[256];
+    private int[] contNext = new int[256];
+    private int contTop = 0;
+
+    // Set by build and matchTemplate to the position after the template they used.
+    private int templateEnd;
+    // Scratch space for encoding heap terms.
+    private int[] encoded = new int[64];
+    private int[] encodedVars = new int[8];
+    private int encodedVarCount;
+
+    // Per-query state.
+    private final Map<Integer, List<int[]>> contextFacts = new HashMap<Integer, List<int[]>>();
+    private boolean useFixedAnswers;
+    private final Map<FlatTerm, FlatTerm[]> answerCache = new HashMap<FlatTerm, FlatTerm[]>();
+    private final Set<FlatTerm> alreadyAsking = new HashSet<FlatTerm>();
+    private final Set<FlatTerm> calledRecursively = new HashSet<FlatTerm>();
+    private final Map<FlatTerm, FlatTerm[]> previousResults = new HashMap<FlatTerm, FlatTerm[]>();
+    private final List<AnswerCollector> collectors = new ArrayList<AnswerCollector>();
+
+    QueryEngine(RuleBase rules, ConcurrentMap<FlatTerm, FlatTerm[]> fixedAnswerCache)
+    {
+        this.rules = rules;
+        this.symbols = rules.symbols;
+        this.fixedAnswerCache = fixedAnswerCache;
+    }
+
+    Set<GdlSentence> ask(GdlSentence query, Set<GdlSentence> context, boolean askOne)
+    {
+        try
+        {
+            loadContext(context);
+            contTop = 0;
+            pushContinuation(STOP, 0, 0, -1);
+
+            int[] template = symbols.encode(query, new HashMap<GdlVariable, Integer>());
+            int frame = allocateFrame(countVariables(template));
+            int goal = build(template, 0, frame);
+
+            AnswerCollector collector = new AnswerCollector(goal, askOne);
+            collectors.add(collector);
+            solve(goal, pushContinuation(COLLECT, 0, 0, -1));
+
+            Set<GdlSentence> results = new HashSet<GdlSentence>();
+            for (FlatTerm answer : collector.answers)
+            {
+                results.add(symbols.decodeSentence(answer));
+            }
+            return results;
+        }
+        finally
+        {
+            clear();
+        }
+    }
+
+    private void loadContext(Set<GdlSentence> context)
+    {
+        useFixedAnswers = true;
+        Map<GdlVariable, Integer> noVariables = new HashMap<GdlVariable, Integer>();
+        for (GdlSentence sentence : context)
+        {
+            int[] fact = symbols.encode(sentence, noVariables);
+            List<int[]> facts = contextFacts.get(fact[0]);
+            if (facts == null)
+            {
+                facts = new ArrayList<int[]>();
+                contextFacts.put(fact[0], facts);
+            }
+            facts.add(fact);
+            if (!rules.isTrueOrDoes(fact[0]))
+            {
+                // We can't tell which fixed answers this would change.
+                useFixedAnswers = false;
+            }
+        }
+    }
+
+    private void clear()
+    {
+        heapTop = 0;
+        trailTop = 0;
+        contTop = 0;
+        contextFacts.clear();
+        answerCache.clear();
+        alreadyAsking.clear();
+        calledRecursively.clear();
+        previousResults.clear();
+        collectors.clear();
+    }
+
+    private static int countVariables(int[] template)
+    {
+        int count = 0;
+        for (int cell : template)
+        {
+            if (tag(cell) == VARIABLE)
+            {
+                count = Math.max(count, value(cell) + 1);
+            }
+        }
+        return count;
+    }
+
+    /*
+     * Proves the sentence at the given heap cell, and for each answer, goes on
+     * with the given continuation. Returns true if the search should stop.
+     */
+    private boolean solve(int goal, int continuation)
+    {
+        FlatTerm key = encode(goal);
+        FlatTerm[] answers = getCachedAnswers(key);
+        if (answers == null)
+        {
+            if (alreadyAsking.contains(key))
+            {
+                calledRecursively.add(key);
+                answers = previousResults.get(key);
+                if (answers == null)
+                {
+                    answers = NO_ANSWERS;
+                }
+            }
+            else
+            {
+                answers = findAnswers(goal, key);
+            }
+        }
+
+        for (FlatTerm answer : answers)
+        {
+            int heapMark = heapTop;
+            int trailMark = trailTop;
+            int contMark = contTop;
+            int frame = allocateFrame(answer.varCount);
+            boolean stop = matchTemplate(answer.cells, 0, frame, goal) && proceed(continuation);
+            undo(heapMark, trailMark, contMark);
+            if (stop)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private FlatTerm[] getCachedAnswers(FlatTerm key)
+    {
+        if (useFixedAnswers)
+        {
+            FlatTerm[] answers = fixedAnswerCache.get(key);
+            if (answers != null)
+            {
+                return answers;
+            }
+        }
+        return answerCache.get(key);
+    }
+
+    private FlatTerm[] findAnswers(int goal, FlatTerm key)
+    {
+        int predicate = key.getPredicateKey();
+        alreadyAsking.add(key);
+        FlatTerm[] results;
+        while (true)
+        {
+            AnswerCollector collector = new AnswerCollector(goal, false);
+            int collectorIndex = collectors.size();
+            collectors.add(collector);
+            int collect = pushContinuation(COLLECT, collectorIndex, 0, -1);
+
+            for (Rule rule : rules.getRules(predicate))
+            {
+                if (!couldMatch(rule, goal))
+                {
+                    continue;
+                }
+                int heapMark = heapTop;
+                int trailMark = trailTop;
+                int contMark = contTop;
+                int frame = allocateFrame(rule.varCount);
+                if (matchTemplate(rule.head, 0, frame, goal))
+                {
+                    proceed(pushContinuation(rule.bodyId, 0, frame, collect));
+                }
+                undo(heapMark, trailMark, contMark);
+            }
+            List<int[]> facts = contextFacts.get(predicate);
+            if (facts != null)
+            {
+                for (int[] fact : facts)
+                {
+                    int heapMark = heapTop;
+                    int trailMark = trailTop;
+                    int contMark = contTop;
+                    if (matchTemplate(fact, 0, 0, goal))
+                    {
+                        proceed(collect);
+                    }
+                    undo(heapMark, trailMark, contMark);
+                }
+            }
+            collectors.remove(collectorIndex);
+            results = collector.answers.toArray(NO_ANSWERS);
+
+            if (calledRecursively.remove(key))
+            {
+                FlatTerm[] previous = previousResults.get(key);
+                if (previous == null || results.length > previous.length)
+                {
+                    previousResults.put(key, results);
+                    continue;
+                }
+            }
+            break;
+        }
+        alreadyAsking.remove(key);
+        previousResults.remove(key);
+
+        // Answers found while a recursive query is unfinished may be incomplete.
+        if (calledRecursively.isEmpty())
+        {
+            if (useFixedAnswers && !rules.isStateDependent(predicate))
+            {
+                fixedAnswerCache.put(key, results);
+            }
+            else
+            {
+                answerCache.put(key, results);
+            }
+        }
+        return results;
+    }
+
+    private boolean couldMatch(Rule rule, int goal)
+    {
+        if (rule.firstArgument == -1 || tag(goal) != STRUCTURE)
+        {
+            return true;
+        }
+        int arg = deref(heap[value(goal) + 1]);
+        switch (tag(arg))
+        {
+        case CONSTANT:
+            return arg == rule.firstArgument;
+        case STRUCTURE:
+            return heap[value(arg)] == rule.firstArgument;
+        default:
+            return true;
+        }
+    }
+
+    /*
+     * Works through the given chain of continuations. Returns true if the
+     * search should stop.
+     */
+    private boolean proceed(int continuation)
+    {
+        int c = continuation;
+        while (true)
+        {
+            int bodyId = contBody[c];
+            if (bodyId == STOP)
+            {
+                return true;
+            }
+            else if (bodyId == COLLECT)
+            {
+                AnswerCollector collector = collectors.get(contPos[c]);
+                collector.answers.add(encode(collector.goal));
+                return collector.stopAfterFirst;
+            }
+
+            Literal[] body = rules.bodies[bodyId];
+            int pos = contPos[c];
+            if (pos == body.length)
+            {
+                c = contNext[c];
+                continue;
+            }
+            int frame = contFrame[c];
+            int next = pushContinuation(bodyId, pos + 1, frame, contNext[c]);
+            Literal literal = body[pos];
+            switch (literal.kind)
+            {
+            case RuleBase.SENTENCE:
+                return solve(build(literal.template, 0, frame), next);
+            case RuleBase.DISTINCT:
+            {
+                int arg1 = build(literal.template, 0, frame);
+                int arg2 = build(literal.template, templateEnd, frame);
+                if (identical(arg1, arg2))
+                {
+                    return false;
+                }
+                c = next;
+                continue;
+            }
+            case RuleBase.NOT:
+            {
+                int heapMark = heapTop;
+                int trailMark = trailTop;
+                int contMark = contTop;
+                boolean provable = proceed(pushContinuation(literal.bodies[0], 0, frame, STOP_CONTINUATION));
+                undo(heapMark, trailMark, contMark);
+                if (provable)
+                {
+                    return false;
+                }
+                c = next;
+                continue;
+            }
+            default:
+                for (int disjunct : literal.bodies)
+                {
+                    int heapMark = heapTop;
+                    int trailMark = trailTop;
+                    int contMark = contTop;
+                    boolean stop = proceed(pushContinuation(disjunct, 0, frame, next));
+                    undo(heapMark, trailMark, contMark);
+                    if (stop)
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    private int pushContinuation(int bodyId, int pos, int frame, int next)
+    {
+        if (contTop == contBody.length)
+        {
+            int newLength = contTop * 2;
+            contBody = Arrays.copyOf(contBody, newLength);
+            contPos = Arrays.copyOf(contPos, newLength);
+            contFrame = Arrays.copyOf(contFrame, newLength);
+            contNext = Arrays.copyOf(contNext, newLength);
+        }
+        contBody[contTop] = bodyId;
+        contPos[contTop] = pos;
+        contFrame[contTop] = frame;
+        contNext[contTop] = next;
+        return contTop++;
+    }
+
+    private int allocate(int cells)
+    {
+        int address = heapTop;
+        heapTop += cells;
+        if (heapTop > heap.length)
+        {
+            heap = Arrays.copyOf(heap, Math.max(heap.length * 2, heapTop));
+        }
+        return address;
+    }
+
+    /*
+     * Allocates unbound variables for a template's variables to refer to.
+     */
+    private int allocateFrame(int varCount)
+    {
+        int frame = allocate(varCount);
+        for (int i = 0; i < varCount; i++)
+        {
+            heap[frame + i] = cell(VARIABLE, frame + i);
+        }
+        return frame;
+    }
+
+    private int deref(int cell)
+    {
+        while (tag(cell) == VARIABLE)
+        {
+            int target = heap[value(cell)];
+            if (target == cell)
+            {
+                return cell;
+            }
+            cell = target;
+        }
+        return cell;
+    }
+
+    private void bind(int variable, int cell)
+    {
+        heap[value(variable)] = cell;
+        if (trailTop == trail.length)
+        {
+            trail = Arrays.copyOf(trail, trailTop * 2);
+        }
+        trail[trailTop++] = variable;
+    }
+
+    private void undo(int heapMark, int trailMark, int contMark)
+    {
+        while (trailTop > trailMark)
+        {
+            int variable = trail[--trailTop];
+            heap[value(variable)] = variable;
+        }
+        heapTop = heapMark;
+        contTop = contMark;
+    }
+
+    /*
+     * Copies a template onto the heap, with its variables referring to the
+     * given frame, and returns the cell for it. Sets templateEnd.
+     */
+    private int build(int[] template, int pos, int frame)
+    {
+        int cell = template[pos];
+        switch (tag(cell))
+        {
+        case CONSTANT:
+            templateEnd = pos + 1;
+            return cell;
+        case VARIABLE:
+            templateEnd = pos + 1;
+            return cell(VARIABLE, frame + value(cell));
+        default:
+            int arity = symbols.getArity(value(cell));
+            int address = allocate(arity + 1);
+            heap[address] = cell;
+            int argPos = pos + 1;
+            for (int i = 1; i <= arity; i++)
+            {
+                int arg = build(template, argPos, frame);
+                heap[address + i] = arg;
+                argPos = templateEnd;
+            }
+            templateEnd = argPos;
+            return cell(STRUCTURE, address);
+        }
+    }
+
+    /*
+     * Unifies a template, with its variables referring to the given frame,
+     * with a heap term. Only builds the parts of the template that get bound
+     * to variables. Sets templateEnd if successful.
+     */
+    private boolean matchTemplate(int[] template, int pos, int frame, int term)
+    {
+        int cell = template[pos];
+        term = deref(term);
+        switch (tag(cell))
+        {
+        case CONSTANT:
+            templateEnd = pos + 1;
+            if (tag(term) == VARIABLE)
+            {
+                bind(term, cell);
+                return true;
+            }
+            return term == cell;
+        case VARIABLE:
+            templateEnd = pos + 1;
+            return unify(cell(VARIABLE, frame + value(cell)), term);
+        default:
+            if (tag(term) == VARIABLE)
+            {
+                bind(term, build(template, pos, frame));
+                return true;
+            }
+            if (tag(term) != STRUCTURE || heap[value(term)] != cell)
+            {
+                return false;
+            }
+            int address = value(term);
+            int arity = symbols.getArity(value(cell));
+            int argPos = pos + 1;
+            for (int i = 1; i <= arity; i++)
+            {
+                if (!matchTemplate(template, argPos, frame, heap[address + i]))
+                {
+                    return false;
+                }
+                argPos = templateEnd;
+            }
+            templateEnd = argPos;
+            return true;
+        }
+    }
+
+    private boolean unify(int a, int b)
+    {
+        a = deref(a);
+        b = deref(b);
+        if (a == b)
+        {
+            return true;
+        }
+        if (tag(a) == VARIABLE)
+        {
+            // Bind the newer variable to the older one, so bindings never
+            // point into parts of the heap that are freed first.
+            if (tag(b) == VARIABLE && value(b) > value(a))
+            {
+                bind(b, a);
+            }
+            else
+            {
+                bind(a, b);
+            }
+            return true;
+        }
+        if (tag(b) == VARIABLE)
+        {
+            bind(b, a);
+            return true;
+        }
+        if (tag(a) != STRUCTURE || tag(b) != STRUCTURE)
+        {
+            return false;
+        }
+        int addressA = value(a);
+        int addressB = value(b);
+        if (heap[addressA] != heap[addressB])
+        {
+            return false;
+        }
+        int arity = symbols.getArity(value(heap[addressA]));
+        for (int i = 1; i <= arity; i++)
+        {
+            if (!unify(heap[addressA + i], heap[addressB + i]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean identical(int a, int b)
+    {
+        a = deref(a);
+        b = deref(b);
+        if (a == b)
+        {
+            return true;
+        }
+        if (tag(a) != STRUCTURE || tag(b) != STRUCTURE)
+        {
+            return false;
+        }
+        int addressA = value(a);
+        int addressB = value(b);
+        if (heap[addressA] != heap[addressB])
+        {
+            return false;
+        }
+        int arity = symbols.getArity(value(heap[addressA]));
+        for (int i = 1; i <= arity; i++)
+        {
+            if (!identical(heap[addressA + i], heap[addressB + i]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Flattens the heap term at the given cell, numbering its unbound
+     * variables in order of appearance.
+     */
+    private FlatTerm encode(int term)
+    {
+        encodedVarCount = 0;
+        int length = encodeInto(term, 0);
+        return new FlatTerm(Arrays.copyOf(encoded, length), encodedVarCount);
+    }
+
+    private int encodeInto(int term, int length)
+    {
+        term = deref(term);
+        if (length == encoded.length)
+        {
+            encoded = Arrays.copyOf(encoded, length * 2);
+        }
+        switch (tag(term))
+        {
+        case CONSTANT:
+            encoded[length] = term;
+            return length + 1;
+        case VARIABLE:
+            encoded[length] = cell(VARIABLE, getVariableNumber(term));
+            return length + 1;
+        default:
+            int address = value(term);
+            int functor = heap[address];
+            encoded[length++] = functor;
+            int arity = symbols.getArity(value(functor));
+            for (int i = 1; i <= arity; i++)
+            {
+                length = encodeInto(heap[address + i], length);
+            }
+            return length;
+        }
+    }
+
+    private int getVariableNumber(int variable)
+    {
+        for (int i = 0; i < encodedVarCount; i++)
+        {
+            if (encodedVars[i] == variable)
+            {
+                return i;
+            }
+        }
+        if (encodedVarCount == encodedVars.length)
+        {
+            encodedVars = Arrays.copyOf(encodedVars, encodedVarCount * 2);
+        }
+        encodedVars[encodedVarCount] = variable;
+        return encodedVarCount++;
+    }
+
+    private static final class AnswerCollector
+    {
+        private final int goal;
+        private final boolean stopAfterFirst;
+        private final Set<FlatTerm> answers = new LinkedHashSet<FlatTerm>();
+
+        private AnswerCollector(int goal, boolean stopAfterFirst)
+        {
+            this.goal = goal;
+            this.stopAfterFirst = stopAfterFirst;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.ggp.base.util.prover.compact;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlDistinct;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlNot;
+import org.ggp.base.util.gdl.grammar.GdlOr;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+
+/*
+ * The rules of a game compiled for the query engine. Each rule's head is a
+ * flat template whose variables are numbered from zero within the rule; the
+ * query engine allocates that many fresh heap cells as the rule's frame when
+ * it tries the rule, so rules never need to be renamed.
+ *
+ * Rule bodies are stored in one table and referred to by index, so that the
+ * query engine's continuations can be plain ints. The bodies of negations and
+ * the disjuncts of disjunctions get their own entries, and share the frame of
+ * the rule they appear in.
+ *
+ * Immutable after construction, so it can be shared between threads.
+ */
+final class RuleBase
+{
+    static final int SENTENCE = 0;
+    static final int DISTINCT = 1;
+    static final int NOT = 2;
+    static final int OR = 3;
+
+    /*
+     * Body zero is always the empty body, used by facts.
+     */
+    static final int EMPTY_BODY = 0;
+
+    private static final Rule[] NO_RULES = new Rule[0];
+
+    final SymbolTable symbols;
+    final Literal[][] bodies;
+    private final Map<Integer, Rule[]> rulesByPredicate;
+    /*
+     * Predicates whose answers can depend on the true or does sentences in
+     * the context, directly or through the rules.
+     */
+    private final Set<Integer> stateDependentPredicates;
+    private final int trueId;
+    private final int doesId;
+
+    private RuleBase(SymbolTable symbols, Literal[][] bodies, Map<Integer, Rule[]> rulesByPredicate,
+            Set<Integer> stateDependentPredicates)
+    {
+        this.symbols = symbols;
+        this.bodies = bodies;
+        this.rulesByPredicate = rulesByPredicate;
+        this.stateDependentPredicates = stateDependentPredicates;
+        this.trueId = symbols.getConstantId(GdlPool.TRUE);
+        this.doesId = symbols.getConstantId(GdlPool.DOES);
+    }
+
+    static RuleBase compile(List<Gdl> description)
+    {
+        SymbolTable symbols = new SymbolTable();
+        List<Literal[]> bodies = new ArrayList<Literal[]>();
+        bodies.add(new Literal[0]);
+        Map<Integer, List<Rule>> rules = new HashMap<Integer, List<Rule>>();
+        Map<Integer, Set<Integer>> dependencies = new HashMap<Integer, Set<Integer>>();
+        for (Gdl gdl : description)
+        {
+            GdlRule rule = (gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl);
+            Map<GdlVariable, Integer> variables = new HashMap<GdlVariable, Integer>();
+            int[] head = symbols.encode(rule.getHead(), variables);
+            Set<Integer> bodyPredicates = new HashSet<Integer>();
+            int bodyId = EMPTY_BODY;
+            if (rule.arity() > 0)
+            {
+                bodyId = compileBody(rule.getBody(), symbols, variables, bodies, bodyPredicates);
+            }
+
+            int predicate = head[0];
+            List<Rule> rulesForPredicate = rules.get(predicate);
+            if (rulesForPredicate == null)
+            {
+                rulesForPredicate = new ArrayList<Rule>();
+                rules.put(predicate, rulesForPredicate);
+                dependencies.put(predicate, new HashSet<Integer>());
+            }
+            rulesForPredicate.add(new Rule(head, variables.size(), bodyId));
+            dependencies.get(predicate).addAll(bodyPredicates);
+        }
+
+        Map<Integer, Rule[]> rulesByPredicate = new HashMap<Integer, Rule[]>();
+        for (Map.Entry<Integer, List<Rule>> entry : rules.entrySet())
+        {
+            rulesByPredicate.put(entry.getKey(), entry.getValue().toArray(NO_RULES));
+        }
+        return new RuleBase(symbols, bodies.toArray(new Literal[bodies.size()][]), rulesByPredicate,
+                findStateDependentPredicates(symbols, dependencies));
+    }
+
+    private static int compileBody(List<GdlLiteral> literals, SymbolTable symbols,
+            Map<GdlVariable, Integer> variables, List<Literal[]> bodies, Set<Integer> bodyPredicates)
+    {
+        Literal[] body = new Literal[literals.size()];
+        // Reserve the id first, so nested bodies come after this one.
+        int bodyId = bodies.size();
+        bodies.add(body);
+        for (int i = 0; i < body.length; i++)
+        {
+            body[i] = compileLiteral(literals.get(i), symbols, variables, bodies, bodyPredicates);
+        }
+        return bodyId;
+    }
+
+    private static Literal compileLiteral(GdlLiteral literal, SymbolTable symbols,
+            Map<GdlVariable, Integer> variables, List<Literal[]> bodies, Set<Integer> bodyPredicates)
+    {
+        if (literal instanceof GdlSentence)
+        {
+            int[] template = symbols.encode((GdlSentence) literal, variables);
+            bodyPredicates.add(template[0]);
+            return new Literal(SENTENCE, template, null);
+        }
+        else if (literal instanceof GdlDistinct)
+        {
+            GdlDistinct distinct = (GdlDistinct) literal;
+            int[] arg1 = symbols.encode(distinct.getArg1(), variables);
+            int[] arg2 = symbols.encode(distinct.getArg2(), variables);
+            int[] template = new int[arg1.length + arg2.length];
+            System.arraycopy(arg1, 0, template, 0, arg1.length);
+            System.arraycopy(arg2, 0, template, arg1.length, arg2.length);
+            return new Literal(DISTINCT, template, null);
+        }
+        else if (literal instanceof GdlNot)
+        {
+            GdlLiteral body = ((GdlNot) literal).getBody();
+            int bodyId = compileBody(Collections.singletonList(body), symbols, variables, bodies, bodyPredicates);
+            return new Literal(NOT, null, new int[] {bodyId});
+        }
+        GdlOr or = (GdlOr) literal;
+        int[] disjuncts = new int[or.arity()];
+        for (int i = 0; i < or.arity(); i++)
+        {
+            disjuncts[i] = compileBody(Collections.singletonList(or.get(i)), symbols, variables, bodies, bodyPredicates);
+        }
+        return new Literal(OR, null, disjuncts);
+    }
+
+    private static Set<Integer> findStateDependentPredicates(SymbolTable symbols,
+            Map<Integer, Set<Integer>> dependencies)
+    {
+        int trueId = symbols.getConstantId(GdlPool.TRUE);
+        int doesId = symbols.getConstantId(GdlPool.DOES);
+        Set<Integer> results = new HashSet<Integer>();
+        for (Set<Integer> bodyPredicates : dependencies.values())
+        {
+            for (int predicate : bodyPredicates)
+            {
+                int name = symbols.getPredicateName(predicate);
+                if (name == trueId || name == doesId)
+                {
+                    results.add(predicate);
+                }
+            }
+        }
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (Map.Entry<Integer, Set<Integer>> entry : dependencies.entrySet())
+            {
+                if (!results.contains(entry.getKey())
+                        && !Collections.disjoint(entry.getValue(), results))
+                {
+                    results.add(entry.getKey());
+                    changed = true;
+                }
+            }
+        }
+        return results;
+    }
+
+    Rule[] getRules(int predicate)
+    {
+        Rule[] rules = rulesByPredicate.get(predicate);
+        return (rules == null) ? NO_RULES : rules;
+    }
+
+    boolean isStateDependent(int predicate)
+    {
+        return stateDependentPredicates.contains(predicate);
+    }
+
+    /*
+     * Whether a sentence in a query context is one of the kinds that
+     * isStateDependent accounts for.
+     */
+    boolean isTrueOrDoes(int predicate)
+    {
+        int name = symbols.getPredicateName(predicate);
+        return name == trueId || name == doesId;
+    }
+
+    static final class Rule
+    {
+        final int[] head;
+        final int varCount;
+        final int bodyId;
+        /*
+         * The first cell of the head's first argument, if it's a constant or a
+         * functor; otherwise -1. Used to skip rules that can't match a query
+         * without attempting unification.
+         */
+        final int firstArgument;
+
+        private Rule(int[] head, int varCount, int bodyId)
+        {
+            this.head = head;
+            this.varCount = varCount;
+            this.bodyId = bodyId;
+            if (head.length > 1 && SymbolTable.tag(head[1]) != SymbolTable.VARIABLE)
+            {
+                this.firstArgument = head[1];
+            }
+            else
+            {
+                this.firstArgument = -1;
+            }
+        }
+    }
+
+    /*
+     * For SENTENCE literals, the template is the sentence; for DISTINCT, it's
+     * the two terms one after the other. NOT literals have a single body
+     * containing the negated literal, and OR literals have one body per
+     * disjunct.
+     */
+    static final class Literal
+    {
+        final int kind;
+        final int[] template;
+        final int[] bodies;
+
+        private Literal(int kind, int[] template, int[] bodies)
+        {
+            this.kind = kind;
+            this.template = template;
+            this.bodies = bodies;
+        }
+    }
+}
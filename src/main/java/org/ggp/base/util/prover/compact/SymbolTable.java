@@ -0,0 +1,276 @@
+package org.ggp.base.util.prover.compact;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+
+/*
+ * Assigns int ids to constants and to functors (a name together with an
+ * arity), and converts between Gdl and flat int-encoded terms.
+ *
+ * Every cell of an encoded term has a two-bit tag and a value: a constant
+ * and its id, a variable and its number, or a functor and its id. In the
+ * query engine's heap a cell may also be a reference to another heap cell,
+ * or a structure pointing to a heap cell holding a functor; those tags share
+ * values with the variable tag and the otherwise unused structure tag.
+ *
+ * Ids are handed out on demand, since a context can mention constants that
+ * don't appear in the rules. This is safe to use from multiple threads: new
+ * ids are added under a lock, and the arrays for looking them up are
+ * published through volatile fields before the id itself is visible.
+ */
+final class SymbolTable
+{
+    static final int TAG_BITS = 2;
+    static final int TAG_MASK = (1 << TAG_BITS) - 1;
+    static final int CONSTANT = 0;
+    static final int VARIABLE = 1;
+    static final int STRUCTURE = 2;
+    static final int FUNCTOR = 3;
+
+    private final ConcurrentMap<GdlConstant, Integer> constantIds = new ConcurrentHashMap<GdlConstant, Integer>();
+    private final ConcurrentMap<Long, Integer> functorIds = new ConcurrentHashMap<Long, Integer>();
+
+    private volatile GdlConstant[] constants = new GdlConstant[64];
+    private volatile int[] functorNames = new int[64];
+    private volatile int[] functorArities = new int[64];
+    // Guarded by this.
+    private int constantCount = 0;
+    private int functorCount = 0;
+
+    static int tag(int cell)
+    {
+        return cell & TAG_MASK;
+    }
+
+    static int value(int cell)
+    {
+        return cell >>> TAG_BITS;
+    }
+
+    static int cell(int tag, int value)
+    {
+        return (value << TAG_BITS) | tag;
+    }
+
+    int getConstantId(GdlConstant constant)
+    {
+        Integer id = constantIds.get(constant);
+        if (id != null)
+        {
+            return id;
+        }
+        return addConstant(constant);
+    }
+
+    private synchronized int addConstant(GdlConstant constant)
+    {
+        Integer id = constantIds.get(constant);
+        if (id != null)
+        {
+            return id;
+        }
+        int newId = constantCount;
+        if (newId == constants.length)
+        {
+            constants = Arrays.copyOf(constants, newId * 2);
+        }
+        constants[newId] = constant;
+        constantCount++;
+        constantIds.put(constant, newId);
+        return newId;
+    }
+
+    GdlConstant getConstant(int id)
+    {
+        return constants[id];
+    }
+
+    int getFunctorId(int nameId, int arity)
+    {
+        Integer id = functorIds.get(functorKey(nameId, arity));
+        if (id != null)
+        {
+            return id;
+        }
+        return addFunctor(nameId, arity);
+    }
+
+    private synchronized int addFunctor(int nameId, int arity)
+    {
+        Long key = functorKey(nameId, arity);
+        Integer id = functorIds.get(key);
+        if (id != null)
+        {
+            return id;
+        }
+        int newId = functorCount;
+        if (newId == functorNames.length)
+        {
+            functorNames = Arrays.copyOf(functorNames, newId * 2);
+            functorArities = Arrays.copyOf(functorArities, newId * 2);
+        }
+        functorNames[newId] = nameId;
+        functorArities[newId] = arity;
+        functorCount++;
+        functorIds.put(key, newId);
+        return newId;
+    }
+
+    private static Long functorKey(int nameId, int arity)
+    {
+        return (((long) nameId) << 32) | arity;
+    }
+
+    int getFunctorName(int functorId)
+    {
+        return functorNames[functorId];
+    }
+
+    int getArity(int functorId)
+    {
+        return functorArities[functorId];
+    }
+
+    /*
+     * Returns the id of the name of the relation or proposition that the
+     * given predicate key (the first cell of an encoded sentence) refers to.
+     */
+    int getPredicateName(int predicateKey)
+    {
+        if (tag(predicateKey) == FUNCTOR)
+        {
+            return getFunctorName(value(predicateKey));
+        }
+        return value(predicateKey);
+    }
+
+    /*
+     * Variables are numbered using the given map, which is updated with any
+     * variables not already in it, so that several sentences can share the
+     * same numbering.
+     */
+    int[] encode(GdlSentence sentence, Map<GdlVariable, Integer> variables)
+    {
+        int[] cells = new int[countCells(sentence)];
+        if (sentence.arity() == 0 && !(sentence instanceof GdlRelation))
+        {
+            cells[0] = cell(CONSTANT, getConstantId(sentence.getName()));
+            return cells;
+        }
+        cells[0] = cell(FUNCTOR, getFunctorId(getConstantId(sentence.getName()), sentence.arity()));
+        int pos = 1;
+        for (GdlTerm term : sentence.getBody())
+        {
+            pos = encode(term, cells, pos, variables);
+        }
+        return cells;
+    }
+
+    int[] encode(GdlTerm term, Map<GdlVariable, Integer> variables)
+    {
+        int[] cells = new int[countCells(term)];
+        encode(term, cells, 0, variables);
+        return cells;
+    }
+
+    private int encode(GdlTerm term, int[] cells, int pos, Map<GdlVariable, Integer> variables)
+    {
+        if (term instanceof GdlConstant)
+        {
+            cells[pos] = cell(CONSTANT, getConstantId((GdlConstant) term));
+            return pos + 1;
+        }
+        else if (term instanceof GdlVariable)
+        {
+            Integer number = variables.get(term);
+            if (number == null)
+            {
+                number = variables.size();
+                variables.put((GdlVariable) term, number);
+            }
+            cells[pos] = cell(VARIABLE, number);
+            return pos + 1;
+        }
+        GdlFunction function = (GdlFunction) term;
+        cells[pos] = cell(FUNCTOR, getFunctorId(getConstantId(function.getName()), function.arity()));
+        pos++;
+        for (GdlTerm arg : function.getBody())
+        {
+            pos = encode(arg, cells, pos, variables);
+        }
+        return pos;
+    }
+
+    private static int countCells(GdlSentence sentence)
+    {
+        int count = 1;
+        for (int i = 0; i < sentence.arity(); i++)
+        {
+            count += countCells(sentence.get(i));
+        }
+        return count;
+    }
+
+    private static int countCells(GdlTerm term)
+    {
+        int count = 1;
+        if (term instanceof GdlFunction)
+        {
+            GdlFunction function = (GdlFunction) term;
+            for (int i = 0; i < function.arity(); i++)
+            {
+                count += countCells(function.get(i));
+            }
+        }
+        return count;
+    }
+
+    GdlSentence decodeSentence(FlatTerm term)
+    {
+        int[] cells = term.cells;
+        if (tag(cells[0]) == CONSTANT)
+        {
+            return GdlPool.getProposition(getConstant(value(cells[0])));
+        }
+        int functorId = value(cells[0]);
+        List<GdlTerm> body = new ArrayList<GdlTerm>(getArity(functorId));
+        int[] pos = {1};
+        for (int i = 0; i < getArity(functorId); i++)
+        {
+            body.add(decodeTerm(cells, pos));
+        }
+        return GdlPool.getRelation(getConstant(getFunctorName(functorId)), body);
+    }
+
+    private GdlTerm decodeTerm(int[] cells, int[] pos)
+    {
+        int cell = cells[pos[0]++];
+        switch (tag(cell))
+        {
+        case CONSTANT:
+            return getConstant(value(cell));
+        case VARIABLE:
+            return GdlPool.getVariable("?_" + value(cell));
+        default:
+            int functorId = value(cell);
+            List<GdlTerm> body = new ArrayList<GdlTerm>(getArity(functorId));
+            for (int i = 0; i < getArity(functorId); i++)
+            {
+                body.add(decodeTerm(cells, pos));
+            }
+            return GdlPool.getFunction(getConstant(getFunctorName(functorId)), body);
+        }
+    }
+}
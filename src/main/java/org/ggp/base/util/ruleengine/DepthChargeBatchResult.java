@@ -0,0 +1,221 @@
+package org.ggp.base.util.ruleengine;
+
+import java.util.Arrays;
+
+/**
+ * Totals over a batch of depth charges made from a single state, as returned
+ * by {@link RuleEngine#performDepthChargeBatch(RuleEngineState, int, boolean)}.
+ *
+ * Everything is kept in primitive arrays indexed by role, so the size of a
+ * result doesn't depend on the number of playouts. Optionally, it also keeps
+ * first-move statistics: for each role and each of that role's legal moves in
+ * the starting state, how many playouts began with that move and the sum of
+ * that role's goals over those playouts. Moves are identified by their index
+ * in {@link RuleEngine#getLegalMoves(RuleEngineState, int)} for the starting
+ * state.
+ */
+public final class DepthChargeBatchResult {
+    private final int numRoles;
+    private int numPlayouts = 0;
+    private final long[] goalSums;
+    private final long[] goalSquaredSums;
+    private long lengthSum = 0;
+    private int maxLength = 0;
+    // Null if first-move statistics aren't being kept
+    private final int[][] firstMoveCounts;
+    private final long[][] firstMoveGoalSums;
+
+    /**
+     * Creates an empty result that doesn't keep first-move statistics.
+     */
+    public DepthChargeBatchResult(int numRoles) {
+        this.numRoles = numRoles;
+        this.goalSums = new long[numRoles];
+        this.goalSquaredSums = new long[numRoles];
+        this.firstMoveCounts = null;
+        this.firstMoveGoalSums = null;
+    }
+
+    /**
+     * Creates an empty result that keeps first-move statistics, where role r
+     * has numFirstMoves[r] legal moves in the starting state.
+     */
+    public DepthChargeBatchResult(int numRoles, int[] numFirstMoves) {
+        this.numRoles = numRoles;
+        this.goalSums = new long[numRoles];
+        this.goalSquaredSums = new long[numRoles];
+        this.firstMoveCounts = new int[numRoles][];
+        this.firstMoveGoalSums = new long[numRoles][];
+        for (int r = 0; r < numRoles; r++) {
+            firstMoveCounts[r] = new int[numFirstMoves[r]];
+            firstMoveGoalSums[r] = new long[numFirstMoves[r]];
+        }
+    }
+
+    /**
+     * Adds a playout that ended with the given goals after the given number of
+     * joint moves.
+     *
+     * @param firstMoves the index of each role's first move, if first-move
+     * statistics are being kept. It is ignored otherwise, and may be null if
+     * the playout made no moves.
+     */
+    public void addPlayout(int[] goals, int length, int[] firstMoves) {
+        numPlayouts++;
+        for (int r = 0; r < numRoles; r++) {
+            long goal = goals[r];
+            goalSums[r] += goal;
+            goalSquaredSums[r] += goal * goal;
+        }
+        lengthSum += length;
+        maxLength = Math.max(maxLength, length);
+        if (firstMoveCounts != null && firstMoves != null) {
+            for (int r = 0; r < numRoles; r++) {
+                firstMoveCounts[r][firstMoves[r]]++;
+                firstMoveGoalSums[r][firstMoves[r]] += goals[r];
+            }
+        }
+    }
+
+    /**
+     * Adds the totals of another result for the same starting state, e.g.
+     * one computed on another thread.
+     */
+    public void add(DepthChargeBatchResult other) {
+        if (other.numRoles != numRoles || (other.firstMoveCounts == null) != (firstMoveCounts == null)) {
+            throw new IllegalArgumentException("Can't combine results of different shapes");
+        }
+        numPlayouts += other.numPlayouts;
+        for (int r = 0; r < numRoles; r++) {
+            goalSums[r] += other.goalSums[r];
+            goalSquaredSums[r] += other.goalSquaredSums[r];
+        }
+        lengthSum += other.lengthSum;
+        maxLength = Math.max(maxLength, other.maxLength);
+        if (firstMoveCounts != null) {
+            for (int r = 0; r < numRoles; r++) {
+                for (int i = 0; i < firstMoveCounts[r].length; i++) {
+                    firstMoveCounts[r][i] += other.firstMoveCounts[r][i];
+                    firstMoveGoalSums[r][i] += other.firstMoveGoalSums[r][i];
+                }
+            }
+        }
+    }
+
+    public int getNumRoles() {
+        return numRoles;
+    }
+
+    public int getNumPlayouts() {
+        return numPlayouts;
+    }
+
+    public long getGoalSum(int roleIndex) {
+        return goalSums[roleIndex];
+    }
+
+    public long getGoalSquaredSum(int roleIndex) {
+        return goalSquaredSums[roleIndex];
+    }
+
+    /** Returns 0 if there were no playouts. */
+    public double getMeanGoal(int roleIndex) {
+        if (numPlayouts == 0) {
+            return 0;
+        }
+        return (double) goalSums[roleIndex] / numPlayouts;
+    }
+
+    /** The population variance of the role's goals; 0 if there were no playouts. */
+    public double getGoalVariance(int roleIndex) {
+        if (numPlayouts == 0) {
+            return 0;
+        }
+        double mean = getMeanGoal(roleIndex);
+        return Math.max(0, (double) goalSquaredSums[roleIndex] / numPlayouts - mean * mean);
+    }
+
+    /** The total number of joint moves made across all the playouts. */
+    public long getLengthSum() {
+        return lengthSum;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /** Returns 0 if there were no playouts. */
+    public double getMeanLength() {
+        if (numPlayouts == 0) {
+            return 0;
+        }
+        return (double) lengthSum / numPlayouts;
+    }
+
+    public boolean hasFirstMoveStats() {
+        return firstMoveCounts != null;
+    }
+
+    /**
+     * The number of legal moves the role had in the starting state, or 0 if
+     * the starting state was terminal.
+     *
+     * @throws IllegalStateException if first-move statistics aren't being kept.
+     */
+    public int getNumFirstMoves(int roleIndex) {
+        checkFirstMoveStats();
+        return firstMoveCounts[roleIndex].length;
+    }
+
+    /**
+     * The number of playouts in which the role's first move was the one with
+     * the given index.
+     *
+     * @throws IllegalStateException if first-move statistics aren't being kept.
+     */
+    public int getFirstMoveCount(int roleIndex, int moveIndex) {
+        checkFirstMoveStats();
+        return firstMoveCounts[roleIndex][moveIndex];
+    }
+
+    /**
+     * The sum of the role's goals over the playouts in which its first move
+     * was the one with the given index.
+     *
+     * @throws IllegalStateException if first-move statistics aren't being kept.
+     */
+    public long getFirstMoveGoalSum(int roleIndex, int moveIndex) {
+        checkFirstMoveStats();
+        return firstMoveGoalSums[roleIndex][moveIndex];
+    }
+
+    /**
+     * Returns 0 if no playouts began with the move.
+     *
+     * @throws IllegalStateException if first-move statistics aren't being kept.
+     */
+    public double getFirstMoveMeanGoal(int roleIndex, int moveIndex) {
+        int count = getFirstMoveCount(roleIndex, moveIndex);
+        if (count == 0) {
+            return 0;
+        }
+        return (double) firstMoveGoalSums[roleIndex][moveIndex] / count;
+    }
+
+    private void checkFirstMoveStats() {
+        if (firstMoveCounts == null) {
+            throw new IllegalStateException("First-move statistics weren't requested for this batch");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("DepthChargeBatchResult [numPlayouts=").append(numPlayouts);
+        sb.append(", goalSums=").append(Arrays.toString(goalSums));
+        sb.append(", meanLength=").append(getMeanLength());
+        if (firstMoveCounts != null) {
+            sb.append(", firstMoveCounts=").append(Arrays.deepToString(firstMoveCounts));
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -1,8 +1,8 @@
 package org.ggp.base.util.ruleengine;
 
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.ggp.base.util.GoalTuplePool;
 import org.ggp.base.util.GoalTuplePool.GoalTuplePoolNode;
@@ -50,8 +50,6 @@ public interface RuleEngine<Move, State extends RuleEngineState<Move, State>> {
         return getTranslator().getNativeState(gdlState);
     }
 
-    //TODO: Make this private somehow
-    static final Random RANDOM = new Random();
     default List<Move> getRandomJointMove(State state) throws GameDescriptionException {
         int numRoles = getNumRoles();
         List<Move> jointMove = Lists.newArrayListWithCapacity(numRoles);
@@ -60,7 +58,7 @@ public interface RuleEngine<Move, State extends RuleEngineState<Move, State>> {
             if (legalMoves.size() == 1) {
                 jointMove.add(legalMoves.get(0));
             } else {
-                int chosenIndex = RANDOM.nextInt(legalMoves.size());
+                int chosenIndex = ThreadLocalRandom.current().nextInt(legalMoves.size());
                 jointMove.add(legalMoves.get(chosenIndex));
             }
         }
@@ -105,9 +103,79 @@ public interface RuleEngine<Move, State extends RuleEngineState<Move, State>> {
         // Do nothing by default
     }
 
-//    default DepthChargeBatchResult performDepthChargeBatch(State state)
-//            throws GameDescriptionException {
-//        ImmutableIntArray result = doRandomPlayout(state);
-//        return new FlatDepthChargeResult(result, 1);
-//    }
+    /**
+     * Returns an engine for the same game that another thread can use at the
+     * same time as this one, and that accepts this engine's states and moves.
+     * Engines that are thread-safe can return themselves.
+     *
+     * @throws UnsupportedOperationException if this engine can't be shared
+     * between threads in this way, which is the default.
+     */
+    default RuleEngine<Move, State> getInstanceForThread() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't be used by more than one thread");
+    }
+
+    /**
+     * Like {@link #performDepthChargeBatch(RuleEngineState, int, boolean)},
+     * without first-move statistics.
+     */
+    default DepthChargeBatchResult performDepthChargeBatch(State state, int numPlayouts)
+            throws GameDescriptionException {
+        return performDepthChargeBatch(state, numPlayouts, false);
+    }
+
+    /**
+     * Performs the given number of random playouts from the given state and
+     * returns their totals. If withFirstMoveStats is true, the result also
+     * breaks down each role's goals by its first move in each playout; see
+     * {@link DepthChargeBatchResult}.
+     *
+     * Engines that can set up a state once and play out from it many times
+     * should override this to do so.
+     */
+    default DepthChargeBatchResult performDepthChargeBatch(State state, int numPlayouts, boolean withFirstMoveStats)
+            throws GameDescriptionException {
+        int numRoles = getNumRoles();
+        List<List<Move>> firstMoveOptions = null;
+        DepthChargeBatchResult result;
+        if (!withFirstMoveStats) {
+            result = new DepthChargeBatchResult(numRoles);
+        } else if (isTerminal(state)) {
+            result = new DepthChargeBatchResult(numRoles, new int[numRoles]);
+        } else {
+            firstMoveOptions = getLegalMovesByRole(state);
+            int[] numFirstMoves = new int[numRoles];
+            for (int r = 0; r < numRoles; r++) {
+                numFirstMoves[r] = firstMoveOptions.get(r).size();
+            }
+            result = new DepthChargeBatchResult(numRoles, numFirstMoves);
+        }
+
+        int[] goals = new int[numRoles];
+        int[] firstMoves = (firstMoveOptions == null) ? null : new int[numRoles];
+        for (int i = 0; i < numPlayouts; i++) {
+            State curState = state;
+            int length = 0;
+            if (firstMoves != null) {
+                List<Move> jointMove = Lists.newArrayListWithCapacity(numRoles);
+                for (int r = 0; r < numRoles; r++) {
+                    List<Move> options = firstMoveOptions.get(r);
+                    firstMoves[r] = ThreadLocalRandom.current().nextInt(options.size());
+                    jointMove.add(options.get(firstMoves[r]));
+                }
+                curState = getNextState(curState, jointMove);
+                length++;
+            }
+            while (!isTerminal(curState)) {
+                curState = getRandomNextState(curState);
+                length++;
+            }
+            ImmutableIntArray playoutGoals = getGoals(curState);
+            for (int r = 0; r < numRoles; r++) {
+                goals[r] = playoutGoals.get(r);
+            }
+            result.addPlayout(goals, length, firstMoves);
+        }
+        return result;
+    }
 }
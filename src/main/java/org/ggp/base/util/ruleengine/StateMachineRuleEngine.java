@@ -2,6 +2,10 @@ package org.ggp.base.util.ruleengine;
 
 import java.util.List;
 
+import org.ggp.base.util.GoalTuplePool;
+import org.ggp.base.util.GoalTuplePool.GoalTuplePoolNode;
+import org.ggp.base.util.ImmutableIntArray;
+import org.ggp.base.util.statemachine.DepthChargeContext;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -12,9 +16,11 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
 public class StateMachineRuleEngine implements StdRuleEngine {
     private final StateMachine delegate;
+    private final ThreadLocal<DepthChargeContext> depthChargeContexts;
 
     private StateMachineRuleEngine(StateMachine delegate) {
         this.delegate = delegate;
+        this.depthChargeContexts = new ThreadLocal<DepthChargeContext>();
     }
 
     public static StateMachineRuleEngine wrap(StateMachine sm) {
@@ -71,8 +77,83 @@ public class StateMachineRuleEngine implements StdRuleEngine {
         }
     }
 
+    /**
+     * Runs the playout in the state machine with a reusable per-thread
+     * context, and returns the pooled goal array for its result.
+     */
+    @Override
+    public ImmutableIntArray doRandomPlayout(MachineState state)
+            throws GameDescriptionException {
+        DepthChargeContext context = getDepthChargeContext();
+        try {
+            delegate.performDepthChargeWithContext(state, context);
+        } catch (TransitionDefinitionException e) {
+            throw GameDescriptionException.wrap(e);
+        } catch (MoveDefinitionException e) {
+            throw GameDescriptionException.wrap(e);
+        } catch (GoalDefinitionException e) {
+            throw GameDescriptionException.wrap(e);
+        }
+        GoalTuplePoolNode curNode = GoalTuplePool.getInitialNode();
+        for (int goal : context.getGoals()) {
+            curNode = curNode.get(goal);
+        }
+        return curNode.getArray();
+    }
+
+    /**
+     * Runs the whole batch through the state machine's depth charge with one
+     * reusable context. First-move statistics use the default implementation.
+     */
+    @Override
+    public DepthChargeBatchResult performDepthChargeBatch(MachineState state, int numPlayouts,
+            boolean withFirstMoveStats) throws GameDescriptionException {
+        if (withFirstMoveStats) {
+            return StdRuleEngine.super.performDepthChargeBatch(state, numPlayouts, withFirstMoveStats);
+        }
+        DepthChargeBatchResult result = new DepthChargeBatchResult(getNumRoles());
+        DepthChargeContext context = getDepthChargeContext();
+        try {
+            for (int i = 0; i < numPlayouts; i++) {
+                int length = delegate.performDepthChargeWithContext(state, context);
+                result.addPlayout(context.getGoals(), length, null);
+            }
+        } catch (TransitionDefinitionException e) {
+            throw GameDescriptionException.wrap(e);
+        } catch (MoveDefinitionException e) {
+            throw GameDescriptionException.wrap(e);
+        } catch (GoalDefinitionException e) {
+            throw GameDescriptionException.wrap(e);
+        }
+        return result;
+    }
+
+    /**
+     * Returns this thread's context, making a new one if there isn't one yet
+     * or if the delegate has since been initialized with a different number
+     * of roles.
+     */
+    private DepthChargeContext getDepthChargeContext() {
+        DepthChargeContext context = depthChargeContexts.get();
+        if (context == null || context.getGoals().length != delegate.getRoles().size()) {
+            context = delegate.createDepthChargeContext();
+            depthChargeContexts.set(context);
+        }
+        return context;
+    }
+
     @Override
     public Translator<Move, MachineState> getTranslator() {
         return StdTranslator.INSTANCE;
     }
+
+    /**
+     * Wraps the state machine's {@link StateMachine#getSynchronizedCopy()
+     * synchronized copy}, which may be the state machine itself if it can be
+     * shared between threads.
+     */
+    @Override
+    public StateMachineRuleEngine getInstanceForThread() {
+        return wrap(delegate.getSynchronizedCopy());
+    }
 }
@@ -0,0 +1,566 @@
+package org.ggp.base.util.ruleengine.forwardchaining;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlDistinct;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlNot;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.gdl.model.SentenceForm;
+import org.ggp.base.util.gdl.model.SentenceFormModel;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A rule compiled into a fixed join plan over the tuples of each sentence
+ * form, so that evaluating it for a new state doesn't involve any planning.
+ *
+ * The plan is chosen greedily: at each step, the positive literal with the
+ * most positions already bound is joined next, looking its tuples up by
+ * whichever bound position has the largest domain. Negations and distinct
+ * literals are checked as soon as all their variables are bound.
+ *
+ * For semi-naive evaluation of recursive rules, there is also a plan for each
+ * positive literal of a form in the same stratum as the head, which starts by
+ * reading that literal's tuples from the sentences derived in the last pass.
+ *
+ * For updating results differentially when a rule's inputs change, there is
+ * a plan for each positive or negated literal that starts by reading tuples
+ * from the changes to that literal's form, and a plan that starts with the
+ * head bound, for checking whether a particular result can still be derived.
+ *
+ * Rules expect their input has been through the DeORer and had its
+ * function-valued variables replaced, so variables are only ever bound to
+ * constants.
+ */
+final class CompiledRule {
+    private static final int CONSTANT = -1;
+
+    private final GdlRule rule;
+    private final int headForm;
+    // Variable indexes, or CONSTANT for positions given by headConstants.
+    private final int[] headVariables;
+    private final GdlConstant[] headConstants;
+    private final int numVariables;
+    // Rules with no variables in the head can stop at their first result.
+    private final boolean groundHead;
+    private final Plan fullPlan;
+    private final ImmutableList<Plan> deltaPlans;
+    private final ImmutableList<Plan> changePlans;
+    private final Plan headPlan;
+
+    private CompiledRule(GdlRule rule, int headForm, int[] headVariables, GdlConstant[] headConstants,
+            int numVariables, Plan fullPlan, ImmutableList<Plan> deltaPlans,
+            ImmutableList<Plan> changePlans, Plan headPlan) {
+        this.rule = rule;
+        this.headForm = headForm;
+        this.headVariables = headVariables;
+        this.headConstants = headConstants;
+        this.numVariables = numVariables;
+        this.groundHead = numVariables == 0 || allConstant(headVariables);
+        this.fullPlan = fullPlan;
+        this.deltaPlans = deltaPlans;
+        this.changePlans = changePlans;
+        this.headPlan = headPlan;
+    }
+
+    private static boolean allConstant(int[] variables) {
+        for (int variable : variables) {
+            if (variable != CONSTANT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compiles the rule. The given formIndexes must include the form of the
+     * head and every sentence in the body. recursiveForms marks the forms in
+     * the same stratum as the rule's head, if that stratum is recursive.
+     *
+     * As a side effect, this marks in indexedSlots the positions of each form
+     * that the plans will look tuples up by.
+     */
+    static CompiledRule create(GdlRule rule, SentenceFormModel model,
+            Map<SentenceForm, Integer> formIndexes, int[][] domainSizes,
+            boolean[] recursiveForms, boolean[][] indexedSlots) {
+        Map<GdlVariable, Integer> variableIndexes = new HashMap<GdlVariable, Integer>();
+        for (GdlVariable variable : GdlUtils.getVariables(rule)) {
+            if (!variableIndexes.containsKey(variable)) {
+                variableIndexes.put(variable, variableIndexes.size());
+            }
+        }
+
+        GdlSentence head = rule.getHead();
+        List<GdlTerm> headTuple = GdlUtils.getTupleFromSentence(head);
+        int[] headVariables = new int[headTuple.size()];
+        GdlConstant[] headConstants = new GdlConstant[headTuple.size()];
+        fillPattern(headTuple, variableIndexes, headVariables, headConstants);
+
+        List<Literal> literals = new ArrayList<Literal>();
+        for (GdlLiteral literal : rule.getBody()) {
+            literals.add(Literal.create(literal, model, formIndexes, variableIndexes));
+        }
+
+        int numVariables = variableIndexes.size();
+        boolean[] noneBound = new boolean[numVariables];
+        Plan fullPlan = Plan.create(literals, -1, noneBound, domainSizes, indexedSlots);
+        ImmutableList.Builder<Plan> deltaPlans = ImmutableList.builder();
+        ImmutableList.Builder<Plan> changePlans = ImmutableList.builder();
+        for (int i = 0; i < literals.size(); i++) {
+            Literal literal = literals.get(i);
+            if (literal.kind == Literal.Kind.POSITIVE && recursiveForms[literal.form]) {
+                deltaPlans.add(Plan.create(literals, i, noneBound, domainSizes, indexedSlots));
+            }
+            if (literal.kind != Literal.Kind.DISTINCT) {
+                changePlans.add(Plan.create(literals, i, noneBound, domainSizes, indexedSlots));
+            }
+        }
+        boolean[] headBound = new boolean[numVariables];
+        for (int variable : headVariables) {
+            if (variable != CONSTANT) {
+                headBound[variable] = true;
+            }
+        }
+        Plan headPlan = Plan.create(literals, -1, headBound, domainSizes, indexedSlots);
+        return new CompiledRule(rule, formIndexes.get(model.getSentenceForm(head)), headVariables,
+                headConstants, numVariables, fullPlan, deltaPlans.build(), changePlans.build(), headPlan);
+    }
+
+    private static void fillPattern(List<GdlTerm> tuple, Map<GdlVariable, Integer> variableIndexes,
+            int[] variables, GdlConstant[] constants) {
+        for (int i = 0; i < tuple.size(); i++) {
+            GdlTerm term = tuple.get(i);
+            if (term instanceof GdlConstant) {
+                variables[i] = CONSTANT;
+                constants[i] = (GdlConstant) term;
+            } else {
+                variables[i] = variableIndexes.get(term);
+            }
+        }
+    }
+
+    int getHeadForm() {
+        return headForm;
+    }
+
+    /**
+     * Adds every result of the rule, given the current facts, to the results
+     * list. Results may include duplicates and tuples that are already known.
+     */
+    void evaluate(FormFacts[] facts, List<Tuple> results) {
+        if (groundHead && facts[headForm].contains(new Tuple(headConstants))) {
+            return;
+        }
+        fullPlan.run(0, new GdlConstant[numVariables], facts, null, this, results);
+    }
+
+    /**
+     * Adds to the results list every result of the rule that uses at least
+     * one of the tuples in delta, which holds the tuples of each recursive
+     * form that were derived in the last pass.
+     */
+    void evaluateDelta(FormFacts[] facts, FormFacts[] delta, List<Tuple> results) {
+        for (Plan plan : deltaPlans) {
+            FormFacts deltaFacts = delta[plan.steps[0].form];
+            if (!deltaFacts.isEmpty()) {
+                plan.run(0, new GdlConstant[numVariables], facts, deltaFacts, this, results);
+            }
+        }
+    }
+
+    /**
+     * Adds to the results list every result of the rule that depends on one
+     * of the given changes to its inputs: that is, that uses a gained tuple
+     * in a positive literal or a lost tuple in a negated literal. Forms
+     * without changes may be null in the gained and lost arrays.
+     *
+     * With the new facts and changes, this finds the results that may have
+     * been added; with the old facts and the changes reversed, it finds the
+     * results that may have been removed.
+     */
+    void evaluateChanges(FormFacts[] facts, FormFacts[] gained, FormFacts[] lost, List<Tuple> results) {
+        for (Plan plan : changePlans) {
+            Step first = plan.steps[0];
+            FormFacts changes = (first.literal.kind == Literal.Kind.POSITIVE) ? gained[first.form] : lost[first.form];
+            if (changes != null && !changes.isEmpty()) {
+                plan.run(0, new GdlConstant[numVariables], facts, changes, this, results);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the rule derives the given tuple of its head form.
+     */
+    boolean derives(FormFacts[] facts, Tuple head) {
+        GdlConstant[] binding = new GdlConstant[numVariables];
+        for (int i = 0; i < headVariables.length; i++) {
+            int variable = headVariables[i];
+            GdlConstant expected = (variable == CONSTANT) ? headConstants[i] : binding[variable];
+            if (expected == null) {
+                binding[variable] = head.get(i);
+            } else if (expected != head.get(i)) {
+                return false;
+            }
+        }
+        return headPlan.run(0, binding, facts, null, this, null);
+    }
+
+    /*
+     * Returns true if evaluation of the rule should stop. A null results list
+     * means the caller only wants to know if there are any results.
+     */
+    private boolean addResult(GdlConstant[] binding, List<Tuple> results) {
+        if (results == null) {
+            return true;
+        }
+        GdlConstant[] values = new GdlConstant[headVariables.length];
+        for (int i = 0; i < values.length; i++) {
+            int variable = headVariables[i];
+            values[i] = (variable == CONSTANT) ? headConstants[i] : binding[variable];
+        }
+        results.add(new Tuple(values));
+        return groundHead;
+    }
+
+    @Override
+    public String toString() {
+        return rule.toString();
+    }
+
+    private static final class Literal {
+        private enum Kind {
+            POSITIVE,
+            NEGATIVE,
+            DISTINCT,
+        }
+
+        private final Kind kind;
+        // For positive and negative literals.
+        private final int form;
+        private final int[] variables;
+        private final GdlConstant[] constants;
+        // For distinct literals.
+        private final GdlTerm left;
+        private final GdlTerm right;
+        private final Map<GdlVariable, Integer> variableIndexes;
+
+        private Literal(Kind kind, int form, int[] variables, GdlConstant[] constants,
+                GdlTerm left, GdlTerm right, Map<GdlVariable, Integer> variableIndexes) {
+            this.kind = kind;
+            this.form = form;
+            this.variables = variables;
+            this.constants = constants;
+            this.left = left;
+            this.right = right;
+            this.variableIndexes = variableIndexes;
+        }
+
+        static Literal create(GdlLiteral literal, SentenceFormModel model,
+                Map<SentenceForm, Integer> formIndexes, Map<GdlVariable, Integer> variableIndexes) {
+            if (literal instanceof GdlDistinct) {
+                GdlDistinct distinct = (GdlDistinct) literal;
+                return new Literal(Kind.DISTINCT, -1, new int[0], new GdlConstant[0],
+                        distinct.getArg1(), distinct.getArg2(), variableIndexes);
+            }
+            Kind kind = Kind.POSITIVE;
+            if (literal instanceof GdlNot) {
+                kind = Kind.NEGATIVE;
+                literal = ((GdlNot) literal).getBody();
+            }
+            if (!(literal instanceof GdlSentence)) {
+                throw new IllegalArgumentException("Unexpected literal type in rule body: " + literal);
+            }
+            GdlSentence sentence = (GdlSentence) literal;
+            List<GdlTerm> tuple = GdlUtils.getTupleFromSentence(sentence);
+            int[] variables = new int[tuple.size()];
+            GdlConstant[] constants = new GdlConstant[tuple.size()];
+            fillPattern(tuple, variableIndexes, variables, constants);
+            return new Literal(kind, formIndexes.get(model.getSentenceForm(sentence)),
+                    variables, constants, null, null, variableIndexes);
+        }
+
+        /*
+         * Returns the indexes of the variables this literal needs bound
+         * before it can be checked.
+         */
+        List<Integer> getVariables() {
+            List<Integer> result = new ArrayList<Integer>();
+            if (kind == Kind.DISTINCT) {
+                for (GdlVariable variable : GdlUtils.getVariables(left)) {
+                    result.add(variableIndexes.get(variable));
+                }
+                for (GdlVariable variable : GdlUtils.getVariables(right)) {
+                    result.add(variableIndexes.get(variable));
+                }
+            } else {
+                for (int variable : variables) {
+                    if (variable != CONSTANT) {
+                        result.add(variable);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Plan {
+        private final Step[] steps;
+        // Whether the first step reads from the delta rather than the full facts.
+        private final boolean readsDelta;
+
+        private Plan(Step[] steps, boolean readsDelta) {
+            this.steps = steps;
+            this.readsDelta = readsDelta;
+        }
+
+        /*
+         * If deltaLiteral isn't -1, the plan starts by reading tuples of that
+         * literal's form from the delta, whether the literal is positive or
+         * negated; a negated literal is then taken to be satisfied.
+         */
+        static Plan create(List<Literal> literals, int deltaLiteral, boolean[] initiallyBound,
+                int[][] domainSizes, boolean[][] indexedSlots) {
+            boolean[] bound = initiallyBound.clone();
+            List<Literal> positives = new ArrayList<Literal>();
+            List<Literal> checks = new ArrayList<Literal>();
+            for (Literal literal : literals) {
+                if (literal.kind == Literal.Kind.POSITIVE) {
+                    positives.add(literal);
+                } else {
+                    checks.add(literal);
+                }
+            }
+
+            List<Step> steps = new ArrayList<Step>();
+            if (deltaLiteral >= 0) {
+                Literal first = literals.get(deltaLiteral);
+                positives.remove(first);
+                checks.remove(first);
+                steps.add(Step.forPositive(first, bound, domainSizes, indexedSlots));
+            }
+            addReadyChecks(checks, bound, steps);
+            while (!positives.isEmpty()) {
+                Literal best = null;
+                int bestScore = -1;
+                for (Literal literal : positives) {
+                    int score = countBoundSlots(literal, bound);
+                    if (score > bestScore) {
+                        best = literal;
+                        bestScore = score;
+                    }
+                }
+                positives.remove(best);
+                steps.add(Step.forPositive(best, bound, domainSizes, indexedSlots));
+                addReadyChecks(checks, bound, steps);
+            }
+            // Only unsafe rules should have anything left over; check them anyway.
+            for (Literal check : checks) {
+                steps.add(Step.forCheck(check));
+            }
+            return new Plan(steps.toArray(new Step[steps.size()]), deltaLiteral >= 0);
+        }
+
+        private static int countBoundSlots(Literal literal, boolean[] bound) {
+            int count = 0;
+            for (int variable : literal.variables) {
+                if (variable == CONSTANT || bound[variable]) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private static void addReadyChecks(List<Literal> checks, boolean[] bound, List<Step> steps) {
+            for (int i = 0; i < checks.size(); i++) {
+                Literal check = checks.get(i);
+                if (allBound(check.getVariables(), bound)) {
+                    steps.add(Step.forCheck(check));
+                    checks.remove(i);
+                    i--;
+                }
+            }
+        }
+
+        private static boolean allBound(List<Integer> variables, boolean[] bound) {
+            for (int variable : variables) {
+                if (!bound[variable]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * Returns true if evaluation of the rule should stop.
+         */
+        boolean run(int stepIndex, GdlConstant[] binding, FormFacts[] facts, FormFacts delta,
+                CompiledRule rule, List<Tuple> results) {
+            if (stepIndex == steps.length) {
+                return rule.addResult(binding, results);
+            }
+            Step step = steps[stepIndex];
+            switch (step.matchKind) {
+            case POSITIVE:
+                FormFacts source = (readsDelta && stepIndex == 0) ? delta : facts[step.form];
+                if (step.indexSlot == Step.CONTAINS) {
+                    if (source.contains(step.toTuple(binding))) {
+                        return run(stepIndex + 1, binding, facts, delta, rule, results);
+                    }
+                    return false;
+                }
+                List<Tuple> candidates = (step.indexSlot == Step.SCAN)
+                        ? source.getAll()
+                        : source.getMatching(step.indexSlot, step.getValue(step.indexSlot, binding));
+                for (int i = 0; i < candidates.size(); i++) {
+                    if (step.bind(candidates.get(i), binding)
+                            && run(stepIndex + 1, binding, facts, delta, rule, results)) {
+                        return true;
+                    }
+                }
+                return false;
+            case NEGATIVE:
+                if (facts[step.form].contains(step.toTuple(binding))) {
+                    return false;
+                }
+                return run(stepIndex + 1, binding, facts, delta, rule, results);
+            case DISTINCT:
+                if (sameTerm(step.literal.left, step.literal.right, step.literal.variableIndexes, binding)) {
+                    return false;
+                }
+                return run(stepIndex + 1, binding, facts, delta, rule, results);
+            default:
+                throw new IllegalStateException("Unknown step kind " + step.matchKind);
+            }
+        }
+    }
+
+    private static boolean sameTerm(GdlTerm left, GdlTerm right,
+            Map<GdlVariable, Integer> variableIndexes, GdlConstant[] binding) {
+        left = resolve(left, variableIndexes, binding);
+        right = resolve(right, variableIndexes, binding);
+        if (left instanceof GdlFunction && right instanceof GdlFunction) {
+            GdlFunction leftFunction = (GdlFunction) left;
+            GdlFunction rightFunction = (GdlFunction) right;
+            if (leftFunction.getName() != rightFunction.getName()
+                    || leftFunction.arity() != rightFunction.arity()) {
+                return false;
+            }
+            for (int i = 0; i < leftFunction.arity(); i++) {
+                if (!sameTerm(leftFunction.get(i), rightFunction.get(i), variableIndexes, binding)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return left == right;
+    }
+
+    private static GdlTerm resolve(GdlTerm term, Map<GdlVariable, Integer> variableIndexes,
+            GdlConstant[] binding) {
+        if (term instanceof GdlVariable) {
+            return binding[variableIndexes.get(term)];
+        }
+        return term;
+    }
+
+    private static final class Step {
+        // Values of indexSlot for positive literals that don't use an index.
+        static final int CONTAINS = -1;
+        static final int SCAN = -2;
+
+        // How the step is matched: the delta step of a plan is matched as a
+        // positive literal, even if it's negated in the rule.
+        private final Literal.Kind matchKind;
+        private final Literal literal;
+        private final int form;
+        private final int[] variables;
+        private final GdlConstant[] constants;
+        // For each position of a positive literal, whether it binds its variable.
+        private final boolean[] binds;
+        private final int indexSlot;
+
+        private Step(Literal.Kind matchKind, Literal literal, boolean[] binds, int indexSlot) {
+            this.matchKind = matchKind;
+            this.literal = literal;
+            this.form = literal.form;
+            this.variables = literal.variables;
+            this.constants = literal.constants;
+            this.binds = binds;
+            this.indexSlot = indexSlot;
+        }
+
+        static Step forCheck(Literal literal) {
+            return new Step(literal.kind, literal, null, CONTAINS);
+        }
+
+        /*
+         * Marks the literal's variables as bound.
+         */
+        static Step forPositive(Literal literal, boolean[] bound, int[][] domainSizes,
+                boolean[][] indexedSlots) {
+            boolean[] binds = new boolean[literal.variables.length];
+            int indexSlot = CONTAINS;
+            int indexDomainSize = -1;
+            for (int i = 0; i < binds.length; i++) {
+                int variable = literal.variables[i];
+                if (variable != CONSTANT && !bound[variable]) {
+                    binds[i] = true;
+                    bound[variable] = true;
+                    if (indexSlot == CONTAINS) {
+                        indexSlot = SCAN;
+                    }
+                }
+            }
+            if (indexSlot == SCAN) {
+                for (int i = 0; i < binds.length; i++) {
+                    if (!binds[i] && domainSizes[literal.form][i] > indexDomainSize) {
+                        indexSlot = i;
+                        indexDomainSize = domainSizes[literal.form][i];
+                    }
+                }
+                if (indexSlot >= 0) {
+                    indexedSlots[literal.form][indexSlot] = true;
+                }
+            }
+            return new Step(Literal.Kind.POSITIVE, literal, binds, indexSlot);
+        }
+
+        GdlConstant getValue(int slot, GdlConstant[] binding) {
+            int variable = variables[slot];
+            return (variable == CONSTANT) ? constants[slot] : binding[variable];
+        }
+
+        Tuple toTuple(GdlConstant[] binding) {
+            GdlConstant[] values = new GdlConstant[variables.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = getValue(i, binding);
+            }
+            return new Tuple(values);
+        }
+
+        /*
+         * Binds the variables in the literal to the tuple's values, or returns
+         * false if the tuple doesn't match the positions already bound.
+         */
+        boolean bind(Tuple tuple, GdlConstant[] binding) {
+            for (int i = 0; i < variables.length; i++) {
+                if (binds[i]) {
+                    binding[variables[i]] = tuple.get(i);
+                } else if (tuple.get(i) != getValue(i, binding)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.ggp.base.util.ruleengine.forwardchaining;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+
+/**
+ * The true sentences of a single sentence form, with indexes on the tuple
+ * positions that compiled rules look them up by.
+ *
+ * The indexes are all built as facts are added, rather than on demand, so
+ * that once a FormFacts is fully computed it can be read by multiple threads
+ * at once. It must not be modified while other threads are reading it.
+ *
+ * A FormFacts can also be made from another one plus a few changes (see
+ * {@link #withChanges(FormFacts, Iterable, Iterable)}), without copying the
+ * other's facts. These can't be modified at all.
+ */
+final class FormFacts {
+    private final boolean[] indexedSlots;
+    private final Set<Tuple> tuples;
+    private final List<Tuple> tupleList;
+    // Null for positions that aren't indexed.
+    private final List<Map<GdlConstant, List<Tuple>>> indexes;
+
+    // If this is made of changes to another FormFacts, that one, which holds
+    // its facts directly; the facts added to it, none of which are in base;
+    // and the facts removed from it, all of which are. Null otherwise.
+    private final FormFacts base;
+    private final FormFacts added;
+    private final Set<Tuple> removed;
+    // All of the facts, gathered when first asked for.
+    private volatile List<Tuple> allTuples;
+
+    FormFacts(boolean[] indexedSlots) {
+        this.indexedSlots = indexedSlots;
+        this.tuples = new HashSet<Tuple>();
+        this.tupleList = new ArrayList<Tuple>();
+        this.indexes = new ArrayList<Map<GdlConstant, List<Tuple>>>(indexedSlots.length);
+        for (boolean indexed : indexedSlots) {
+            indexes.add(indexed ? new HashMap<GdlConstant, List<Tuple>>() : null);
+        }
+        this.base = null;
+        this.added = null;
+        this.removed = null;
+    }
+
+    private FormFacts(FormFacts base, FormFacts added, Set<Tuple> removed) {
+        this.indexedSlots = base.indexedSlots;
+        this.tuples = null;
+        this.tupleList = null;
+        this.indexes = null;
+        this.base = base;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    /**
+     * Returns the facts of the parent, with the gained tuples added and the
+     * lost ones removed. The gained tuples must not be in the parent, and the
+     * lost ones must be.
+     *
+     * The result refers to the parent's facts rather than copying them, so
+     * this takes time proportional to the number of changes, plus the
+     * changes the parent itself was made with. Once there are more than a
+     * few of those, they are copied into a new FormFacts instead, so lookups
+     * never go through more than one set of changes.
+     */
+    static FormFacts withChanges(FormFacts parent, Iterable<Tuple> gained, Iterable<Tuple> lost) {
+        FormFacts base = (parent.base == null) ? parent : parent.base;
+        Set<Tuple> addedTuples = new HashSet<Tuple>();
+        Set<Tuple> removedTuples = new HashSet<Tuple>();
+        if (parent.base != null) {
+            addedTuples.addAll(parent.added.tuples);
+            removedTuples.addAll(parent.removed);
+        }
+        for (Tuple tuple : lost) {
+            if (!addedTuples.remove(tuple)) {
+                removedTuples.add(tuple);
+            }
+        }
+        for (Tuple tuple : gained) {
+            if (!removedTuples.remove(tuple)) {
+                addedTuples.add(tuple);
+            }
+        }
+
+        if (addedTuples.size() + removedTuples.size() > maxChanges(base.tupleList.size())) {
+            FormFacts copy = new FormFacts(base.indexedSlots);
+            for (Tuple tuple : base.tupleList) {
+                if (!removedTuples.contains(tuple)) {
+                    copy.add(tuple);
+                }
+            }
+            for (Tuple tuple : addedTuples) {
+                copy.add(tuple);
+            }
+            return copy;
+        }
+        FormFacts added = new FormFacts(base.indexedSlots);
+        for (Tuple tuple : addedTuples) {
+            added.add(tuple);
+        }
+        return new FormFacts(base, added, removedTuples);
+    }
+
+    /*
+     * How many changes to carry over from one FormFacts to the next before
+     * copying them into new facts. Carrying c changes costs c per step, and
+     * copying n facts every c steps costs n / c per step, so the total is
+     * smallest around the square root of n.
+     */
+    private static int maxChanges(int numFacts) {
+        return 4 + (int) Math.sqrt(numFacts);
+    }
+
+    /**
+     * Returns true if the tuple was not already present.
+     */
+    boolean add(Tuple tuple) {
+        if (base != null) {
+            throw new UnsupportedOperationException("Facts made from changes to other facts can't be modified");
+        }
+        if (!tuples.add(tuple)) {
+            return false;
+        }
+        tupleList.add(tuple);
+        for (int slot = 0; slot < indexes.size(); slot++) {
+            Map<GdlConstant, List<Tuple>> index = indexes.get(slot);
+            if (index != null) {
+                GdlConstant key = tuple.get(slot);
+                List<Tuple> tuplesForKey = index.get(key);
+                if (tuplesForKey == null) {
+                    tuplesForKey = new ArrayList<Tuple>();
+                    index.put(key, tuplesForKey);
+                }
+                tuplesForKey.add(tuple);
+            }
+        }
+        return true;
+    }
+
+    boolean contains(Tuple tuple) {
+        if (base != null) {
+            return added.contains(tuple) || (base.contains(tuple) && !removed.contains(tuple));
+        }
+        return tuples.contains(tuple);
+    }
+
+    boolean isEmpty() {
+        if (base != null) {
+            return base.tupleList.size() - removed.size() + added.tupleList.size() == 0;
+        }
+        return tupleList.isEmpty();
+    }
+
+    List<Tuple> getAll() {
+        if (base == null) {
+            return tupleList;
+        }
+        List<Tuple> all = allTuples;
+        if (all == null) {
+            all = combine(base.tupleList, added.tupleList);
+            allTuples = all;
+        }
+        return all;
+    }
+
+    /**
+     * Returns the tuples with the given value in the given position, which
+     * must be one of the indexed positions.
+     */
+    List<Tuple> getMatching(int slot, GdlConstant value) {
+        if (base != null) {
+            return combine(base.getMatching(slot, value), added.getMatching(slot, value));
+        }
+        List<Tuple> results = indexes.get(slot).get(value);
+        return (results == null) ? Collections.<Tuple>emptyList() : results;
+    }
+
+    /*
+     * Returns the tuples from the base that weren't removed, followed by the
+     * added ones.
+     */
+    private List<Tuple> combine(List<Tuple> fromBase, List<Tuple> fromAdded) {
+        if (fromAdded.isEmpty() && removed.isEmpty()) {
+            return fromBase;
+        }
+        if (fromBase.isEmpty()) {
+            return fromAdded;
+        }
+        List<Tuple> results = new ArrayList<Tuple>(fromBase.size() + fromAdded.size());
+        for (int i = 0; i < fromBase.size(); i++) {
+            Tuple tuple = fromBase.get(i);
+            if (!removed.contains(tuple)) {
+                results.add(tuple);
+            }
+        }
+        results.addAll(fromAdded);
+        return results;
+    }
+}
@@ -0,0 +1,772 @@
+package org.ggp.base.util.ruleengine.forwardchaining;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.model.DependencyGraphs;
+import org.ggp.base.util.gdl.model.SentenceDomainModel;
+import org.ggp.base.util.gdl.model.SentenceDomainModelFactory;
+import org.ggp.base.util.gdl.model.SentenceDomainModelOptimizer;
+import org.ggp.base.util.gdl.model.SentenceForm;
+import org.ggp.base.util.gdl.model.SentenceForms;
+import org.ggp.base.util.gdl.model.SimpleSentenceForm;
+import org.ggp.base.util.gdl.transforms.ConstantCheckerFactory;
+import org.ggp.base.util.gdl.transforms.DeORer;
+import org.ggp.base.util.gdl.transforms.GdlCleaner;
+import org.ggp.base.util.gdl.transforms.ImmutableConstantChecker;
+import org.ggp.base.util.gdl.transforms.VariableConstrainer;
+import org.ggp.base.util.ruleengine.GameDescriptionException;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.StdTranslator;
+import org.ggp.base.util.ruleengine.Translator;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+
+import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A RuleEngine that evaluates the game rules bottom-up, rather than answering
+ * each query top-down as the prover does.
+ *
+ * Sentences that are the same in every state are computed once, up front,
+ * with the forward-chaining {@link ConstantCheckerFactory}. The remaining
+ * rules are compiled into join plans over the tuples of each sentence form
+ * (see {@link CompiledRule}), which are run stratum by stratum for each new
+ * state to find every sentence that doesn't depend on the players' moves;
+ * legal moves, goals, and terminality are then read off that model. Next
+ * states are computed by adding the moves to a copy of the state's model and
+ * evaluating just the move-dependent strata. Recursive strata are evaluated
+ * semi-naively, only looking for rule results that use sentences derived in
+ * the previous pass.
+ *
+ * The models of recently used states are kept in a small cache, since
+ * callers typically ask several questions about each state in a row.
+ *
+ * A differential engine (see {@link #createDifferential(List)}) also
+ * remembers which state each next state came from, and derives the next
+ * state's model from its parent's. Consecutive states usually differ in only
+ * a few base sentences, which are found by comparing the two states. Strata
+ * that don't use them keep the parent's results as they are. The rest are
+ * updated by finding just the results that depend on the changes: results
+ * that lost a supporting sentence are dropped unless they can be derived
+ * another way, and results using new sentences are added. Changed forms refer
+ * to the parent's facts plus the changes, rather than copying them (see
+ * {@link FormFacts#withChanges(FormFacts, Iterable, Iterable)}). Recursive
+ * strata whose inputs change are evaluated from scratch.
+ *
+ * This is thread-safe.
+ */
+public class ForwardChainingRuleEngine implements RuleEngine<Move, MachineState> {
+    public static final int DEFAULT_MAX_CACHED_STATES = 16;
+
+    private final ImmutableList<Role> roles;
+    private final ImmutableList<SentenceForm> forms;
+    private final Map<SentenceForm, Integer> formIndexes;
+    // Which positions of each form's tuples the compiled rules look them up by.
+    private final boolean[][] indexedSlots;
+    // Facts for the constant forms, shared by every state; null for other forms.
+    private final FormFacts[] constantFacts;
+    // Sentences listed as true in the description for each non-constant form.
+    private final List<List<Tuple>> listedFacts;
+    // Non-constant forms that don't depend on the moves, and those that do.
+    private final int[] stateForms;
+    private final int[] moveForms;
+    // Forms that don't depend on the moves and aren't derived, e.g. true.
+    private final int[] baseForms;
+    // The strata of each kind, in the order they must be evaluated.
+    private final ImmutableList<Stratum> stateStrata;
+    private final ImmutableList<Stratum> moveStrata;
+    private final int[] legalForms;
+    private final int[] goalForms;
+    private final int[] terminalForms;
+    private final int[] nextForms;
+    private final MachineState initialState;
+
+    // Translations to and from sentences, which are expensive to redo.
+    private final ConcurrentMap<GdlSentence, Fact> factsBySentence = new ConcurrentHashMap<GdlSentence, Fact>();
+    private final ConcurrentMap<Fact, Move> movesByFact = new ConcurrentHashMap<Fact, Move>();
+    private final ConcurrentMap<Fact, GdlSentence> trueSentencesByFact = new ConcurrentHashMap<Fact, GdlSentence>();
+
+    private final LoadingCache<MachineState, FormFacts[]> stateModels;
+    // For a differential engine, the states that recently returned states
+    // came from, with their models; null otherwise.
+    private final Cache<MachineState, Parent> parents;
+
+    private ForwardChainingRuleEngine(ImmutableList<Role> roles, SentenceDomainModel model,
+            ImmutableConstantChecker constantChecker, int maxCachedStates, boolean differential)
+                    throws InterruptedException {
+        this.roles = roles;
+
+        Set<SentenceForm> constantForms = model.getConstantSentenceForms();
+        Set<SentenceForm> nonConstantForms = Sets.difference(model.getSentenceForms(), constantForms);
+
+        // Forms that appear in rule bodies but never as true are treated as constant.
+        Set<SentenceForm> allForms = new HashSet<SentenceForm>(model.getSentenceForms());
+        for (SentenceForm form : nonConstantForms) {
+            for (GdlRule rule : model.getRules(form)) {
+                for (GdlSentence sentence : GdlUtils.getSentencesInRuleBody(rule)) {
+                    allForms.add(model.getSentenceForm(sentence));
+                }
+            }
+        }
+        this.forms = ImmutableList.copyOf(allForms);
+        this.formIndexes = new HashMap<SentenceForm, Integer>();
+        for (int i = 0; i < forms.size(); i++) {
+            formIndexes.put(forms.get(i), i);
+        }
+
+        this.legalForms = getFormsNamed(GdlPool.LEGAL);
+        this.goalForms = getFormsNamed(GdlPool.GOAL);
+        this.terminalForms = getFormsNamed(GdlPool.TERMINAL);
+        this.nextForms = getFormsNamed(GdlPool.NEXT);
+
+        int[][] domainSizes = new int[forms.size()][];
+        this.indexedSlots = new boolean[forms.size()][];
+        for (int i = 0; i < forms.size(); i++) {
+            SentenceForm form = forms.get(i);
+            domainSizes[i] = new int[form.getTupleSize()];
+            for (int slot = 0; slot < form.getTupleSize(); slot++) {
+                domainSizes[i][slot] = model.getSentenceForms().contains(form)
+                        ? model.getDomain(form).getDomainForSlot(slot).size()
+                        : 1;
+            }
+            indexedSlots[i] = new boolean[form.getTupleSize()];
+        }
+        // Legal moves and goals are looked up by role.
+        for (int form : legalForms) {
+            indexedSlots[form][0] = true;
+        }
+        for (int form : goalForms) {
+            indexedSlots[form][0] = true;
+        }
+
+        Multimap<SentenceForm, SentenceForm> dependencyGraph = ImmutableMultimap.copyOf(
+                Multimaps.filterValues(model.getDependencyGraph(), Predicates.in(nonConstantForms)));
+        List<Set<SentenceForm>> ordering = DependencyGraphs.toposortSafe(nonConstantForms, dependencyGraph);
+        // Unlike the model's independent forms, this only considers dependencies
+        // within a single turn.
+        Set<SentenceForm> moveDependentForms = DependencyGraphs.getMatchingAndDownstream(
+                model.getSentenceForms(), ImmutableSetMultimap.copyOf(model.getDependencyGraph()),
+                SentenceForms.DOES_PRED);
+        ImmutableList.Builder<Stratum> stateStrata = ImmutableList.builder();
+        ImmutableList.Builder<Stratum> moveStrata = ImmutableList.builder();
+        for (Set<SentenceForm> stratumForms : ordering) {
+            Stratum stratum = Stratum.create(stratumForms, model, dependencyGraph,
+                    formIndexes, domainSizes, indexedSlots);
+            if (stratum.rules.isEmpty()) {
+                // e.g. true and does, which are supplied as inputs
+                continue;
+            }
+            if (Collections.disjoint(stratumForms, moveDependentForms)) {
+                stateStrata.add(stratum);
+            } else {
+                moveStrata.add(stratum);
+            }
+        }
+        this.stateStrata = stateStrata.build();
+        this.moveStrata = moveStrata.build();
+
+        // Now that the indexes needed are known, the facts can be stored.
+        this.constantFacts = new FormFacts[forms.size()];
+        this.listedFacts = new ArrayList<List<Tuple>>();
+        List<Integer> stateForms = new ArrayList<Integer>();
+        List<Integer> moveForms = new ArrayList<Integer>();
+        for (int i = 0; i < forms.size(); i++) {
+            SentenceForm form = forms.get(i);
+            List<Tuple> listed = new ArrayList<Tuple>();
+            if (nonConstantForms.contains(form)) {
+                for (GdlSentence sentence : model.getSentencesListedAsTrue(form)) {
+                    listed.add(Tuple.fromGroundSentence(sentence));
+                }
+                if (moveDependentForms.contains(form)) {
+                    moveForms.add(i);
+                } else {
+                    stateForms.add(i);
+                }
+            } else {
+                constantFacts[i] = new FormFacts(indexedSlots[i]);
+                for (GdlSentence sentence : constantChecker.getTrueSentences(form)) {
+                    constantFacts[i].add(Tuple.fromGroundSentence(sentence));
+                }
+            }
+            listedFacts.add(listed);
+        }
+        this.stateForms = toArray(stateForms);
+        this.moveForms = toArray(moveForms);
+        for (Stratum stratum : this.stateStrata) {
+            for (int form : stratum.forms) {
+                stateForms.remove(Integer.valueOf(form));
+            }
+        }
+        this.baseForms = toArray(stateForms);
+
+        this.parents = differential
+                ? CacheBuilder.newBuilder().maximumSize(maxCachedStates).<MachineState, Parent>build()
+                : null;
+
+        this.stateModels = CacheBuilder.newBuilder()
+                .maximumSize(maxCachedStates)
+                .build(new CacheLoader<MachineState, FormFacts[]>() {
+                    @Override
+                    public FormFacts[] load(MachineState state) {
+                        Parent parent = (parents == null) ? null : parents.getIfPresent(state);
+                        if (parent != null) {
+                            return computeStateModelFromParent(state, parent);
+                        }
+                        return computeStateModel(state);
+                    }
+                });
+        this.initialState = toState(computeStateModel(new MachineState(Collections.<GdlSentence>emptySet())),
+                getFormsNamed(GdlPool.INIT));
+    }
+
+    public static ForwardChainingRuleEngine create(List<Gdl> description) throws InterruptedException {
+        return create(description, DEFAULT_MAX_CACHED_STATES, false);
+    }
+
+    public static ForwardChainingRuleEngine createDifferential(List<Gdl> description) throws InterruptedException {
+        return create(description, DEFAULT_MAX_CACHED_STATES, true);
+    }
+
+    public static ForwardChainingRuleEngine create(List<Gdl> description, int maxCachedStates,
+            boolean differential) throws InterruptedException {
+        description = GdlCleaner.run(description);
+        description = DeORer.run(description);
+        description = VariableConstrainer.replaceFunctionValuedVariables(description);
+
+        SentenceDomainModel model = SentenceDomainModelFactory.createWithCartesianDomains(description);
+        model = SentenceDomainModelOptimizer.restrictDomainsToUsefulValues(model);
+        ImmutableConstantChecker constantChecker = ConstantCheckerFactory.createWithForwardChaining(model);
+
+        ImmutableList<Role> roles = ImmutableList.copyOf(Role.computeRoles(description));
+        return new ForwardChainingRuleEngine(roles, model, constantChecker, maxCachedStates, differential);
+    }
+
+    private int[] getFormsNamed(GdlConstant name) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < forms.size(); i++) {
+            if (forms.get(i).getName() == name) {
+                result.add(i);
+            }
+        }
+        return toArray(result);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    @Override
+    public MachineState getInitialState() {
+        return initialState;
+    }
+
+    @Override
+    public int getNumRoles() {
+        return roles.size();
+    }
+
+    @Override
+    public List<Role> getRoles() {
+        return roles;
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state) {
+        FormFacts[] facts = getStateModel(state);
+        for (int form : terminalForms) {
+            if (!facts[form].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getGoal(MachineState state, int roleIndex) throws GameDescriptionException {
+        Role role = roles.get(roleIndex);
+        FormFacts[] facts = getStateModel(state);
+        Tuple goal = null;
+        for (int form : goalForms) {
+            for (Tuple tuple : facts[form].getMatching(0, role.getName())) {
+                if (goal != null) {
+                    throw GameDescriptionException.createForGoals(state, role);
+                }
+                goal = tuple;
+            }
+        }
+        if (goal == null) {
+            throw GameDescriptionException.createForGoals(state, role);
+        }
+        try {
+            return Integer.parseInt(goal.get(1).getValue());
+        } catch (NumberFormatException e) {
+            throw GameDescriptionException.createForGoals(state, role, e);
+        }
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, int roleIndex) throws GameDescriptionException {
+        Role role = roles.get(roleIndex);
+        FormFacts[] facts = getStateModel(state);
+        List<Move> moves = Lists.newArrayList();
+        for (int form : legalForms) {
+            for (Tuple tuple : facts[form].getMatching(0, role.getName())) {
+                moves.add(toMove(form, tuple));
+            }
+        }
+        if (moves.isEmpty()) {
+            throw GameDescriptionException.createForLegalMoves(state, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> jointMove) throws GameDescriptionException {
+        FormFacts[] stateModel = getStateModel(state);
+        FormFacts[] facts = stateModel.clone();
+        for (int form : moveForms) {
+            facts[form] = createFacts(form);
+        }
+        for (int r = 0; r < roles.size(); r++) {
+            GdlSentence does = GdlPool.getRelation(GdlPool.DOES, new GdlTerm[] {
+                    roles.get(r).getName(), jointMove.get(r).getContents()});
+            addFact(facts, does);
+        }
+        evaluate(moveStrata, facts);
+        MachineState nextState = toState(facts, nextForms);
+        if (parents != null) {
+            parents.put(nextState, new Parent(state, stateModel));
+        }
+        return nextState;
+    }
+
+    @Override
+    public Translator<Move, MachineState> getTranslator() {
+        return StdTranslator.INSTANCE;
+    }
+
+    @Override
+    public ForwardChainingRuleEngine getInstanceForThread() {
+        // This is thread-safe, so every thread can share it.
+        return this;
+    }
+
+    private FormFacts[] getStateModel(MachineState state) {
+        try {
+            return stateModels.get(state);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private FormFacts[] computeStateModel(MachineState state) {
+        FormFacts[] facts = constantFacts.clone();
+        for (int form : stateForms) {
+            facts[form] = createFacts(form);
+        }
+        for (GdlSentence sentence : state.getContents()) {
+            addFact(facts, sentence);
+        }
+        evaluate(stateStrata, facts);
+        return facts;
+    }
+
+    private FormFacts[] computeStateModelFromParent(MachineState state, Parent parent) {
+        FormFacts[] parentModel = parent.model;
+        FormFacts[] facts = parentModel.clone();
+
+        // The changes to each form since the parent state; null if unchanged.
+        // Only the base sentences differ between the two states' inputs.
+        FormFacts[] gained = new FormFacts[forms.size()];
+        FormFacts[] lost = new FormFacts[forms.size()];
+        Set<GdlSentence> parentContents = parent.state.getContents();
+        Set<GdlSentence> contents = state.getContents();
+        for (GdlSentence sentence : contents) {
+            if (!parentContents.contains(sentence)) {
+                addChange(gained, parentModel, sentence);
+            }
+        }
+        for (GdlSentence sentence : parentContents) {
+            if (!contents.contains(sentence)) {
+                addChange(lost, parentModel, sentence);
+            }
+        }
+        for (int form : baseForms) {
+            applyChanges(form, parentModel, facts, gained, lost);
+        }
+
+        List<Tuple> results = new ArrayList<Tuple>();
+        for (Stratum stratum : stateStrata) {
+            if (!stratum.hasAnyInput(gained) && !stratum.hasAnyInput(lost)) {
+                // The parent's results still hold.
+                continue;
+            }
+            if (stratum.recursive) {
+                for (int form : stratum.forms) {
+                    facts[form] = createFacts(form);
+                }
+                evaluate(Collections.singletonList(stratum), facts);
+                for (int form : stratum.forms) {
+                    findChanges(form, parentModel[form], facts, gained, lost);
+                }
+            } else {
+                updateStratum(stratum, parentModel, facts, gained, lost, results);
+            }
+        }
+        return facts;
+    }
+
+    /*
+     * Records a base sentence that was added or removed between the parent
+     * state and this one. As in addFact, sentences of forms that aren't in
+     * the model are ignored.
+     */
+    private void addChange(FormFacts[] changes, FormFacts[] parentModel, GdlSentence sentence) {
+        Fact fact = getFact(sentence);
+        if (fact != Fact.NONE && constantFacts[fact.form] == null && parentModel[fact.form] != null) {
+            getOrCreateFacts(changes, fact.form).add(fact.tuple);
+        }
+    }
+
+    /*
+     * Makes a form's facts from the parent's and the recorded changes to it,
+     * if there are any.
+     */
+    private static void applyChanges(int form, FormFacts[] parentModel, FormFacts[] facts,
+            FormFacts[] gained, FormFacts[] lost) {
+        if (gained[form] != null || lost[form] != null) {
+            facts[form] = FormFacts.withChanges(parentModel[form],
+                    (gained[form] == null) ? Collections.<Tuple>emptyList() : gained[form].getAll(),
+                    (lost[form] == null) ? Collections.<Tuple>emptyList() : lost[form].getAll());
+        }
+    }
+
+    /*
+     * Updates the results of a non-recursive stratum from the parent's, given
+     * the changes to its inputs, and records the changes to its own results.
+     */
+    private void updateStratum(Stratum stratum, FormFacts[] parentModel, FormFacts[] facts,
+            FormFacts[] gained, FormFacts[] lost, List<Tuple> results) {
+        Map<Integer, Set<Tuple>> maybeRemoved = new HashMap<Integer, Set<Tuple>>();
+        Map<Integer, Set<Tuple>> maybeAdded = new HashMap<Integer, Set<Tuple>>();
+        for (int form : stratum.forms) {
+            maybeRemoved.put(form, new HashSet<Tuple>());
+            maybeAdded.put(form, new HashSet<Tuple>());
+        }
+        for (CompiledRule rule : stratum.rules) {
+            results.clear();
+            rule.evaluateChanges(parentModel, lost, gained, results);
+            maybeRemoved.get(rule.getHeadForm()).addAll(results);
+            results.clear();
+            rule.evaluateChanges(facts, gained, lost, results);
+            maybeAdded.get(rule.getHeadForm()).addAll(results);
+        }
+
+        for (int form : stratum.forms) {
+            FormFacts parentFacts = parentModel[form];
+            // Everything found with the new facts is a result in this state;
+            // the old results that may have lost their support are only gone
+            // if they can't be derived another way.
+            for (Tuple tuple : maybeAdded.get(form)) {
+                if (!parentFacts.contains(tuple)) {
+                    getOrCreateFacts(gained, form).add(tuple);
+                }
+            }
+            for (Tuple tuple : maybeRemoved.get(form)) {
+                if (parentFacts.contains(tuple) && !maybeAdded.get(form).contains(tuple)
+                        && !isDerived(stratum, form, tuple, facts)) {
+                    getOrCreateFacts(lost, form).add(tuple);
+                }
+            }
+            applyChanges(form, parentModel, facts, gained, lost);
+        }
+    }
+
+    private static boolean isDerived(Stratum stratum, int form, Tuple tuple, FormFacts[] facts) {
+        for (CompiledRule rule : stratum.rules) {
+            if (rule.getHeadForm() == form && rule.derives(facts, tuple)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Compares a form's facts to the parent's, recording the differences. If
+     * there are none, the parent's copy is used.
+     */
+    private void findChanges(int form, FormFacts parentFacts, FormFacts[] facts,
+            FormFacts[] gained, FormFacts[] lost) {
+        FormFacts newFacts = facts[form];
+        for (Tuple tuple : newFacts.getAll()) {
+            if (!parentFacts.contains(tuple)) {
+                getOrCreateFacts(gained, form).add(tuple);
+            }
+        }
+        for (Tuple tuple : parentFacts.getAll()) {
+            if (!newFacts.contains(tuple)) {
+                getOrCreateFacts(lost, form).add(tuple);
+            }
+        }
+        if (gained[form] == null && lost[form] == null) {
+            facts[form] = parentFacts;
+        }
+    }
+
+    private FormFacts getOrCreateFacts(FormFacts[] facts, int form) {
+        if (facts[form] == null) {
+            facts[form] = new FormFacts(indexedSlots[form]);
+        }
+        return facts[form];
+    }
+
+    private FormFacts createFacts(int form) {
+        FormFacts facts = new FormFacts(indexedSlots[form]);
+        for (Tuple tuple : listedFacts.get(form)) {
+            facts.add(tuple);
+        }
+        return facts;
+    }
+
+    /*
+     * Sentences whose forms don't appear in the rules can't affect anything,
+     * so they are dropped, as are any of constant forms.
+     */
+    private void addFact(FormFacts[] facts, GdlSentence sentence) {
+        Fact fact = getFact(sentence);
+        if (fact != Fact.NONE && constantFacts[fact.form] == null && facts[fact.form] != null) {
+            facts[fact.form].add(fact.tuple);
+        }
+    }
+
+    private Fact getFact(GdlSentence sentence) {
+        Fact fact = factsBySentence.get(sentence);
+        if (fact == null) {
+            Integer form = formIndexes.get(SimpleSentenceForm.create(sentence));
+            fact = (form == null) ? Fact.NONE : new Fact(form, Tuple.fromGroundSentence(sentence));
+            factsBySentence.putIfAbsent(sentence, fact);
+        }
+        return fact;
+    }
+
+    private void evaluate(List<Stratum> strata, FormFacts[] facts) {
+        List<Tuple> results = new ArrayList<Tuple>();
+        for (Stratum stratum : strata) {
+            if (!stratum.recursive) {
+                for (CompiledRule rule : stratum.rules) {
+                    results.clear();
+                    rule.evaluate(facts, results);
+                    FormFacts headFacts = facts[rule.getHeadForm()];
+                    for (Tuple result : results) {
+                        headFacts.add(result);
+                    }
+                }
+                continue;
+            }
+
+            FormFacts[] newFacts = createDeltas(stratum);
+            for (CompiledRule rule : stratum.rules) {
+                results.clear();
+                rule.evaluate(facts, results);
+                int headForm = rule.getHeadForm();
+                for (Tuple result : results) {
+                    if (facts[headForm].add(result)) {
+                        newFacts[headForm].add(result);
+                    }
+                }
+            }
+
+            // Semi-naive evaluation: only look for results using the newest facts
+            while (stratum.hasAny(newFacts)) {
+                FormFacts[] newFactsInThisPass = createDeltas(stratum);
+                for (CompiledRule rule : stratum.rules) {
+                    results.clear();
+                    rule.evaluateDelta(facts, newFacts, results);
+                    int headForm = rule.getHeadForm();
+                    for (Tuple result : results) {
+                        if (!facts[headForm].contains(result)) {
+                            newFactsInThisPass[headForm].add(result);
+                        }
+                    }
+                }
+                for (int form : stratum.forms) {
+                    for (Tuple tuple : newFactsInThisPass[form].getAll()) {
+                        facts[form].add(tuple);
+                    }
+                }
+                newFacts = newFactsInThisPass;
+            }
+        }
+    }
+
+    private FormFacts[] createDeltas(Stratum stratum) {
+        FormFacts[] deltas = new FormFacts[forms.size()];
+        for (int form : stratum.forms) {
+            deltas[form] = new FormFacts(indexedSlots[form]);
+        }
+        return deltas;
+    }
+
+    private Move toMove(int form, Tuple tuple) {
+        Fact fact = new Fact(form, tuple);
+        Move move = movesByFact.get(fact);
+        if (move == null) {
+            move = new Move(forms.get(form).getSentenceFromTuple(tuple.asList()).get(1));
+            movesByFact.putIfAbsent(fact, move);
+        }
+        return move;
+    }
+
+    /*
+     * Takes the bodies of the sentences of the given forms (e.g. init or next)
+     * as the contents of a state.
+     */
+    private MachineState toState(FormFacts[] facts, int[] sourceForms) {
+        Set<GdlSentence> contents = Sets.newHashSet();
+        for (int form : sourceForms) {
+            for (Tuple tuple : facts[form].getAll()) {
+                Fact fact = new Fact(form, tuple);
+                GdlSentence trueSentence = trueSentencesByFact.get(fact);
+                if (trueSentence == null) {
+                    GdlSentence sentence = forms.get(form).getSentenceFromTuple(tuple.asList());
+                    trueSentence = GdlPool.getRelation(GdlPool.TRUE, new GdlTerm[] {sentence.get(0)});
+                    trueSentencesByFact.putIfAbsent(fact, trueSentence);
+                }
+                contents.add(trueSentence);
+            }
+        }
+        return new MachineState(contents);
+    }
+
+    private static final class Parent {
+        private final MachineState state;
+        private final FormFacts[] model;
+
+        private Parent(MachineState state, FormFacts[] model) {
+            this.state = state;
+            this.model = model;
+        }
+    }
+
+    private static final class Fact {
+        private static final Fact NONE = new Fact(-1, null);
+
+        private final int form;
+        private final Tuple tuple;
+
+        private Fact(int form, Tuple tuple) {
+            this.form = form;
+            this.tuple = tuple;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * form + tuple.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Fact)) {
+                return false;
+            }
+            Fact other = (Fact) obj;
+            return form == other.form && tuple.equals(other.tuple);
+        }
+    }
+
+    private static class Stratum {
+        private final ImmutableList<CompiledRule> rules;
+        private final int[] forms;
+        private final boolean recursive;
+        // Forms of the sentences in the bodies of the rules, negated or not.
+        private final int[] inputForms;
+
+        private Stratum(ImmutableList<CompiledRule> rules, int[] forms, boolean recursive, int[] inputForms) {
+            this.rules = rules;
+            this.forms = forms;
+            this.recursive = recursive;
+            this.inputForms = inputForms;
+        }
+
+        public static Stratum create(Set<SentenceForm> stratumForms, SentenceDomainModel model,
+                Multimap<SentenceForm, SentenceForm> dependencyGraph, Map<SentenceForm, Integer> formIndexes,
+                int[][] domainSizes, boolean[][] indexedSlots) {
+            boolean recursive = stratumForms.size() > 1;
+            for (SentenceForm form : stratumForms) {
+                if (dependencyGraph.containsEntry(form, form)) {
+                    recursive = true;
+                }
+            }
+            boolean[] recursiveForms = new boolean[formIndexes.size()];
+            int[] forms = new int[stratumForms.size()];
+            int i = 0;
+            for (SentenceForm form : stratumForms) {
+                forms[i++] = formIndexes.get(form);
+                recursiveForms[formIndexes.get(form)] = recursive;
+            }
+            ImmutableList.Builder<CompiledRule> rules = ImmutableList.builder();
+            Set<Integer> inputForms = new HashSet<Integer>();
+            for (SentenceForm form : stratumForms) {
+                for (GdlRule rule : model.getRules(form)) {
+                    rules.add(CompiledRule.create(rule, model, formIndexes, domainSizes,
+                            recursiveForms, indexedSlots));
+                    for (GdlSentence sentence : GdlUtils.getSentencesInRuleBody(rule)) {
+                        inputForms.add(formIndexes.get(model.getSentenceForm(sentence)));
+                    }
+                }
+            }
+            return new Stratum(rules.build(), forms, recursive, toArray(new ArrayList<Integer>(inputForms)));
+        }
+
+        private boolean hasAnyInput(FormFacts[] facts) {
+            for (int form : inputForms) {
+                if (facts[form] != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean hasAny(FormFacts[] facts) {
+            for (int form : forms) {
+                if (!facts[form].isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.ggp.base.util.ruleengine.forwardchaining;
+
+import java.util.List;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.ruleengine.RuleEngineFactory;
+
+public class ForwardChainingRuleEngineFactory implements RuleEngineFactory<ForwardChainingRuleEngine> {
+    public static final ForwardChainingRuleEngineFactory INSTANCE = new ForwardChainingRuleEngineFactory(false);
+    public static final ForwardChainingRuleEngineFactory DIFFERENTIAL = new ForwardChainingRuleEngineFactory(true);
+
+    private final boolean differential;
+
+    private ForwardChainingRuleEngineFactory(boolean differential) {
+        this.differential = differential;
+    }
+
+    @Override
+    public ForwardChainingRuleEngine buildEngineForRules(List<Gdl> rules) {
+        try {
+            if (differential) {
+                return ForwardChainingRuleEngine.createDifferential(rules);
+            }
+            return ForwardChainingRuleEngine.create(rules);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
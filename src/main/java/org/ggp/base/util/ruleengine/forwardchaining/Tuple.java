@@ -0,0 +1,65 @@
+package org.ggp.base.util.ruleengine.forwardchaining;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * The constants of a ground sentence, in the order given by its sentence
+ * form. GdlConstants are pooled, so these are compared by identity.
+ */
+final class Tuple {
+    private final GdlConstant[] values;
+    private final int hashCode;
+
+    Tuple(GdlConstant[] values) {
+        this.values = values;
+        this.hashCode = Arrays.hashCode(values);
+    }
+
+    static Tuple fromGroundSentence(GdlSentence sentence) {
+        List<GdlConstant> values = GdlUtils.getTupleFromGroundSentence(sentence);
+        return new Tuple(values.toArray(new GdlConstant[values.size()]));
+    }
+
+    GdlConstant get(int index) {
+        return values[index];
+    }
+
+    List<GdlConstant> asList() {
+        return Arrays.asList(values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Tuple)) {
+            return false;
+        }
+        Tuple other = (Tuple) obj;
+        if (hashCode != other.hashCode || values.length != other.values.length) {
+            return false;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != other.values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
@@ -0,0 +1,162 @@
+package org.ggp.base.util.ruleengine.propnet;
+
+import java.util.List;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.compiled.BitSetMachineState;
+import org.ggp.base.util.propnet.compiled.CompiledPropNetCode;
+import org.ggp.base.util.propnet.compiled.IndexedPropNet;
+import org.ggp.base.util.propnet.compiled.PropNetCompiler;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.ruleengine.GameDescriptionException;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.StdTranslator;
+import org.ggp.base.util.ruleengine.Translator;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A RuleEngine that runs a propnet compiled to bytecode by the
+ * {@link PropNetCompiler}. Evaluating a state or a joint move runs generated
+ * straight-line code over an array of component values; legal, goal and
+ * terminal values are read out of that array by index.
+ *
+ * States are {@link BitSetMachineState}s. The generated code is stateless and
+ * each thread evaluates into its own buffers, so one engine can be shared by
+ * several threads at once.
+ */
+public class CompiledPropNetRuleEngine implements RuleEngine<Move, MachineState> {
+    private final IndexedPropNet propNet;
+    private final CompiledPropNetCode code;
+    private final ThreadLocal<Buffers> buffers;
+
+    private CompiledPropNetRuleEngine(IndexedPropNet propNet, CompiledPropNetCode code) {
+        this.propNet = propNet;
+        this.code = code;
+        int numComponents = propNet.getNumComponents();
+        this.buffers = ThreadLocal.withInitial(() -> new Buffers(numComponents));
+    }
+
+    public static CompiledPropNetRuleEngine create(List<Gdl> description) throws InterruptedException {
+        IndexedPropNet propNet = IndexedPropNet.create(OptimizingPropNetFactory.create(description));
+        return new CompiledPropNetRuleEngine(propNet, PropNetCompiler.compile(propNet));
+    }
+
+    @Override
+    public MachineState getInitialState() {
+        return propNet.getInitialState();
+    }
+
+    @Override
+    public int getNumRoles() {
+        return propNet.getRoles().size();
+    }
+
+    @Override
+    public List<Role> getRoles() {
+        return propNet.getRoles();
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state) {
+        return evaluateState(state)[propNet.getTerminalComponent()];
+    }
+
+    @Override
+    public int getGoal(MachineState state, int roleIndex) throws GameDescriptionException {
+        boolean[] values = evaluateState(state);
+        int[] goals = propNet.getGoalComponents(roleIndex);
+        int goal = -1;
+        for (int i = 0; i < goals.length; i++) {
+            if (values[goals[i]]) {
+                if (goal != -1) {
+                    throw GameDescriptionException.createForGoals(state, getRoles().get(roleIndex));
+                }
+                goal = propNet.getGoalValues(roleIndex)[i];
+            }
+        }
+        if (goal == -1) {
+            throw GameDescriptionException.createForGoals(state, getRoles().get(roleIndex));
+        }
+        return goal;
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, int roleIndex) throws GameDescriptionException {
+        boolean[] values = evaluateState(state);
+        int[] legals = propNet.getLegalComponents(roleIndex);
+        Move[] legalMoves = propNet.getLegalMoves(roleIndex);
+        List<Move> moves = Lists.newArrayList();
+        for (int i = 0; i < legals.length; i++) {
+            if (values[legals[i]]) {
+                moves.add(legalMoves[i]);
+            }
+        }
+        if (moves.isEmpty()) {
+            throw GameDescriptionException.createForLegalMoves(state, getRoles().get(roleIndex));
+        }
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> jointMove) throws GameDescriptionException {
+        if (jointMove.size() != getNumRoles()) {
+            throw GameDescriptionException.createForTransition(state, jointMove);
+        }
+        int[] inputComponents = new int[jointMove.size()];
+        for (int r = 0; r < jointMove.size(); r++) {
+            inputComponents[r] = propNet.getInputComponent(r, jointMove.get(r));
+            if (inputComponents[r] == IndexedPropNet.UNKNOWN_MOVE) {
+                throw GameDescriptionException.createForTransition(state, jointMove);
+            }
+        }
+        boolean[] values = evaluateState(state);
+        for (int inputComponent : inputComponents) {
+            if (inputComponent != IndexedPropNet.NO_INPUT) {
+                values[inputComponent] = true;
+            }
+        }
+        code.evaluateMoves(values);
+        long[] nextBits = new long[propNet.getNumWords()];
+        code.writeNextState(values, nextBits);
+        for (int inputComponent : inputComponents) {
+            if (inputComponent != IndexedPropNet.NO_INPUT) {
+                values[inputComponent] = false;
+            }
+        }
+        return propNet.createState(nextBits);
+    }
+
+    @Override
+    public Translator<Move, MachineState> getTranslator() {
+        return StdTranslator.INSTANCE;
+    }
+
+    /**
+     * Returns this thread's component values for the given state, with the
+     * components that don't depend on the moves evaluated. The values are
+     * reused when the same state is queried several times in a row, as when
+     * getting the legal moves of each role in turn.
+     */
+    private boolean[] evaluateState(MachineState state) {
+        BitSetMachineState bitState = propNet.toState(state);
+        Buffers buffers = this.buffers.get();
+        if (buffers.lastState != bitState) {
+            code.evaluateState(bitState.getBits(), buffers.values);
+            buffers.lastState = bitState;
+        }
+        return buffers.values;
+    }
+
+    private static class Buffers {
+        private final boolean[] values;
+        private BitSetMachineState lastState;
+
+        private Buffers(int numComponents) {
+            this.values = new boolean[numComponents];
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.ggp.base.util.ruleengine.propnet;
+
+import java.util.List;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.ruleengine.RuleEngineFactory;
+
+public class CompiledPropNetRuleEngineFactory implements RuleEngineFactory<CompiledPropNetRuleEngine> {
+    public static final CompiledPropNetRuleEngineFactory INSTANCE = new CompiledPropNetRuleEngineFactory();
+
+    private CompiledPropNetRuleEngineFactory() {
+    }
+
+    @Override
+    public CompiledPropNetRuleEngine buildEngineForRules(List<Gdl> rules) {
+        try {
+            return CompiledPropNetRuleEngine.create(rules);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -13,6 +13,7 @@ import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.prover.Prover;
 import org.ggp.base.util.prover.aima.AimaProver;
+import org.ggp.base.util.prover.compact.CompactProver;
 import org.ggp.base.util.prover.logging.StandardProverLogger;
 import org.ggp.base.util.ruleengine.GameDescriptionException;
 import org.ggp.base.util.ruleengine.RuleEngine;
@@ -45,6 +46,15 @@ public class ProverRuleEngine implements RuleEngine<Move, MachineState>
     }
 
     public static ProverRuleEngine create(List<Gdl> description, boolean noPreprocessing)
+    {
+        return create(description, noPreprocessing, false);
+    }
+
+    /**
+     * If tabled is true, the prover reuses answers across queries made against
+     * the same state; see {@link AimaProver#createWithTabling(List, int)}.
+     */
+    public static ProverRuleEngine create(List<Gdl> description, boolean noPreprocessing, boolean tabled)
     {
         Prover prover;
         StandardProverLogger log;
@@ -53,9 +63,12 @@ public class ProverRuleEngine implements RuleEngine<Move, MachineState>
 //            prover = new LoggingAimaProver(description, log);
             log = null;
             prover = AimaProver.createWithoutPreprocessing(description);
+        } else if (tabled) {
+            log = null;
+            prover = AimaProver.createWithTabling(description, AimaProver.DEFAULT_MAX_TABLED_CONTEXTS);
         } else {
             log = null;
-            prover = AimaProver.create(description);
+            prover = CompactProver.create(description);
         }
         ImmutableList<Role> roles = ImmutableList.copyOf(Role.computeRoles(description));
         MachineState initialState = computeInitialState(prover);
@@ -154,4 +167,12 @@ public class ProverRuleEngine implements RuleEngine<Move, MachineState>
     public Translator<Move, MachineState> getTranslator() {
         return StdTranslator.INSTANCE;
     }
+
+    /*
+     * All of the provers can be queried from several threads at once.
+     */
+    @Override
+    public ProverRuleEngine getInstanceForThread() {
+        return this;
+    }
 }
\ No newline at end of file
@@ -8,9 +8,15 @@ import org.ggp.base.util.ruleengine.RuleEngineFactory;
 
 public class ProverRuleEngineFactory implements RuleEngineFactory<ProverRuleEngine> {
     private final boolean experimental;
+    private final boolean tabled;
 
     public ProverRuleEngineFactory(boolean experimental) {
+        this(experimental, false);
+    }
+
+    public ProverRuleEngineFactory(boolean experimental, boolean tabled) {
         this.experimental = experimental;
+        this.tabled = tabled;
     }
 
     public static ProverRuleEngineFactory createNormal() {
@@ -21,11 +27,15 @@ public class ProverRuleEngineFactory implements RuleEngineFactory<ProverRuleEngi
         return new ProverRuleEngineFactory(true);
     }
 
+    public static ProverRuleEngineFactory createTabled() {
+        return new ProverRuleEngineFactory(false, true);
+    }
+
     @Override
     public ProverRuleEngine buildEngineForRules(List<Gdl> rules) {
         if (experimental) {
             rules = DistinctAndNotMover2.run(rules);
         }
-        return ProverRuleEngine.create(rules, experimental);
+        return ProverRuleEngine.create(rules, experimental, tabled);
     }
 }
@@ -1,6 +1,5 @@
 package org.ggp.base.util.statemachine;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -11,130 +10,53 @@ import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
-import org.ggp.base.util.statemachine.cache.TtlCache;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
-//TODO: This looks terribly unsynchronized...
+/**
+ * Kept so that code written against this class still compiles. It forwards
+ * everything to a {@link org.ggp.base.util.statemachine.cache.CachedStateMachine}.
+ *
+ * @deprecated Use {@link org.ggp.base.util.statemachine.cache.CachedStateMachine},
+ * which is bounded in size and safe to share between threads.
+ */
+@Deprecated
 public class CachedStateMachine extends StateMachine {
+    private final org.ggp.base.util.statemachine.cache.CachedStateMachine delegate;
 
-    private final class Entry
-    {
-        public Map<Role, Integer> goals;
-        public Map<Role, List<Move>> moves;
-        public Map<List<Move>, MachineState> nexts;
-        public Boolean terminal;
-        public Map<Role, Move> gebMoves;
-
-        public Entry()
-        {
-            goals = new HashMap<Role, Integer>();
-            moves = new HashMap<Role, List<Move>>();
-            nexts = new HashMap<List<Move>, MachineState>();
-            terminal = null;
-            gebMoves = null;
-        }
-    }
-
-    private final TtlCache<MachineState, Entry> ttlCache;
-
-    StateMachine internalStateMachine;
     public CachedStateMachine(StateMachine sm)
     {
-        internalStateMachine = sm;
-        ttlCache = new TtlCache<MachineState, Entry>(1);
-    }
-    private CachedStateMachine(StateMachine sm, TtlCache<MachineState, Entry> cache) {
-        internalStateMachine = sm;
-        ttlCache = cache;
-    }
-
-    private Entry getEntry(MachineState state)
-    {
-        if (!ttlCache.containsKey(state))
-        {
-            ttlCache.put(state, new Entry());
-        }
-
-        return ttlCache.get(state);
+        delegate = new org.ggp.base.util.statemachine.cache.CachedStateMachine(sm);
     }
 
     @Override
     public int getGoal(MachineState state, Role role) throws GoalDefinitionException
     {
-        Entry entry = getEntry(state);
-        synchronized (entry)
-        {
-            if (!entry.goals.containsKey(role))
-            {
-                entry.goals.put(role, internalStateMachine.getGoal(state, role));
-            }
-
-            return entry.goals.get(role);
-        }
+        return delegate.getGoal(state, role);
     }
 
     @Override
     public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
     {
-        Entry entry = getEntry(state);
-        synchronized (entry)
-        {
-            if (!entry.moves.containsKey(role))
-            {
-                entry.moves.put(role, internalStateMachine.getLegalMoves(state, role));
-            }
-
-            return entry.moves.get(role);
-        }
+        return delegate.getLegalMoves(state, role);
     }
 
     @Override
     public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
     {
-        Entry entry = getEntry(state);
-        //It has gotten a NullPointerException here...
-        synchronized (entry)
-        {
-            if (!entry.nexts.containsKey(moves))
-            {
-                entry.nexts.put(moves, internalStateMachine.getNextState(state, moves));
-            }
-
-            return entry.nexts.get(moves);
-        }
+        return delegate.getNextState(state, moves);
     }
 
     @Override
     public boolean isTerminal(MachineState state)
     {
-        Entry entry = getEntry(state);
-        if(entry == null)
-            throw new RuntimeException("How did we get a null entry? Check cache");
-        synchronized (entry)
-        {
-            if (entry.terminal == null)
-            {
-                entry.terminal = internalStateMachine.isTerminal(state);
-            }
-
-            return entry.terminal;
-        }
+        return delegate.isTerminal(state);
     }
 
     @Override
     public Map<Role, Move> getGebMoves(MachineState state) {
-        Entry entry = getEntry(state);
-        synchronized (entry)
-        {
-            if (entry.gebMoves == null)
-            {
-                entry.gebMoves = internalStateMachine.getGebMoves(state);
-            }
-
-            return entry.gebMoves;
-        }
+        return delegate.getGebMoves(state);
     }
 
     @Override
@@ -145,70 +67,69 @@ public class CachedStateMachine extends StateMachine {
 
     public void prune()
     {
-        ttlCache.prune();
+        delegate.prune();
     }
 
     @Override
     public MachineState getInitialState() {
-        return internalStateMachine.getInitialState();
+        return delegate.getInitialState();
     }
 
     @Override
     public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
-        return internalStateMachine.getMachineStateFromSentenceList(sentenceList);
+        return delegate.getMachineStateFromSentenceList(sentenceList);
     }
 
     @Override
     public Move getMoveFromTerm(GdlTerm term) {
-        return internalStateMachine.getMoveFromTerm(term);
+        return delegate.getMoveFromTerm(term);
     }
 
     @Override
     public Role getRoleFromConstant(GdlConstant constant) {
-        return internalStateMachine.getRoleFromConstant(constant);
+        return delegate.getRoleFromConstant(constant);
     }
 
     @Override
     public List<Role> getRoles() {
-        return internalStateMachine.getRoles();
+        return delegate.getRoles();
     }
 
     @Override
     public StateMachine getSynchronizedCopy() {
-        //We want the caches to be linked...
-        //This constructor causes the state machines to share their cache
-        return new CachedStateMachine(internalStateMachine.getSynchronizedCopy(), ttlCache);
+        // Shares the cache with this machine.
+        return delegate.getSynchronizedCopy();
     }
 
     @Override
     public void initialize(List<Gdl> description) {
-        internalStateMachine.initialize(description);
+        delegate.initialize(description);
     }
 
     @Override
     public MachineState translateState(MachineState state) {
-        return internalStateMachine.translateState(state);
+        return delegate.translateState(state);
     }
     @Override
     public boolean isNative(MachineState state) {
-        return internalStateMachine.isNative(state);
+        return delegate.isNative(state);
     }
     @Override
     public boolean isPropNetBased() {
-        return internalStateMachine.isPropNetBased();
+        return delegate.isPropNetBased();
     }
     @Override
     public PropNet getPropNet() {
-        return internalStateMachine.getPropNet();
+        return delegate.getPropNet();
     }
     @Override
     public boolean getComponentValue(MachineState state, Component component) {
-        return internalStateMachine.getComponentValue(state, component);
+        return delegate.getComponentValue(state, component);
     }
     @Override
     public int getComponentTrueInputsCount(MachineState state,
             Component component) {
-        return internalStateMachine.getComponentTrueInputsCount(state, component);
+        return delegate.getComponentTrueInputsCount(state, component);
     }
 
 }
@@ -0,0 +1,356 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.ruleengine.GameDescriptionException;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.RuleEngineFactory;
+import org.ggp.base.util.ruleengine.RuleEngineState;
+import org.ggp.base.util.ruleengine.Translator;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+
+import com.google.common.collect.ImmutableSet;
+
+
+/**
+ * The CrossCheckedStateMachine answers queries with a (usually much faster)
+ * RuleEngine built by the given factory, for use where correctness matters
+ * more than anything else, such as in the GameServer.
+ *
+ * For the first few steps of a match, every answer from the rule engine is
+ * checked against a prover backed by AimaProver. If they ever disagree, or the rule engine
+ * fails to build or throws an exception, the machine logs the problem and
+ * falls back to the prover for the rest of the match. Later steps only use
+ * the rule engine, but still fall back to the prover if it throws.
+ *
+ * States and moves are ordinary MachineStates and Moves, so the two can be
+ * swapped at any point. All methods are synchronized, so this can be shared
+ * between threads.
+ */
+public final class CrossCheckedStateMachine extends StateMachine
+{
+    /**
+     * A reasonable number of steps to check the rule engine for: enough to
+     * catch the most common problems, while still doing most of the work of
+     * a typical match on the rule engine.
+     */
+    public static final int DEFAULT_STEPS_TO_CHECK = 10;
+
+    private final RuleEngineFactory<?> ruleEngineFactory;
+    private final int stepsToCheck;
+    private final ProverStateMachine prover = ProverStateMachine.createWithAimaProver();
+    private @Nullable EngineAdapter<?, ?> engine = null;
+    private int stepsChecked = 0;
+
+    public CrossCheckedStateMachine(RuleEngineFactory<?> ruleEngineFactory)
+    {
+        this(ruleEngineFactory, DEFAULT_STEPS_TO_CHECK);
+    }
+
+    /**
+     * Checks the rule engine against the prover until stepsToCheck calls
+     * have been made to getNextState.
+     */
+    public CrossCheckedStateMachine(RuleEngineFactory<?> ruleEngineFactory, int stepsToCheck)
+    {
+        this.ruleEngineFactory = ruleEngineFactory;
+        this.stepsToCheck = stepsToCheck;
+    }
+
+    @Override
+    public String getName()
+    {
+        EngineAdapter<?, ?> engine;
+        synchronized (this) {
+            engine = this.engine;
+        }
+        return "CrossChecked(" + (engine != null ? engine.getName() : prover.getName()) + ")";
+    }
+
+    @Override
+    public synchronized void initialize(List<Gdl> description)
+    {
+        prover.initialize(description);
+        stepsChecked = 0;
+        try {
+            engine = EngineAdapter.create(ruleEngineFactory.buildEngineForRules(description));
+        } catch (Exception | StackOverflowError e) {
+            fallBack(e);
+            return;
+        }
+        if (!engine.getRoles().equals(prover.getRoles())) {
+            fallBack("gave the roles " + engine.getRoles() + " instead of " + prover.getRoles());
+        }
+    }
+
+    /**
+     * Returns true until the machine has fallen back to the prover.
+     */
+    public synchronized boolean isUsingRuleEngine()
+    {
+        return engine != null;
+    }
+
+    private boolean isChecking()
+    {
+        return stepsChecked < stepsToCheck;
+    }
+
+    private void fallBack(Throwable t)
+    {
+        if (t instanceof Exception) {
+            GamerLogger.logStackTrace("StateMachine", (Exception) t);
+        }
+        fallBack("threw " + t);
+    }
+
+    /*
+     * The reason completes the sentence "the rule engine ...".
+     */
+    private void fallBack(String reason)
+    {
+        GamerLogger.logError("StateMachine", "CrossChecked Machine: falling back to the prover, as the rule engine " + reason + ".");
+        engine = null;
+    }
+
+    /*
+     * Returns true if the rule engine's answer can be used: either we're no
+     * longer checking, or it agrees with the prover's. Otherwise falls back.
+     */
+    private boolean checkAgreement(Object engineResult, Object proverResult, String query, MachineState state)
+    {
+        if (engineResult.equals(proverResult)) {
+            return true;
+        }
+        fallBack("gave " + engineResult + " instead of " + proverResult + " for the " + query + " in state " + state);
+        return false;
+    }
+
+    @Override
+    public synchronized MachineState getInitialState()
+    {
+        if (engine != null) {
+            try {
+                MachineState result = engine.getInitialState();
+                if (!isChecking() || checkAgreement(result, prover.getInitialState(), "initial state", result)) {
+                    return result;
+                }
+            } catch (Exception | StackOverflowError e) {
+                fallBack(e);
+            }
+        }
+        return prover.getInitialState();
+    }
+
+    @Override
+    public synchronized boolean isTerminal(MachineState state)
+    {
+        if (engine != null) {
+            try {
+                boolean result = engine.isTerminal(state);
+                if (!isChecking() || checkAgreement(result, prover.isTerminal(state), "terminality", state)) {
+                    return result;
+                }
+            } catch (Exception | StackOverflowError e) {
+                fallBack(e);
+            }
+        }
+        return prover.isTerminal(state);
+    }
+
+    @Override
+    public synchronized int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        if (engine != null) {
+            try {
+                int result = engine.getGoal(state, getRoleIndices().get(role));
+                if (!isChecking() || checkAgreement(result, prover.getGoal(state, role), "goal for " + role, state)) {
+                    return result;
+                }
+            } catch (Exception | StackOverflowError e) {
+                // Includes the engine's GameDescriptionExceptions; if the goal
+                // really is undefined, the prover will throw as well.
+                fallBack(e);
+            }
+        }
+        return prover.getGoal(state, role);
+    }
+
+    @Override
+    public synchronized List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        if (engine != null) {
+            try {
+                List<Move> result = engine.getLegalMoves(state, getRoleIndices().get(role));
+                if (!isChecking() || checkAgreement(ImmutableSet.copyOf(result),
+                        ImmutableSet.copyOf(prover.getLegalMoves(state, role)), "legal moves for " + role, state)) {
+                    return result;
+                }
+            } catch (Exception | StackOverflowError e) {
+                fallBack(e);
+            }
+        }
+        return prover.getLegalMoves(state, role);
+    }
+
+    @Override
+    public synchronized MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        boolean checking = isChecking();
+        stepsChecked++;
+        if (engine != null) {
+            try {
+                MachineState result = engine.getNextState(state, moves);
+                if (!checking || checkAgreement(result, prover.getNextState(state, moves), "next state after " + moves, state)) {
+                    return result;
+                }
+            } catch (Exception | StackOverflowError e) {
+                fallBack(e);
+            }
+        }
+        return prover.getNextState(state, moves);
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return prover.getRoles();
+    }
+
+    @Override
+    public StateMachine getSynchronizedCopy()
+    {
+        return this;
+    }
+
+    @Override
+    public Map<Role, Move> getGebMoves(MachineState state)
+    {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public MachineState translateState(MachineState state)
+    {
+        return prover.translateState(state);
+    }
+
+    @Override
+    public boolean isNative(MachineState state)
+    {
+        return prover.isNative(state);
+    }
+
+    @Override
+    public boolean isPropNetBased()
+    {
+        return false;
+    }
+
+    @Override
+    public PropNet getPropNet()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean getComponentValue(MachineState state, Component component)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getComponentTrueInputsCount(MachineState state, Component component)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /*
+     * Converts between MachineStates and the rule engine's own states and
+     * moves. The referee asks several questions about each state in turn, so
+     * the most recently converted state is remembered.
+     */
+    private static final class EngineAdapter<M, S extends RuleEngineState<M, S>>
+    {
+        private final RuleEngine<M, S> engine;
+        private final Translator<M, S> translator;
+        private @Nullable MachineState lastState = null;
+        private @Nullable S lastNativeState = null;
+
+        private EngineAdapter(RuleEngine<M, S> engine)
+        {
+            this.engine = engine;
+            this.translator = engine.getTranslator();
+        }
+
+        private static <M, S extends RuleEngineState<M, S>> EngineAdapter<M, S> create(RuleEngine<M, S> engine)
+        {
+            return new EngineAdapter<M, S>(engine);
+        }
+
+        private String getName()
+        {
+            return engine.getClass().getSimpleName();
+        }
+
+        private List<Role> getRoles()
+        {
+            return engine.getRoles();
+        }
+
+        private S toNative(MachineState state)
+        {
+            if (state != lastState) {
+                lastNativeState = translator.getNativeState(state.getContents());
+                lastState = state;
+            }
+            return lastNativeState;
+        }
+
+        private MachineState toMachineState(S nativeState)
+        {
+            MachineState state = new MachineState(translator.getGdlState(nativeState));
+            lastState = state;
+            lastNativeState = nativeState;
+            return state;
+        }
+
+        private MachineState getInitialState()
+        {
+            return toMachineState(engine.getInitialState());
+        }
+
+        private boolean isTerminal(MachineState state)
+        {
+            return engine.isTerminal(toNative(state));
+        }
+
+        private int getGoal(MachineState state, int roleIndex) throws GameDescriptionException
+        {
+            return engine.getGoal(toNative(state), roleIndex);
+        }
+
+        private List<Move> getLegalMoves(MachineState state, int roleIndex) throws GameDescriptionException
+        {
+            return translator.getMoveObjects(engine.getLegalMoves(toNative(state), roleIndex));
+        }
+
+        private MachineState getNextState(MachineState state, List<Move> moves) throws GameDescriptionException
+        {
+            S nativeState = toNative(state);
+            List<M> nativeMoves = translator.getNativeMovesFromMoves(nativeState, moves);
+            return toMachineState(engine.getNextState(nativeState, nativeMoves));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Scratch space for running depth charges with
+ * {@link StateMachine#performDepthChargeWithContext(MachineState, DepthChargeContext)}
+ * without allocating anything per step: a joint move that is filled in
+ * place, the goal values of the last charge, and a random number generator.
+ *
+ * A context belongs to a single thread. Each thread running depth charges
+ * should make its own, e.g. with {@link StateMachine#createDepthChargeContext()}.
+ */
+public final class DepthChargeContext {
+    private final Move[] jointMove;
+    private final List<Move> jointMoveList;
+    private final int[] goals;
+    private final SplittableRandom random;
+
+    public DepthChargeContext(int numRoles) {
+        this(numRoles, new SplittableRandom());
+    }
+
+    public DepthChargeContext(int numRoles, SplittableRandom random) {
+        this.jointMove = new Move[numRoles];
+        this.jointMoveList = Arrays.asList(jointMove);
+        this.goals = new int[numRoles];
+        this.random = random;
+    }
+
+    /**
+     * The joint move being built for the current step, one move per role.
+     */
+    public Move[] getJointMove() {
+        return jointMove;
+    }
+
+    /**
+     * A fixed-size list view of {@link #getJointMove()}, for passing the
+     * joint move to {@link StateMachine#getNextState(MachineState, List)}.
+     */
+    public List<Move> getJointMoveList() {
+        return jointMoveList;
+    }
+
+    /**
+     * The goal values of the terminal state reached by the last depth charge,
+     * in the order of {@link StateMachine#getRoles()}.
+     */
+    public int[] getGoals() {
+        return goals;
+    }
+
+    public SplittableRandom getRandom() {
+        return random;
+    }
+}
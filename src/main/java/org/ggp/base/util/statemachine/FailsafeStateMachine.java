@@ -129,6 +129,29 @@ public class FailsafeStateMachine extends StateMachine
         return getGoal(state, role);
     }
 
+    @Override
+    public void getGoals(MachineState state, int[] goals) throws GoalDefinitionException {
+        if(theBackingMachine == null)
+            return;
+
+        try {
+            theBackingMachine.getGoals(state, goals);
+            return;
+        } catch(GoalDefinitionException ge) {
+            throw ge;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        getGoals(state, goals);
+    }
+
     @Override
     public MachineState getInitialState() {
         if(theBackingMachine == null)
@@ -381,6 +404,32 @@ public class FailsafeStateMachine extends StateMachine
         return performDepthCharge(state, theDepth);
     }
 
+    @Override
+    public int performDepthChargeWithContext(MachineState state, DepthChargeContext context) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        if(theBackingMachine == null)
+            return 0;
+
+        try {
+            return theBackingMachine.performDepthChargeWithContext(state, context);
+        } catch (TransitionDefinitionException te) {
+            throw te;
+        } catch (MoveDefinitionException me) {
+            throw me;
+        } catch (GoalDefinitionException ge) {
+            throw ge;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return performDepthChargeWithContext(state, context);
+    }
+
     @Override
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(MachineState state, double[] avgScores, double[] avgDepth, double discountFactor, int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
         if(theBackingMachine == null)
@@ -6,8 +6,9 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.ggp.base.util.GoalTuplePool;
 import org.ggp.base.util.GoalTuplePool.GoalTuplePoolNode;
@@ -311,6 +312,22 @@ public abstract class StateMachine
         return curNode.getList();
     }
 
+    /**
+     * Writes the goal values for each role in the given state into the given
+     * array, in the same order as {@link #getGoals(MachineState)}, without
+     * creating a list.
+     *
+     * @throws GoalDefinitionException under the same conditions as
+     * {@link #getGoals(MachineState)}.
+     */
+    public void getGoals(MachineState state, int[] goals) throws GoalDefinitionException {
+        checkNumRoles(goals);
+        List<Role> roles = getRoles();
+        for (int r = 0; r < roles.size(); r++) {
+            goals[r] = getGoal(state, roles.get(r));
+        }
+    }
+
     /**
      * Returns a random joint move from among all the possible joint moves in
      * the given state.
@@ -369,7 +386,7 @@ public abstract class StateMachine
     public Move getRandomMove(MachineState state, Role role) throws MoveDefinitionException
     {
         List<Move> legals = getLegalMoves(state, role);
-        return legals.get(new Random().nextInt(legals.size()));
+        return legals.get(ThreadLocalRandom.current().nextInt(legals.size()));
     }
 
     /**
@@ -403,6 +420,8 @@ public abstract class StateMachine
         return getNextState(state, random);
     }
 
+    private final ThreadLocal<DepthChargeContext> depthChargeContexts = new ThreadLocal<DepthChargeContext>();
+
     /**
      * Returns goals from a terminal state derived from repeatedly making random joint moves
      * until reaching the end of the game.
@@ -411,21 +430,71 @@ public abstract class StateMachine
      * the number of state changes that were made to reach a terminal state.
      */
     public ImmutableList<Integer> performDepthCharge(MachineState state, final int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
-        int nDepth = 0;
-        while(!isTerminal(state)) {
-            nDepth++;
-            state = getNextStateDestructively(state, getRandomJointMove(state));
+        DepthChargeContext context = depthChargeContexts.get();
+        // The machine may have been initialized for a different game since
+        // this thread's context was made.
+        if (context == null || context.getGoals().length != getRoles().size()) {
+            context = createDepthChargeContext();
+            depthChargeContexts.set(context);
         }
+        int nDepth = performDepthChargeWithContext(state, context);
         if(theDepth != null)
             theDepth[0] = nDepth;
-        return getGoals(state);
+        return GoalTuplePool.canonicalize(context.getGoals());
     }
 
-//    public DepthChargeBatchResult performDepthChargeBatch2(MachineState state) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
-//        int[] theDepth = new int[1];
-//        ImmutableList<Integer> goals = performDepthCharge(state, theDepth);
-//        return new FlatDepthChargeResult(goals, 1);
-//    }
+    /**
+     * Returns a new context for running depth charges on this state machine
+     * with {@link #performDepthChargeWithContext(MachineState, DepthChargeContext)}.
+     */
+    public DepthChargeContext createDepthChargeContext() {
+        return new DepthChargeContext(getRoles().size());
+    }
+
+    /**
+     * Makes random joint moves from the given state until reaching the end of
+     * the game, like {@link #performDepthCharge(MachineState, int[])}, but
+     * reuses the context's scratch space instead of allocating move lists and
+     * goal lists. The goal values of the terminal state are left in
+     * {@link DepthChargeContext#getGoals()}.
+     * <p>
+     * The given state is left as it is; the states reached after it are
+     * advanced with {@link #getNextStateDestructively(MachineState, List)}.
+     *
+     * @return the number of state changes that were made to reach a terminal state.
+     */
+    public int performDepthChargeWithContext(MachineState state, DepthChargeContext context) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        checkNumRoles(context.getGoals());
+        List<Role> roles = getRoles();
+        Move[] jointMove = context.getJointMove();
+        List<Move> jointMoveList = context.getJointMoveList();
+        SplittableRandom random = context.getRandom();
+        int nDepth = 0;
+        while(!isTerminal(state)) {
+            for (int r = 0; r < jointMove.length; r++) {
+                List<Move> legals = getLegalMoves(state, roles.get(r));
+                jointMove[r] = legals.get(random.nextInt(legals.size()));
+            }
+            if (nDepth++ == 0) {
+                state = getNextState(state, jointMoveList);
+            } else {
+                state = getNextStateDestructively(state, jointMoveList);
+            }
+        }
+        getGoals(state, context.getGoals());
+        return nDepth;
+    }
+
+    /**
+     * Throws an IllegalArgumentException unless the given array has one entry
+     * per role, e.g. because it was made before the machine was initialized
+     * for a different game.
+     */
+    protected final void checkNumRoles(int[] perRoleValues) {
+        if (perRoleValues.length != getRoles().size()) {
+            throw new IllegalArgumentException("Expected an array for " + getRoles().size() + " roles, but got one of length " + perRoleValues.length);
+        }
+    }
 
     public abstract Map<Role, Move> getGebMoves(MachineState state);
 
@@ -0,0 +1,112 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.hashing.ZHashContext;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A MachineState that carries a 64-bit Zobrist hash of its contents from a
+ * {@link ZHashContext}, along with its ordinary hash code. Both are computed
+ * once, when the state is built, instead of walking the contents on every call.
+ *
+ * The hash code is still that of the contents, so that these states can be
+ * mixed with plain MachineStates in hash-based collections. The Zobrist hash is
+ * what {@link #getZobristHash(ZHashContext)} returns for the state's own
+ * context, and lets equals reject most unequal states without comparing their
+ * contents.
+ *
+ * The contents must not be modified once the state is built.
+ */
+public final class ZobristMachineState extends MachineState {
+    private static final long serialVersionUID = 1L;
+
+    private final transient ZHashContext zHashContext;
+    private final long zobristHash;
+    private final int hashCode;
+
+    private ZobristMachineState(Set<GdlSentence> contents, ZHashContext zHashContext, long zobristHash, int hashCode) {
+        super(contents);
+        this.zHashContext = zHashContext;
+        this.zobristHash = zobristHash;
+        this.hashCode = hashCode;
+    }
+
+    public static ZobristMachineState create(Set<GdlSentence> contents, ZHashContext zHashContext) {
+        return new ZobristMachineState(contents, zHashContext,
+                zHashContext.getHashForFullState(contents), contents.hashCode());
+    }
+
+    /**
+     * Returns a builder that maintains the hashes as sentences are added, so
+     * building the state doesn't need a second pass over its contents.
+     */
+    public static Builder builder(ZHashContext zHashContext) {
+        return new Builder(zHashContext);
+    }
+
+    public static final class Builder {
+        private final ZHashContext zHashContext;
+        private final Set<GdlSentence> contents = new HashSet<GdlSentence>();
+        private long zobristHash = 0L;
+        private int hashCode = 0;
+
+        private Builder(ZHashContext zHashContext) {
+            this.zHashContext = zHashContext;
+        }
+
+        public Builder add(GdlSentence sentence) {
+            if (contents.add(sentence)) {
+                zobristHash ^= zHashContext.getHashComponent(sentence);
+                hashCode += sentence.hashCode();
+            }
+            return this;
+        }
+
+        /**
+         * Returns a state with the sentences added so far. The state's contents
+         * are an immutable copy, so adding more sentences afterwards doesn't
+         * change it.
+         */
+        public ZobristMachineState build() {
+            return new ZobristMachineState(ImmutableSet.copyOf(contents), zHashContext, zobristHash, hashCode);
+        }
+    }
+
+    @Override
+    public long getZobristHash(ZHashContext zHashContext) {
+        if (zHashContext == this.zHashContext) {
+            return zobristHash;
+        }
+        return super.getZobristHash(zHashContext);
+    }
+
+    @Override
+    public MachineState getCopy() {
+        return new ZobristMachineState(new HashSet<GdlSentence>(getContents()), zHashContext, zobristHash, hashCode);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof ZobristMachineState) {
+            ZobristMachineState other = (ZobristMachineState) o;
+            if (hashCode != other.hashCode
+                    || (other.zHashContext == zHashContext && zobristHash != other.zobristHash)) {
+                return false;
+            }
+            return getContents().equals(other.getContents());
+        }
+        return super.equals(o);
+    }
+}
@@ -1,8 +1,10 @@
 package org.ggp.base.util.statemachine.cache;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.propnet.architecture.Component;
@@ -15,103 +17,235 @@ import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
+/**
+ * Caches the results of another StateMachine, keyed on the state.
+ *
+ * At most a fixed number of states are kept; the least recently used ones are
+ * evicted. Alternatively, {@link #withMaximumWeight(StateMachine, long)}
+ * bounds the cache by the total number of legal moves and next states it
+ * holds, so that states with many successors count for more. Each state's
+ * results are filled in lazily as they are asked for.
+ * This is thread-safe without locking: if two threads ask for the same missing
+ * result at once, both compute it and either answer is kept.
+ *
+ * Copies from {@link #getSynchronizedCopy()} share this machine's cache, so
+ * results computed by one thread are available to all of them.
+ */
 public final class CachedStateMachine extends StateMachine
 {
+    public static final int DEFAULT_MAX_STATES = 20000;
+
     private final StateMachine backingStateMachine;
-    private final TtlCache<MachineState, Entry> ttlCache;
+    private final SharedCache sharedCache;
 
-    private final class Entry
+    /**
+     * The parts of the machine shared between synchronized copies. The role
+     * indices are filled in by {@link CachedStateMachine#initialize(List)}.
+     */
+    private static final class SharedCache
     {
-        public Map<Role, Integer> goals;
-        public Map<Role, List<Move>> moves;
-        public Map<List<Move>, MachineState> nexts;
-        public Boolean terminal;
+        private final Cache<MachineState, Entry> entries;
+        // Whether entries must be put back in the cache as they grow, so
+        // that they are weighed again.
+        private final boolean weighed;
+        private volatile ImmutableMap<Role, Integer> roleIndices;
+
+        private SharedCache(int maxStates)
+        {
+            this.entries = CacheBuilder.newBuilder()
+                    .maximumSize(maxStates)
+                    .recordStats()
+                    .build();
+            this.weighed = false;
+        }
 
-        public Entry()
+        private SharedCache(long maxWeight)
         {
-            goals = new HashMap<Role, Integer>();
-            moves = new HashMap<Role, List<Move>>();
-            nexts = new HashMap<List<Move>, MachineState>();
+            this.entries = CacheBuilder.newBuilder()
+                    .maximumWeight(maxWeight)
+                    .weigher((MachineState state, Entry entry) -> entry.getWeight())
+                    .recordStats()
+                    .build();
+            this.weighed = true;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final AtomicReferenceArray<Integer> goals;
+        private final AtomicReferenceArray<List<Move>> moves;
+        private final Map<List<Move>, MachineState> nexts;
+        private volatile Boolean terminal;
+
+        private Entry(int numRoles)
+        {
+            goals = new AtomicReferenceArray<Integer>(numRoles);
+            moves = new AtomicReferenceArray<List<Move>>(numRoles);
+            nexts = new ConcurrentHashMap<List<Move>, MachineState>();
             terminal = null;
         }
+
+        /*
+         * One for the state itself, plus one for each legal move and next
+         * state cached for it so far.
+         */
+        private int getWeight()
+        {
+            int weight = 1 + nexts.size();
+            for (int r = 0; r < moves.length(); r++) {
+                List<Move> roleMoves = moves.get(r);
+                if (roleMoves != null) {
+                    weight += roleMoves.size();
+                }
+            }
+            return weight;
+        }
     }
 
     public CachedStateMachine(StateMachine backingStateMachine)
+    {
+        this(backingStateMachine, DEFAULT_MAX_STATES);
+    }
+
+    public CachedStateMachine(StateMachine backingStateMachine, int maxStates)
+    {
+        this(backingStateMachine, new SharedCache(maxStates));
+    }
+
+    private CachedStateMachine(StateMachine backingStateMachine, SharedCache sharedCache)
     {
         this.backingStateMachine = backingStateMachine;
-        ttlCache = new TtlCache<MachineState, Entry>(1);
+        this.sharedCache = sharedCache;
+    }
+
+    /**
+     * Creates a cache that holds states up to a total weight of maxWeight,
+     * where each state weighs one plus the number of legal moves and next
+     * states cached for it. An entry is weighed again each time one of
+     * these is added to it.
+     */
+    public static CachedStateMachine withMaximumWeight(StateMachine backingStateMachine, long maxWeight)
+    {
+        return new CachedStateMachine(backingStateMachine, new SharedCache(maxWeight));
     }
 
     private Entry getEntry(MachineState state)
     {
-        if (!ttlCache.containsKey(state))
-        {
-            ttlCache.put(state, new Entry());
+        final ImmutableMap<Role, Integer> roleIndices = getInitializedRoleIndices();
+        try {
+            return sharedCache.entries.get(state, () -> new Entry(roleIndices.size()));
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ImmutableMap<Role, Integer> getInitializedRoleIndices()
+    {
+        ImmutableMap<Role, Integer> roleIndices = sharedCache.roleIndices;
+        if (roleIndices == null) {
+            throw new IllegalStateException("The CachedStateMachine must be initialized before it is used");
         }
+        return roleIndices;
+    }
 
-        return ttlCache.get(state);
+    /*
+     * Puts a grown entry back into a weight-bounded cache, so it is weighed
+     * again. If the state was evicted in the meantime, this adds it back.
+     */
+    private void reweigh(MachineState state, Entry entry)
+    {
+        if (sharedCache.weighed) {
+            sharedCache.entries.put(state, entry);
+        }
+    }
+
+    private int getRoleIndex(Role role)
+    {
+        Integer index = getInitializedRoleIndices().get(role);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown role: " + role);
+        }
+        return index;
     }
 
     @Override
     public int getGoal(MachineState state, Role role) throws GoalDefinitionException
     {
         Entry entry = getEntry(state);
-        synchronized (entry)
+        int roleIndex = getRoleIndex(role);
+        Integer goal = entry.goals.get(roleIndex);
+        if (goal == null)
         {
-            if (!entry.goals.containsKey(role))
-            {
-                entry.goals.put(role, backingStateMachine.getGoal(state, role));
-            }
-
-            return entry.goals.get(role);
+            goal = backingStateMachine.getGoal(state, role);
+            entry.goals.set(roleIndex, goal);
         }
+        return goal;
     }
 
     @Override
     public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
     {
         Entry entry = getEntry(state);
-        synchronized (entry)
+        int roleIndex = getRoleIndex(role);
+        List<Move> moves = entry.moves.get(roleIndex);
+        if (moves == null)
         {
-            if (!entry.moves.containsKey(role))
-            {
-                entry.moves.put(role, ImmutableList.copyOf(backingStateMachine.getLegalMoves(state, role)));
-            }
-
-            return entry.moves.get(role);
+            moves = ImmutableList.copyOf(backingStateMachine.getLegalMoves(state, role));
+            entry.moves.set(roleIndex, moves);
+            reweigh(state, entry);
         }
+        return moves;
     }
 
     @Override
     public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
     {
         Entry entry = getEntry(state);
-        synchronized (entry)
+        MachineState nextState = entry.nexts.get(moves);
+        if (nextState == null)
         {
-            if (!entry.nexts.containsKey(moves))
-            {
-                entry.nexts.put(moves, backingStateMachine.getNextState(state, moves));
-            }
-
-            return entry.nexts.get(moves);
+            nextState = backingStateMachine.getNextState(state, moves);
+            // The caller may mutate its list of moves afterwards.
+            entry.nexts.put(ImmutableList.copyOf(moves), nextState);
+            reweigh(state, entry);
         }
+        return nextState;
     }
 
     @Override
     public boolean isTerminal(MachineState state)
     {
         Entry entry = getEntry(state);
-        synchronized (entry)
+        Boolean terminal = entry.terminal;
+        if (terminal == null)
         {
-            if (entry.terminal == null)
-            {
-                entry.terminal = backingStateMachine.isTerminal(state);
-            }
-
-            return entry.terminal;
+            terminal = backingStateMachine.isTerminal(state);
+            entry.terminal = terminal;
         }
+        return terminal;
+    }
+
+    /**
+     * Returns counts of the cache's state lookups, hits and evictions. These
+     * are shared with all synchronized copies of this machine.
+     */
+    public CacheStats getStats()
+    {
+        return sharedCache.entries.stats();
+    }
+
+    /**
+     * Returns the number of states currently in the cache.
+     */
+    public long size()
+    {
+        return sharedCache.entries.size();
     }
 
     @Override
@@ -120,14 +254,25 @@ public final class CachedStateMachine extends StateMachine
         prune();
     }
 
+    /**
+     * The cache evicts old states as new ones are added, so there is nothing
+     * to prune; this just performs any maintenance the cache has pending.
+     */
     public void prune()
     {
-        ttlCache.prune();
+        sharedCache.entries.cleanUp();
     }
 
     @Override
     public void initialize(List<Gdl> description) {
         backingStateMachine.initialize(description);
+        sharedCache.entries.invalidateAll();
+        ImmutableMap.Builder<Role, Integer> roleIndices = ImmutableMap.builder();
+        List<Role> roles = backingStateMachine.getRoles();
+        for (int r = 0; r < roles.size(); r++) {
+            roleIndices.put(roles.get(r), r);
+        }
+        sharedCache.roleIndices = roleIndices.build();
     }
 
     @Override
@@ -144,8 +289,7 @@ public final class CachedStateMachine extends StateMachine
 
     @Override
     public StateMachine getSynchronizedCopy() {
-        // TODO: If actually using this SM, make sure to share the cache
-        return new CachedStateMachine(backingStateMachine.getSynchronizedCopy());
+        return new CachedStateMachine(backingStateMachine.getSynchronizedCopy(), sharedCache);
     }
 
     @Override
@@ -183,4 +327,4 @@ public final class CachedStateMachine extends StateMachine
             Component component) {
         return backingStateMachine.getComponentTrueInputsCount(state, component);
     }
-}
\ No newline at end of file
+}
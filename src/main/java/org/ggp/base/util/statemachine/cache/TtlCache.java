@@ -24,7 +24,10 @@ import java.util.Set;
  *
  * @param <K> Key type
  * @param <V> Value type
+ * @deprecated Not synchronized and not bounded in size. Use a Guava
+ * {@link com.google.common.cache.Cache}, as {@link CachedStateMachine} does.
  */
+@Deprecated
 public final class TtlCache<K, V> implements Map<K,V>
 {
     private final class Entry
@@ -2,20 +2,18 @@ package org.ggp.base.util.statemachine.implementation.propnet;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.SplittableRandom;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
-import org.ggp.base.util.gdl.grammar.GdlConstant;
-import org.ggp.base.util.gdl.grammar.GdlRelation;
-import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
 import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.compiled.BitSetMachineState;
+import org.ggp.base.util.propnet.compiled.IndexedPropNet;
 import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.DepthChargeContext;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -23,67 +21,101 @@ import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
 
-
-@SuppressWarnings("unused")
+/**
+ * A StateMachine backed by a PropNet from the {@link OptimizingPropNetFactory}.
+ *
+ * The propnet is flattened into an {@link IndexedPropNet} at initialization,
+ * and its gates are evaluated in topological order into a boolean array,
+ * reading their inputs by index. States are bitsets over the base
+ * propositions, and legal, goal and terminal values are read directly out of
+ * the evaluated array. Components that only depend on the state are evaluated
+ * once per state; the ones that depend on the moves are only evaluated to
+ * compute the next state.
+ *
+ * The indexed propnet is immutable and the evaluation buffers are kept per
+ * thread, so one instance can be shared by several threads at once. Depth
+ * charges run entirely inside those buffers, without creating any states.
+ */
 public class SamplePropNetStateMachine extends StateMachine {
-    /** The underlying proposition network  */
-    private PropNet propNet;
-    /** The topological ordering of the propositions */
-    private List<Proposition> ordering;
-    /** The player roles */
-    private List<Role> roles;
+    /** The underlying proposition network, flattened into arrays */
+    private IndexedPropNet propNet;
+    private ThreadLocal<Buffers> buffers;
 
     /**
-     * Initializes the PropNetStateMachine. You should compute the topological
-     * ordering here. Additionally you may compute the initial state here, at
-     * your discretion.
+     * Initializes the PropNetStateMachine, flattening the propnet and
+     * computing the initial state.
      */
     @Override
     public void initialize(List<Gdl> description) {
         try {
-            propNet = OptimizingPropNetFactory.create(description);
-            roles = propNet.getRoles();
-            ordering = getOrdering();
+            propNet = IndexedPropNet.create(OptimizingPropNetFactory.create(description));
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
+        IndexedPropNet propNet = this.propNet;
+        buffers = ThreadLocal.withInitial(() -> new Buffers(propNet));
     }
 
     /**
-     * Computes if the state is terminal. Should return the value
-     * of the terminal proposition for the state.
+     * Computes if the state is terminal, by reading the value of the terminal
+     * proposition for the state.
      */
     @Override
     public boolean isTerminal(MachineState state) {
-        // TODO: Compute whether the MachineState is terminal.
-        return false;
+        return evaluateState(state)[propNet.getTerminalComponent()];
     }
 
     /**
-     * Computes the goal for a role in the current state.
-     * Should return the value of the goal proposition that
-     * is true for that role. If there is not exactly one goal
-     * proposition true for that role, then you should throw a
-     * GoalDefinitionException because the goal is ill-defined.
+     * Computes the goal for a role in the current state: the value of the
+     * goal proposition that is true for that role. If there is not exactly
+     * one goal proposition true for that role, the goal is ill-defined and
+     * a GoalDefinitionException is thrown.
      */
     @Override
     public int getGoal(MachineState state, Role role)
             throws GoalDefinitionException {
-        // TODO: Compute the goal for role in state.
-        return -1;
+        int goal = readGoal(evaluateState(state), propNet.getRoleIndex(role));
+        if (goal == -1) {
+            throw new GoalDefinitionException(state, role);
+        }
+        return goal;
+    }
+
+    @Override
+    public void getGoals(MachineState state, int[] goals)
+            throws GoalDefinitionException {
+        checkNumRoles(goals);
+        boolean[] values = evaluateState(state);
+        for (int r = 0; r < goals.length; r++) {
+            goals[r] = readGoal(values, r);
+            if (goals[r] == -1) {
+                throw new GoalDefinitionException(state, propNet.getRoles().get(r));
+            }
+        }
     }
 
     /**
-     * Returns the initial state. The initial state can be computed
-     * by only setting the truth value of the INIT proposition to true,
-     * and then computing the resulting state.
+     * Returns the value of the one goal proposition that is true for the
+     * role, or -1 if there is not exactly one.
      */
+    private int readGoal(boolean[] values, int r) {
+        int[] goals = propNet.getGoalComponents(r);
+        int goal = -1;
+        for (int i = 0; i < goals.length; i++) {
+            if (values[goals[i]]) {
+                if (goal != -1) {
+                    return -1;
+                }
+                goal = propNet.getGoalValues(r)[i];
+            }
+        }
+        return goal;
+    }
+
     @Override
     public MachineState getInitialState() {
-        // TODO: Compute the initial state.
-        return null;
+        return propNet.getInitialState();
     }
 
     /**
@@ -92,82 +124,170 @@ public class SamplePropNetStateMachine extends StateMachine {
     @Override
     public List<Move> getLegalMoves(MachineState state, Role role)
             throws MoveDefinitionException {
-        // TODO: Compute legal moves.
-        return null;
+        int r = propNet.getRoleIndex(role);
+        boolean[] values = evaluateState(state);
+        int[] legals = propNet.getLegalComponents(r);
+        List<Move> moves = new ArrayList<Move>();
+        for (int i = 0; i < legals.length; i++) {
+            if (values[legals[i]]) {
+                moves.add(propNet.getLegalMoves(r)[i]);
+            }
+        }
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(state, role);
+        }
+        return moves;
     }
 
     /**
-     * Computes the next state given state and the list of moves.
+     * Computes the next state given state and the list of moves. Throws a
+     * TransitionDefinitionException if any of the moves is never legal for
+     * its role.
      */
     @Override
     public MachineState getNextState(MachineState state, List<Move> moves)
             throws TransitionDefinitionException {
-        // TODO: Compute the next state.
-        return null;
+        if (moves.size() != propNet.getRoles().size()) {
+            throw new TransitionDefinitionException(state, moves);
+        }
+        boolean[] values = evaluateState(state);
+        int[] inputComponents = new int[moves.size()];
+        for (int r = 0; r < moves.size(); r++) {
+            inputComponents[r] = propNet.getInputComponent(r, moves.get(r));
+            if (inputComponents[r] == IndexedPropNet.UNKNOWN_MOVE) {
+                throw new TransitionDefinitionException(state, moves);
+            }
+        }
+        for (int inputComponent : inputComponents) {
+            if (inputComponent != IndexedPropNet.NO_INPUT) {
+                values[inputComponent] = true;
+            }
+        }
+        propNet.evaluate(propNet.getMoveOrder(), values);
+        for (int inputComponent : inputComponents) {
+            if (inputComponent != IndexedPropNet.NO_INPUT) {
+                values[inputComponent] = false;
+            }
+        }
+        return propNet.readNextState(values);
     }
 
     /**
-     * This should compute the topological ordering of propositions.
-     * Each component is either a proposition, logical gate, or transition.
-     * Logical gates and transitions only have propositions as inputs.
-     *
-     * The base propositions and input propositions should always be exempt
-     * from this ordering.
-     *
-     * The base propositions values are set from the MachineState that
-     * operations are performed on and the input propositions are set from
-     * the Moves that operations are performed on as well (if any).
-     *
-     * @return The order in which the truth values of propositions need to be set.
+     * Plays out the depth charge in this thread's buffers, stepping a single
+     * bitset from one state to the next and choosing moves by index among the
+     * legal propositions, so no states, moves or lists are created along the
+     * way. The context's joint move is not used.
      */
-    public List<Proposition> getOrdering()
-    {
-        // List to contain the topological ordering.
-        List<Proposition> order = new LinkedList<Proposition>();
-
-        // All of the components in the PropNet
-        List<Component> components = new ArrayList<Component>(propNet.getComponents());
-
-        // All of the propositions in the PropNet.
-        List<Proposition> propositions = new ArrayList<Proposition>(propNet.getPropositions());
+    @Override
+    public int performDepthChargeWithContext(MachineState state, DepthChargeContext context)
+            throws MoveDefinitionException, GoalDefinitionException {
+        checkNumRoles(context.getGoals());
+        Buffers buffers = this.buffers.get();
+        boolean[] values = buffers.values;
+        long[] bits = buffers.bits;
+        int[] chosenInputs = buffers.chosenInputs;
+        SplittableRandom random = context.getRandom();
+        System.arraycopy(propNet.toState(state).getBits(), 0, bits, 0, bits.length);
+        // The values won't belong to any state object once the charge starts.
+        buffers.lastState = null;
 
-        // TODO: Compute the topological ordering.
+        int depth = 0;
+        while (true) {
+            propNet.readState(bits, values);
+            propNet.evaluate(propNet.getStateOrder(), values);
+            if (values[propNet.getTerminalComponent()]) {
+                break;
+            }
+            for (int r = 0; r < chosenInputs.length; r++) {
+                int legal = chooseRandomLegal(values, r, random);
+                if (legal == -1) {
+                    throw new MoveDefinitionException(propNet.createState(bits.clone()), propNet.getRoles().get(r));
+                }
+                chosenInputs[r] = propNet.getLegalInputComponents(r)[legal];
+            }
+            for (int inputComponent : chosenInputs) {
+                if (inputComponent != IndexedPropNet.NO_INPUT) {
+                    values[inputComponent] = true;
+                }
+            }
+            propNet.evaluate(propNet.getMoveOrder(), values);
+            for (int inputComponent : chosenInputs) {
+                if (inputComponent != IndexedPropNet.NO_INPUT) {
+                    values[inputComponent] = false;
+                }
+            }
+            propNet.readNextState(values, bits);
+            depth++;
+        }
 
-        return order;
+        int[] goals = context.getGoals();
+        for (int r = 0; r < goals.length; r++) {
+            goals[r] = readGoal(values, r);
+            if (goals[r] == -1) {
+                throw new GoalDefinitionException(propNet.createState(bits.clone()), propNet.getRoles().get(r));
+            }
+        }
+        return depth;
     }
 
-    /* Already implemented for you */
-    @Override
-    public List<Role> getRoles() {
-        return roles;
+    /**
+     * Returns the index, among the role's legal propositions, of one of the
+     * true ones chosen uniformly at random, or -1 if none of them are true.
+     */
+    private int chooseRandomLegal(boolean[] values, int r, SplittableRandom random) {
+        int[] legals = propNet.getLegalComponents(r);
+        int numTrue = 0;
+        for (int legal : legals) {
+            if (values[legal]) {
+                numTrue++;
+            }
+        }
+        if (numTrue == 0) {
+            return -1;
+        }
+        int remaining = random.nextInt(numTrue);
+        for (int i = 0; i < legals.length; i++) {
+            if (values[legals[i]] && remaining-- == 0) {
+                return i;
+            }
+        }
+        throw new AssertionError();
     }
 
-    /* Helper methods */
+    /**
+     * Returns this thread's component values for the given state, with the
+     * components that don't depend on the moves evaluated. The values are
+     * reused when the same state is queried several times in a row.
+     */
+    private boolean[] evaluateState(MachineState state) {
+        BitSetMachineState bitState = propNet.toState(state);
+        Buffers buffers = this.buffers.get();
+        boolean[] values = buffers.values;
+        if (buffers.lastState != bitState) {
+            propNet.readState(bitState, values);
+            propNet.evaluate(propNet.getStateOrder(), values);
+            buffers.lastState = bitState;
+        }
+        return values;
+    }
 
     /**
-     * The Input propositions are indexed by (does ?player ?action).
-     *
-     * This translates a list of Moves (backed by a sentence that is simply ?action)
-     * into GdlSentences that can be used to get Propositions from inputPropositions.
-     * and accordingly set their values etc.  This is a naive implementation when coupled with
-     * setting input values, feel free to change this for a more efficient implementation.
-     *
-     * @param moves
-     * @return
+     * Like evaluateState, but also evaluates the components that depend on the
+     * moves, as if no moves were being made.
      */
-    private List<GdlSentence> toDoes(List<Move> moves)
-    {
-        List<GdlSentence> doeses = new ArrayList<GdlSentence>(moves.size());
-        Map<Role, Integer> roleIndices = getRoleIndices();
+    private boolean[] evaluateStateWithoutMoves(MachineState state) {
+        boolean[] values = evaluateState(state);
+        propNet.evaluate(propNet.getMoveOrder(), values);
+        return values;
+    }
 
-        for (int i = 0; i < roles.size(); i++)
-        {
-            int index = roleIndices.get(roles.get(i));
-            doeses.add(ProverQueryBuilder.toDoes(roles.get(i), moves.get(index)));
-        }
-        return doeses;
+    @Override
+    public List<Role> getRoles() {
+        return propNet.getRoles();
     }
 
+    /* Helper methods */
+
     /**
      * Takes in a Legal Proposition and returns the appropriate corresponding Move
      * @param p
@@ -178,46 +298,13 @@ public class SamplePropNetStateMachine extends StateMachine {
         return new Move(p.getName().get(1));
     }
 
-    /**
-     * Helper method for parsing the value of a goal proposition
-     * @param goalProposition
-     * @return the integer value of the goal proposition
+    /*
+     * The indexed propnet is never modified after initialization and each
+     * thread evaluates into its own buffers, so threads can share this instance.
      */
-    private int getGoalValue(Proposition goalProposition)
-    {
-        GdlRelation relation = (GdlRelation) goalProposition.getName();
-        GdlConstant constant = (GdlConstant) relation.get(1);
-        return Integer.parseInt(constant.toString());
-    }
-
-    /**
-     * A Naive implementation that computes a PropNetMachineState
-     * from the true BasePropositions.  This is correct but slower than more advanced implementations
-     * You need not use this method!
-     * @return PropNetMachineState
-     */
-    public MachineState getStateFromBase()
-    {
-        Set<GdlSentence> contents = new HashSet<GdlSentence>();
-        for (Proposition p : propNet.getBasePropositions().values())
-        {
-            p.setValue(p.getSingleInput().getValue());
-            if (p.getValue())
-            {
-                contents.add(p.getName());
-            }
-
-        }
-        return new MachineState(contents);
-    }
-
-    private List<Gdl> description;
     @Override
     public StateMachine getSynchronizedCopy() {
-        //TODO: Replace with optimized copy of propnet
-        StateMachine copy = new SamplePropNetStateMachine();
-        copy.initialize(description);
-        return copy;
+        return this;
     }
 
     @Override
@@ -227,14 +314,12 @@ public class SamplePropNetStateMachine extends StateMachine {
 
     @Override
     public MachineState translateState(MachineState state) {
-        // TODO Implement
-        return null;
+        return propNet.toState(state);
     }
 
     @Override
     public boolean isNative(MachineState state) {
-        // TODO Implement
-        return false;
+        return propNet.isNative(state);
     }
 
     @Override
@@ -244,17 +329,40 @@ public class SamplePropNetStateMachine extends StateMachine {
 
     @Override
     public PropNet getPropNet() {
-        throw new UnsupportedOperationException();
+        return propNet.getPropNet();
     }
 
     @Override
     public boolean getComponentValue(MachineState state, Component component) {
-        throw new UnsupportedOperationException();
+        int c = propNet.getComponentIndex(component);
+        boolean[] values = evaluateStateWithoutMoves(state);
+        return values[c];
     }
 
     @Override
     public int getComponentTrueInputsCount(MachineState state,
             Component component) {
-        throw new UnsupportedOperationException();
+        boolean[] values = evaluateStateWithoutMoves(state);
+        int count = 0;
+        for (Component input : component.getInputs()) {
+            if (values[propNet.getComponentIndex(input)]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class Buffers {
+        private final boolean[] values;
+        private BitSetMachineState lastState;
+        // Scratch space for depth charges
+        private final long[] bits;
+        private final int[] chosenInputs;
+
+        private Buffers(IndexedPropNet propNet) {
+            this.values = new boolean[propNet.getNumComponents()];
+            this.bits = new long[propNet.getNumWords()];
+            this.chosenInputs = new int[propNet.getRoles().size()];
+        }
     }
 }
@@ -12,17 +12,20 @@ import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlRelation;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.hashing.ZHashContext;
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
 import org.ggp.base.util.prover.Prover;
 import org.ggp.base.util.prover.aima.AimaProver;
+import org.ggp.base.util.prover.compact.CompactProver;
 import org.ggp.base.util.prover.logging.LoggingAimaProver;
 import org.ggp.base.util.prover.logging.StandardProverLogger;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.ZobristMachineState;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
@@ -35,20 +38,58 @@ import com.google.common.collect.ImmutableList;
 public class ProverStateMachine extends StateMachine
 {
     private final boolean experimental;
+    private final boolean tabled;
+    private final boolean aima;
     private volatile MachineState initialState;
     private volatile Prover prover;
     private volatile ImmutableList<Role> roles;
     private volatile @Nullable StandardProverLogger log;
+    private final @Nullable ZHashContext zHashContext;
 
     /**
-     * Initialize must be called before using the StateMachine
+     * Initialize must be called before using the StateMachine.
+     * Queries are answered by a {@link CompactProver}.
      */
     public ProverStateMachine() {
         this(false);
     }
     public ProverStateMachine(boolean experimental)
+    {
+        this(experimental, false);
+    }
+    /**
+     * If tabled is true, the prover reuses answers across queries made against
+     * the same state; see {@link AimaProver#createWithTabling(List, int)}.
+     */
+    public ProverStateMachine(boolean experimental, boolean tabled)
+    {
+        this(experimental, tabled, null);
+    }
+    /**
+     * If zHashContext is non-null, the states returned are
+     * {@link ZobristMachineState}s hashed with that context, which are
+     * cheaper to hash and compare.
+     */
+    public ProverStateMachine(boolean experimental, boolean tabled, @Nullable ZHashContext zHashContext)
+    {
+        this(experimental, tabled, false, zHashContext);
+    }
+    private ProverStateMachine(boolean experimental, boolean tabled, boolean aima, @Nullable ZHashContext zHashContext)
     {
         this.experimental = experimental;
+        this.tabled = tabled;
+        this.aima = aima;
+        this.zHashContext = zHashContext;
+    }
+
+    /**
+     * Creates a state machine whose queries are answered by a plain
+     * {@link AimaProver} instead of a {@link CompactProver}, for use as a
+     * reference to check other engines against.
+     */
+    public static ProverStateMachine createWithAimaProver()
+    {
+        return new ProverStateMachine(false, false, true, null);
     }
 
     @Override
@@ -57,8 +98,12 @@ public class ProverStateMachine extends StateMachine
         if (experimental) {
             this.log = StandardProverLogger.create();
             prover = new LoggingAimaProver(description, log);
-        } else {
+        } else if (tabled) {
+            prover = AimaProver.createWithTabling(description, AimaProver.DEFAULT_MAX_TABLED_CONTEXTS);
+        } else if (aima) {
             prover = AimaProver.create(description);
+        } else {
+            prover = CompactProver.create(description);
         }
         roles = ImmutableList.copyOf(Role.computeRoles(description));
         initialState = computeInitialState();
@@ -67,6 +112,15 @@ public class ProverStateMachine extends StateMachine
     private MachineState computeInitialState()
     {
         Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getInitQuery(), new HashSet<GdlSentence>());
+        return toState(results);
+    }
+
+    private MachineState toState(Set<GdlSentence> results)
+    {
+        if (zHashContext != null)
+        {
+            return new ProverResultParser().toState(results, zHashContext);
+        }
         return new ProverResultParser().toState(results);
     }
 
@@ -126,7 +180,7 @@ public class ProverStateMachine extends StateMachine
             }
         }
 
-        return new ProverResultParser().toState(results);
+        return toState(results);
     }
 
     @Override
@@ -141,6 +195,10 @@ public class ProverStateMachine extends StateMachine
         return prover.prove(ProverQueryBuilder.getTerminalQuery(), ProverQueryBuilder.getContext(state));
     }
 
+    /*
+     * The prover is safe to query from multiple threads at once without locking,
+     * so threads can share this instance (and its caches) instead of copying it.
+     */
     @Override
     public StateMachine getSynchronizedCopy() {
         return this;
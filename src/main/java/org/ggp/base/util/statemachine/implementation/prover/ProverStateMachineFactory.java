@@ -9,10 +9,16 @@ import org.ggp.base.util.statemachine.StateMachineFactory;
 public class ProverStateMachineFactory implements StateMachineFactory<ProverStateMachine> {
     private final boolean experimental;
     private final boolean dualized;
+    private final boolean tabled;
 
     public ProverStateMachineFactory(boolean experimental, boolean dualized) {
+        this(experimental, dualized, false);
+    }
+
+    public ProverStateMachineFactory(boolean experimental, boolean dualized, boolean tabled) {
         this.experimental = experimental;
         this.dualized = dualized;
+        this.tabled = tabled;
     }
 
     public static ProverStateMachineFactory createNormal() {
@@ -27,9 +33,13 @@ public class ProverStateMachineFactory implements StateMachineFactory<ProverStat
         return new ProverStateMachineFactory(false, true);
     }
 
+    public static ProverStateMachineFactory createTabled() {
+        return new ProverStateMachineFactory(false, false, true);
+    }
+
     @Override
     public ProverStateMachine buildInitializedForRules(List<Gdl> rules) {
-        ProverStateMachine sm = new ProverStateMachine(experimental);
+        ProverStateMachine sm = new ProverStateMachine(experimental, tabled);
         if (dualized) {
             rules = ConjunctDualizer.apply(rules);
         }
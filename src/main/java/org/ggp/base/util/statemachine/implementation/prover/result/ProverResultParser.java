@@ -9,9 +9,11 @@ import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.hashing.ZHashContext;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.ZobristMachineState;
 
 
 public final class ProverResultParser {
@@ -48,4 +50,18 @@ public final class ProverResultParser {
         }
         return new MachineState(trues);
     }
+
+    /**
+     * Like {@link #toState(Set)}, but returns a state with a Zobrist hash from
+     * the given context, computed as the state is built.
+     */
+    public MachineState toState(Set<GdlSentence> results, ZHashContext zHashContext)
+    {
+        ZobristMachineState.Builder builder = ZobristMachineState.builder(zHashContext);
+        for (GdlSentence result : results)
+        {
+            builder.add(GdlPool.getRelation(GdlPool.TRUE, new GdlTerm[] { result.get(0) }));
+        }
+        return builder.build();
+    }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 
 package org.ggp.base.util.statemachine.sancho;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -20,6 +21,7 @@ import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.propnet.factory.sancho.OptimizingPolymorphicPropNetFactory;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonBitParallelAnimator;
 import org.ggp.base.util.propnet.sancho.ForwardDeadReckonComponent;
 import org.ggp.base.util.propnet.sancho.ForwardDeadReckonComponentFactory;
 import org.ggp.base.util.propnet.sancho.ForwardDeadReckonInternalMachineState;
@@ -39,6 +41,7 @@ import org.ggp.base.util.propnet.sancho.PolymorphicOr;
 import org.ggp.base.util.propnet.sancho.PolymorphicPropNet;
 import org.ggp.base.util.propnet.sancho.PolymorphicProposition;
 import org.ggp.base.util.propnet.sancho.PolymorphicTransition;
+import org.ggp.base.util.ruleengine.DepthChargeBatchResult;
 import org.ggp.base.util.ruleengine.GameDescriptionException;
 import org.ggp.base.util.ruleengine.RuleEngine;
 import org.ggp.base.util.ruleengine.Translator;
@@ -144,6 +147,9 @@ public class ForwardDeadReckonPropnetRuleEngine implements RuleEngine<ForwardDea
   private final Set<GdlSentence>                                       mFillerMoves                    = new HashSet<>();
   private GoalsCalculator                                              mGoalsCalculator                = null;
   private IPlayoutPolicy                                               mPlayoutPolicy                  = null;
+  private PropNetCache                                                 mPropNetCache                   = null;
+  private String                                                       mPropNetCacheKey                = null;
+  private PropNetCache.Entry                                           mPropNetCacheEntry              = null;
   private Map<Role,ForwardDeadReckonInternalMachineState>              mRoleUnionPositiveGoalLatches   = null;
 
   private final TerminalResultSet                                      mResultSet                      = new TerminalResultSet();
@@ -1613,6 +1619,39 @@ public class ForwardDeadReckonPropnetRuleEngine implements RuleEngine<ForwardDea
     return result;
   }
 
+  private ForwardDeadReckonBitParallelAnimator mBitParallelAnimator = null;
+
+  /**
+   * Create an animator which simulates up to 64 states of the full propnet at once.  The
+   * network tables are built on first use and shared by every animator created by this
+   * engine and its instances, but each animator may only be used by one thread.
+   * @return a new bit-parallel animator
+   */
+  public ForwardDeadReckonBitParallelAnimator createBitParallelAnimator()
+  {
+    synchronized (mMaster)
+    {
+      if (mMaster.mBitParallelAnimator == null)
+      {
+        mMaster.mBitParallelAnimator = new ForwardDeadReckonBitParallelAnimator(fullPropNet,
+                                                                                createEmptyInternalState(),
+                                                                                XSentenceInfo);
+      }
+      return mMaster.mBitParallelAnimator.createInstance();
+    }
+  }
+
+  /**
+   * Use a cache of optimized propnets, so that games seen before start faster.  Must be called before
+   * {@link #initialize(List)}.
+   *
+   * @param xiCache - the cache to use, or null for none.
+   */
+  public void setPropNetCache(PropNetCache xiCache)
+  {
+    mPropNetCache = xiCache;
+  }
+
   public void initialize(List<Gdl> description)
   {
     // Log the GDL so that we can play again as required.
@@ -1632,52 +1671,73 @@ public class ForwardDeadReckonPropnetRuleEngine implements RuleEngine<ForwardDea
       //validationMachine = new ProverStateMachine();
       //validationMachine.initialize(description);
 
-      fullPropNet = (ForwardDeadReckonPropNet)OptimizingPolymorphicPropNetFactory.create(
-                                                                               description,
-                                                                               new ForwardDeadReckonComponentFactory());
-      fullPropNet.renderToFile("propnet_001.dot");
+      if (mPropNetCache != null)
+      {
+        mPropNetCacheKey = PropNetCache.getKey(description, ourRole);
+        mPropNetCacheEntry = mPropNetCache.load(mPropNetCacheKey);
+      }
+
+      if (mPropNetCacheEntry != null)
+      {
+        fullPropNet = mPropNetCacheEntry.createPropNet();
+        isPseudoPuzzle = mPropNetCacheEntry.isPseudoPuzzle();
+        mFillerMoves.addAll(mPropNetCacheEntry.getFillerMoves());
+      }
+      else
+      {
+        fullPropNet = (ForwardDeadReckonPropNet)OptimizingPolymorphicPropNetFactory.create(
+                                                                                 description,
+                                                                                 new ForwardDeadReckonComponentFactory());
+        fullPropNet.renderToFile("propnet_001.dot");
 
-      OptimizingPolymorphicPropNetFactory.removeAnonymousPropositions(fullPropNet);
-      fullPropNet.renderToFile("propnet_012_AnonRemoved.dot");
-//      LOGGER.debug("Num components after anon prop removal: " + fullPropNet.getComponents().size());
+        OptimizingPolymorphicPropNetFactory.removeAnonymousPropositions(fullPropNet);
+        fullPropNet.renderToFile("propnet_012_AnonRemoved.dot");
+  //      LOGGER.debug("Num components after anon prop removal: " + fullPropNet.getComponents().size());
 
-      OptimizingPolymorphicPropNetFactory.removeUnreachableBasesAndInputs(fullPropNet);
-      fullPropNet.renderToFile("propnet_014_UnreachablesRemoved.dot");
+        OptimizingPolymorphicPropNetFactory.removeUnreachableBasesAndInputs(fullPropNet);
+        fullPropNet.renderToFile("propnet_014_UnreachablesRemoved.dot");
 
-      isPseudoPuzzle = OptimizingPolymorphicPropNetFactory.removeIrrelevantBasesAndInputs(fullPropNet, ourRole, mFillerMoves);
-      fullPropNet.renderToFile("propnet_016_IrrelevantRemoved.dot");
-//      LOGGER.debug("Num components after unreachable removal: " + fullPropNet.getComponents().size());
+        isPseudoPuzzle = OptimizingPolymorphicPropNetFactory.removeIrrelevantBasesAndInputs(fullPropNet, ourRole, mFillerMoves);
+        fullPropNet.renderToFile("propnet_016_IrrelevantRemoved.dot");
+  //      LOGGER.debug("Num components after unreachable removal: " + fullPropNet.getComponents().size());
 
-      OptimizingPolymorphicPropNetFactory.removeRedundantConstantsAndGates(fullPropNet, false);
-      fullPropNet.renderToFile("propnet_018_RedundantRemoved.dot");
-//      LOGGER.debug("Num components after first pass redundant components removal: " +
-//                   fullPropNet.getComponents().size());
+        OptimizingPolymorphicPropNetFactory.removeRedundantConstantsAndGates(fullPropNet, false);
+        fullPropNet.renderToFile("propnet_018_RedundantRemoved.dot");
+  //      LOGGER.debug("Num components after first pass redundant components removal: " +
+  //                   fullPropNet.getComponents().size());
 
-      OptimizingPolymorphicPropNetFactory.refactorLargeGates(fullPropNet);
-      fullPropNet.renderToFile("propnet_020_BeforeLargeFanout.dot");
+        OptimizingPolymorphicPropNetFactory.refactorLargeGates(fullPropNet);
+        fullPropNet.renderToFile("propnet_020_BeforeLargeFanout.dot");
 
-      OptimizingPolymorphicPropNetFactory.refactorLargeFanouts(fullPropNet);
-      fullPropNet.renderToFile("propnet_030_AfterLargeFanout.dot");
-//      LOGGER.debug("Num components after large gate refactoring: " + fullPropNet.getComponents().size());
+        OptimizingPolymorphicPropNetFactory.refactorLargeFanouts(fullPropNet);
+        fullPropNet.renderToFile("propnet_030_AfterLargeFanout.dot");
+  //      LOGGER.debug("Num components after large gate refactoring: " + fullPropNet.getComponents().size());
 
-      OptimizingPolymorphicPropNetFactory.removeDuplicateLogic(fullPropNet);
-//      LOGGER.debug("Num components after duplicate removal: " + fullPropNet.getComponents().size());
+        OptimizingPolymorphicPropNetFactory.removeDuplicateLogic(fullPropNet);
+  //      LOGGER.debug("Num components after duplicate removal: " + fullPropNet.getComponents().size());
 
-      OptimizingPolymorphicPropNetFactory.optimizeInputSets(fullPropNet);
-//      LOGGER.debug("Num components after input set optimization: " + fullPropNet.getComponents().size());
+        OptimizingPolymorphicPropNetFactory.optimizeInputSets(fullPropNet);
+  //      LOGGER.debug("Num components after input set optimization: " + fullPropNet.getComponents().size());
 
-      OptimizingPolymorphicPropNetFactory.optimizeInvertedInputs(fullPropNet);
-//      LOGGER.debug("Num components after inverted input optimization: " + fullPropNet.getComponents().size());
+        OptimizingPolymorphicPropNetFactory.optimizeInvertedInputs(fullPropNet);
+  //      LOGGER.debug("Num components after inverted input optimization: " + fullPropNet.getComponents().size());
 
-      OptimizingPolymorphicPropNetFactory.removeRedundantConstantsAndGates(fullPropNet);
-//      LOGGER.debug("Num components after further removal of redundant components: " +
-//                   fullPropNet.getComponents().size());
+        OptimizingPolymorphicPropNetFactory.removeRedundantConstantsAndGates(fullPropNet);
+  //      LOGGER.debug("Num components after further removal of redundant components: " +
+  //                   fullPropNet.getComponents().size());
 
-      // Ensure that no propositions apart from strict input props (base, does, init) have any outputs, as this is
-      // assumed by the fast animator.  Accordingly we re-wire slightly such that if any such do exist we replace their
-      // output connection by one from their input (which they anyway just directly forward, so this also removes a
-      // small propagation step).
-      OptimizingPolymorphicPropNetFactory.removeNonBaseOrDoesPropositionOutputs(fullPropNet);
+        // Ensure that no propositions apart from strict input props (base, does, init) have any outputs, as this is
+        // assumed by the fast animator.  Accordingly we re-wire slightly such that if any such do exist we replace their
+        // output connection by one from their input (which they anyway just directly forward, so this also removes a
+        // small propagation step).
+        OptimizingPolymorphicPropNetFactory.removeNonBaseOrDoesPropositionOutputs(fullPropNet);
+
+        if (mPropNetCache != null)
+        {
+          mPropNetCacheEntry = PropNetCache.Entry.create(fullPropNet, isPseudoPuzzle, mFillerMoves);
+          mPropNetCache.save(mPropNetCacheKey, mPropNetCacheEntry);
+        }
+      }
 
       fullPropNet.renderToFile("propnet_040_Reduced.dot");
       roles = fullPropNet.getRoles();
@@ -2094,6 +2154,11 @@ public class ForwardDeadReckonPropnetRuleEngine implements RuleEngine<ForwardDea
     {
       // TODO: handle exception
     }
+    catch (IOException e)
+    {
+      //  Cache entries are checked when loaded, so this can't happen
+      throw new RuntimeException(e);
+    }
   }
 
   private void finalizePropositionCrossReferenceInfo()
@@ -2200,6 +2265,14 @@ public class ForwardDeadReckonPropnetRuleEngine implements RuleEngine<ForwardDea
 
   public void optimizeStateTransitionMechanism(long timeout)
   {
+    //  The measurements below take the whole of the time allowed, so reuse those from a previous run if we can
+    if (mPropNetCacheEntry != null && mPropNetCacheEntry.hasTransitionTuning())
+    {
+      use2passBasePropSet = mPropNetCacheEntry.getUse2passBasePropSet();
+      removeOldBasePropsBeforeAddingNew = mPropNetCacheEntry.getRemoveOldBasePropsBeforeAddingNew();
+      return;
+    }
+
     ForwardDeadReckonInternalMachineState initialInternalState = createInternalState(initialState);
     Role firstRole = getRolesArray()[0];
     int withTrueCount = 0;
@@ -2254,6 +2327,13 @@ public class ForwardDeadReckonPropnetRuleEngine implements RuleEngine<ForwardDea
 //        LOGGER.info("Speed improvement of " + (100*(withTrueCount-withFalseCount))/withTrueCount + "% removing old base props before adding new");
       }
     }
+
+    if (mPropNetCache != null && mPropNetCacheEntry != null)
+    {
+      mPropNetCacheEntry = mPropNetCacheEntry.withTransitionTuning(use2passBasePropSet,
+                                                                   removeOldBasePropsBeforeAddingNew);
+      mPropNetCache.save(mPropNetCacheKey, mPropNetCacheEntry);
+    }
   }
 
   private void setMoveInfoForPropnet(ForwardDeadReckonPropNet pn)
@@ -5040,4 +5120,42 @@ public boolean isTerminal(ForwardDeadReckonInternalMachineState state)
   public Translator<ForwardDeadReckonLegalMoveInfo, ForwardDeadReckonInternalMachineState> getTranslator() {
       return translator;
   }
+
+  /**
+   * Plays the whole batch out with {@link #getDepthChargeResult}, so each
+   * playout only has to reset the base propositions that the previous one
+   * changed, and reads the goals straight from the propnet. As in
+   * {@link ParallelPlayoutService}, a playout stops early once the goals are
+   * latched. First-move statistics use the default implementation.
+   */
+  @Override
+  public DepthChargeBatchResult performDepthChargeBatch(ForwardDeadReckonInternalMachineState state,
+                                                        int numPlayouts,
+                                                        boolean withFirstMoveStats) throws GameDescriptionException {
+      if (withFirstMoveStats) {
+          return RuleEngine.super.performDepthChargeBatch(state, numPlayouts, withFirstMoveStats);
+      }
+      DepthChargeBatchResult result = new DepthChargeBatchResult(numRoles);
+      PlayoutInfo playoutInfo = new PlayoutInfo(-1);
+      // Play to the end of the game, like doRandomPlayout
+      playoutInfo.cutoffDepth = Integer.MAX_VALUE;
+      int[] goals = new int[numRoles];
+      for (int i = 0; i < numPlayouts; i++) {
+          getDepthChargeResult(state, playoutInfo);
+          for (int r = 0; r < numRoles; r++) {
+              goals[r] = getGoal(roles[r]);
+          }
+          result.addPlayout(goals, playoutInfo.playoutLength, null);
+      }
+      return result;
+  }
+
+  /**
+   * Creates a new instance with {@link #createInstance()}, so this is limited
+   * by the number of instances the engine was built to allow.
+   */
+  @Override
+  public ForwardDeadReckonPropnetRuleEngine getInstanceForThread() {
+      return createInstance();
+  }
 }
@@ -0,0 +1,422 @@
+package org.ggp.base.util.statemachine.sancho;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonInternalMachineState;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonLegalMoveInfo;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.sancho.ForwardDeadReckonPropnetRuleEngine.MoveWeights;
+import org.ggp.base.util.statemachine.sancho.ForwardDeadReckonPropnetRuleEngine.PlayoutInfo;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs batches of random playouts (depth charges) across several threads,
+ * each of which owns its own instance of a shared
+ * {@link ForwardDeadReckonPropnetRuleEngine}.
+ *
+ * The engine instances are created once, when the service is built, and each
+ * is only ever used by the single thread it is pinned to. Callers hand over a
+ * list of {@link Request}s and get back one {@link Result} per request, with
+ * the average goal values of its playouts and the move weights learnt from
+ * them. The playouts of a batch are handed out to the workers in small chunks,
+ * so one long request is still spread across all of them.
+ *
+ * The master engine stays usable by the caller (e.g. to create the states to
+ * play out from), as it is not used by any of the workers.
+ */
+public final class ParallelPlayoutService implements AutoCloseable
+{
+  /**
+   * Longest playout, in joint moves, before it is cut off. The goals of a
+   * cut-off playout are read from the state it stopped in.
+   */
+  public static final int MAX_PLAYOUT_LENGTH = 1000;
+
+  /**
+   * Number of chunks each request is split into per worker, so that workers
+   * that finish early can pick up the remaining playouts.
+   */
+  private static final int CHUNKS_PER_WORKER = 4;
+
+  private final ForwardDeadReckonPropnetRuleEngine master;
+  private final Worker[] workers;
+
+  /**
+   * A number of playouts to make from one state.
+   */
+  public static final class Request
+  {
+    final ForwardDeadReckonInternalMachineState state;
+    final int count;
+    final IPlayoutPolicy policy;
+
+    /**
+     * @param state - state to play out from
+     * @param count - number of playouts to make
+     * @param policy - policy to select the playout moves with, or null for
+     *                 uniformly random moves. Each worker plays with its own
+     *                 clone of the policy.
+     */
+    public Request(ForwardDeadReckonInternalMachineState state, int count, IPlayoutPolicy policy)
+    {
+      if (count < 0)
+      {
+        throw new IllegalArgumentException("Negative playout count: " + count);
+      }
+      this.state = state;
+      this.count = count;
+      this.policy = policy;
+    }
+
+    public Request(ForwardDeadReckonInternalMachineState state, int count)
+    {
+      this(state, count, null);
+    }
+  }
+
+  /**
+   * The aggregated outcome of the playouts of one request.
+   */
+  public static final class Result
+  {
+    private final int numPlayouts;
+    private final double[] averageGoals;
+    private final double averageLength;
+    private final MoveWeights moveWeights;
+
+    Result(int numPlayouts, double[] averageGoals, double averageLength, MoveWeights moveWeights)
+    {
+      this.numPlayouts = numPlayouts;
+      this.averageGoals = averageGoals;
+      this.averageLength = averageLength;
+      this.moveWeights = moveWeights;
+    }
+
+    public int getNumPlayouts()
+    {
+      return numPlayouts;
+    }
+
+    /**
+     * @return the average goal value of each role, indexed like the engine's
+     * roles. All zeroes if no playouts were made.
+     */
+    public double[] getAverageGoals()
+    {
+      return averageGoals.clone();
+    }
+
+    public double getAverageGoal(int roleIndex)
+    {
+      return averageGoals[roleIndex];
+    }
+
+    /**
+     * @return the average number of joint moves per playout
+     */
+    public double getAverageLength()
+    {
+      return averageLength;
+    }
+
+    /**
+     * @return the average score of each role at the end of the playouts the
+     * moves chosen by that role were part of. Like any MoveWeights these start
+     * from a neutral prior of 50 for every move.
+     */
+    public MoveWeights getMoveWeights()
+    {
+      return moveWeights;
+    }
+  }
+
+  /**
+   * Builds a Sancho engine for the rules with enough instances for the
+   * requested number of worker threads, and a service running on it.
+   */
+  public static ParallelPlayoutService create(List<Gdl> rules, int numThreads)
+  {
+    // Instance 0 is the master itself, which the workers leave to the caller.
+    ForwardDeadReckonPropnetRuleEngine master =
+        SanchoRuleEngineFactory.INSTANCE.buildEngineForRules(rules, numThreads + 1);
+    return new ParallelPlayoutService(master, numThreads);
+  }
+
+  /**
+   * @param master - fully initialized engine, built to allow at least
+   *                 numThreads more instances
+   * @param numThreads - number of worker threads, each with its own instance
+   */
+  public ParallelPlayoutService(ForwardDeadReckonPropnetRuleEngine master, int numThreads)
+  {
+    if (numThreads <= 0)
+    {
+      throw new IllegalArgumentException("Need at least one worker thread, got " + numThreads);
+    }
+    this.master = master;
+    this.workers = new Worker[numThreads];
+    for (int i = 0; i < numThreads; i++)
+    {
+      workers[i] = new Worker(master.createInstance(), i);
+    }
+  }
+
+  public ForwardDeadReckonPropnetRuleEngine getMasterEngine()
+  {
+    return master;
+  }
+
+  public int getNumThreads()
+  {
+    return workers.length;
+  }
+
+  /**
+   * Runs the playouts of a batch of requests on all the worker threads,
+   * blocking until they are complete.
+   *
+   * @return one result per request, in the same order
+   */
+  public List<Result> performPlayouts(List<Request> requests)
+  {
+    List<Chunk> chunks = new ArrayList<>();
+    for (int r = 0; r < requests.size(); r++)
+    {
+      int count = requests.get(r).count;
+      int chunkSize = Math.max(1, count / (workers.length * CHUNKS_PER_WORKER));
+      for (int start = 0; start < count; start += chunkSize)
+      {
+        chunks.add(new Chunk(r, Math.min(chunkSize, count - start)));
+      }
+    }
+
+    Batch batch = new Batch(requests, chunks);
+    List<Future<Accumulator[]>> futures = new ArrayList<>(workers.length);
+    for (Worker worker : workers)
+    {
+      futures.add(worker.executor.submit(() -> worker.run(batch)));
+    }
+
+    Accumulator[] totals = new Accumulator[requests.size()];
+    try
+    {
+      for (Future<Accumulator[]> future : futures)
+      {
+        Accumulator[] partials = future.get();
+        for (int r = 0; r < totals.length; r++)
+        {
+          if (partials[r] == null)
+          {
+            continue;
+          }
+          if (totals[r] == null)
+          {
+            totals[r] = partials[r];
+          }
+          else
+          {
+            totals[r].add(partials[r]);
+          }
+        }
+      }
+    }
+    catch (InterruptedException | ExecutionException e)
+    {
+      throw new RuntimeException(e);
+    }
+
+    ImmutableList.Builder<Result> results = ImmutableList.builder();
+    for (Accumulator total : totals)
+    {
+      if (total == null)
+      {
+        total = new Accumulator(master);
+      }
+      results.add(total.toResult());
+    }
+    return results.build();
+  }
+
+  /**
+   * Makes a number of playouts from a single state.
+   */
+  public Result performPlayouts(ForwardDeadReckonInternalMachineState state, int count)
+  {
+    return performPlayouts(ImmutableList.of(new Request(state, count))).get(0);
+  }
+
+  /**
+   * Stops the worker threads. Playouts already submitted are completed first.
+   */
+  @Override
+  public void close()
+  {
+    for (Worker worker : workers)
+    {
+      worker.executor.shutdown();
+    }
+  }
+
+  private static final class Chunk
+  {
+    final int requestIndex;
+    final int count;
+
+    Chunk(int requestIndex, int count)
+    {
+      this.requestIndex = requestIndex;
+      this.count = count;
+    }
+  }
+
+  private static final class Batch
+  {
+    final List<Request> requests;
+    final List<Chunk> chunks;
+    final AtomicInteger nextChunk = new AtomicInteger();
+
+    Batch(List<Request> requests, List<Chunk> chunks)
+    {
+      this.requests = requests;
+      this.chunks = chunks;
+    }
+  }
+
+  /**
+   * Running totals for the playouts of one request.
+   */
+  private static final class Accumulator
+  {
+    final double[] goalTotals;
+    final MoveWeights moveWeights;
+    long lengthTotal;
+    int numPlayouts;
+
+    Accumulator(ForwardDeadReckonPropnetRuleEngine engine)
+    {
+      goalTotals = new double[engine.getNumRoles()];
+      moveWeights = engine.createMoveWeights();
+    }
+
+    void add(Accumulator other)
+    {
+      for (int i = 0; i < goalTotals.length; i++)
+      {
+        goalTotals[i] += other.goalTotals[i];
+      }
+      moveWeights.accumulate(other.moveWeights);
+      lengthTotal += other.lengthTotal;
+      numPlayouts += other.numPlayouts;
+    }
+
+    Result toResult()
+    {
+      double[] averageGoals = new double[goalTotals.length];
+      double averageLength = 0;
+      if (numPlayouts > 0)
+      {
+        for (int i = 0; i < goalTotals.length; i++)
+        {
+          averageGoals[i] = goalTotals[i] / numPlayouts;
+        }
+        averageLength = (double)lengthTotal / numPlayouts;
+      }
+      return new Result(numPlayouts, averageGoals, averageLength, moveWeights);
+    }
+  }
+
+  /**
+   * An engine instance together with the only thread allowed to use it.
+   */
+  private static final class Worker
+  {
+    final ForwardDeadReckonPropnetRuleEngine engine;
+    final ExecutorService executor;
+    final PlayoutInfo playoutInfo;
+    final Role[] roles;
+    final double[] scores;
+
+    Worker(ForwardDeadReckonPropnetRuleEngine engine, int index)
+    {
+      this.engine = engine;
+      this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("playout-worker-" + index)
+          .setDaemon(true)
+          .build());
+      // The trace buffers must have room for the move after the cutoff.
+      this.playoutInfo = engine.new PlayoutInfo(MAX_PLAYOUT_LENGTH + 2);
+      this.playoutInfo.cutoffDepth = MAX_PLAYOUT_LENGTH;
+      this.roles = engine.getRolesArray();
+      this.scores = new double[roles.length];
+    }
+
+    /**
+     * Claims chunks of the batch until none are left.
+     *
+     * @return the totals for each request this worker made playouts for,
+     * and null for the others
+     */
+    Accumulator[] run(Batch batch)
+    {
+      Accumulator[] partials = new Accumulator[batch.requests.size()];
+      int chunkIndex;
+      while ((chunkIndex = batch.nextChunk.getAndIncrement()) < batch.chunks.size())
+      {
+        Chunk chunk = batch.chunks.get(chunkIndex);
+        Request request = batch.requests.get(chunk.requestIndex);
+        Accumulator partial = partials[chunk.requestIndex];
+        if (partial == null)
+        {
+          partial = new Accumulator(engine);
+          partials[chunk.requestIndex] = partial;
+        }
+
+        engine.setPlayoutPolicy(request.policy == null ? null : request.policy.cloneFor(engine));
+        try
+        {
+          for (int i = 0; i < chunk.count; i++)
+          {
+            playOut(request.state, partial);
+          }
+        }
+        finally
+        {
+          engine.setPlayoutPolicy(null);
+        }
+      }
+      return partials;
+    }
+
+    private void playOut(ForwardDeadReckonInternalMachineState state, Accumulator partial)
+    {
+      engine.getDepthChargeResult(state, playoutInfo);
+
+      for (int r = 0; r < roles.length; r++)
+      {
+        scores[r] = engine.getGoal(roles[r]);
+        partial.goalTotals[r] += scores[r];
+      }
+      // The trace holds the moves of the roles that had a choice to make.
+      for (int depth = 0; depth < playoutInfo.playoutLength; depth++)
+      {
+        ForwardDeadReckonLegalMoveInfo move = playoutInfo.playoutTrace[depth];
+        if (move != null)
+        {
+          partial.moveWeights.addResult(scores, move);
+        }
+      }
+      partial.moveWeights.noteSampleComplete();
+      partial.lengthTotal += playoutInfo.playoutLength;
+      partial.numPlayouts++;
+    }
+  }
+}
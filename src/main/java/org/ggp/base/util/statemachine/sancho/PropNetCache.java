@@ -0,0 +1,333 @@
+package org.ggp.base.util.statemachine.sancho;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.ggp.base.util.crypto.BaseHashing;
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonComponentFactory;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonPropNet;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * On-disk cache of the results of the expensive parts of Sancho state machine
+ * initialization, so that a game that has been seen before can start without
+ * redoing them.
+ *
+ * Each entry holds the optimized (but not yet crystalized) full propnet, the
+ * results of irrelevant base and input removal, and - once measured - which base
+ * prop update mechanism runs fastest for the game.  Entries are keyed by a hash of
+ * the rules which does not depend on their order or on the names of their
+ * variables.  The factors and control mask of a game are already persisted with
+ * its {@link RuntimeGameCharacteristics}, so are not duplicated here.
+ *
+ * The cache never fails a game: entries that cannot be read are treated as
+ * missing, and entries that cannot be written are skipped.
+ */
+public class PropNetCache
+{
+  //  Bump whenever the format, or anything affecting the cached results, changes
+  private static final int     FORMAT_VERSION = 1;
+  private static final String  FILE_SUFFIX    = ".propnet";
+  private static final Pattern VARIABLE       = Pattern.compile("\\?[^\\s()]+");
+
+  private final File mDirectory;
+
+  /**
+   * A cached set of initialization results for one game.
+   */
+  public static final class Entry
+  {
+    private final byte[]           mPropNetData;
+    private final boolean          mIsPseudoPuzzle;
+    private final Set<GdlSentence> mFillerMoves;
+    private final boolean          mHasTransitionTuning;
+    private final boolean          mUse2passBasePropSet;
+    private final boolean          mRemoveOldBasePropsBeforeAddingNew;
+
+    private Entry(byte[] xiPropNetData,
+                  boolean xiIsPseudoPuzzle,
+                  Set<GdlSentence> xiFillerMoves,
+                  boolean xiHasTransitionTuning,
+                  boolean xiUse2passBasePropSet,
+                  boolean xiRemoveOldBasePropsBeforeAddingNew)
+    {
+      mPropNetData = xiPropNetData;
+      mIsPseudoPuzzle = xiIsPseudoPuzzle;
+      mFillerMoves = Collections.unmodifiableSet(new HashSet<>(xiFillerMoves));
+      mHasTransitionTuning = xiHasTransitionTuning;
+      mUse2passBasePropSet = xiUse2passBasePropSet;
+      mRemoveOldBasePropsBeforeAddingNew = xiRemoveOldBasePropsBeforeAddingNew;
+    }
+
+    /**
+     * Create an entry for an optimized propnet, with no transition tuning yet.
+     *
+     * @param xiPropNet - the optimized full propnet, which is copied.
+     * @param xiIsPseudoPuzzle - whether irrelevant base removal found the game to be a pseudo-puzzle.
+     * @param xiFillerMoves - moves found to be filler moves by irrelevant input removal.
+     */
+    public static Entry create(ForwardDeadReckonPropNet xiPropNet,
+                               boolean xiIsPseudoPuzzle,
+                               Set<GdlSentence> xiFillerMoves)
+    {
+      ByteArrayOutputStream lBytes = new ByteArrayOutputStream();
+      try (DataOutputStream lOutput = new DataOutputStream(lBytes))
+      {
+        xiPropNet.write(lOutput);
+      }
+      catch (IOException lEx)
+      {
+        throw new RuntimeException(lEx);
+      }
+      return new Entry(lBytes.toByteArray(), xiIsPseudoPuzzle, xiFillerMoves, false, false, false);
+    }
+
+    /**
+     * @return a copy of this entry with the given transition tuning.
+     */
+    public Entry withTransitionTuning(boolean xiUse2passBasePropSet, boolean xiRemoveOldBasePropsBeforeAddingNew)
+    {
+      return new Entry(mPropNetData,
+                       mIsPseudoPuzzle,
+                       mFillerMoves,
+                       true,
+                       xiUse2passBasePropSet,
+                       xiRemoveOldBasePropsBeforeAddingNew);
+    }
+
+    /**
+     * @return a new copy of the cached propnet.
+     *
+     * @throws IOException if the cached propnet is invalid.
+     */
+    public ForwardDeadReckonPropNet createPropNet() throws IOException
+    {
+      try (DataInputStream lInput = new DataInputStream(new ByteArrayInputStream(mPropNetData)))
+      {
+        return new ForwardDeadReckonPropNet(lInput, new ForwardDeadReckonComponentFactory());
+      }
+    }
+
+    public boolean isPseudoPuzzle()
+    {
+      return mIsPseudoPuzzle;
+    }
+
+    public Set<GdlSentence> getFillerMoves()
+    {
+      return mFillerMoves;
+    }
+
+    /**
+     * @return whether the fastest base prop update mechanism has been measured.
+     */
+    public boolean hasTransitionTuning()
+    {
+      return mHasTransitionTuning;
+    }
+
+    public boolean getUse2passBasePropSet()
+    {
+      return mUse2passBasePropSet;
+    }
+
+    public boolean getRemoveOldBasePropsBeforeAddingNew()
+    {
+      return mRemoveOldBasePropsBeforeAddingNew;
+    }
+  }
+
+  /**
+   * Create a cache stored in the given directory, which is created if necessary.
+   *
+   * @param xiDirectory - the directory to hold the cache files.
+   */
+  public PropNetCache(File xiDirectory)
+  {
+    mDirectory = xiDirectory;
+  }
+
+  /**
+   * Compute the cache key of a game.  This is a hash of the rules with their
+   * variables renamed in order of appearance, sorted so that the order of the
+   * rules does not matter - except for the roles, whose order is significant.
+   *
+   * @param xiRules - the game's rules.
+   * @param xiOurRole - the role being played, which irrelevant base removal
+   *                    depends on, or null if none.
+   */
+  public static String getKey(List<Gdl> xiRules, Role xiOurRole)
+  {
+    List<String> lCanonicalRules = new ArrayList<>(xiRules.size());
+    for (Gdl lRule : xiRules)
+    {
+      lCanonicalRules.add(renameVariables(lRule.toString()));
+    }
+    Collections.sort(lCanonicalRules);
+
+    StringBuilder lCanonical = new StringBuilder();
+    lCanonical.append(SanchoRuleEngineFactory.VERSION).append('\n');
+    lCanonical.append(xiOurRole).append('\n');
+    for (GdlConstant lRole : GdlUtils.getRoles(xiRules))
+    {
+      lCanonical.append(lRole).append('\n');
+    }
+    for (String lRule : lCanonicalRules)
+    {
+      lCanonical.append(lRule).append('\n');
+    }
+    return BaseHashing.computeSHA1Hash(lCanonical.toString());
+  }
+
+  private static String renameVariables(String xiRule)
+  {
+    List<String> lVariables = new ArrayList<>();
+    Matcher lMatcher = VARIABLE.matcher(xiRule);
+    StringBuffer lResult = new StringBuffer();
+    while (lMatcher.find())
+    {
+      int lIndex = lVariables.indexOf(lMatcher.group());
+      if (lIndex == -1)
+      {
+        lIndex = lVariables.size();
+        lVariables.add(lMatcher.group());
+      }
+      lMatcher.appendReplacement(lResult, "?v" + lIndex);
+    }
+    lMatcher.appendTail(lResult);
+    return lResult.toString();
+  }
+
+  /**
+   * Load the entry for a game.
+   *
+   * @param xiKey - the game's key, from {@link #getKey(List, Role)}.
+   *
+   * @return the entry, or null if there is no valid entry for the game.
+   */
+  public Entry load(String xiKey)
+  {
+    File lFile = getFile(xiKey);
+    if (!lFile.isFile())
+    {
+      return null;
+    }
+
+    try (DataInputStream lInput = new DataInputStream(new BufferedInputStream(new FileInputStream(lFile))))
+    {
+      if (lInput.readInt() != FORMAT_VERSION || !lInput.readUTF().equals(xiKey))
+      {
+        return null;
+      }
+      boolean lIsPseudoPuzzle = lInput.readBoolean();
+      Set<GdlSentence> lFillerMoves = new HashSet<>();
+      int lNumFillerMoves = lInput.readInt();
+      for (int i = 0; i < lNumFillerMoves; i++)
+      {
+        lFillerMoves.add(GdlUtils.toSentence(lInput.readUTF()));
+      }
+      boolean lHasTransitionTuning = lInput.readBoolean();
+      boolean lUse2passBasePropSet = lInput.readBoolean();
+      boolean lRemoveOldBasePropsBeforeAddingNew = lInput.readBoolean();
+      byte[] lPropNetData = new byte[lInput.readInt()];
+      lInput.readFully(lPropNetData);
+
+      Entry lEntry = new Entry(lPropNetData,
+                               lIsPseudoPuzzle,
+                               lFillerMoves,
+                               lHasTransitionTuning,
+                               lUse2passBasePropSet,
+                               lRemoveOldBasePropsBeforeAddingNew);
+      //  Check the propnet itself can be read, so that a corrupt entry is just a miss
+      lEntry.createPropNet();
+      return lEntry;
+    }
+    catch (IOException | RuntimeException lEx)
+    {
+      GamerLogger.logError("StateMachine", "Ignoring unreadable propnet cache entry " + lFile + ": " + lEx);
+      return null;
+    }
+  }
+
+  /**
+   * Save the entry for a game, replacing any existing one.  The file is written
+   * under a temporary name and then moved into place, so concurrent readers never
+   * see a partial entry.
+   *
+   * @param xiKey - the game's key, from {@link #getKey(List, Role)}.
+   * @param xiEntry - the entry to save.
+   */
+  public void save(String xiKey, Entry xiEntry)
+  {
+    File lTempFile = null;
+    try
+    {
+      Files.createDirectories(mDirectory.toPath());
+      lTempFile = File.createTempFile(xiKey, ".tmp", mDirectory);
+      try (DataOutputStream lOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(lTempFile))))
+      {
+        lOutput.writeInt(FORMAT_VERSION);
+        lOutput.writeUTF(xiKey);
+        lOutput.writeBoolean(xiEntry.mIsPseudoPuzzle);
+        lOutput.writeInt(xiEntry.mFillerMoves.size());
+        for (GdlSentence lMove : xiEntry.mFillerMoves)
+        {
+          lOutput.writeUTF(lMove.toString());
+        }
+        lOutput.writeBoolean(xiEntry.mHasTransitionTuning);
+        lOutput.writeBoolean(xiEntry.mUse2passBasePropSet);
+        lOutput.writeBoolean(xiEntry.mRemoveOldBasePropsBeforeAddingNew);
+        lOutput.writeInt(xiEntry.mPropNetData.length);
+        lOutput.write(xiEntry.mPropNetData);
+      }
+
+      try
+      {
+        Files.move(lTempFile.toPath(),
+                   getFile(xiKey).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException lEx)
+      {
+        Files.move(lTempFile.toPath(), getFile(xiKey).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    catch (IOException lEx)
+    {
+      GamerLogger.logError("StateMachine", "Failed to save propnet cache entry " + getFile(xiKey) + ": " + lEx);
+      if (lTempFile != null)
+      {
+        lTempFile.delete();
+      }
+    }
+  }
+
+  private File getFile(String xiKey)
+  {
+    return new File(mDirectory, xiKey + FILE_SUFFIX);
+  }
+}
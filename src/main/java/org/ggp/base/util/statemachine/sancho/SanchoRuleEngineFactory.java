@@ -1,5 +1,6 @@
 package org.ggp.base.util.statemachine.sancho;
 
+import java.io.File;
 import java.util.List;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -7,19 +8,48 @@ import org.ggp.base.util.ruleengine.RuleEngineFactory;
 
 public class SanchoRuleEngineFactory implements RuleEngineFactory<ForwardDeadReckonPropnetRuleEngine> {
     public static final String VERSION = "2017.08.13";
-    public static final SanchoRuleEngineFactory INSTANCE = new SanchoRuleEngineFactory();
-    private SanchoRuleEngineFactory() {
-        // Singleton
+    public static final SanchoRuleEngineFactory INSTANCE = new SanchoRuleEngineFactory(null);
+    private static final long OPTIMIZATION_TIME_MILLIS = 5000;
+    private final PropNetCache propNetCache;
+    private SanchoRuleEngineFactory(PropNetCache propNetCache) {
+        // Use INSTANCE or createWithCache()
+        this.propNetCache = propNetCache;
+    }
+
+    /**
+     * Creates a factory whose engines keep their optimized propnets in an
+     * on-disk cache in the given directory, so that games that have been seen
+     * before are ready much sooner.
+     */
+    public static SanchoRuleEngineFactory createWithCache(File cacheDirectory) {
+        return new SanchoRuleEngineFactory(new PropNetCache(cacheDirectory));
     }
 
     @Override
     public ForwardDeadReckonPropnetRuleEngine buildEngineForRules(List<Gdl> rules) {
         ForwardDeadReckonPropnetRuleEngine engine =
                 new ForwardDeadReckonPropnetRuleEngine();
+        return prepareEngine(engine, rules);
+    }
+
+    /**
+     * Builds an engine that allows up to maxInstances instances, counting the
+     * engine itself, to be created with
+     * {@link ForwardDeadReckonPropnetRuleEngine#createInstance()}.
+     */
+    public ForwardDeadReckonPropnetRuleEngine buildEngineForRules(List<Gdl> rules, int maxInstances) {
+        long metagameTimeout = System.currentTimeMillis() + OPTIMIZATION_TIME_MILLIS;
+        ForwardDeadReckonPropnetRuleEngine engine =
+                new ForwardDeadReckonPropnetRuleEngine(maxInstances, metagameTimeout, null, null);
+        return prepareEngine(engine, rules);
+    }
+
+    private ForwardDeadReckonPropnetRuleEngine prepareEngine(ForwardDeadReckonPropnetRuleEngine engine, List<Gdl> rules) {
+        engine.setPropNetCache(propNetCache);
         engine.initialize(rules);
         engine.enableGreedyRollouts(false, true);
 
-        engine.optimizeStateTransitionMechanism(System.currentTimeMillis()+5000);
+        engine.optimizeStateTransitionMechanism(System.currentTimeMillis()+OPTIMIZATION_TIME_MILLIS);
 
         return engine;
     }
@@ -0,0 +1,56 @@
+package org.ggp.base.player;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.ggp.base.player.GamePlayer.BadPortBehavior;
+import org.ggp.base.player.gamer.statemachine.random.RandomGamer;
+import org.ggp.base.util.http.HttpRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NioGamePlayerTest extends Assert {
+    @Test
+    public void testParsesPostRequests() throws Exception {
+        assertEquals("( INFO )", parse("POST / HTTP/1.0\r\nContent-Length: 8\r\n\r\n( INFO )", false));
+        assertEquals("( INFO )", parse("POST / HTTP/1.0\ncontent-length: 8\n\n( INFO )", false));
+        // Not all of the content has arrived yet.
+        assertNull(parse("POST / HTTP/1.0\r\nContent-Length: 8\r\n\r\n( IN", false));
+        assertNull(parse("POST / HTTP/1.0\r\nContent-Len", false));
+        // Without a Content-Length, the content ends with the stream.
+        assertNull(parse("POST / HTTP/1.0\r\n\r\n( INFO\r\n )", false));
+        assertEquals("( INFO )", parse("POST / HTTP/1.0\r\n\r\n( INFO\r\n )", true));
+    }
+
+    @Test
+    public void testParsesGetRequests() throws Exception {
+        assertEquals("( INFO )", parse("GET /%28+INFO+%29 HTTP/1.0\r\n\r\n", false));
+        assertNull(parse("GET /%28+INFO", false));
+    }
+
+    @Test
+    public void testRecognizesFastLaneRequests() {
+        assertTrue(NioGamePlayer.isFastLaneRequest("( INFO )"));
+        assertTrue(NioGamePlayer.isFastLaneRequest("(abort match1)"));
+        assertFalse(NioGamePlayer.isFastLaneRequest("( PLAY abort NIL )"));
+        assertFalse(NioGamePlayer.isFastLaneRequest("( INFORMATION )"));
+    }
+
+    @Test
+    public void testAnswersInfoRequests() throws Exception {
+        NioGamePlayer player = new NioGamePlayer(9147, new RandomGamer(), BadPortBehavior.FIND_AN_OPEN_PORT);
+        player.start();
+        try {
+            String response = HttpRequest.issueRequest("127.0.0.1", player.getGamerPort(), "", "( INFO )", 5000);
+            assertTrue(response, response.contains("available"));
+        } finally {
+            player.shutdown();
+        }
+    }
+
+    private static String parse(String request, boolean endOfStream) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put(request.getBytes(StandardCharsets.UTF_8));
+        return NioGamePlayer.parseRequest(buffer, endOfStream);
+    }
+}
@@ -0,0 +1,141 @@
+package org.ggp.base.player.gamer.ruleengine;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.RuleEngineState;
+import org.ggp.base.util.ruleengine.StateMachineRuleEngine;
+import org.ggp.base.util.ruleengine.forwardchaining.ForwardChainingRuleEngineFactory;
+import org.ggp.base.util.ruleengine.prover.ProverRuleEngine;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.SamplePropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class MctsTreeTest extends Assert {
+    @Test
+    public void testKeepsTreeBetweenTurns() throws Exception {
+        playWithTree("ticTacToe", 10000, 2000);
+    }
+
+    @Test
+    public void testRecyclesNodesWhenFull() throws Exception {
+        playWithTree("connectFour", 100, 500);
+    }
+
+    @Test
+    public void testTicTacToeSearchIsExhaustive() throws Exception {
+        // The whole game fits in the tree, so it should find that the
+        // game is a draw with best play. The averages include exploring
+        // the opponent's weaker replies, so allow a few points above 50.
+        RuleEngine<?, ?> engine = buildEngine("ticTacToe");
+        assertEquals(50.0, searchInitialState(engine, 100000), 5.0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsRootThatDoesNotFit() throws Exception {
+        // Tic-tac-toe's first state has nine joint moves, but a tree of one
+        // node only has room for eight children.
+        RuleEngine<?, ?> engine = buildEngine("ticTacToe");
+        setInitialRoot(engine, 1);
+    }
+
+    @Test
+    public void testParallelSearchCountsEveryIteration() throws Exception {
+        RuleEngine<?, ?> engine = buildEngine("ticTacToe");
+        assertEquals(50.0, searchInitialStateInParallel(engine, 4, 25000), 5.0);
+    }
+
+    @Test
+    public void testParallelSearchWithOtherEngines() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine sm = new SamplePropNetStateMachine();
+        sm.initialize(rules);
+        searchInitialStateInParallel(StateMachineRuleEngine.wrap(sm), 2, 2000);
+        searchInitialStateInParallel(ProverRuleEngine.create(rules, false), 2, 200);
+    }
+
+    private static <M, S extends RuleEngineState<M, S>> double searchInitialStateInParallel(RuleEngine<M, S> engine,
+            int threads, int iterationsPerThread) throws Exception {
+        MctsTree<M, S> tree = new MctsTree<M, S>(engine, 10000);
+        List<MctsTree<M, S>.Worker> workers = Lists.newArrayList();
+        for (int i = 0; i < threads; i++) {
+            workers.add(tree.createWorker(engine.getInstanceForThread()));
+        }
+        tree.setRoot(engine.getInitialState());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = Lists.newArrayList();
+            for (MctsTree<M, S>.Worker worker : workers) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < iterationsPerThread; i++) {
+                        worker.iterate();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(threads * iterationsPerThread, tree.getRootVisits());
+        return tree.getBestMoveScore(0);
+    }
+
+    private static <M, S extends RuleEngineState<M, S>> void setInitialRoot(RuleEngine<M, S> engine, int nodeCapacity) throws Exception {
+        new MctsTree<M, S>(engine, nodeCapacity).setRoot(engine.getInitialState());
+    }
+
+    private static <M, S extends RuleEngineState<M, S>> double searchInitialState(RuleEngine<M, S> engine, int iterations) throws Exception {
+        MctsTree<M, S> tree = new MctsTree<M, S>(engine, 10000);
+        tree.setRoot(engine.getInitialState());
+        for (int i = 0; i < iterations; i++) {
+            tree.iterate();
+        }
+        return tree.getBestMoveScore(0);
+    }
+
+    private static void playWithTree(String gameKey, int nodeCapacity, int iterationsPerTurn) throws Exception {
+        playWithTree(buildEngine(gameKey), nodeCapacity, iterationsPerTurn);
+    }
+
+    /*
+     * Plays a game with every role choosing its moves from the same tree.
+     */
+    private static <M, S extends RuleEngineState<M, S>> void playWithTree(RuleEngine<M, S> engine, int nodeCapacity, int iterationsPerTurn) throws Exception {
+        MctsTree<M, S> tree = new MctsTree<M, S>(engine, nodeCapacity);
+        S state = engine.getInitialState();
+        while (!engine.isTerminal(state)) {
+            tree.setRoot(state);
+            int visitsBefore = tree.getRootVisits();
+            for (int i = 0; i < iterationsPerTurn; i++) {
+                tree.iterate();
+            }
+            assertEquals(visitsBefore + iterationsPerTurn, tree.getRootVisits());
+            assertTrue(tree.getNodeCount() <= nodeCapacity);
+
+            List<M> jointMove = Lists.newArrayList();
+            for (int r = 0; r < engine.getNumRoles(); r++) {
+                M move = tree.getBestMove(r);
+                assertTrue(engine.getLegalMoves(state, r).contains(move));
+                jointMove.add(move);
+            }
+            state = engine.getNextState(state, jointMove);
+        }
+    }
+
+    private static RuleEngine<?, ?> buildEngine(String gameKey) {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        return ForwardChainingRuleEngineFactory.INSTANCE.buildEngineForRules(rules);
+    }
+}
@@ -0,0 +1,51 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import org.ggp.base.player.gamer.statemachine.sample.SampleMonteCarloGamer.Mode;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.match.Match;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SampleMonteCarloGamerTest extends Assert {
+    @Test
+    public void testSingleThreaded() throws Exception {
+        checkSelectsLegalMoveInTime(new SampleMonteCarloGamer(), 1);
+    }
+
+    @Test
+    public void testRootParallel() throws Exception {
+        checkSelectsLegalMoveInTime(new SampleMonteCarloGamer(Mode.ROOT_PARALLEL, 4), 4);
+    }
+
+    @Test
+    public void testLeafParallel() throws Exception {
+        checkSelectsLegalMoveInTime(new SampleMonteCarloGamer(Mode.LEAF_PARALLEL, 4), 4);
+    }
+
+    private static void checkSelectsLegalMoveInTime(SampleMonteCarloGamer gamer, int threads) throws Exception {
+        Match match = new Match("", -1, 1000, 1000, new TestGameRepository().getGame("ticTacToe"), "");
+        gamer.setMatch(match);
+        gamer.setRoleName(GdlPool.getConstant("xplayer"));
+        gamer.metaGame(System.currentTimeMillis() + 1000);
+        try {
+            for (int turn = 0; turn < 2; turn++) {
+                long timeout = System.currentTimeMillis() + 1500;
+                GdlTerm move = gamer.selectMove(timeout);
+                assertTrue(System.currentTimeMillis() < timeout);
+                assertTrue(gamer.getStateMachine().getLegalMoves(gamer.getCurrentState(), new Role(GdlPool.getConstant("xplayer")))
+                        .contains(new Move(move)));
+                // Every thread ran simulations, and all of their results
+                // made it into the totals.
+                assertEquals(threads, gamer.getLastSimulationThreadCount());
+                assertTrue(gamer.getLastSimulationsRun() > threads);
+                assertEquals(gamer.getLastSimulationsRun(), gamer.getLastSimulationsCounted());
+            }
+        } finally {
+            gamer.abort();
+        }
+    }
+}
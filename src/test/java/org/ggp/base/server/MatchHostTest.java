@@ -0,0 +1,155 @@
+package org.ggp.base.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.player.GamePlayer.BadPortBehavior;
+import org.ggp.base.player.NioGamePlayer;
+import org.ggp.base.player.gamer.statemachine.random.RandomGamer;
+import org.ggp.base.server.event.ServerCompletedMatchEvent;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.http.HttpReader;
+import org.ggp.base.util.http.HttpWriter;
+import org.ggp.base.util.match.Match;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs several matches at once on a MatchHost against players on the local
+ * machine, and checks what ends up in their match descriptions.
+ */
+public class MatchHostTest extends Assert {
+    private final List<NioGamePlayer> players = new ArrayList<NioGamePlayer>();
+    private final List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
+
+    private void stopPlayers() throws IOException {
+        for (NioGamePlayer player : players) {
+            player.shutdown();
+        }
+        for (ServerSocket ss : serverSockets) {
+            ss.close();
+        }
+    }
+
+    @Test
+    public void testHostsConcurrentMatches() throws Exception {
+        Game ticTacToe = new TestGameRepository().getGame("ticTacToe");
+        Game oneMove = new TestGameRepository().getGame("test_case_1a");
+        int closedPort = getClosedPort();
+
+        try (MatchHost host = MatchHost.create(2)) {
+            hostMatches(host, ticTacToe, oneMove, closedPort);
+        } finally {
+            stopPlayers();
+        }
+    }
+
+    private void hostMatches(MatchHost host, Game ticTacToe, Game oneMove, int closedPort) throws Exception {
+        // Two well-behaved players; one with a player nobody is listening
+        // for; one with a player that only makes illegal moves; and one
+        // of another game.
+        HostedMatch normal = host.hostMatch(new Match("normal", -1, 5, 2, ticTacToe, ""),
+                Arrays.asList("127.0.0.1", "127.0.0.1"), Arrays.asList(startRandomPlayer(), startRandomPlayer()));
+        HostedMatch unreachable = host.hostMatch(new Match("unreachable", -1, 5, 2, ticTacToe, ""),
+                Arrays.asList("127.0.0.1", "127.0.0.1"), Arrays.asList(startRandomPlayer(), closedPort));
+        HostedMatch illegal = host.hostMatch(new Match("illegal", -1, 5, 2, ticTacToe, ""),
+                Arrays.asList("127.0.0.1", "127.0.0.1"), Arrays.asList(startIllegalMovePlayer(), startRandomPlayer()));
+        HostedMatch single = host.hostMatch(new Match("single", -1, 5, 2, oneMove, ""),
+                Collections.singletonList("127.0.0.1"), Collections.singletonList(startRandomPlayer()));
+        final int[] completedEvents = new int[1];
+        List<HostedMatch> matches = Arrays.asList(normal, unreachable, illegal, single);
+        for (HostedMatch match : matches) {
+            match.addObserver(event -> {
+                if (event instanceof ServerCompletedMatchEvent) {
+                    synchronized (completedEvents) {
+                        completedEvents[0]++;
+                    }
+                }
+            });
+        }
+        for (HostedMatch match : matches) {
+            match.start();
+        }
+        for (HostedMatch match : matches) {
+            Match result = match.getCompletion().get(60, TimeUnit.SECONDS);
+            assertTrue(result.getMatchId(), result.isCompleted());
+            assertFalse(result.getMatchId(), result.isAborted());
+            assertTrue(result.getMatchId(), result.getGdlScope().isClosed());
+            // One entry for the start, then one for each move.
+            assertEquals(result.getMoveHistory().size() + 1, result.getErrorHistory().size());
+            assertEquals(result.getMoveHistory().size() + 1, result.getStateHistory().size());
+        }
+        synchronized (completedEvents) {
+            assertEquals(4, completedEvents[0]);
+        }
+        assertEquals(0, host.getActiveMatchCount());
+
+        for (HostedMatch match : Arrays.asList(normal, unreachable, illegal)) {
+            List<Integer> goals = match.getMatch().getGoalValues();
+            assertEquals(2, goals.size());
+            assertEquals(100, goals.get(0) + goals.get(1));
+            assertTrue(match.getMatch().getMoveHistory().size() >= 5);
+        }
+        assertEquals(Collections.singletonList(100), single.getMatch().getGoalValues());
+        assertEquals(1, single.getMatch().getMoveHistory().size());
+
+        for (List<String> errors : normal.getMatch().getErrorHistory()) {
+            assertEquals(Arrays.asList("", ""), errors);
+        }
+        for (List<String> errors : single.getMatch().getErrorHistory()) {
+            assertEquals(Collections.singletonList(""), errors);
+        }
+        for (List<String> errors : unreachable.getMatch().getErrorHistory()) {
+            assertEquals(Arrays.asList("", "CE"), errors);
+        }
+        List<List<String>> illegalErrors = illegal.getMatch().getErrorHistory();
+        assertEquals(Arrays.asList("", ""), illegalErrors.get(0));
+        for (List<String> errors : illegalErrors.subList(1, illegalErrors.size())) {
+            assertEquals(Arrays.asList("IL bogus", ""), errors);
+        }
+    }
+
+    private int startRandomPlayer() throws IOException {
+        NioGamePlayer player = new NioGamePlayer(9147, new RandomGamer(), BadPortBehavior.FIND_AN_OPEN_PORT);
+        player.start();
+        players.add(player);
+        return player.getGamerPort();
+    }
+
+    /*
+     * Starts a player that accepts every match but answers every play
+     * request with a move that is never legal.
+     */
+    private int startIllegalMovePlayer() throws IOException {
+        final ServerSocket ss = new ServerSocket(0);
+        serverSockets.add(ss);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    try (Socket s = ss.accept()) {
+                        String request = HttpReader.readAsServer(s);
+                        HttpWriter.writeAsServer(s, request.startsWith("( START") ? "ready" : request.startsWith("( PLAY") ? "bogus" : "done");
+                    }
+                }
+            } catch (IOException e) {
+                // The socket was closed at the end of the test.
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return ss.getLocalPort();
+    }
+
+    private static int getClosedPort() throws IOException {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            return ss.getLocalPort();
+        }
+    }
+}
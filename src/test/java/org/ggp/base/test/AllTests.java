@@ -1,13 +1,20 @@
 package org.ggp.base.test;
 
 import org.ggp.base.apps.logging.LogSummarizerTest;
+import org.ggp.base.player.NioGamePlayerTest;
 import org.ggp.base.player.gamer.clojure.ClojureGamerTest;
 import org.ggp.base.player.gamer.python.PythonGamerTest;
+import org.ggp.base.player.gamer.ruleengine.MctsTreeTest;
+import org.ggp.base.player.gamer.statemachine.sample.SampleMonteCarloGamerTest;
+import org.ggp.base.server.MatchHostTest;
 import org.ggp.base.util.crypto.BaseCryptographyTest;
 import org.ggp.base.util.crypto.BaseHashingTest;
 import org.ggp.base.util.crypto.CanonicalJSONTest;
 import org.ggp.base.util.crypto.SignableJSONTest;
 import org.ggp.base.util.game.GameParsingTest;
+import org.ggp.base.util.gdl.factory.StreamingGdlParserTest;
+import org.ggp.base.util.gdl.grammar.GdlPoolTest;
+import org.ggp.base.util.gdl.grammar.GdlScopeTest;
 import org.ggp.base.util.gdl.model.DependencyGraphsTest;
 import org.ggp.base.util.gdl.model.SimpleSentenceFormTest;
 import org.ggp.base.util.gdl.scrambler.GdlRendererTest;
@@ -15,31 +22,66 @@ import org.ggp.base.util.gdl.scrambler.GdlScramblerTest;
 import org.ggp.base.util.gdl.transforms.GdlCleanerTest;
 import org.ggp.base.util.http.HttpTest;
 import org.ggp.base.util.presence.InfoResponseTest;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactoryTest;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonBitParallelAnimatorTest;
+import org.ggp.base.util.prover.compact.CompactProverTest;
+import org.ggp.base.util.ruleengine.DepthChargeBatchTest;
+import org.ggp.base.util.ruleengine.forwardchaining.ForwardChainingRuleEngineTest;
+import org.ggp.base.util.ruleengine.propnet.CompiledPropNetRuleEngineTest;
+import org.ggp.base.util.statemachine.CrossCheckedStateMachineTest;
+import org.ggp.base.util.statemachine.cache.CachedStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.propnet.SamplePropNetStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.prover.AimaProverStateMachineTest;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.prover.TabledProverStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.prover.ZobristProverStateMachineTest;
+import org.ggp.base.util.statemachine.sancho.ParallelPlayoutServiceTest;
+import org.ggp.base.util.statemachine.sancho.PropNetCacheTest;
 import org.ggp.base.validator.StaticValidationTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+    AimaProverStateMachineTest.class,
     BaseCryptographyTest.class,
     BaseHashingTest.class,
+    CachedStateMachineTest.class,
     CanonicalJSONTest.class,
     ClojureGamerTest.class,
+    CompactProverTest.class,
+    CompiledPropNetRuleEngineTest.class,
+    CrossCheckedStateMachineTest.class,
     DependencyGraphsTest.class,
+    DepthChargeBatchTest.class,
+    ForwardChainingRuleEngineTest.class,
+    ForwardDeadReckonBitParallelAnimatorTest.class,
     GameParsingTest.class,
     GdlCleanerTest.class,
+    GdlPoolTest.class,
     GdlRendererTest.class,
+    GdlScopeTest.class,
     GdlScramblerTest.class,
     HttpTest.class,
     InfoResponseTest.class,
     LogSummarizerTest.class,
+    MatchHostTest.class,
+    MctsTreeTest.class,
+    NioGamePlayerTest.class,
     NoTabsInRulesheetsTest.class,
+    OptimizingPropNetFactoryTest.class,
+    ParallelPlayoutServiceTest.class,
+    PropNetCacheTest.class,
     ProverStateMachineTest.class,
     PythonGamerTest.class,
+    SampleMonteCarloGamerTest.class,
+    SamplePropNetStateMachineTest.class,
     SignableJSONTest.class,
     SimpleSentenceFormTest.class,
     StaticValidationTest.class,
+    StreamingGdlParserTest.class,
+    TabledProverStateMachineTest.class,
+    ZobristProverStateMachineTest.class,
     //TiltyardRequestFarmTest.class, //Takes too long
 })
 public class AllTests {
@@ -0,0 +1,132 @@
+package org.ggp.base.util.gdl.factory;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.GameRepository;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.symbol.factory.SymbolFactory;
+import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
+import org.ggp.base.util.symbol.grammar.SymbolList;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamingGdlParserTest extends Assert {
+    @Test
+    public void testMatchesSymbolParsingOnTestGames() throws Exception {
+        GameRepository repository = new TestGameRepository();
+        for (String gameKey : repository.getGameKeys()) {
+            String rulesheet = repository.getGame(gameKey).getRulesheet();
+            assertEquals(gameKey, parseWithSymbols(rulesheet), StreamingGdlParser.parseRulesheet(rulesheet));
+        }
+    }
+
+    @Test
+    public void testKeywordsAndVariables() throws Exception {
+        String rule = "( <= ( P ?x ) ( NOT ( q ?x ) ) ( Distinct ?x A ) ( or ( r ?X ) s ) )";
+        assertEquals(GdlFactory.create(SymbolFactory.create(rule)), StreamingGdlParser.parse(rule));
+        assertEquals(GdlFactory.createTerm(SymbolFactory.create("?x")), StreamingGdlParser.parseTerm("?x"));
+        assertEquals(GdlFactory.createTerm(SymbolFactory.create("( f a ( g ?y ) )")),
+                StreamingGdlParser.parseTerm("(f a(g ?y))"));
+    }
+
+    @Test
+    public void testRawRulesheetComments() throws Exception {
+        String raw = "; comment\n(a b)\r\n; comment two\n(c d e) ; comment three\n(f g);x\n(h i;j\nk)";
+        List<Gdl> expected = parseWithSymbols(Game.preprocessRulesheet(raw));
+        assertEquals(expected, StreamingGdlParser.parseRawRulesheet(raw));
+        assertEquals(expected, StreamingGdlParser.parseRawRulesheet(new StringReader(raw)));
+        assertEquals(expected, StreamingGdlParser.parseRawRulesheet(
+                ByteBuffer.wrap(raw.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testAllInputsAcrossBufferBoundaries() throws Exception {
+        // Long enough to need several refills, with an atom longer than the buffer
+        StringBuilder rulesheet = new StringBuilder("(");
+        for (int i = 0; i < 2000; i++) {
+            rulesheet.append(" ( <= ( legal player ( mark ").append(i).append(" ?x ) ) ( true ( cell ?x b ) ) )");
+        }
+        rulesheet.append(" ( role ");
+        for (int i = 0; i < 20000; i++) {
+            rulesheet.append((char) ('a' + i % 26));
+        }
+        rulesheet.append(" ) )");
+        String string = rulesheet.toString();
+
+        List<Gdl> expected = parseWithSymbols(string);
+        assertEquals(expected, StreamingGdlParser.parseRulesheet(string));
+        assertEquals(expected, StreamingGdlParser.parseRulesheet(new StringBuilder(string)));
+        assertEquals(expected, StreamingGdlParser.parseRulesheet(new OneCharReader(string)));
+        assertEquals(expected, StreamingGdlParser.parseRulesheet(
+                ByteBuffer.wrap(string.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testTermList() throws Exception {
+        List<Object> expected = new ArrayList<>();
+        expected.add(GdlFactory.createTerm(SymbolFactory.create("( cell 1 1 x )")));
+        expected.add(GdlFactory.createTerm(SymbolFactory.create("( control oplayer )")));
+        expected.add(GdlFactory.createTerm(SymbolFactory.create("started")));
+        assertEquals(expected, StreamingGdlParser.parseTermList("( ( cell 1 1 x ) ( control oplayer ) started )"));
+        assertTrue(StreamingGdlParser.parseTermList("( )").isEmpty());
+    }
+
+    @Test
+    public void testMalformedInput() throws Exception {
+        String[] malformed = {"", "(", ")", "( a b", "( a ) b", "( )", "( ( a ) b )", "( <= )",
+                "( <= ( p ) ( not ) )", "( <= ( p ) ( not a b ) )", "( <= ( p ) ( distinct a ) )",
+                "( <= ( p ) ( distinct a b c ) )"};
+        for (String string : malformed) {
+            try {
+                StreamingGdlParser.parse(string);
+                fail("Parsed malformed input: " + string);
+            } catch (SymbolFormatException e) {
+                // Expected
+            }
+        }
+        try {
+            StreamingGdlParser.parseRulesheet("( ( role a ) ) ( role b )");
+            fail("Parsed a rulesheet with trailing input");
+        } catch (SymbolFormatException e) {
+            assertTrue(e.getSource(), e.getSource().contains("'('"));
+        }
+    }
+
+    private static List<Gdl> parseWithSymbols(String rulesheet) throws Exception {
+        List<Gdl> rules = new ArrayList<>();
+        SymbolList list = (SymbolList) SymbolFactory.create(rulesheet);
+        for (int i = 0; i < list.size(); i++) {
+            rules.add(GdlFactory.create(list.get(i)));
+        }
+        return rules;
+    }
+
+    private static class OneCharReader extends Reader {
+        private final String string;
+        private int position = 0;
+
+        OneCharReader(String string) {
+            this.string = string;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == string.length()) {
+                return -1;
+            }
+            buffer[offset] = string.charAt(position++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.ggp.base.util.gdl.grammar;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GdlPoolTest extends Assert {
+    @Test
+    public void testCaseInsensitiveNamesUseTheFirstSpelling() {
+        String name = "pool_test_" + System.nanoTime();
+        GdlPool.caseSensitive = false;
+        try {
+            GdlConstant constant = GdlPool.getConstant(name);
+            assertSame(constant, GdlPool.getConstant(name.toUpperCase()));
+            assertEquals(name, GdlPool.getConstant(name.toUpperCase()).getValue());
+            GdlVariable variable = GdlPool.getVariable("?" + name.toUpperCase());
+            assertSame(variable, GdlPool.getVariable("?" + name));
+            assertEquals("?" + name.toUpperCase(), variable.getName());
+            // Keywords are always lower-case.
+            assertSame(GdlPool.TRUE, GdlPool.getConstant("TRUE"));
+        } finally {
+            GdlPool.caseSensitive = true;
+        }
+        assertNotSame(GdlPool.getConstant(name), GdlPool.getConstant(name.toUpperCase()));
+    }
+}
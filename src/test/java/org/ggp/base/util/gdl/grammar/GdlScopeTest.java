@@ -0,0 +1,79 @@
+package org.ggp.base.util.gdl.grammar;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GdlScopeTest extends Assert {
+    @Test
+    public void testIdsAreDenseAndStable() throws Exception {
+        try (GdlScope scope = new GdlScope()) {
+            GdlSentence cell = (GdlSentence) GdlFactory.create("( cell 1 1 b )");
+            GdlSentence control = (GdlSentence) GdlFactory.create("( control xplayer )");
+            assertEquals(0, scope.getId(cell));
+            assertEquals(1, scope.getId(control));
+            assertEquals(0, scope.getId((GdlSentence) GdlFactory.create("( cell 1 1 b )")));
+            assertArrayEquals(new int[] {1, 0}, scope.getIds(Arrays.asList(control, cell)));
+            assertSame(control, scope.getSentence(1));
+            assertEquals(2, scope.getNumSentences());
+            assertEquals(-1, scope.getExistingId(GdlPool.getProposition(GdlPool.TERMINAL)));
+
+            // Constants are numbered separately
+            assertEquals(0, scope.getId(GdlPool.getConstant("xplayer")));
+            assertSame(GdlPool.getConstant("xplayer"), scope.getConstant(0));
+            assertEquals(1, scope.getNumConstants());
+        }
+    }
+
+    @Test
+    public void testClosingReleasesOnlyUnreferencedGdl() throws Exception {
+        String name = "scope_test_" + System.nanoTime();
+        GdlScope scope = new GdlScope();
+        scope.getId((GdlSentence) GdlFactory.create("( " + name + " a )"));
+        scope.retain(GdlFactory.create("( " + name + " b )"));
+        GdlSentence shared = (GdlSentence) GdlFactory.create("( " + name + " c )");
+        scope.getId(shared);
+        WeakReference<Gdl> a = new WeakReference<>(GdlFactory.create("( " + name + " a )"));
+        WeakReference<Gdl> b = new WeakReference<>(GdlFactory.create("( " + name + " b )"));
+
+        collectGarbage();
+        assertNotNull(a.get());
+        assertNotNull(b.get());
+        assertSame(a.get(), GdlFactory.create("( " + name + " a )"));
+
+        scope.close();
+        assertTrue(scope.isClosed());
+        assertTrue(isCollected(a));
+        assertTrue(isCollected(b));
+        // Still referenced here, so still the pooled copy
+        assertSame(shared, GdlFactory.create("( " + name + " c )"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedScopeCannotBeUsed() {
+        GdlScope scope = new GdlScope();
+        scope.close();
+        scope.close();
+        scope.getId(GdlPool.TRUE);
+    }
+
+    private static void collectGarbage() throws InterruptedException {
+        System.gc();
+        Thread.sleep(10);
+    }
+
+    /*
+     * System.gc() is only a request, so this keeps asking, waiting longer
+     * each time, for a bounded number of attempts.
+     */
+    private static boolean isCollected(WeakReference<?> ref) throws InterruptedException {
+        for (int attempt = 0; attempt < 10 && ref.get() != null; attempt++) {
+            System.gc();
+            Thread.sleep(10L << attempt / 2);
+        }
+        return ref.get() == null;
+    }
+}
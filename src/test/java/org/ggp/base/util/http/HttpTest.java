@@ -9,6 +9,7 @@ import java.net.Socket;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -78,6 +79,69 @@ public class HttpTest extends Assert {
         doClientEchoCheckOverGET(testPair, "1234567890abcdefgijklmnopqrstuvwxyz!@#$%^&*()1234567890", "");
     }
 
+    @Test
+    public void testAsyncClientEcho() throws Exception {
+        final ServerSocket ss = new ServerSocket(0);
+        Thread echoServer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 2; i++) {
+                    try (Socket s = ss.accept()) {
+                        HttpWriter.writeAsServer(s, HttpReader.readAsServer(s));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        echoServer.start();
+
+        try (AsyncHttpClient client = AsyncHttpClient.create()) {
+            CompletableFuture<String> first = client.issueRequest("127.0.0.1", ss.getLocalPort(), "SamplePlayer", "( PLAY match NIL )", 5000);
+            CompletableFuture<String> second = client.issueRequest("127.0.0.1", ss.getLocalPort(), "SamplePlayer", "123 456 ^&!*! // DATA", 5000);
+            assertEquals("( PLAY match NIL )", first.get());
+            assertEquals("123 456 ^&!*! // DATA", second.get());
+        }
+        echoServer.join();
+        ss.close();
+    }
+
+    @Test
+    public void testAsyncClientResponseInPieces() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append(i % 10);
+        }
+        final String content = sb.toString();
+        final ServerSocket ss = new ServerSocket(0);
+        Thread pieceServer = new Thread(() -> {
+            try {
+                // One response with a Content-Length and LF line breaks, and
+                // one that just runs to the end of the stream.
+                for (int i = 0; i < 2; i++) {
+                    try (Socket s = ss.accept()) {
+                        HttpReader.readAsServer(s);
+                        String headers = (i == 0) ? "HTTP/1.0 200 OK\nContent-Length: " + content.length() + "\n\n" : "HTTP/1.0 200 OK\r\n\r\n";
+                        byte[] response = (headers + content).getBytes("UTF-8");
+                        for (int start = 0; start < response.length; start += 1000) {
+                            s.getOutputStream().write(response, start, Math.min(1000, response.length - start));
+                            s.getOutputStream().flush();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        pieceServer.start();
+
+        try (AsyncHttpClient client = AsyncHttpClient.create()) {
+            assertEquals(content, client.issueRequest("127.0.0.1", ss.getLocalPort(), "SamplePlayer", "first", 5000).get());
+            assertEquals(content, client.issueRequest("127.0.0.1", ss.getLocalPort(), "SamplePlayer", "second", 5000).get());
+        }
+        pieceServer.join();
+        ss.close();
+    }
+
     // Helper functions for running specific checks.
 
     private void doSimpleEchoCheck(SocketPair p, String data, String playerName) throws IOException {
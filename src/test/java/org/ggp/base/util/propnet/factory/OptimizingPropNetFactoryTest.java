@@ -0,0 +1,127 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.compiled.BitSetMachineState;
+import org.ggp.base.util.propnet.compiled.IndexedPropNet;
+import org.ggp.base.util.ruleengine.prover.ProverRuleEngine;
+import org.ggp.base.util.ruleengine.prover.ProverRuleEngineFactory;
+import org.ggp.base.util.statemachine.Move;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Checks that propnets built with several threads behave the same as the
+ * prover, so sentence forms added concurrently don't interfere.
+ */
+public class OptimizingPropNetFactoryTest extends Assert {
+    private static final int NUM_THREADS = 4;
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        assertMatchesProver("ticTacToe", 10);
+    }
+
+    @Test
+    public void testConnectFour() throws Exception {
+        assertMatchesProver("connectFour", 5);
+    }
+
+    // test_case_5a, 5d and 5f are left out: OptimizingPropNetFactory doesn't
+    // finish on them.
+    @Test
+    public void testSmallTestCases() throws Exception {
+        for (String game : new String[] {"test_case_1a", "test_case_3c",
+                "test_case_5b", "test_case_5c", "test_case_5e",
+                "test_distinct_beginning_rule", "test_fvv_1"}) {
+            assertMatchesProver(game, 3);
+        }
+    }
+
+    @Test
+    public void testSameComponentsWithOneThread() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("connectFour").getRules();
+        IndexedPropNet parallel = IndexedPropNet.create(OptimizingPropNetFactory.create(rules, false, NUM_THREADS));
+        IndexedPropNet serial = IndexedPropNet.create(OptimizingPropNetFactory.create(rules, false, 1));
+        assertEquals(serial.getPropNet().getBasePropositions().keySet(),
+                parallel.getPropNet().getBasePropositions().keySet());
+        assertEquals(serial.getPropNet().getInputPropositions().keySet(),
+                parallel.getPropNet().getInputPropositions().keySet());
+        assertEquals(serial.getInitialState(), parallel.getInitialState());
+    }
+
+    private static void assertMatchesProver(String gameKey, int numPlayouts) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        IndexedPropNet propNet = IndexedPropNet.create(OptimizingPropNetFactory.create(rules, false, NUM_THREADS));
+        ProverRuleEngine reference = ProverRuleEngineFactory.createNormal().buildEngineForRules(rules);
+        assertEquals(reference.getRoles(), propNet.getRoles());
+
+        boolean[] values = new boolean[propNet.getNumComponents()];
+        Random random = new Random(0L);
+        for (int playout = 0; playout < numPlayouts; playout++) {
+            BitSetMachineState state = propNet.getInitialState();
+            assertEquals(gameKey, reference.getInitialState(), state);
+            while (true) {
+                propNet.readState(state, values);
+                propNet.evaluate(propNet.getStateOrder(), values);
+                boolean terminal = values[propNet.getTerminalComponent()];
+                assertEquals(gameKey, reference.isTerminal(state), terminal);
+                if (terminal) {
+                    break;
+                }
+                List<Move> jointMove = Lists.newArrayList();
+                List<Integer> inputs = Lists.newArrayList();
+                for (int r = 0; r < reference.getNumRoles(); r++) {
+                    List<Move> legalMoves = reference.getLegalMoves(state, r);
+                    assertEquals(gameKey, ImmutableSet.copyOf(legalMoves), getLegalMoves(propNet, values, r));
+                    Move move = legalMoves.get(random.nextInt(legalMoves.size()));
+                    jointMove.add(move);
+                    int input = propNet.getInputComponent(r, move);
+                    if (input != IndexedPropNet.NO_INPUT) {
+                        values[input] = true;
+                        inputs.add(input);
+                    }
+                }
+                propNet.evaluate(propNet.getMoveOrder(), values);
+                BitSetMachineState nextState = propNet.readNextState(values);
+                for (int input : inputs) {
+                    values[input] = false;
+                }
+                assertEquals(gameKey, reference.getNextState(state, jointMove), nextState);
+                state = nextState;
+            }
+            for (int r = 0; r < reference.getNumRoles(); r++) {
+                assertEquals(gameKey, reference.getGoal(state, r), getGoal(propNet, values, r));
+            }
+        }
+    }
+
+    private static Set<Move> getLegalMoves(IndexedPropNet propNet, boolean[] values, int role) {
+        Set<Move> moves = Sets.newHashSet();
+        int[] legals = propNet.getLegalComponents(role);
+        for (int i = 0; i < legals.length; i++) {
+            if (values[legals[i]]) {
+                moves.add(propNet.getLegalMoves(role)[i]);
+            }
+        }
+        return moves;
+    }
+
+    private static int getGoal(IndexedPropNet propNet, boolean[] values, int role) {
+        int[] goals = propNet.getGoalComponents(role);
+        for (int i = 0; i < goals.length; i++) {
+            if (values[goals[i]]) {
+                return propNet.getGoalValues(role)[i];
+            }
+        }
+        return -1;
+    }
+}
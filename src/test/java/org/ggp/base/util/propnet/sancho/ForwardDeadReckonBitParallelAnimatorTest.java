@@ -0,0 +1,123 @@
+package org.ggp.base.util.propnet.sancho;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.sancho.ForwardDeadReckonPropnetRuleEngine;
+import org.ggp.base.util.statemachine.sancho.SanchoRuleEngineFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class ForwardDeadReckonBitParallelAnimatorTest extends Assert {
+    private static final int NUM_LANES = ForwardDeadReckonBitParallelAnimator.NUM_LANES;
+
+    @Test
+    public void testTicTacToeMatchesEngine() throws Exception {
+        assertMatchesEngine("ticTacToe");
+    }
+
+    @Test
+    public void testConnectFourMatchesEngine() throws Exception {
+        assertMatchesEngine("connectFour");
+    }
+
+    @Test
+    public void testTicTacToeDepthCharges() throws Exception {
+        ForwardDeadReckonPropnetRuleEngine engine = buildEngine("ticTacToe");
+        ForwardDeadReckonBitParallelAnimator animator = engine.createBitParallelAnimator();
+        animator.setRandomSeed(0L);
+        int[][] goals = new int[NUM_LANES][engine.getNumRoles()];
+        int[] lengths = new int[NUM_LANES];
+
+        animator.setState(engine.getInitialState(), NUM_LANES);
+        assertEquals(-1L, animator.performDepthCharges(100, goals, lengths));
+        for (int lane = 0; lane < NUM_LANES; lane++) {
+            // Every game of tic-tac-toe ends in 100-0, 0-100 or 50-50.
+            assertEquals(100, goals[lane][0] + goals[lane][1]);
+            assertTrue(lengths[lane] >= 5 && lengths[lane] <= 9);
+        }
+    }
+
+    // Loads states reached by random play into the lanes, and checks that
+    // terminality, goals, legal moves and next states match the engine's own.
+    private static void assertMatchesEngine(String gameKey) throws Exception {
+        ForwardDeadReckonPropnetRuleEngine engine = buildEngine(gameKey);
+        ForwardDeadReckonBitParallelAnimator animator = engine.createBitParallelAnimator();
+        int numRoles = engine.getNumRoles();
+        Random random = new Random(0L);
+
+        ForwardDeadReckonInternalMachineState[] states = new ForwardDeadReckonInternalMachineState[NUM_LANES];
+        for (int lane = 0; lane < NUM_LANES; lane++) {
+            ForwardDeadReckonInternalMachineState state = engine.getInitialState();
+            int depth = random.nextInt(40);
+            for (int i = 0; i < depth && !engine.isTerminal(state); i++) {
+                state = engine.getNextState(state, randomJointMove(engine, state, random));
+            }
+            states[lane] = state;
+        }
+
+        animator.setStates(states, NUM_LANES);
+        ForwardDeadReckonLegalMoveInfo[][] jointMoves = new ForwardDeadReckonLegalMoveInfo[NUM_LANES][];
+        ForwardDeadReckonInternalMachineState[] expectedNextStates = new ForwardDeadReckonInternalMachineState[NUM_LANES];
+        for (int lane = 0; lane < NUM_LANES; lane++) {
+            ForwardDeadReckonInternalMachineState state = states[lane];
+            boolean terminal = engine.isTerminal(state);
+            assertEquals(gameKey, terminal, animator.isTerminal(lane));
+            if (terminal) {
+                for (int r = 0; r < numRoles; r++) {
+                    assertEquals(gameKey, engine.getGoal(state, r), animator.getGoal(lane, r));
+                }
+                continue;
+            }
+            for (int r = 0; r < numRoles; r++) {
+                List<ForwardDeadReckonLegalMoveInfo> legalMoves = new ArrayList<>();
+                animator.getLegalMoves(lane, r, legalMoves);
+                assertEquals(gameKey, moveIndexes(engine.getLegalMoves(state, r)), moveIndexes(legalMoves));
+            }
+            jointMoves[lane] = randomJointMove(engine, state, random).toArray(new ForwardDeadReckonLegalMoveInfo[0]);
+            expectedNextStates[lane] = engine.getNextState(state, ImmutableList.copyOf(jointMoves[lane]));
+        }
+
+        ForwardDeadReckonInternalMachineState[] nextStates = new ForwardDeadReckonInternalMachineState[NUM_LANES];
+        for (int lane = 0; lane < NUM_LANES; lane++) {
+            nextStates[lane] = engine.createEmptyInternalState();
+        }
+        animator.getNextStates(jointMoves, nextStates);
+        for (int lane = 0; lane < NUM_LANES; lane++) {
+            if (jointMoves[lane] != null) {
+                assertEquals(gameKey, expectedNextStates[lane], nextStates[lane]);
+                assertEquals(gameKey, engine.isTerminal(expectedNextStates[lane]), animator.isTerminal(lane));
+            }
+        }
+    }
+
+    private static ForwardDeadReckonPropnetRuleEngine buildEngine(String gameKey) {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        return SanchoRuleEngineFactory.INSTANCE.buildEngineForRules(rules);
+    }
+
+    private static List<ForwardDeadReckonLegalMoveInfo> randomJointMove(ForwardDeadReckonPropnetRuleEngine engine,
+            ForwardDeadReckonInternalMachineState state, Random random) throws Exception {
+        List<ForwardDeadReckonLegalMoveInfo> jointMove = new ArrayList<>();
+        for (int r = 0; r < engine.getNumRoles(); r++) {
+            List<ForwardDeadReckonLegalMoveInfo> legalMoves = engine.getLegalMoves(state, r);
+            jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+        }
+        return jointMove;
+    }
+
+    private static Set<Integer> moveIndexes(List<ForwardDeadReckonLegalMoveInfo> moves) {
+        Set<Integer> indexes = new HashSet<>();
+        for (ForwardDeadReckonLegalMoveInfo move : moves) {
+            indexes.add(move.mMasterIndex);
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,101 @@
+package org.ggp.base.util.prover.compact;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.prover.Prover;
+import org.ggp.base.util.prover.aima.AimaProver;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class CompactProverTest extends Assert {
+    @Test
+    public void testMatchesAimaProverOnTicTacToe() throws Exception {
+        assertMatchesAimaProver("ticTacToe", 10);
+    }
+
+    @Test
+    public void testMatchesAimaProverOnConnectFour() throws Exception {
+        assertMatchesAimaProver("connectFour", 5);
+    }
+
+    @Test
+    public void testMatchesAimaProverOnRecursiveGames() throws Exception {
+        for (String game : new String[] {"test_case_5a", "test_case_5b", "test_case_5c",
+                "test_case_5d", "test_case_5e", "test_case_5f"}) {
+            assertMatchesAimaProver(game, 5);
+        }
+    }
+
+    @Test
+    public void testMatchesAimaProverWithFunctionValuedVariables() throws Exception {
+        assertMatchesAimaProver("test_fvv_1", 5);
+    }
+
+    @Test
+    public void testMatchesAimaProverWithDistinctAtBeginningOfRule() throws Exception {
+        assertMatchesAimaProver("test_distinct_beginning_rule", 5);
+    }
+
+    /*
+     * Plays random matches using the old prover to pick moves, and checks that
+     * the two provers agree on every query along the way.
+     */
+    private static void assertMatchesAimaProver(String gameKey, int playouts) throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame(gameKey).getRules();
+        Prover reference = AimaProver.create(desc);
+        Prover prover = CompactProver.create(desc);
+        StateMachine sm = new ProverStateMachine(false, true);
+        sm.initialize(desc);
+
+        Random random = new Random(0L);
+        for (int playout = 0; playout < playouts; playout++) {
+            assertSameAnswers(reference, prover, ProverQueryBuilder.getInitQuery(), Sets.<GdlSentence>newHashSet());
+            MachineState state = sm.getInitialState();
+            while (true) {
+                Set<GdlSentence> context = ProverQueryBuilder.getContext(state);
+                GdlSentence terminalQuery = ProverQueryBuilder.getTerminalQuery();
+                assertEquals(reference.prove(terminalQuery, context), prover.prove(terminalQuery, context));
+                for (Role role : sm.getRoles()) {
+                    assertSameAnswers(reference, prover, ProverQueryBuilder.getGoalQuery(role), context);
+                    assertSameAnswers(reference, prover, ProverQueryBuilder.getLegalQuery(role), context);
+                }
+                if (sm.isTerminal(state)) {
+                    break;
+                }
+                List<Move> jointMove = Lists.newArrayList();
+                for (Role role : sm.getRoles()) {
+                    List<Move> legalMoves = sm.getLegalMoves(state, role);
+                    jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+                }
+                assertSameAnswers(reference, prover, ProverQueryBuilder.getNextQuery(),
+                        ProverQueryBuilder.getContext(state, sm.getRoles(), jointMove));
+                state = sm.getNextState(state, jointMove);
+            }
+        }
+    }
+
+    private static void assertSameAnswers(Prover reference, Prover prover, GdlSentence query, Set<GdlSentence> context) {
+        Set<GdlSentence> expected = reference.askAll(query, context);
+        assertEquals(expected, prover.askAll(query, context));
+        GdlSentence one = prover.askOne(query, context);
+        if (expected.isEmpty()) {
+            assertNull(one);
+        } else {
+            assertTrue(expected.contains(one));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.ggp.base.util.ruleengine;
+
+import java.util.List;
+
+import org.ggp.base.util.ImmutableIntArray;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.ruleengine.forwardchaining.ForwardChainingRuleEngineFactory;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.SamplePropNetStateMachine;
+import org.ggp.base.util.statemachine.sancho.SanchoRuleEngineFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DepthChargeBatchTest extends Assert {
+    private static final int NUM_PLAYOUTS = 200;
+
+    @Test
+    public void testDefaultBatch() throws Exception {
+        assertBatchesAreConsistent(ForwardChainingRuleEngineFactory.INSTANCE.buildEngineForRules(getTicTacToe()));
+    }
+
+    @Test
+    public void testStateMachineBatch() throws Exception {
+        StateMachine sm = new SamplePropNetStateMachine();
+        sm.initialize(getTicTacToe());
+        assertBatchesAreConsistent(StateMachineRuleEngine.wrap(sm));
+    }
+
+    @Test
+    public void testSanchoBatch() throws Exception {
+        assertBatchesAreConsistent(SanchoRuleEngineFactory.INSTANCE.buildEngineForRules(getTicTacToe()));
+    }
+
+    @Test
+    public void testBatchFromTerminalState() throws Exception {
+        RuleEngine<?, ?> engine = ForwardChainingRuleEngineFactory.INSTANCE.buildEngineForRules(getTicTacToe());
+        assertTerminalBatch(engine);
+    }
+
+    private static <M, S extends RuleEngineState<M, S>> void assertTerminalBatch(RuleEngine<M, S> engine) throws Exception {
+        S state = engine.getInitialState();
+        while (!engine.isTerminal(state)) {
+            state = engine.getRandomNextState(state);
+        }
+        ImmutableIntArray goals = engine.getGoals(state);
+        DepthChargeBatchResult result = engine.performDepthChargeBatch(state, 10, true);
+        assertEquals(10, result.getNumPlayouts());
+        assertEquals(0, result.getLengthSum());
+        assertEquals(0, result.getNumFirstMoves(0));
+        for (int r = 0; r < engine.getNumRoles(); r++) {
+            assertEquals(10L * goals.get(r), result.getGoalSum(r));
+            assertEquals(0.0, result.getGoalVariance(r), 1e-9);
+        }
+    }
+
+    private static <M, S extends RuleEngineState<M, S>> void assertBatchesAreConsistent(RuleEngine<M, S> engine) throws Exception {
+        S initialState = engine.getInitialState();
+        for (boolean withFirstMoveStats : new boolean[] {false, true}) {
+            DepthChargeBatchResult result = engine.performDepthChargeBatch(initialState, NUM_PLAYOUTS, withFirstMoveStats);
+            assertEquals(NUM_PLAYOUTS, result.getNumPlayouts());
+            assertEquals(withFirstMoveStats, result.hasFirstMoveStats());
+            // Every game of tic-tac-toe takes 5 to 9 moves, and the goals
+            // always add up to 100.
+            assertTrue(result.getLengthSum() >= 5 * NUM_PLAYOUTS);
+            assertTrue(result.getMaxLength() <= 9);
+            assertEquals(100L * NUM_PLAYOUTS, result.getGoalSum(0) + result.getGoalSum(1));
+            for (int r = 0; r < engine.getNumRoles(); r++) {
+                assertTrue(result.getGoalSquaredSum(r) <= 100L * result.getGoalSum(r));
+                assertTrue(result.getGoalVariance(r) >= 0);
+            }
+            if (withFirstMoveStats) {
+                for (int r = 0; r < engine.getNumRoles(); r++) {
+                    List<M> legalMoves = engine.getLegalMoves(initialState, r);
+                    assertEquals(legalMoves.size(), result.getNumFirstMoves(r));
+                    int countTotal = 0;
+                    long goalTotal = 0;
+                    for (int i = 0; i < legalMoves.size(); i++) {
+                        countTotal += result.getFirstMoveCount(r, i);
+                        goalTotal += result.getFirstMoveGoalSum(r, i);
+                    }
+                    assertEquals(NUM_PLAYOUTS, countTotal);
+                    assertEquals(result.getGoalSum(r), goalTotal);
+                }
+            }
+        }
+    }
+
+    private static List<Gdl> getTicTacToe() {
+        return new TestGameRepository().getGame("ticTacToe").getRules();
+    }
+}
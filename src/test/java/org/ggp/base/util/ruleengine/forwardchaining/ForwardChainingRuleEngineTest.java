@@ -0,0 +1,81 @@
+package org.ggp.base.util.ruleengine.forwardchaining;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.ruleengine.RuleEngine;
+import org.ggp.base.util.ruleengine.RuleEngineFactory;
+import org.ggp.base.util.ruleengine.prover.ProverRuleEngine;
+import org.ggp.base.util.ruleengine.prover.ProverRuleEngineFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class ForwardChainingRuleEngineTest extends Assert {
+    @Test
+    public void testTicTacToe() throws Exception {
+        assertMatchesProver(ForwardChainingRuleEngineFactory.INSTANCE, "ticTacToe", 10);
+    }
+
+    @Test
+    public void testConnectFour() throws Exception {
+        assertMatchesProver(ForwardChainingRuleEngineFactory.INSTANCE, "connectFour", 5);
+    }
+
+    // Each state after the first in a playout is derived from its parent's model.
+    @Test
+    public void testDifferentialTicTacToe() throws Exception {
+        assertMatchesProver(ForwardChainingRuleEngineFactory.DIFFERENTIAL, "ticTacToe", 10);
+    }
+
+    @Test
+    public void testDifferentialConnectFour() throws Exception {
+        assertMatchesProver(ForwardChainingRuleEngineFactory.DIFFERENTIAL, "connectFour", 5);
+    }
+
+    // test_case_5a is left out: the sentence form model can't be built for it,
+    // which affects the propnet factories as well.
+    @Test
+    public void testSmallTestCases() throws Exception {
+        for (String game : new String[] {"test_case_1a", "test_case_3c",
+                "test_case_5b", "test_case_5c", "test_case_5d", "test_case_5e", "test_case_5f",
+                "test_distinct_beginning_rule", "test_fvv_1"}) {
+            assertMatchesProver(ForwardChainingRuleEngineFactory.INSTANCE, game, 3);
+            assertMatchesProver(ForwardChainingRuleEngineFactory.DIFFERENTIAL, game, 3);
+        }
+    }
+
+    private static void assertMatchesProver(RuleEngineFactory<? extends RuleEngine<Move, MachineState>> factory,
+            String gameKey, int numPlayouts) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        RuleEngine<Move, MachineState> engine = factory.buildEngineForRules(rules);
+        ProverRuleEngine reference = ProverRuleEngineFactory.createNormal().buildEngineForRules(rules);
+        assertEquals(reference.getRoles(), engine.getRoles());
+
+        Random random = new Random(0L);
+        for (int playout = 0; playout < numPlayouts; playout++) {
+            MachineState state = reference.getInitialState();
+            assertEquals(gameKey, state, engine.getInitialState());
+            while (!reference.isTerminal(state)) {
+                assertFalse(gameKey, engine.isTerminal(state));
+                List<Move> jointMove = Lists.newArrayList();
+                for (int r = 0; r < reference.getNumRoles(); r++) {
+                    List<Move> legalMoves = reference.getLegalMoves(state, r);
+                    assertEquals(gameKey, ImmutableSet.copyOf(legalMoves), ImmutableSet.copyOf(engine.getLegalMoves(state, r)));
+                    jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+                }
+                MachineState nextState = reference.getNextState(state, jointMove);
+                assertEquals(gameKey, nextState, engine.getNextState(state, jointMove));
+                state = nextState;
+            }
+            assertTrue(gameKey, engine.isTerminal(state));
+            assertEquals(gameKey, reference.getGoals(state), engine.getGoals(state));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.ggp.base.util.ruleengine.propnet;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.ruleengine.prover.ProverRuleEngine;
+import org.ggp.base.util.ruleengine.prover.ProverRuleEngineFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class CompiledPropNetRuleEngineTest extends Assert {
+    @Test
+    public void testTicTacToe() throws Exception {
+        assertMatchesProver("ticTacToe", 10);
+    }
+
+    // Large enough that the generated code is split into several methods.
+    @Test
+    public void testConnectFour() throws Exception {
+        assertMatchesProver("connectFour", 5);
+    }
+
+    // test_case_5a, 5d and 5f are left out: OptimizingPropNetFactory doesn't
+    // finish on them.
+    @Test
+    public void testSmallTestCases() throws Exception {
+        for (String game : new String[] {"test_case_1a", "test_case_3c",
+                "test_case_5b", "test_case_5c", "test_case_5e",
+                "test_distinct_beginning_rule", "test_fvv_1"}) {
+            assertMatchesProver(game, 3);
+        }
+    }
+
+    // Both engines play from the compiled engine's own states here, rather
+    // than from translated prover states.
+    private static void assertMatchesProver(String gameKey, int numPlayouts) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        CompiledPropNetRuleEngine engine = CompiledPropNetRuleEngineFactory.INSTANCE.buildEngineForRules(rules);
+        ProverRuleEngine reference = ProverRuleEngineFactory.createNormal().buildEngineForRules(rules);
+        assertEquals(reference.getRoles(), engine.getRoles());
+
+        Random random = new Random(0L);
+        for (int playout = 0; playout < numPlayouts; playout++) {
+            MachineState state = engine.getInitialState();
+            assertEquals(gameKey, reference.getInitialState(), state);
+            while (!reference.isTerminal(state)) {
+                assertFalse(gameKey, engine.isTerminal(state));
+                List<Move> jointMove = Lists.newArrayList();
+                for (int r = 0; r < reference.getNumRoles(); r++) {
+                    List<Move> legalMoves = reference.getLegalMoves(state, r);
+                    assertEquals(gameKey, ImmutableSet.copyOf(legalMoves), ImmutableSet.copyOf(engine.getLegalMoves(state, r)));
+                    jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+                }
+                MachineState nextState = engine.getNextState(state, jointMove);
+                assertEquals(gameKey, reference.getNextState(state, jointMove), nextState);
+                state = nextState;
+            }
+            assertTrue(gameKey, engine.isTerminal(state));
+            assertEquals(gameKey, reference.getGoals(state), engine.getGoals(state));
+        }
+    }
+}
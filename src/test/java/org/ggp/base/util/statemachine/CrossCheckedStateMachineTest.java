@@ -0,0 +1,85 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.ruleengine.RuleEngineFactory;
+import org.ggp.base.util.ruleengine.forwardchaining.ForwardChainingRuleEngineFactory;
+import org.ggp.base.util.ruleengine.prover.ProverRuleEngine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class CrossCheckedStateMachineTest extends Assert {
+    private final List<Gdl> ticTacToe = new TestGameRepository().getGame("ticTacToe").getRules();
+
+    @Test
+    public void testMatchesProverWithWorkingEngine() throws Exception {
+        CrossCheckedStateMachine sm = new CrossCheckedStateMachine(ForwardChainingRuleEngineFactory.INSTANCE, 3);
+        sm.initialize(ticTacToe);
+        playAgainstProver(sm);
+        assertTrue(sm.isUsingRuleEngine());
+    }
+
+    @Test
+    public void testFallsBackWhenEngineDisagrees() throws Exception {
+        // An engine for a version of the game that never ends.
+        RuleEngineFactory<?> brokenFactory = rules -> {
+            List<Gdl> brokenRules = Lists.newArrayList();
+            for (Gdl gdl : rules) {
+                if (!(gdl instanceof GdlRule) || ((GdlRule) gdl).getHead().getName() != GdlPool.TERMINAL) {
+                    brokenRules.add(gdl);
+                }
+            }
+            return ProverRuleEngine.create(brokenRules, false);
+        };
+        CrossCheckedStateMachine sm = new CrossCheckedStateMachine(brokenFactory, Integer.MAX_VALUE);
+        sm.initialize(ticTacToe);
+        assertTrue(sm.isUsingRuleEngine());
+        playAgainstProver(sm);
+        assertFalse(sm.isUsingRuleEngine());
+    }
+
+    @Test
+    public void testFallsBackWhenEngineCannotBeBuilt() throws Exception {
+        RuleEngineFactory<?> failingFactory = rules -> {
+            throw new IllegalStateException("No engine for you");
+        };
+        CrossCheckedStateMachine sm = new CrossCheckedStateMachine(failingFactory);
+        sm.initialize(ticTacToe);
+        assertFalse(sm.isUsingRuleEngine());
+        playAgainstProver(sm);
+    }
+
+    private void playAgainstProver(StateMachine sm) throws Exception {
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(ticTacToe);
+
+        Random random = new Random(0L);
+        for (int playout = 0; playout < 5; playout++) {
+            MachineState state = sm.getInitialState();
+            assertEquals(reference.getInitialState(), state);
+            while (!reference.isTerminal(state)) {
+                assertFalse(sm.isTerminal(state));
+                List<Move> jointMove = Lists.newArrayList();
+                for (Role role : reference.getRoles()) {
+                    List<Move> legalMoves = sm.getLegalMoves(state, role);
+                    assertEquals(ImmutableSet.copyOf(reference.getLegalMoves(state, role)), ImmutableSet.copyOf(legalMoves));
+                    jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+                }
+                MachineState nextState = sm.getNextState(state, jointMove);
+                assertEquals(reference.getNextState(state, jointMove), nextState);
+                state = nextState;
+            }
+            assertTrue(sm.isTerminal(state));
+            assertEquals(reference.getGoals(state), sm.getGoals(state));
+        }
+    }
+}
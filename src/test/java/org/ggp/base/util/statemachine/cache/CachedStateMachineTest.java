@@ -0,0 +1,112 @@
+package org.ggp.base.util.statemachine.cache;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class CachedStateMachineTest extends Assert {
+    private final List<Gdl> ticTacToe = new TestGameRepository().getGame("ticTacToe").getRules();
+
+    @Test
+    public void testMatchesBackingStateMachine() throws Exception {
+        CachedStateMachine sm = new CachedStateMachine(new ProverStateMachine());
+        sm.initialize(ticTacToe);
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(ticTacToe);
+
+        Random random = new Random(0L);
+        for (int playout = 0; playout < 10; playout++) {
+            MachineState state = reference.getInitialState();
+            while (!reference.isTerminal(state)) {
+                assertFalse(sm.isTerminal(state));
+                List<Move> jointMove = Lists.newArrayList();
+                for (Role role : reference.getRoles()) {
+                    List<Move> legalMoves = reference.getLegalMoves(state, role);
+                    assertEquals(ImmutableSet.copyOf(legalMoves), ImmutableSet.copyOf(sm.getLegalMoves(state, role)));
+                    jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+                }
+                MachineState nextState = reference.getNextState(state, jointMove);
+                assertEquals(nextState, sm.getNextState(state, jointMove));
+                state = nextState;
+            }
+            assertTrue(sm.isTerminal(state));
+            assertEquals(reference.getGoals(state), sm.getGoals(state));
+        }
+        // Every playout starts from the same state.
+        assertTrue(sm.getStats().hitCount() > 0);
+    }
+
+    @Test
+    public void testEvictsBeyondMaxStates() throws Exception {
+        CachedStateMachine sm = new CachedStateMachine(new ProverStateMachine(), 5);
+        sm.initialize(ticTacToe);
+        for (int playout = 0; playout < 10; playout++) {
+            MachineState state = sm.getInitialState();
+            while (!sm.isTerminal(state)) {
+                state = sm.getRandomNextState(state);
+            }
+        }
+        assertTrue(sm.size() <= 5);
+        assertTrue(sm.getStats().evictionCount() > 0);
+    }
+
+    @Test
+    public void testEvictsBeyondMaxWeight() throws Exception {
+        CachedStateMachine sm = CachedStateMachine.withMaximumWeight(new ProverStateMachine(), 50);
+        sm.initialize(ticTacToe);
+        // The initial state alone weighs 1 + 9 + 1 + 9: itself, the legal
+        // moves of both roles, and its nine next states.
+        MachineState initialState = sm.getInitialState();
+        for (List<Move> jointMove : sm.getLegalJointMoves(initialState)) {
+            sm.getNextState(initialState, jointMove);
+        }
+        assertEquals(1, sm.size());
+        for (int playout = 0; playout < 10; playout++) {
+            MachineState state = initialState;
+            while (!sm.isTerminal(state)) {
+                state = sm.getRandomNextState(state);
+            }
+        }
+        assertTrue(sm.size() < 50);
+        assertTrue(sm.getStats().evictionCount() > 0);
+    }
+
+    @Test
+    public void testRequiresInitialization() throws Exception {
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(ticTacToe);
+        CachedStateMachine sm = new CachedStateMachine(new ProverStateMachine());
+        try {
+            sm.isTerminal(reference.getInitialState());
+            fail("Expected an IllegalStateException before initialization");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void testSynchronizedCopiesShareCache() throws Exception {
+        CachedStateMachine sm = new CachedStateMachine(new ProverStateMachine());
+        sm.initialize(ticTacToe);
+        StateMachine copy = sm.getSynchronizedCopy();
+        MachineState state = copy.getInitialState();
+        copy.isTerminal(state);
+        assertEquals(1, sm.getStats().missCount());
+
+        sm.isTerminal(state);
+        assertEquals(1, sm.getStats().missCount());
+        assertEquals(1, sm.getStats().hitCount());
+    }
+}
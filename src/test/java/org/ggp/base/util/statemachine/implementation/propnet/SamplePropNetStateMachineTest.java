@@ -0,0 +1,119 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.statemachine.DepthChargeContext;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class SamplePropNetStateMachineTest extends Assert {
+
+    private final StateMachine sm = new SamplePropNetStateMachine();
+
+    @Test
+    public void testMatchesProverOnTicTacToe() throws Exception {
+        assertMatchesProver("ticTacToe", 20);
+    }
+
+    @Test
+    public void testMatchesProverOnConnectFour() throws Exception {
+        assertMatchesProver("connectFour", 5);
+    }
+
+    @Test
+    public void testTranslatesProverStates() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(desc);
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+
+        MachineState proverState = reference.getInitialState();
+        assertFalse(sm.isNative(proverState));
+        MachineState translated = sm.translateState(proverState);
+        assertTrue(sm.isNative(translated));
+        assertEquals(proverState, translated);
+        assertEquals(proverState.hashCode(), translated.hashCode());
+        assertEquals(sm.getInitialState(), translated);
+    }
+
+    @Test
+    public void testDepthChargeWithContext() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(desc);
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+
+        MachineState initialState = sm.getInitialState();
+        DepthChargeContext context = sm.createDepthChargeContext();
+        for (int i = 0; i < 20; i++) {
+            // Queries on the initial state before and after the charge must
+            // not see the values left behind by the charge.
+            assertFalse(sm.isTerminal(initialState));
+            int depth = sm.performDepthChargeWithContext(initialState, context);
+            assertTrue(depth >= 5 && depth <= 9);
+            assertEquals(100, context.getGoals()[0] + context.getGoals()[1]);
+            for (Role role : reference.getRoles()) {
+                assertEquals(ImmutableSet.copyOf(reference.getLegalMoves(reference.getInitialState(), role)),
+                        ImmutableSet.copyOf(sm.getLegalMoves(initialState, role)));
+            }
+        }
+    }
+
+    @Test
+    public void testDepthChargeAfterReinitializing() throws Exception {
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        assertEquals(2, sm.performDepthCharge(sm.getInitialState(), null).size());
+        sm.initialize(new TestGameRepository().getGame("test_case_1a").getRules());
+        assertEquals(Collections.singletonList(100), sm.performDepthCharge(sm.getInitialState(), null));
+    }
+
+    @Test(expected = TransitionDefinitionException.class)
+    public void testRejectsUnknownMove() throws Exception {
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        MachineState initialState = sm.getInitialState();
+        Move noop = new Move(GdlPool.getConstant("noop"));
+        sm.getNextState(initialState, Lists.newArrayList(new Move(GdlPool.getConstant("bogus")), noop));
+    }
+
+    private void assertMatchesProver(String gameKey, int numPlayouts) throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame(gameKey).getRules();
+        sm.initialize(desc);
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+
+        Random random = new Random(0L);
+        for (int playout = 0; playout < numPlayouts; playout++) {
+            MachineState state = reference.getInitialState();
+            MachineState smState = sm.getInitialState();
+            assertEquals(state, smState);
+            while (!reference.isTerminal(state)) {
+                assertFalse(sm.isTerminal(smState));
+                List<Move> jointMove = Lists.newArrayList();
+                for (Role role : reference.getRoles()) {
+                    List<Move> legalMoves = reference.getLegalMoves(state, role);
+                    assertEquals(ImmutableSet.copyOf(legalMoves), ImmutableSet.copyOf(sm.getLegalMoves(smState, role)));
+                    jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+                }
+                state = reference.getNextState(state, jointMove);
+                smState = sm.getNextState(smState, jointMove);
+                assertEquals(state, smState);
+            }
+            assertTrue(sm.isTerminal(smState));
+            assertEquals(reference.getGoals(state), sm.getGoals(smState));
+        }
+    }
+}
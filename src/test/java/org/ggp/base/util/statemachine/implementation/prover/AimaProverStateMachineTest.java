@@ -0,0 +1,10 @@
+package org.ggp.base.util.statemachine.implementation.prover;
+
+import org.ggp.base.util.statemachine.StateMachine;
+
+public class AimaProverStateMachineTest extends ProverStateMachineTest {
+    @Override
+    protected StateMachine createStateMachine() {
+        return ProverStateMachine.createWithAimaProver();
+    }
+}
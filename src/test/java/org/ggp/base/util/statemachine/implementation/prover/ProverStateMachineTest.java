@@ -4,7 +4,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.ggp.base.util.game.TestGameRepository;
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -14,15 +19,17 @@ import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
 import org.junit.Assert;
 import org.junit.Test;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 
 public class ProverStateMachineTest extends Assert {
 
-    protected final ProverStateMachine sm = new ProverStateMachine();
+    protected final StateMachine sm = createStateMachine();
     protected final GdlConstant C1 = GdlPool.getConstant("1");
     protected final GdlConstant C2 = GdlPool.getConstant("2");
     protected final GdlConstant C3 = GdlPool.getConstant("3");
@@ -101,6 +108,24 @@ public class ProverStateMachineTest extends Assert {
         assertEquals(Collections.singletonList(100), sm.getGoals(state));
     }
 
+    @Test
+    public void testDepthChargeAfterReinitializing() throws Exception {
+        // The per-thread depth charge context must follow the number of roles
+        // when the machine is reused for another game.
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        assertEquals(2, sm.performDepthCharge(sm.getInitialState(), null).size());
+        sm.initialize(new TestGameRepository().getGame("test_case_1a").getRules());
+        assertEquals(Collections.singletonList(100), sm.performDepthCharge(sm.getInitialState(), null));
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        int[] goals = new int[1];
+        try {
+            sm.getGoals(sm.getInitialState(), goals);
+            fail("Expected an IllegalArgumentException for a goal array of the wrong size");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+
     @Test
     public void testCase3C() throws Exception {
         List<Gdl> desc = new TestGameRepository().getGame("test_case_3c").getRules();
@@ -116,6 +141,20 @@ public class ProverStateMachineTest extends Assert {
         assertEquals(Collections.singletonList(100), sm.getGoals(state));
     }
 
+    @Test
+    public void testCase3E() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("test_case_3e").getRules();
+        sm.initialize(desc);
+        MachineState state = sm.getInitialState();
+        Role xplayer = new Role(GdlPool.getConstant("xplayer"));
+        assertTrue(sm.isTerminal(state));
+        assertEquals(100, sm.getGoal(state, xplayer));
+        int[] goals = new int[1];
+        sm.getGoals(state, goals);
+        assertEquals(100, goals[0]);
+        assertEquals(Collections.singletonList(100), sm.performDepthCharge(state, null));
+    }
+
     @Test
     public void testCase5A() throws Exception {
         List<Gdl> desc = new TestGameRepository().getGame("test_case_5a").getRules();
@@ -241,6 +280,79 @@ public class ProverStateMachineTest extends Assert {
         assertEquals(expectedLegalMoves, legalMoves);
     }
 
+    @Test
+    public void testGoalsForAllRolesAtOnce() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        sm.initialize(desc);
+        int[] goals = new int[sm.getRoles().size()];
+        for (int seed = 0; seed < 5; seed++) {
+            List<MachineState> states = playOut(sm, new Random(seed));
+            MachineState terminalState = states.get(states.size() - 1);
+            sm.getGoals(terminalState, goals);
+            for (int r = 0; r < goals.length; r++) {
+                assertEquals(sm.getGoal(terminalState, sm.getRoles().get(r)), goals[r]);
+            }
+        }
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        sm.initialize(desc);
+        final StateMachine shared = sm.getSynchronizedCopy();
+        final int numThreads = 4;
+
+        List<List<MachineState>> expectedPlayouts = new ArrayList<List<MachineState>>();
+        for (int i = 0; i < numThreads; i++) {
+            expectedPlayouts.add(playOut(sm, new Random(i)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<List<MachineState>>> futures = new ArrayList<Future<List<MachineState>>>();
+            for (int i = 0; i < numThreads; i++) {
+                final long seed = i;
+                futures.add(executor.submit(new Callable<List<MachineState>>() {
+                    @Override
+                    public List<MachineState> call() throws Exception {
+                        return playOut(shared, new Random(seed));
+                    }
+                }));
+            }
+            for (int i = 0; i < numThreads; i++) {
+                assertEquals(expectedPlayouts.get(i), futures.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<MachineState> playOut(StateMachine machine, Random random) throws Exception {
+        List<MachineState> states = new ArrayList<MachineState>();
+        MachineState state = machine.getInitialState();
+        states.add(state);
+        while (!machine.isTerminal(state)) {
+            List<Move> jointMove = new ArrayList<Move>();
+            for (Role role : machine.getRoles()) {
+                List<Move> legalMoves = new ArrayList<Move>(machine.getLegalMoves(state, role));
+                Collections.sort(legalMoves, Ordering.usingToString());
+                jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+            }
+            state = machine.getNextState(state, jointMove);
+            states.add(state);
+        }
+        machine.getGoals(state);
+        return states;
+    }
+
+    /**
+     * Subclasses can override this to run the same tests against a different
+     * StateMachine implementation.
+     */
+    protected StateMachine createStateMachine() {
+        return new ProverStateMachine();
+    }
+
     protected Move move(String description) {
         String[] parts = description.split(" ");
         GdlConstant head = GdlPool.getConstant(parts[0]);
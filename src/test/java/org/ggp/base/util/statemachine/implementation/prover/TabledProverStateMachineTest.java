@@ -0,0 +1,50 @@
+package org.ggp.base.util.statemachine.implementation.prover;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class TabledProverStateMachineTest extends ProverStateMachineTest {
+    @Override
+    protected StateMachine createStateMachine() {
+        return new ProverStateMachine(false, true);
+    }
+
+    @Test
+    public void testMatchesUntabledProverOnConnectFour() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        sm.initialize(desc);
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+
+        Random random = new Random(0L);
+        for (int playout = 0; playout < 5; playout++) {
+            MachineState state = reference.getInitialState();
+            assertEquals(state, sm.getInitialState());
+            while (!reference.isTerminal(state)) {
+                assertFalse(sm.isTerminal(state));
+                List<Move> jointMove = Lists.newArrayList();
+                for (Role role : reference.getRoles()) {
+                    List<Move> legalMoves = reference.getLegalMoves(state, role);
+                    assertEquals(ImmutableSet.copyOf(legalMoves), ImmutableSet.copyOf(sm.getLegalMoves(state, role)));
+                    jointMove.add(legalMoves.get(random.nextInt(legalMoves.size())));
+                }
+                MachineState nextState = reference.getNextState(state, jointMove);
+                assertEquals(nextState, sm.getNextState(state, jointMove));
+                state = nextState;
+            }
+            assertTrue(sm.isTerminal(state));
+            assertEquals(reference.getGoals(state), sm.getGoals(state));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.ggp.base.util.statemachine.implementation.prover;
+
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.hashing.RandomZHashContext;
+import org.ggp.base.util.hashing.ZHashContext;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.ZobristMachineState;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class ZobristProverStateMachineTest extends ProverStateMachineTest {
+    private static final ZHashContext Z_HASH_CONTEXT = RandomZHashContext.create();
+
+    @Override
+    protected StateMachine createStateMachine() {
+        return new ProverStateMachine(false, false, Z_HASH_CONTEXT);
+    }
+
+    @Test
+    public void testStatesMatchPlainStates() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(desc);
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+
+        MachineState state = sm.getInitialState();
+        MachineState plainState = reference.getInitialState();
+        assertTrue(state instanceof ZobristMachineState);
+        assertEquals(plainState, state);
+        assertEquals(state, plainState);
+        assertEquals(plainState.hashCode(), state.hashCode());
+        assertEquals(plainState.getZobristHash(Z_HASH_CONTEXT), state.getZobristHash(Z_HASH_CONTEXT));
+
+        MachineState nextState = sm.getRandomNextState(state);
+        assertFalse(state.equals(nextState));
+        assertFalse(state.getZobristHash(Z_HASH_CONTEXT) == nextState.getZobristHash(Z_HASH_CONTEXT));
+        assertEquals(nextState, nextState.getCopy());
+    }
+
+    @Test
+    public void testBuilderMatchesCreate() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(desc);
+        Set<GdlSentence> contents = Sets.newHashSet(sm.getInitialState().getContents());
+
+        ZobristMachineState.Builder builder = ZobristMachineState.builder(Z_HASH_CONTEXT);
+        for (GdlSentence sentence : contents) {
+            builder.add(sentence);
+            // Duplicates shouldn't change the hashes.
+            builder.add(sentence);
+        }
+        ZobristMachineState built = builder.build();
+        ZobristMachineState created = ZobristMachineState.create(contents, Z_HASH_CONTEXT);
+        assertEquals(created, built);
+        assertEquals(created.hashCode(), built.hashCode());
+        assertEquals(created.getZobristHash(Z_HASH_CONTEXT), built.getZobristHash(Z_HASH_CONTEXT));
+
+        // The built state doesn't change if the builder is used again.
+        builder.add(GdlPool.getRelation(GdlPool.getConstant("step"), new GdlTerm[] {GdlPool.getConstant("1")}));
+        assertEquals(created, built);
+        assertEquals(contents.size(), built.getContents().size());
+    }
+}
@@ -0,0 +1,85 @@
+package org.ggp.base.util.statemachine.sancho;
+
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonInternalMachineState;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonLegalMoveInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class ParallelPlayoutServiceTest extends Assert {
+    @Test
+    public void testTicTacToeGoalsAddUp() throws Exception {
+        try (ParallelPlayoutService service = createService("ticTacToe", 3)) {
+            ForwardDeadReckonPropnetRuleEngine engine = service.getMasterEngine();
+            ParallelPlayoutService.Result result = service.performPlayouts(engine.getInitialState(), 1000);
+
+            assertEquals(1000, result.getNumPlayouts());
+            // Every game of tic-tac-toe ends in 100-0, 0-100 or 50-50.
+            assertEquals(100.0, result.getAverageGoal(0) + result.getAverageGoal(1), 1e-6);
+            assertTrue(result.getAverageGoal(0) > 0 && result.getAverageGoal(0) < 100);
+            assertTrue(result.getAverageLength() >= 5 && result.getAverageLength() <= 9);
+            assertNotNull(result.getMoveWeights());
+        }
+    }
+
+    @Test
+    public void testBatchKeepsRequestsApart() throws Exception {
+        try (ParallelPlayoutService service = createService("ticTacToe", 2)) {
+            ForwardDeadReckonPropnetRuleEngine engine = service.getMasterEngine();
+            ForwardDeadReckonInternalMachineState initialState = engine.getInitialState();
+            ForwardDeadReckonInternalMachineState terminalState = playToEnd(engine, initialState);
+            int[] terminalGoals = new int[engine.getNumRoles()];
+            for (int r = 0; r < terminalGoals.length; r++) {
+                terminalGoals[r] = engine.getGoal(terminalState, r);
+            }
+
+            List<ParallelPlayoutService.Result> results = service.performPlayouts(ImmutableList.of(
+                    new ParallelPlayoutService.Request(initialState, 200),
+                    new ParallelPlayoutService.Request(terminalState, 50),
+                    new ParallelPlayoutService.Request(initialState, 0)));
+
+            assertEquals(3, results.size());
+            assertEquals(200, results.get(0).getNumPlayouts());
+            assertEquals(50, results.get(1).getNumPlayouts());
+            assertEquals(0.0, results.get(1).getAverageLength(), 0.0);
+            for (int r = 0; r < terminalGoals.length; r++) {
+                assertEquals(terminalGoals[r], results.get(1).getAverageGoal(r), 1e-6);
+            }
+            assertEquals(0, results.get(2).getNumPlayouts());
+        }
+    }
+
+    @Test
+    public void testConnectFour() throws Exception {
+        try (ParallelPlayoutService service = createService("connectFour", 2)) {
+            ParallelPlayoutService.Result result =
+                    service.performPlayouts(service.getMasterEngine().getInitialState(), 100);
+            assertEquals(100, result.getNumPlayouts());
+            for (double goal : result.getAverageGoals()) {
+                assertTrue(goal >= 0 && goal <= 100);
+            }
+        }
+    }
+
+    private static ParallelPlayoutService createService(String gameKey, int numThreads) {
+        List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+        return ParallelPlayoutService.create(rules, numThreads);
+    }
+
+    private static ForwardDeadReckonInternalMachineState playToEnd(ForwardDeadReckonPropnetRuleEngine engine,
+            ForwardDeadReckonInternalMachineState state) throws Exception {
+        while (!engine.isTerminal(state)) {
+            ForwardDeadReckonLegalMoveInfo[] jointMove = new ForwardDeadReckonLegalMoveInfo[engine.getNumRoles()];
+            for (int r = 0; r < jointMove.length; r++) {
+                jointMove[r] = engine.getLegalMoves(state, r).get(0);
+            }
+            state = engine.getNextState(state, ImmutableList.copyOf(jointMove));
+        }
+        return state;
+    }
+}
@@ -0,0 +1,127 @@
+package org.ggp.base.util.statemachine.sancho;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonInternalMachineState;
+import org.ggp.base.util.propnet.sancho.ForwardDeadReckonLegalMoveInfo;
+import org.ggp.base.util.statemachine.Role;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetCacheTest extends Assert {
+    @Test
+    public void testKeyIgnoresRuleOrderAndVariableNames() throws Exception {
+        List<Gdl> rules = getRules("ticTacToe");
+        List<Gdl> reordered = new ArrayList<>(rules);
+        Collections.reverse(reordered);
+        // Keep the roles in their original order, as that is significant
+        reordered.removeAll(rules.subList(0, 2));
+        reordered.addAll(0, rules.subList(0, 2));
+
+        List<Gdl> renamed = new ArrayList<>();
+        for (Gdl rule : rules) {
+            renamed.add(GdlFactory.create(rule.toString().replace("?", "?renamed_")));
+        }
+
+        String key = PropNetCache.getKey(rules, null);
+        assertEquals(key, PropNetCache.getKey(reordered, null));
+        assertEquals(key, PropNetCache.getKey(renamed, null));
+        assertNotEquals(key, PropNetCache.getKey(rules, new Role(GdlUtils.getRoles(rules).get(0))));
+        assertNotEquals(key, PropNetCache.getKey(getRules("connectFour"), null));
+    }
+
+    @Test
+    public void testCachedEngineMatchesOriginal() throws Exception {
+        File directory = Files.createTempDirectory("propnetcache").toFile();
+        try {
+            SanchoRuleEngineFactory factory = SanchoRuleEngineFactory.createWithCache(directory);
+            List<Gdl> rules = getRules("connectFour");
+
+            ForwardDeadReckonPropnetRuleEngine original = factory.buildEngineForRules(rules);
+            assertEquals(1, directory.listFiles().length);
+
+            // The transition tuning is cached too, so this is much quicker than the first build
+            long start = System.currentTimeMillis();
+            ForwardDeadReckonPropnetRuleEngine cached = factory.buildEngineForRules(rules);
+            assertTrue(System.currentTimeMillis() - start < 4000);
+
+            Random random = new Random(42);
+            for (int game = 0; game < 20; game++) {
+                playSameGame(original, cached, random);
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testUnreadableEntryIsIgnored() throws Exception {
+        File directory = Files.createTempDirectory("propnetcache").toFile();
+        try {
+            List<Gdl> rules = getRules("ticTacToe");
+            String key = PropNetCache.getKey(rules, null);
+            Files.write(new File(directory, key + ".propnet").toPath(), new byte[] {0, 0, 0, 1, 2, 3});
+
+            PropNetCache cache = new PropNetCache(directory);
+            assertNull(cache.load(key));
+
+            ForwardDeadReckonPropnetRuleEngine engine =
+                    SanchoRuleEngineFactory.createWithCache(directory).buildEngineForRules(rules);
+            assertFalse(engine.isTerminal(engine.getInitialState()));
+            assertNotNull(cache.load(key));
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static List<Gdl> getRules(String gameKey) {
+        return new TestGameRepository().getGame(gameKey).getRules();
+    }
+
+    private static void playSameGame(ForwardDeadReckonPropnetRuleEngine first,
+            ForwardDeadReckonPropnetRuleEngine second, Random random) throws Exception {
+        ForwardDeadReckonInternalMachineState firstState = first.getInitialState();
+        ForwardDeadReckonInternalMachineState secondState = second.getInitialState();
+        while (!first.isTerminal(firstState)) {
+            assertFalse(second.isTerminal(secondState));
+            List<ForwardDeadReckonLegalMoveInfo> firstMoves = new ArrayList<>();
+            List<ForwardDeadReckonLegalMoveInfo> secondMoves = new ArrayList<>();
+            for (int r = 0; r < first.getNumRoles(); r++) {
+                List<ForwardDeadReckonLegalMoveInfo> firstLegals = sortedLegalMoves(first, firstState, r);
+                List<ForwardDeadReckonLegalMoveInfo> secondLegals = sortedLegalMoves(second, secondState, r);
+                assertEquals(firstLegals.toString(), secondLegals.toString());
+                int choice = random.nextInt(firstLegals.size());
+                firstMoves.add(firstLegals.get(choice));
+                secondMoves.add(secondLegals.get(choice));
+            }
+            firstState = first.getNextState(firstState, firstMoves);
+            secondState = second.getNextState(secondState, secondMoves);
+        }
+        assertTrue(second.isTerminal(secondState));
+        for (int r = 0; r < first.getNumRoles(); r++) {
+            assertEquals(first.getGoal(firstState, r), second.getGoal(secondState, r));
+        }
+    }
+
+    private static List<ForwardDeadReckonLegalMoveInfo> sortedLegalMoves(ForwardDeadReckonPropnetRuleEngine engine,
+            ForwardDeadReckonInternalMachineState state, int role) throws Exception {
+        List<ForwardDeadReckonLegalMoveInfo> moves = new ArrayList<>(engine.getLegalMoves(state, role));
+        moves.sort((a, b) -> a.toString().compareTo(b.toString()));
+        return moves;
+    }
+}